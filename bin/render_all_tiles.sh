@@ -28,8 +28,10 @@ SCRIPTDIR=$(dirname $0)
 BASEDIR=$(cd $SCRIPTDIR/..; pwd)
 
 RENDERMAP=$BASEDIR/bin/rendermap.sh
+GEMFMERGE=$BASEDIR/bin/gemfmerge.sh
 RENDERING_DIR=file:///home/akos/src/rendering
 OUTPUT_DIR=/var/www/static/generated_new
+BANDS_DIR=$OUTPUT_DIR/bands
 OAM_DB=localhost,oam_test,oam,XXX
 OSM_DB=localhost,osm_world,osm,XXX
 export JAVA_OPTS=-Xmx12g
@@ -38,7 +40,9 @@ export JAVA_OPTS=-Xmx12g
 $RENDERMAP --oam $OAM_DB \
            --osm $OSM_DB \
            --levels 0,4 \
-           --output $OUTPUT_DIR \
+           --downsample osm \
+           --sinks gemf \
+           --output $BANDS_DIR/0-4 \
            --sldurl $RENDERING_DIR/zoom/0 \
            --dpi 96 --type tileset --force \
            --coverage -20,30,40,89
@@ -47,7 +51,9 @@ $RENDERMAP --oam $OAM_DB \
 $RENDERMAP --oam $OAM_DB \
            --osm $OSM_DB \
            --levels 5,7 \
-           --output $OUTPUT_DIR \
+           --downsample osm \
+           --sinks gemf \
+           --output $BANDS_DIR/5-7 \
            --sldurl $RENDERING_DIR/zoom/5 \
            --dpi 96 --type tileset --force \
            --coverage -20,30,40,89
@@ -56,9 +62,18 @@ $RENDERMAP --oam $OAM_DB \
 $RENDERMAP --oam $OAM_DB \
            --osm $OSM_DB \
            --levels 8,15 \
-           --output $OUTPUT_DIR \
+           --sinks gemf \
+           --output $BANDS_DIR/8-15 \
            --sldurl $RENDERING_DIR/zoom/9 \
            --dpi 96 --type tileset --force \
            --coverage -20,30,40,89
 
 
+# each level band is rendered into archives of its own, which are merged
+# into the archives of the whole tileset
+for MAP in osm oam; do
+    $GEMFMERGE --input $BANDS_DIR/0-4/$MAP.gemf,$BANDS_DIR/5-7/$MAP.gemf,$BANDS_DIR/8-15/$MAP.gemf \
+               --output $OUTPUT_DIR/$MAP.gemf \
+               --force
+done
+
@@ -0,0 +1,64 @@
+#!/bin/bash
+#
+#    Open Aviation Map
+#    Copyright (C) 2012-2013 Ákos Maróy
+#
+#    This program is free software: you can redistribute it and/or modify
+#    it under the terms of the GNU Affero General Public License as
+#    published by the Free Software Foundation, either version 3 of the
+#    License, or (at your option) any later version.
+#
+#    This program is distributed in the hope that it will be useful,
+#    but WITHOUT ANY WARRANTY; without even the implied warranty of
+#    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+#    GNU Affero General Public License for more details.
+#
+#    You should have received a copy of the GNU Affero General Public License
+#    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+#
+
+#
+#  Open Aviation Map execution wrapper script
+#
+#  It is assumed that this script resides in the oam-java-tools/bin
+#  directory.
+#
+#  Render a tileset distributed over several local processes: starts a
+#  coordinator and a number of workers sharing a work directory, each
+#  with the same rendermap.sh options, and waits for all of them. Workers
+#  on other machines may join by running rendermap.sh with the same options
+#  and --workdir on a shared file system, and --node worker.
+#
+#  usage: render_distributed.sh <workers> <workdir> <rendermap options>
+#
+
+SCRIPTDIR=$(dirname $0)
+BASEDIR=$(cd $SCRIPTDIR/..; pwd)
+
+RENDERMAP=$BASEDIR/bin/rendermap.sh
+
+if [ $# -lt 3 ]; then
+    echo "usage: $0 <workers> <workdir> <rendermap options>";
+    exit 1;
+fi
+
+WORKERS=$1
+WORKDIR=$2
+shift 2
+
+mkdir -p $WORKDIR
+
+$RENDERMAP --workdir $WORKDIR --node coordinator "$@" \
+    > $WORKDIR/coordinator.log 2>&1 &
+COORDINATOR=$!
+
+for i in $(seq 1 $WORKERS); do
+    $RENDERMAP --workdir $WORKDIR --node worker "$@" \
+        > $WORKDIR/worker-$i.log 2>&1 &
+done
+
+wait $COORDINATOR
+STATUS=$?
+wait
+
+exit $STATUS
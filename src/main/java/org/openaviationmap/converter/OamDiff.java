@@ -387,13 +387,13 @@ public final class OamDiff {
      * @param unchangedOam an Oam containing content that is both present in
      *        the baseline and the input, and is in fact the same.
      */
-    static void compareOams(Oam     baseOam,
-                            Oam     inputOam,
-                            String  idTag,
-                            Oam     newOam,
-                            Oam     deletedOam,
-                            Oam     updatedOam,
-                            Oam     unchangedOam) {
+    public static void compareOams(Oam     baseOam,
+                                   Oam     inputOam,
+                                   String  idTag,
+                                   Oam     newOam,
+                                   Oam     deletedOam,
+                                   Oam     updatedOam,
+                                   Oam     unchangedOam) {
 
         compareNodes(baseOam, inputOam, idTag,
                 newOam, deletedOam, updatedOam, unchangedOam);
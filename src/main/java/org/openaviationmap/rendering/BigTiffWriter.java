@@ -0,0 +1,971 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A streaming writer for tiled, deflate compressed BigTIFF images of 8 bit
+ * RGB pixels.
+ *
+ * Tiles can be written in any order, and from several threads at the same
+ * time. Each tile is compressed by the calling thread, and is appended to
+ * the file as it arrives. Only the offsets and sizes of the tiles are kept
+ * in memory, thus the memory needed does not depend on the size of the
+ * image. The image file directory is written at the end of the file when
+ * the writer is closed.
+ *
+ * A cloud optimized image also contains overviews, each half the size of
+ * the previous one, down to a single tile. The overviews are built while
+ * the tiles are written: each tile is downsampled into a quarter of an
+ * overview tile, and an overview tile is written as soon as all its
+ * quarters are there. When closed, the image is laid out the way clients
+ * reading parts of it by range requests expect: the image file directories
+ * of the image and of its overviews first, followed by the tiles of the
+ * overviews from the smallest one, and then the tiles of the image. This
+ * needs a copy of the tiles, written separately until then.
+ *
+ * The image is written under a temporary file name, and is moved in place
+ * of an earlier file of the same name only when closed, thus an earlier
+ * image remains intact until a new one is complete.
+ */
+public final class BigTiffWriter {
+
+    /** The default tile size, in pixels. */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /** TIFF field type ASCII, a NUL terminated string. */
+    public static final int TYPE_ASCII = 2;
+
+    /** TIFF field type SHORT, a 16 bit unsigned integer. */
+    public static final int TYPE_SHORT = 3;
+
+    /** TIFF field type LONG, a 32 bit unsigned integer. */
+    public static final int TYPE_LONG = 4;
+
+    /** TIFF field type RATIONAL, two LONG values. */
+    public static final int TYPE_RATIONAL = 5;
+
+    /** TIFF field type DOUBLE, a 64 bit IEEE floating point number. */
+    public static final int TYPE_DOUBLE = 12;
+
+    /** TIFF field type LONG8, a 64 bit unsigned integer. */
+    public static final int TYPE_LONG8 = 16;
+
+    /** The suffix of the temporary file written. */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** The suffix of the tiles of a cloud optimized image until closed. */
+    private static final String DATA_SUFFIX = ".data" + TMP_SUFFIX;
+
+    /** The size of the BigTIFF header. */
+    private static final int HEADER_SIZE = 16;
+
+    /** The size of an image file directory entry. */
+    private static final int ENTRY_SIZE = 20;
+
+    /** The number of samples per pixel, red, green and blue. */
+    private static final int SAMPLES = 3;
+
+    /** TIFF tag NewSubfileType. */
+    private static final int TAG_NEW_SUBFILE_TYPE = 254;
+
+    /** TIFF tag ImageWidth. */
+    private static final int TAG_IMAGE_WIDTH = 256;
+
+    /** TIFF tag ImageLength. */
+    private static final int TAG_IMAGE_LENGTH = 257;
+
+    /** TIFF tag BitsPerSample. */
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+
+    /** TIFF tag Compression. */
+    private static final int TAG_COMPRESSION = 259;
+
+    /** TIFF tag PhotometricInterpretation. */
+    private static final int TAG_PHOTOMETRIC = 262;
+
+    /** TIFF tag SamplesPerPixel. */
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+
+    /** TIFF tag XResolution. */
+    private static final int TAG_X_RESOLUTION = 282;
+
+    /** TIFF tag YResolution. */
+    private static final int TAG_Y_RESOLUTION = 283;
+
+    /** TIFF tag PlanarConfiguration. */
+    private static final int TAG_PLANAR_CONFIG = 284;
+
+    /** TIFF tag ResolutionUnit. */
+    private static final int TAG_RESOLUTION_UNIT = 296;
+
+    /** TIFF tag Predictor. */
+    private static final int TAG_PREDICTOR = 317;
+
+    /** TIFF tag TileWidth. */
+    private static final int TAG_TILE_WIDTH = 322;
+
+    /** TIFF tag TileLength. */
+    private static final int TAG_TILE_LENGTH = 323;
+
+    /** TIFF tag TileOffsets. */
+    private static final int TAG_TILE_OFFSETS = 324;
+
+    /** TIFF tag TileByteCounts. */
+    private static final int TAG_TILE_BYTE_COUNTS = 325;
+
+    /** The reduced resolution subfile type of overviews. */
+    private static final int SUBFILE_REDUCED = 1;
+
+    /** The Adobe deflate compression scheme. */
+    private static final int COMPRESSION_DEFLATE = 8;
+
+    /** The RGB photometric interpretation. */
+    private static final int PHOTOMETRIC_RGB = 2;
+
+    /** The horizontal differencing predictor. */
+    private static final int PREDICTOR_HORIZONTAL = 2;
+
+    /** The resolution unit inch. */
+    private static final int RESOLUTION_UNIT_INCH = 2;
+
+    /** The file to write. */
+    private final File file;
+
+    /** The temporary file written. */
+    private final File tmpFile;
+
+    /** The file the tiles are written into until closed. */
+    private final File dataFile;
+
+    /** The open data file. */
+    private final FileChannel channel;
+
+    /** The size of the tiles, in pixels. */
+    private final int tileSize;
+
+    /** The image, followed by its overviews, if cloud optimized. */
+    private final List<Level> levels = new ArrayList<Level>();
+
+    /** The end of the data written so far. */
+    private long end;
+
+    /**
+     * An entry of an image file directory: the values of a tag, encoded in
+     * little endian order.
+     */
+    private static final class Entry {
+        /** The TIFF field type of the values. */
+        final int type;
+
+        /** The number of values. */
+        final long count;
+
+        /** The encoded values. */
+        final byte[] data;
+
+        /**
+         * Constructor.
+         *
+         * @param type the TIFF field type of the values
+         * @param count the number of values
+         * @param data the encoded values
+         */
+        Entry(int type, long count, byte[] data) {
+            this.type  = type;
+            this.count = count;
+            this.data  = data;
+        }
+    }
+
+    /**
+     * An overview tile being built from the tiles of the previous level.
+     */
+    private static final class PartialTile {
+        /** The pixels of the tile. */
+        final int[] pixels;
+
+        /** The number of quarters of the tile filled. */
+        int quarters = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param tileSize the size of the tile, in pixels
+         */
+        PartialTile(int tileSize) {
+            pixels = new int[tileSize * tileSize];
+        }
+    }
+
+    /**
+     * The image, or one of its overviews.
+     */
+    private final class Level {
+        /** The width of the level, in pixels. */
+        final int width;
+
+        /** The height of the level, in pixels. */
+        final int height;
+
+        /** The number of tile columns. */
+        final int columns;
+
+        /** The number of tile rows. */
+        final int rows;
+
+        /** The offset of each tile, row by row, 0 if not written. */
+        final long[] offsets;
+
+        /** The compressed size of each tile, row by row. */
+        final long[] byteCounts;
+
+        /** The entries of the image file directory, by tag. */
+        final Map<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+
+        /** The overview tiles being built from this level, by index. */
+        final Map<Integer, PartialTile> partials =
+                                        new HashMap<Integer, PartialTile>();
+
+        /**
+         * Constructor.
+         *
+         * @param width the width of the level, in pixels
+         * @param height the height of the level, in pixels
+         */
+        Level(int width, int height) {
+            this.width  = width;
+            this.height = height;
+            columns     = (width + tileSize - 1) / tileSize;
+            rows        = (height + tileSize - 1) / tileSize;
+            offsets     = new long[columns * rows];
+            byteCounts  = new long[columns * rows];
+
+            putInts(entries, TAG_IMAGE_WIDTH, TYPE_LONG, width);
+            putInts(entries, TAG_IMAGE_LENGTH, TYPE_LONG, height);
+            putInts(entries, TAG_BITS_PER_SAMPLE, TYPE_SHORT, 8, 8, 8);
+            putInts(entries, TAG_COMPRESSION, TYPE_SHORT,
+                    COMPRESSION_DEFLATE);
+            putInts(entries, TAG_PHOTOMETRIC, TYPE_SHORT, PHOTOMETRIC_RGB);
+            putInts(entries, TAG_SAMPLES_PER_PIXEL, TYPE_SHORT, SAMPLES);
+            putInts(entries, TAG_PLANAR_CONFIG, TYPE_SHORT, 1);
+            putInts(entries, TAG_PREDICTOR, TYPE_SHORT, PREDICTOR_HORIZONTAL);
+            putInts(entries, TAG_TILE_WIDTH, TYPE_LONG, tileSize);
+            putInts(entries, TAG_TILE_LENGTH, TYPE_LONG, tileSize);
+        }
+    }
+
+    /**
+     * Constructor, for an image without overviews.
+     *
+     * @param file the image file to write
+     * @param width the width of the image, in pixels
+     * @param height the height of the image, in pixels
+     * @param tileSize the size of the tiles, a multiple of 16
+     * @throws IOException on I/O errors
+     */
+    public BigTiffWriter(File   file,
+                         int    width,
+                         int    height,
+                         int    tileSize) throws IOException {
+        this(file, width, height, tileSize, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file the image file to write
+     * @param width the width of the image, in pixels
+     * @param height the height of the image, in pixels
+     * @param tileSize the size of the tiles, a multiple of 16
+     * @param cloudOptimized if true, write a cloud optimized image, with
+     *        overviews
+     * @throws IOException on I/O errors
+     */
+    public BigTiffWriter(File       file,
+                         int        width,
+                         int        height,
+                         int        tileSize,
+                         boolean    cloudOptimized) throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException(
+                                    "the image size must be positive");
+        }
+        if (tileSize < 16 || tileSize % 16 != 0) {
+            throw new IllegalArgumentException(
+                                "the tile size must be a multiple of 16");
+        }
+
+        this.file     = file;
+        this.tmpFile  = new File(file.getPath() + TMP_SUFFIX);
+        this.dataFile = cloudOptimized ? new File(file.getPath() + DATA_SUFFIX)
+                                       : tmpFile;
+        this.tileSize = tileSize;
+
+        Level level = new Level(width, height);
+        levels.add(level);
+        while (cloudOptimized && (level.columns > 1 || level.rows > 1)) {
+            level = new Level((level.width + 1) / 2, (level.height + 1) / 2);
+            putInts(level.entries, TAG_NEW_SUBFILE_TYPE, TYPE_LONG,
+                    SUBFILE_REDUCED);
+            levels.add(level);
+        }
+
+        // the directories of a cloud optimized image are put in front of
+        // the tiles only when closed
+        end = cloudOptimized ? 0 : HEADER_SIZE;
+
+        if (dataFile.exists() && !dataFile.delete()) {
+            throw new IOException("Could not delete " + dataFile);
+        }
+        channel = new RandomAccessFile(dataFile, "rw").getChannel();
+    }
+
+    /**
+     * Set the resolution the image is meant to be printed at.
+     *
+     * @param dpi the resolution, in dots per inch
+     */
+    public synchronized void setResolution(double dpi) {
+        long numerator = Math.round(dpi * 100);
+
+        Map<Integer, Entry> entries = levels.get(0).entries;
+        putInts(entries, TAG_X_RESOLUTION, TYPE_RATIONAL, numerator, 100);
+        putInts(entries, TAG_Y_RESOLUTION, TYPE_RATIONAL, numerator, 100);
+        putInts(entries, TAG_RESOLUTION_UNIT, TYPE_SHORT,
+                RESOLUTION_UNIT_INCH);
+    }
+
+    /**
+     * Set the values of a tag of the image, with an integer field type.
+     * The tags describing the layout of the image are set by the writer.
+     *
+     * @param tag the tag
+     * @param type the field type, SHORT, LONG, RATIONAL or LONG8
+     * @param values the values of the tag
+     */
+    public synchronized void setIntTag(int tag, int type, long... values) {
+        if (type != TYPE_SHORT && type != TYPE_LONG && type != TYPE_RATIONAL
+         && type != TYPE_LONG8) {
+            throw new IllegalArgumentException("not an integer type " + type);
+        }
+
+        putInts(levels.get(0).entries, tag, type, values);
+    }
+
+    /**
+     * Set the values of a tag of the image, with the DOUBLE field type.
+     *
+     * @param tag the tag
+     * @param values the values of the tag
+     */
+    public synchronized void setDoubleTag(int tag, double... values) {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 8)
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+        for (double value : values) {
+            buf.putDouble(value);
+        }
+
+        levels.get(0).entries.put(tag, new Entry(TYPE_DOUBLE, values.length,
+                                                 buf.array()));
+    }
+
+    /**
+     * Set the value of a tag of the image, with the ASCII field type.
+     *
+     * @param tag the tag
+     * @param value the value of the tag, of ASCII characters
+     */
+    public synchronized void setAsciiTag(int tag, String value) {
+        byte[] data = new byte[value.length() + 1];
+        for (int i = 0; i < value.length(); ++i) {
+            data[i] = (byte) value.charAt(i);
+        }
+
+        levels.get(0).entries.put(tag, new Entry(TYPE_ASCII, data.length,
+                                                 data));
+    }
+
+    /**
+     * Set the values of a tag with an integer field type.
+     *
+     * @param entries the directory entries to set the tag in
+     * @param tag the tag
+     * @param type the field type, SHORT, LONG, RATIONAL or LONG8
+     * @param values the values of the tag
+     */
+    private static void
+    putInts(Map<Integer, Entry> entries, int tag, int type, long... values) {
+        int size = type == TYPE_SHORT ? 2 : type == TYPE_LONG8 ? 8 : 4;
+        ByteBuffer buf = ByteBuffer.allocate(values.length * size)
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+
+        for (long value : values) {
+            switch (type) {
+            case TYPE_SHORT:
+                buf.putShort((short) value);
+                break;
+
+            case TYPE_LONG:
+            case TYPE_RATIONAL:
+                buf.putInt((int) value);
+                break;
+
+            default:
+                buf.putLong(value);
+            }
+        }
+
+        long count = type == TYPE_RATIONAL ? values.length / 2
+                                           : values.length;
+        entries.put(tag, new Entry(type, count, buf.array()));
+    }
+
+    /**
+     * @return the width of the image, in pixels
+     */
+    public int getWidth() {
+        return levels.get(0).width;
+    }
+
+    /**
+     * @return the height of the image, in pixels
+     */
+    public int getHeight() {
+        return levels.get(0).height;
+    }
+
+    /**
+     * @return the size of the tiles, in pixels
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return the number of tile columns
+     */
+    public int getColumns() {
+        return levels.get(0).columns;
+    }
+
+    /**
+     * @return the number of tile rows
+     */
+    public int getRows() {
+        return levels.get(0).rows;
+    }
+
+    /**
+     * @return the number of overviews of the image
+     */
+    public int getOverviewCount() {
+        return levels.size() - 1;
+    }
+
+    /**
+     * Write a tile of the image. The pixels are taken from an area of the
+     * size of a tile of a source image. Parts of the tile beyond the edges
+     * of the image repeat the pixels at the edges. May be called from
+     * several threads.
+     *
+     * @param column the tile column
+     * @param row the tile row
+     * @param image the image to take the pixels of the tile from
+     * @param x the left edge of the tile within image
+     * @param y the top edge of the tile within image
+     * @throws IOException on I/O errors
+     */
+    public void
+    writeTile(int               column,
+              int               row,
+              BufferedImage     image,
+              int               x,
+              int               y) throws IOException {
+        Level level = levels.get(0);
+        if (column < 0 || column >= level.columns
+         || row < 0 || row >= level.rows) {
+            throw new IllegalArgumentException("tile " + column + "," + row
+                                             + " is outside of the image");
+        }
+
+        int w = Math.min(tileSize, level.width - column * tileSize);
+        int h = Math.min(tileSize, level.height - row * tileSize);
+
+        int[] pixels = new int[tileSize * tileSize];
+        image.getRGB(x, y, w, h, pixels, 0, tileSize);
+
+        writeTile(0, column, row, pixels);
+    }
+
+    /**
+     * Write a tile of a level, and build the overview tiles from it.
+     *
+     * @param index the index of the level, 0 for the image itself
+     * @param column the tile column
+     * @param row the tile row
+     * @param pixels the pixels of the tile, row by row
+     * @throws IOException on I/O errors
+     */
+    private void
+    writeTile(int   index,
+              int   column,
+              int   row,
+              int[] pixels) throws IOException {
+
+        Level level = levels.get(index);
+        padEdges(pixels, Math.min(tileSize, level.width - column * tileSize),
+                         Math.min(tileSize, level.height - row * tileSize));
+
+        byte[] data     = encodeTile(pixels);
+        int[]  quarter  = index + 1 < levels.size() ? downsample(pixels)
+                                                    : null;
+        int[]  overview = null;
+
+        synchronized (this) {
+            // a tile is never compressed into 0 bytes, thus a 0 size marks
+            // a tile not written yet
+            int i = row * level.columns + column;
+            if (level.byteCounts[i] != 0) {
+                throw new IllegalStateException("tile " + column + ","
+                                              + row + " already written");
+            }
+
+            write(ByteBuffer.wrap(data), end);
+
+            level.offsets[i]    = end;
+            level.byteCounts[i] = data.length;
+            end                += data.length;
+
+            if (quarter != null) {
+                overview = addQuarter(level, levels.get(index + 1),
+                                      column, row, quarter);
+            }
+        }
+
+        if (overview != null) {
+            writeTile(index + 1, column / 2, row / 2, overview);
+        }
+    }
+
+    /**
+     * Add a downsampled tile to the overview tile it is a quarter of.
+     *
+     * @param level the level of the downsampled tile
+     * @param next the level of the overview tile
+     * @param column the tile column of the downsampled tile
+     * @param row the tile row of the downsampled tile
+     * @param quarter the pixels of the downsampled tile
+     * @return the pixels of the overview tile, if complete, or null
+     */
+    private int[]
+    addQuarter(Level    level,
+               Level    next,
+               int      column,
+               int      row,
+               int[]    quarter) {
+
+        int         i    = (row / 2) * next.columns + column / 2;
+        PartialTile tile = level.partials.get(i);
+        if (tile == null) {
+            tile = new PartialTile(tileSize);
+            level.partials.put(i, tile);
+        }
+
+        int half = tileSize / 2;
+        int left = (column % 2) * half;
+        int top  = (row % 2) * half;
+        for (int j = 0; j < half; ++j) {
+            System.arraycopy(quarter, j * half,
+                             tile.pixels, (top + j) * tileSize + left, half);
+        }
+
+        // overview tiles on the right and bottom edges may have fewer
+        // quarters
+        int expected = ((column | 1) < level.columns ? 2 : 1)
+                     * ((row | 1) < level.rows ? 2 : 1);
+        if (++tile.quarters < expected) {
+            return null;
+        }
+
+        level.partials.remove(i);
+
+        return tile.pixels;
+    }
+
+    /**
+     * Fill the parts of a tile beyond the edges of its level by repeating
+     * the pixels at the edges, so that these parts compress well, and
+     * downsample smoothly.
+     *
+     * @param pixels the pixels of the tile, row by row
+     * @param w the width of the part of the tile within the level
+     * @param h the height of the part of the tile within the level
+     */
+    private void padEdges(int[] pixels, int w, int h) {
+        for (int j = 0; j < h && w < tileSize; ++j) {
+            int edge = pixels[j * tileSize + w - 1];
+            for (int i = w; i < tileSize; ++i) {
+                pixels[j * tileSize + i] = edge;
+            }
+        }
+        for (int j = h; j < tileSize; ++j) {
+            System.arraycopy(pixels, (h - 1) * tileSize,
+                             pixels, j * tileSize, tileSize);
+        }
+    }
+
+    /**
+     * Downsample a tile to half its size, averaging each 2x2 box of pixels.
+     *
+     * @param pixels the pixels of the tile, row by row
+     * @return the pixels of the downsampled tile, row by row
+     */
+    private int[] downsample(int[] pixels) {
+        int   half   = tileSize / 2;
+        int[] result = new int[half * half];
+
+        for (int j = 0; j < half; ++j) {
+            for (int i = 0; i < half; ++i) {
+                int k  = 2 * j * tileSize + 2 * i;
+                int p1 = pixels[k];
+                int p2 = pixels[k + 1];
+                int p3 = pixels[k + tileSize];
+                int p4 = pixels[k + tileSize + 1];
+
+                int pixel = 0;
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int sum = (p1 >> shift & 0xff) + (p2 >> shift & 0xff)
+                            + (p3 >> shift & 0xff) + (p4 >> shift & 0xff);
+                    pixel |= ((sum + 2) / 4) << shift;
+                }
+                result[j * half + i] = pixel;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Encode a tile: take the pixels as 8 bit RGB samples, apply the
+     * horizontal differencing predictor, and compress the result.
+     *
+     * @param pixels the pixels of the tile, row by row
+     * @return the encoded tile
+     * @throws IOException on compression errors
+     */
+    private byte[] encodeTile(int[] pixels) throws IOException {
+        byte[] raw = new byte[tileSize * tileSize * SAMPLES];
+
+        for (int j = 0; j < tileSize; ++j) {
+            int rowStart = j * tileSize * SAMPLES;
+            for (int i = 0; i < tileSize; ++i) {
+                int pixel = pixels[j * tileSize + i];
+                int k     = rowStart + i * SAMPLES;
+
+                raw[k]     = (byte) (pixel >> 16);
+                raw[k + 1] = (byte) (pixel >> 8);
+                raw[k + 2] = (byte) pixel;
+            }
+
+            // the predictor works on whole rows of the tile, back to front
+            for (int k = rowStart + tileSize * SAMPLES - 1;
+                 k >= rowStart + SAMPLES; --k) {
+                raw[k] -= raw[k - SAMPLES];
+            }
+        }
+
+        Deflater              deflater = new Deflater();
+        ByteArrayOutputStream bos      = new ByteArrayOutputStream();
+        DeflaterOutputStream  dos      = new DeflaterOutputStream(bos,
+                                                                  deflater);
+        try {
+            dos.write(raw);
+            dos.finish();
+        } finally {
+            deflater.end();
+        }
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Write the image file directories, and move the image in place of the
+     * file. All tiles have to be written before.
+     *
+     * @throws IOException on I/O errors, or if a tile was not written
+     */
+    public synchronized void close() throws IOException {
+        Level image = levels.get(0);
+        for (int i = 0; i < image.byteCounts.length; ++i) {
+            if (image.byteCounts[i] == 0) {
+                channel.close();
+                throw new IOException("tile " + (i % image.columns) + ","
+                                    + (i / image.columns) + " of " + file
+                                    + " not written");
+            }
+        }
+
+        try {
+            if (levels.size() == 1) {
+                // the directory follows the tiles, on a word boundary
+                long directory = (end + 1) & ~1L;
+
+                writeHeader(channel, directory);
+                write(encodeDirectory(image, directory, 0), directory);
+                channel.force(true);
+            } else {
+                writeCloudOptimized();
+            }
+        } finally {
+            channel.close();
+        }
+
+        if (dataFile != tmpFile && !dataFile.delete()) {
+            throw new IOException("Could not delete " + dataFile);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Could not rename " + tmpFile + " to "
+                                + file);
+        }
+    }
+
+    /**
+     * Write the cloud optimized layout of the image into the temporary
+     * file: the header, the directories of all levels, and the tiles of
+     * the levels, from the smallest overview up to the image itself. The
+     * tiles are copied from the data file.
+     *
+     * @throws IOException on I/O errors
+     */
+    private void writeCloudOptimized() throws IOException {
+        // the directories come right after the header, thus the offset
+        // of the tiles is known from their sizes, which in turn do not
+        // depend on the offsets
+        long[] directories = new long[levels.size()];
+        long   position    = HEADER_SIZE;
+        for (int i = 0; i < levels.size(); ++i) {
+            directories[i] = position;
+            position      += encodeDirectory(levels.get(i), position, 0)
+                                                                .remaining();
+        }
+
+        long[][] offsets = new long[levels.size()][];
+        for (int i = levels.size() - 1; i >= 0; --i) {
+            Level level = levels.get(i);
+
+            offsets[i] = new long[level.offsets.length];
+            for (int j = 0; j < offsets[i].length; ++j) {
+                offsets[i][j] = position;
+                position     += level.byteCounts[j];
+            }
+        }
+
+        if (tmpFile.exists() && !tmpFile.delete()) {
+            throw new IOException("Could not delete " + tmpFile);
+        }
+        FileChannel out = new RandomAccessFile(tmpFile, "rw").getChannel();
+        try {
+            writeHeader(out, directories[0]);
+
+            for (int i = 0; i < levels.size(); ++i) {
+                Level level = levels.get(i);
+                long  next  = i + 1 < levels.size() ? directories[i + 1] : 0;
+
+                ByteBuffer dir = encodeDirectory(level, directories[i], next,
+                                                 offsets[i]);
+                write(out, dir, directories[i]);
+            }
+
+            for (int i = levels.size() - 1; i >= 0; --i) {
+                Level level = levels.get(i);
+
+                for (int j = 0; j < offsets[i].length; ++j) {
+                    long from  = level.offsets[j];
+                    long count = level.byteCounts[j];
+                    long to    = offsets[i][j];
+                    while (count > 0) {
+                        long n = channel.transferTo(from, count,
+                                                    out.position(to));
+                        from  += n;
+                        to    += n;
+                        count -= n;
+                    }
+                }
+            }
+
+            out.force(true);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the BigTIFF header.
+     *
+     * @param ch the file to write the header into
+     * @param directory the offset of the first image file directory
+     * @throws IOException on I/O errors
+     */
+    private void
+    writeHeader(FileChannel ch, long directory) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I');
+        header.putShort((short) 43);
+        header.putShort((short) 8);
+        header.putShort((short) 0);
+        header.putLong(directory);
+        header.flip();
+
+        write(ch, header, 0);
+    }
+
+    /**
+     * Encode the image file directory of a level, with the tile offsets
+     * recorded.
+     *
+     * @param level the level to encode the directory of
+     * @param position the offset the directory is to be written at
+     * @param next the offset of the next directory, 0 if none
+     * @return the directory, followed by the values not fitting into the
+     *         entries
+     */
+    private ByteBuffer
+    encodeDirectory(Level level, long position, long next) {
+        return encodeDirectory(level, position, next, level.offsets);
+    }
+
+    /**
+     * Encode the image file directory of a level.
+     *
+     * @param level the level to encode the directory of
+     * @param position the offset the directory is to be written at, on a
+     *        word boundary
+     * @param next the offset of the next directory, 0 if none
+     * @param offsets the offsets of the tiles of the level
+     * @return the directory, followed by the values not fitting into the
+     *         entries, of an even size
+     */
+    private ByteBuffer
+    encodeDirectory(Level   level,
+                    long    position,
+                    long    next,
+                    long[]  offsets) {
+
+        Map<Integer, Entry> entries = new TreeMap<Integer, Entry>(
+                                                            level.entries);
+        putInts(entries, TAG_TILE_OFFSETS, TYPE_LONG8, offsets);
+        putInts(entries, TAG_TILE_BYTE_COUNTS, TYPE_LONG8, level.byteCounts);
+
+        int dirSize = 8 + entries.size() * ENTRY_SIZE + 8;
+        int size    = dirSize;
+        for (Entry entry : entries.values()) {
+            if (entry.data.length > 8) {
+                size += (entry.data.length + 1) & ~1;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size)
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+        int values = dirSize;
+
+        buf.putLong(entries.size());
+        for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+
+            buf.putShort(e.getKey().shortValue());
+            buf.putShort((short) entry.type);
+            buf.putLong(entry.count);
+
+            if (entry.data.length <= 8) {
+                buf.put(entry.data);
+                buf.put(new byte[8 - entry.data.length]);
+            } else {
+                buf.putLong(position + values);
+                ByteBuffer v = buf.duplicate();
+                v.position(values);
+                v.put(entry.data);
+                values += (entry.data.length + 1) & ~1;
+            }
+        }
+        buf.putLong(next);
+        buf.position(0);
+
+        return buf;
+    }
+
+    /**
+     * Write a buffer into the data file, at a specific position.
+     *
+     * @param buf the buffer to write
+     * @param position the position in the file to write at
+     * @throws IOException on I/O errors
+     */
+    private void write(ByteBuffer buf, long position) throws IOException {
+        write(channel, buf, position);
+    }
+
+    /**
+     * Write a buffer into a file, at a specific position.
+     *
+     * @param ch the file to write into
+     * @param buf the buffer to write, from its start
+     * @param position the position in the file to write at
+     * @throws IOException on I/O errors
+     */
+    private static void
+    write(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position());
+        }
+    }
+
+    /**
+     * Abandon the image, and delete the temporary files. An earlier file
+     * of the same name is kept.
+     */
+    public synchronized void abort() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+
+        dataFile.delete();
+        tmpFile.delete();
+    }
+}
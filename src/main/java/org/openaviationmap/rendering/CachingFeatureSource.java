@@ -0,0 +1,502 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.RenderingHints;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureListener;
+import org.geotools.data.Query;
+import org.geotools.data.QueryCapabilities;
+import org.geotools.data.ResourceInfo;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.Name;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * A feature source caching the features of another one in memory, for
+ * rendering many adjacent metatiles of a map. The features are fetched
+ * region by region: regions are the cells of a grid several metatiles
+ * wide, and a region is fetched with a single query when first needed.
+ * The features of a region are held in a spatial index, and queries are
+ * answered from the index, evaluating their filters in memory.
+ *
+ * The size of the regions is set by the first query: it is a number of
+ * times the size of the area queried, that is, of a metatile when
+ * rendering a tileset. The memory used by the cached features is bounded,
+ * the least recently used regions are evicted when it is exceeded.
+ *
+ * A single caching feature source should serve all the layers of a map
+ * reading the same feature type, so that the features are fetched only
+ * once for all of them.
+ *
+ * Queries without a bounding box, or with reprojection, are passed on to
+ * the feature source cached. Safe to use from many threads.
+ */
+public final class CachingFeatureSource implements SimpleFeatureSource {
+
+    /** The default memory budget for cached features, in bytes. */
+    public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
+    /** The size of a region, in the size of the first area queried. */
+    public static final int REGION_FACTOR = 4;
+
+    /** The estimated memory used by a feature, besides its attributes. */
+    private static final int FEATURE_OVERHEAD = 128;
+
+    /**
+     * A region of the grid, with its features.
+     */
+    private static final class Region {
+
+        /** The grid cell of the region, see cellKey(). */
+        private final long key;
+
+        /** The bounds of the region. */
+        private final ReferencedEnvelope bounds;
+
+        /** The features of the region, indexed by their envelopes. */
+        private final STRtree index = new STRtree();
+
+        /** Flag to mark that the features of the region are fetched. */
+        private boolean loaded = false;
+
+        /** Flag to mark that the region is counted in the cache size. */
+        private boolean counted = false;
+
+        /** The estimated memory used by the features, in bytes. */
+        private long size = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param key the grid cell of the region
+         * @param bounds the bounds of the region
+         */
+        private Region(long key, ReferencedEnvelope bounds) {
+            this.key    = key;
+            this.bounds = bounds;
+        }
+    }
+
+    /** The feature source cached. */
+    private final SimpleFeatureSource delegate;
+
+    /** The memory budget for cached features, in bytes. */
+    private final long budget;
+
+    /** The regions cached, in access order, keyed by their grid cells. */
+    private final LinkedHashMap<Long, Region> regions =
+                        new LinkedHashMap<Long, Region>(16, 0.75f, true);
+
+    /** The estimated memory used by the regions cached, in bytes. */
+    private long size = 0;
+
+    /** The size of a region, or 0 if not known yet. */
+    private double regionSize = 0;
+
+    /** The number of regions fetched. */
+    private long loadCount = 0;
+
+    /** The number of queries answered from the cache. */
+    private long queryCount = 0;
+
+    /** The metrics to record database queries into, or null. */
+    private RenderMetrics metrics = null;
+
+    /** The layer to record database queries as. */
+    private String metricsLayer = null;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate the feature source to cache
+     * @param budget the memory budget for cached features, in bytes
+     */
+    public CachingFeatureSource(SimpleFeatureSource delegate, long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("invalid cache size "
+                                             + budget);
+        }
+
+        this.delegate = delegate;
+        this.budget   = budget;
+    }
+
+    /**
+     * Record the time of each region fetched, and the number of features
+     * in it, into render metrics.
+     *
+     * @param metrics the metrics to record into, or null not to record
+     * @param layer the layer to record the queries as
+     */
+    public synchronized void setMetrics(RenderMetrics metrics, String layer) {
+        this.metrics      = metrics;
+        this.metricsLayer = layer;
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getName()
+     */
+    @Override
+    public Name getName() {
+        return delegate.getName();
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getInfo()
+     */
+    @Override
+    public ResourceInfo getInfo() {
+        return delegate.getInfo();
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getDataStore()
+     */
+    @Override
+    public DataAccess<SimpleFeatureType, SimpleFeature> getDataStore() {
+        return delegate.getDataStore();
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getQueryCapabilities()
+     */
+    @Override
+    public QueryCapabilities getQueryCapabilities() {
+        return delegate.getQueryCapabilities();
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#addFeatureListener(
+     *                                  org.geotools.data.FeatureListener)
+     */
+    @Override
+    public void addFeatureListener(FeatureListener listener) {
+        delegate.addFeatureListener(listener);
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#removeFeatureListener(
+     *                                  org.geotools.data.FeatureListener)
+     */
+    @Override
+    public void removeFeatureListener(FeatureListener listener) {
+        delegate.removeFeatureListener(listener);
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getSchema()
+     */
+    @Override
+    public SimpleFeatureType getSchema() {
+        return delegate.getSchema();
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getBounds()
+     */
+    @Override
+    public ReferencedEnvelope getBounds() throws IOException {
+        return delegate.getBounds();
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getBounds(
+     *                                          org.geotools.data.Query)
+     */
+    @Override
+    public ReferencedEnvelope getBounds(Query query) throws IOException {
+        return delegate.getBounds(query);
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getCount(org.geotools.data.Query)
+     */
+    @Override
+    public int getCount(Query query) throws IOException {
+        return delegate.getCount(query);
+    }
+
+    /**
+     * No hints are supported, as the cached features are shared by all
+     * queries, e.g. they are not simplified for a query.
+     *
+     * @return an empty set
+     */
+    @Override
+    public Set<RenderingHints.Key> getSupportedHints() {
+        return Collections.emptySet();
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getFeatures()
+     */
+    @Override
+    public SimpleFeatureCollection getFeatures() throws IOException {
+        return delegate.getFeatures();
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.data.FeatureSource#getFeatures(
+     *                                          org.opengis.filter.Filter)
+     */
+    @Override
+    public SimpleFeatureCollection getFeatures(Filter filter)
+                                                        throws IOException {
+        return getFeatures(new Query(getSchema().getTypeName(), filter));
+    }
+
+    /**
+     * Get the features matching a query, from the cache if the query is
+     * limited to an area.
+     *
+     * @param query the query
+     * @return the features matching the query
+     * @throws IOException on I/O errors
+     */
+    @Override
+    public SimpleFeatureCollection getFeatures(Query query)
+                                                        throws IOException {
+        Filter filter = query.getFilter() == null ? Filter.INCLUDE
+                                                  : query.getFilter();
+        Envelope area = filter == Filter.INCLUDE ? null
+                : (Envelope) filter.accept(
+                        ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+
+        if (area == null || area.isNull()
+         || Double.isInfinite(area.getWidth())
+         || Double.isInfinite(area.getHeight())
+         || query.getCoordinateSystemReproject() != null) {
+            return delegate.getFeatures(query);
+        }
+
+        List<Region> needed = getRegions(area);
+        for (Region region : needed) {
+            load(region);
+        }
+
+        // a feature spanning several regions is found in each of them
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        Set<String>         ids      = new HashSet<String>();
+        for (Region region : needed) {
+            List<?> candidates;
+            synchronized (region) {
+                candidates = region.index.query(area);
+            }
+
+            for (Object o : candidates) {
+                SimpleFeature feature = (SimpleFeature) o;
+                if (ids.add(feature.getID()) && filter.evaluate(feature)) {
+                    features.add(feature);
+                }
+            }
+        }
+
+        synchronized (this) {
+            ++queryCount;
+            evict(needed);
+        }
+
+        return new ListFeatureCollection(getSchema(), features);
+    }
+
+    /**
+     * Get the regions covering an area, creating the ones not cached yet.
+     *
+     * @param area the area to cover
+     * @return the regions covering the area
+     */
+    private synchronized List<Region> getRegions(Envelope area) {
+        if (regionSize == 0) {
+            regionSize = REGION_FACTOR
+                       * Math.max(area.getWidth(), area.getHeight());
+            if (regionSize == 0) {
+                regionSize = 1;
+            }
+        }
+
+        int minX = (int) Math.floor(area.getMinX() / regionSize);
+        int maxX = (int) Math.floor(area.getMaxX() / regionSize);
+        int minY = (int) Math.floor(area.getMinY() / regionSize);
+        int maxY = (int) Math.floor(area.getMaxY() / regionSize);
+
+        List<Region> needed = new ArrayList<Region>();
+        for (int x = minX; x <= maxX; ++x) {
+            for (int y = minY; y <= maxY; ++y) {
+                long   key    = ((long) x << 32) | (y & 0xffffffffL);
+                Region region = regions.get(key);
+                if (region == null) {
+                    region = new Region(key, new ReferencedEnvelope(
+                                x * regionSize, (x + 1) * regionSize,
+                                y * regionSize, (y + 1) * regionSize,
+                                getSchema().getCoordinateReferenceSystem()));
+                    regions.put(key, region);
+                }
+                needed.add(region);
+            }
+        }
+
+        return needed;
+    }
+
+    /**
+     * Fetch the features of a region, if not fetched yet.
+     *
+     * @param region the region to fetch
+     * @throws IOException on I/O errors
+     */
+    private void load(Region region) throws IOException {
+        synchronized (region) {
+            if (region.loaded) {
+                return;
+            }
+
+            FilterFactory2 ff   = CommonFactoryFinder.getFilterFactory2();
+            Filter         bbox = ff.bbox(ff.property(getSchema()
+                                    .getGeometryDescriptor().getLocalName()),
+                                    region.bounds);
+
+            long start    = System.nanoTime();
+            long features = 0;
+
+            SimpleFeatureIterator it = delegate.getFeatures(
+                    new Query(getSchema().getTypeName(), bbox)).features();
+            try {
+                while (it.hasNext()) {
+                    SimpleFeature feature  = it.next();
+                    Object        geometry = feature.getDefaultGeometry();
+                    ++features;
+                    if (!(geometry instanceof Geometry)) {
+                        continue;
+                    }
+
+                    region.index.insert(
+                        ((Geometry) geometry).getEnvelopeInternal(), feature);
+                    region.size += estimateSize(feature);
+                }
+            } finally {
+                it.close();
+            }
+            region.index.build();
+            region.loaded = true;
+
+            RenderMetrics m;
+            String        layer;
+            synchronized (this) {
+                m     = metrics;
+                layer = metricsLayer;
+            }
+            if (m != null) {
+                m.recordTime(layer, RenderMetrics.QUERY_TIME, start);
+                m.record(layer, RenderMetrics.FEATURES, features);
+            }
+        }
+
+        synchronized (this) {
+            ++loadCount;
+            // unless evicted in the meantime
+            if (regions.get(region.key) == region) {
+                size += region.size;
+                region.counted = true;
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently used regions until the cache fits into its
+     * budget, except for the regions in use.
+     *
+     * @param inUse the regions in use
+     */
+    private void evict(List<Region> inUse) {
+        Iterator<Region> it = regions.values().iterator();
+        while (size > budget && it.hasNext()) {
+            Region region = it.next();
+            if (region.counted && !inUse.contains(region)) {
+                size -= region.size;
+                region.counted = false;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Estimate the memory used by a feature.
+     *
+     * @param feature the feature
+     * @return the estimated memory used by the feature, in bytes
+     */
+    private static long estimateSize(SimpleFeature feature) {
+        long estimate = FEATURE_OVERHEAD;
+        for (Object attribute : feature.getAttributes()) {
+            if (attribute instanceof Geometry) {
+                estimate += 48 + 24L * ((Geometry) attribute).getNumPoints();
+            } else if (attribute instanceof String) {
+                estimate += 40 + 2L * ((String) attribute).length();
+            } else {
+                estimate += 16;
+            }
+        }
+
+        return estimate;
+    }
+
+    /**
+     * @return the estimated memory used by the cached features, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of regions fetched from the feature source cached
+     */
+    public synchronized long getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * @return the number of queries answered from the cache
+     */
+    public synchronized long getQueryCount() {
+        return queryCount;
+    }
+}
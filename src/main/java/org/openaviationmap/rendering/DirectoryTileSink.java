@@ -0,0 +1,219 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A tile sink storing tiles as files in a z/x/y.ext directory tree.
+ * Tiles with the same contents are stored as hard links to the same file,
+ * or as copies where hard links are not available. Hard links are created
+ * with the ln command, as the Java 6 API has no means to create them.
+ */
+public class DirectoryTileSink implements TileSink {
+
+    /** The base directory of the tile tree. */
+    private final File baseDir;
+
+    /** The file name extension of tiles, without the leading dot. */
+    private final String extension;
+
+    /**
+     * Flag to mark that the ln command is not available, thus tiles are
+     * copied instead of being linked.
+     */
+    private volatile boolean noLinks = false;
+
+    /**
+     * Constructor.
+     *
+     * @param baseDir the base directory of the tile tree
+     * @param extension the file name extension of the tile files, without
+     *        the leading dot, e.g. "png"
+     */
+    public DirectoryTileSink(File baseDir, String extension) {
+        this.baseDir   = baseDir;
+        this.extension = extension;
+    }
+
+    /**
+     * Return the file a tile is stored in.
+     *
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the file of the tile
+     */
+    public File getFile(int zoom, int x, int y) {
+        return new File(baseDir, zoom + File.separator + x + File.separator
+                               + y + "." + extension);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileSink#put(int, int, int, byte[])
+     */
+    @Override
+    public Object put(int zoom, int x, int y, byte[] data) throws IOException {
+        File file = prepare(zoom, x, y);
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileSink#link(int, int, int,
+     *                                                  java.lang.Object)
+     */
+    @Override
+    public Object link(int zoom, int x, int y, Object handle)
+                                                        throws IOException {
+        File source = (File) handle;
+        File file   = prepare(zoom, x, y);
+
+        if (!noLinks && createLink(source, file)) {
+            return source;
+        }
+
+        copy(source, file);
+
+        // link further tiles to the copy, which has no links yet
+        return file;
+    }
+
+    /**
+     * Create a hard link to a file.
+     *
+     * @param source the file to link to
+     * @param file the link to create
+     * @return true if the link was created, false if not, e.g. because
+     *         the file system does not support links, or the source file
+     *         has too many links
+     * @throws IOException if interrupted while creating the link
+     */
+    private boolean createLink(File source, File file) throws IOException {
+        try {
+            Process ln = new ProcessBuilder("ln", source.getPath(),
+                                            file.getPath())
+                                        .redirectErrorStream(true).start();
+            ln.getOutputStream().close();
+
+            // the error messages are not of interest, but have to be read
+            InputStream in = ln.getInputStream();
+            try {
+                byte[] buffer = new byte[512];
+                while (in.read(buffer) >= 0) {
+                    continue;
+                }
+            } finally {
+                in.close();
+            }
+
+            return ln.waitFor() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                                    "interrupted while linking " + file);
+        } catch (IOException e) {
+            // the ln command is not available, don't try again
+            noLinks = true;
+            return false;
+        }
+    }
+
+    /**
+     * Copy a file.
+     *
+     * @param source the file to copy
+     * @param file the copy to create
+     * @throws IOException on I/O errors
+     */
+    private static void copy(File source, File file) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int    n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Prepare for storing a tile: create its directory, and remove the
+     * tile file if it exists. An existing file is removed instead of being
+     * overwritten, as it might be a hard link shared with other tiles.
+     *
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the file of the tile
+     * @throws IOException on I/O errors
+     */
+    private File prepare(int zoom, int x, int y) throws IOException {
+        File file = getFile(zoom, x, y);
+        File dir  = file.getParentFile();
+
+        // tiles in the same column share the directory, and might be stored
+        // in parallel
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create tile dir "
+                                + dir.getAbsolutePath());
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete tile file "
+                                + file.getAbsolutePath());
+        }
+
+        return file;
+    }
+
+    /**
+     * Tile files are complete once written, and are kept by the operating
+     * system even if the process is terminated, thus there is nothing to do.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileSink#close()
+     */
+    @Override
+    public void close() {
+    }
+}
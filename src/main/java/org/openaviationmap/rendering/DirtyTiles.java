@@ -0,0 +1,253 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openaviationmap.converter.OamDiff;
+import org.openaviationmap.model.oam.Oam;
+import org.openaviationmap.model.oam.OsmNode;
+import org.openaviationmap.model.oam.Way;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * The areas of a map that have changed since it was last rendered, and
+ * the metatiles that need to be re-rendered because of them.
+ *
+ * The areas are collected from the new, changed and deleted content found
+ * by OamDiff.compareOams(): each way contributes the bounding box of its
+ * nodes, each node not part of a way the node itself. Changed ways
+ * contribute the bounding box of both their old and their new geometry.
+ */
+public final class DirtyTiles {
+
+    /** The maximum latitude covered by slippy map tiles, in degrees. */
+    private static final double MAX_LATITUDE = 85.0511287798;
+
+    /** The changed areas, in WGS84 longitude / latitude. */
+    private final List<Envelope> areas = new ArrayList<Envelope>();
+
+    /**
+     * Add the areas that changed between two versions of an OAM.
+     *
+     * @param baseOam the version the map was last rendered from
+     * @param inputOam the version to render the map from
+     * @param idTag the OSM tag used to identify nodes or ways uniquely,
+     *        see OamDiff
+     */
+    public void addChanges(Oam baseOam, Oam inputOam, String idTag) {
+        Oam newOam       = new Oam();
+        Oam deletedOam   = new Oam();
+        Oam updatedOam   = new Oam();
+        Oam unchangedOam = new Oam();
+
+        OamDiff.compareOams(baseOam, inputOam, idTag,
+                            newOam, deletedOam, updatedOam, unchangedOam);
+
+        add(newOam);
+        add(deletedOam);
+        add(updatedOam);
+
+        // the old geometry of the changed ways, which keep their base ids
+        for (Integer id : updatedOam.getWays().keySet()) {
+            Way way = baseOam.getWays().get(id);
+            if (way != null) {
+                add(getEnvelope(way, baseOam.getNodes(), null));
+            }
+        }
+    }
+
+    /**
+     * Add the areas covered by the content of an OAM.
+     *
+     * @param oam the OAM with changed content, e.g. the new, changed or
+     *        deleted content found by OamDiff
+     */
+    public void add(Oam oam) {
+        Map<Integer, OsmNode> nodes    = oam.getNodes();
+        Set<Integer>          wayNodes = new HashSet<Integer>();
+
+        for (Way way : oam.getWays().values()) {
+            add(getEnvelope(way, nodes, wayNodes));
+        }
+
+        for (OsmNode node : nodes.values()) {
+            if (!wayNodes.contains(node.getId())) {
+                add(new Envelope(node.getLongitude(), node.getLongitude(),
+                                 node.getLatitude(), node.getLatitude()));
+            }
+        }
+    }
+
+    /**
+     * Calculate the bounding box of a way.
+     *
+     * @param way the way
+     * @param nodes the nodes the way refers to, by id
+     * @param wayNodes if not null, the ids of the nodes of the way found
+     *        are added to this set
+     * @return the bounding box of the way, in WGS84 longitude / latitude
+     */
+    private static Envelope
+    getEnvelope(Way                     way,
+                Map<Integer, OsmNode>   nodes,
+                Set<Integer>            wayNodes) {
+
+        Envelope e = new Envelope();
+        for (Integer id : way.getNodeList()) {
+            OsmNode node = nodes.get(id);
+            if (node != null) {
+                e.expandToInclude(node.getLongitude(), node.getLatitude());
+                if (wayNodes != null) {
+                    wayNodes.add(id);
+                }
+            }
+        }
+
+        return e;
+    }
+
+    /**
+     * Add a changed area.
+     *
+     * @param area the changed area, in WGS84 longitude / latitude
+     */
+    public void add(Envelope area) {
+        if (!area.isNull()) {
+            areas.add(area);
+        }
+    }
+
+    /**
+     * @return true if there are no changed areas
+     */
+    public boolean isEmpty() {
+        return areas.isEmpty();
+    }
+
+    /**
+     * @return the number of changed areas
+     */
+    public int getAreaCount() {
+        return areas.size();
+    }
+
+    /**
+     * Get the metatiles that need to be re-rendered at a zoom level. These
+     * are the metatiles of the tileset, as split by Metatile.split(), that
+     * intersect a changed area buffered by the rendering buffer, as
+     * anything drawn within the buffer may show on the tiles.
+     *
+     * @param tileBounds the tile index rectangle of the tileset, inclusive
+     * @param level the zoom level
+     * @param metatileSize the maximum size of a metatile, in tiles
+     * @param buffer the rendering buffer, in pixels
+     * @return the dirty metatiles, in the order of Metatile.split()
+     */
+    public List<Metatile>
+    getMetatiles(Rectangle  tileBounds,
+                 int        level,
+                 int        metatileSize,
+                 int        buffer) {
+
+        int    minX = (int) tileBounds.getMinX();
+        int    minY = (int) tileBounds.getMinY();
+        int    maxX = (int) tileBounds.getMaxX();
+        int    maxY = (int) tileBounds.getMaxY();
+        double b    = (double) buffer / RenderMap.TILE_SIZE;
+
+        // the cells of the metatile grid that are dirty
+        Set<Long> cells = new HashSet<Long>();
+        for (Envelope area : areas) {
+            int west  = Math.max(minX, (int) Math.floor(
+                                        lon2x(area.getMinX(), level) - b));
+            int east  = Math.min(maxX, (int) Math.floor(
+                                        lon2x(area.getMaxX(), level) + b));
+            int north = Math.max(minY, (int) Math.floor(
+                                        lat2y(area.getMaxY(), level) - b));
+            int south = Math.min(maxY, (int) Math.floor(
+                                        lat2y(area.getMinY(), level) + b));
+
+            for (int i = (west - minX) / metatileSize;
+                 west <= east && i <= (east - minX) / metatileSize; ++i) {
+                for (int j = (north - minY) / metatileSize;
+                     north <= south && j <= (south - minY) / metatileSize;
+                     ++j) {
+                    cells.add(cellKey(i, j));
+                }
+            }
+        }
+
+        List<Metatile> metatiles = new ArrayList<Metatile>();
+        if (cells.isEmpty()) {
+            return metatiles;
+        }
+
+        for (Metatile m : Metatile.split(tileBounds, level, metatileSize)) {
+            if (cells.contains(cellKey((m.getX() - minX) / metatileSize,
+                                       (m.getY() - minY) / metatileSize))) {
+                metatiles.add(m);
+            }
+        }
+
+        return metatiles;
+    }
+
+    /**
+     * Create the key of a cell of the metatile grid.
+     *
+     * @param i the column of the cell
+     * @param j the row of the cell
+     * @return the key of the cell
+     */
+    private static Long cellKey(int i, int j) {
+        return ((long) i << 32) | (j & 0xffffffffL);
+    }
+
+    /**
+     * Convert a longitude into a fractional tile x coordinate.
+     *
+     * @param lon the longitude, in degrees
+     * @param zoom the zoom level
+     * @return the tile x coordinate
+     */
+    private static double lon2x(double lon, int zoom) {
+        return (lon + 180) / 360 * (1 << zoom);
+    }
+
+    /**
+     * Convert a latitude into a fractional tile y coordinate.
+     *
+     * @param lat the latitude, in degrees
+     * @param zoom the zoom level
+     * @return the tile y coordinate
+     */
+    private static double lat2y(double lat, int zoom) {
+        double r = Math.toRadians(
+                        Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+
+        return (1 - Math.log(Math.tan(r) + 1 / Math.cos(r)) / Math.PI)
+              / 2 * (1 << zoom);
+    }
+}
@@ -17,16 +17,26 @@
  */
 package org.openaviationmap.rendering;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -45,14 +55,13 @@ public class GEMFFile {
 	// Constants
 	// ===========================================================
 
-	private static final long FILE_SIZE_LIMIT = 1 * 1024 * 1024 * 1024; // 1GB
-	private static final int FILE_COPY_BUFFER_SIZE = 1024;
+	static final long FILE_SIZE_LIMIT = 1 * 1024 * 1024 * 1024; // 1GB
 
-	private static final int VERSION = 4;
-	private static final int TILE_SIZE = 256;
+	static final int VERSION = 4;
+	static final int TILE_SIZE = 256;
 
-	private static final int U32_SIZE = 4;
-	private static final int U64_SIZE = 8;
+	static final int U32_SIZE = 4;
+	static final int U64_SIZE = 8;
 
 
 	// ===========================================================
@@ -72,12 +81,23 @@ public class GEMFFile {
 	// File sizes for offset calculation
 	private final List<Long> mFileSizes = new ArrayList<Long>();
 
+	// Virtual offsets at which each file part ends, to find the part of a tile
+	private long[] mFileEnds;
+
+	// Memory mapped file parts, null for parts too large to be mapped
+	private final List<MappedByteBuffer> mMappedFiles =
+		new ArrayList<MappedByteBuffer>();
+
+	// Ranges of each source and zoom level, indexed for lookup by X/Y
+	private final Map<Long, GEMFRangeIndex> mRangeIndex =
+		new HashMap<Long, GEMFRangeIndex>();
+
 	// List of tile sources within this archive
 	private final LinkedHashMap<Integer, String> mSources = new LinkedHashMap<Integer, String>();
 
 	// Fields to restrict to a single source for reading
-	private boolean mSourceLimited = false;
-	private int mCurrentSource = 0;
+	private volatile boolean mSourceLimited = false;
+	private volatile int mCurrentSource = 0;
 
 
 	// ===========================================================
@@ -124,297 +144,72 @@ public class GEMFFile {
 		throws FileNotFoundException, IOException {
 		/*
 		 * 1. For each source folder
-		 *   1. Create array of zoom levels, X rows, Y rows
-		 * 2. Build index data structure index[source][zoom][range]
-		 *   1. For each S-Z-X find list of Ys values
-		 *   2. For each S-Z-X-Ys set, find complete X ranges
-		 *   3. For each S-Z-Xr-Ys set, find complete Y ranges, create Range record
-		 * 3. Write out index
-		 *   1. Header
-		 *   2. Sources
-		 *   3. For each Range
-		 *     1. Write Range record
-		 * 4. For each Range record
-		 *   1. For each Range entry
-		 *     1. If over file size limit, start new data file
-		 *     2. Write tile data
+		 *   1. For each Z/X/Y tile file
+		 *     1. If the file has the same data as a tile already added, link to it
+		 *     2. Otherwise add the tile data to the archive
+		 * 2. The GEMF writer computes the ranges and writes the index
 		 */
 
 		this.mLocation = pLocation;
 
-		// Create in-memory array of sources, X and Y values.
-		final LinkedHashMap<String, LinkedHashMap<Integer, LinkedHashMap<Integer, LinkedHashMap<Integer, File>>>> dirIndex =
-			new LinkedHashMap<String, LinkedHashMap<Integer, LinkedHashMap<Integer, LinkedHashMap<Integer, File>>>>();
+		final GEMFWriter writer = new GEMFWriter(pLocation);
 
-		for (final File sourceDir: pSourceFolders) {
+		// Tile files with the same data, e.g. hard linked to each other, are
+		// stored only once, all their index entries pointing to the same data.
+		// The files are told apart by the digest of their data, wrapped into a
+		// ByteBuffer, which compares by content
+		final Map<ByteBuffer, Integer> sharedTiles = new HashMap<ByteBuffer, Integer>();
+		final MessageDigest digest = getDigest();
 
-			final LinkedHashMap<Integer, LinkedHashMap<Integer, LinkedHashMap<Integer, File>>> zList =
-				new LinkedHashMap<Integer, LinkedHashMap<Integer, LinkedHashMap<Integer, File>>>();
-
-			for (final File zDir: sourceDir.listFiles()) {
-				// Make sure the directory name is just a number
-				try {
-					Integer.parseInt(zDir.getName());
-				} catch (final NumberFormatException e) {
-					continue;
-				}
-
-				final LinkedHashMap<Integer, LinkedHashMap<Integer, File>> xList =
-					new LinkedHashMap<Integer, LinkedHashMap<Integer, File>>();
-
-				for (final File xDir: zDir.listFiles()) {
+		boolean done = false;
+		try {
+			for (final File sourceDir: pSourceFolders) {
+				final String source = sourceDir.getName();
+				writer.addSource(source);
 
+				for (final File zDir: listFiles(sourceDir)) {
 					// Make sure the directory name is just a number
-					try {
-						Integer.parseInt(xDir.getName());
-					} catch (final NumberFormatException e) {
+					final Integer zoom = parseNumber(zDir.getName());
+					if (zoom == null) {
 						continue;
 					}
 
-					final LinkedHashMap<Integer, File> yList = new LinkedHashMap<Integer, File>();
-					for (final File yFile: xDir.listFiles()) {
-
-						try {
-							Integer.parseInt(yFile.getName().substring(
-									0, yFile.getName().indexOf('.')));
-						} catch (final NumberFormatException e) {
+					for (final File xDir: listFiles(zDir)) {
+						final Integer x = parseNumber(xDir.getName());
+						if (x == null) {
 							continue;
 						}
 
-						yList.put(Integer.parseInt(yFile.getName().substring(
-								0, yFile.getName().indexOf('.'))), yFile);
-					}
-
-					xList.put(new Integer(xDir.getName()), yList);
-				}
-
-				zList.put(Integer.parseInt(zDir.getName()), xList);
-			}
-
-			dirIndex.put(sourceDir.getName(), zList);
-		}
-
-		// Create a source index list
-		final LinkedHashMap<String, Integer> sourceIndex = new LinkedHashMap<String, Integer>();
-		final LinkedHashMap<Integer, String> indexSource = new LinkedHashMap<Integer, String>();
-		int si = 0;
-		for (final String source: dirIndex.keySet()) {
-			sourceIndex.put(source, new Integer(si));
-			indexSource.put(new Integer(si), source);
-			++si;
-		}
-
-		// Create the range objects
-		final List<GEMFRange> ranges = new ArrayList<GEMFRange>();
-
-		for (final String source: dirIndex.keySet()) {
-			for (final Integer zoom: dirIndex.get(source).keySet()) {
-
-				// Get non-contiguous Y sets for each Z/X
-				final LinkedHashMap<List<Integer>, List<Integer>> ySets =
-					new LinkedHashMap<List<Integer>, List<Integer>>();
-
-				for (final Integer x: new TreeSet<Integer>(dirIndex.get(source).get(zoom).keySet())) {
-
-					final List<Integer> ySet = new ArrayList<Integer>();
-					for (final Integer y: dirIndex.get(source).get(zoom).get(x).keySet()) {
-						ySet.add(y);
-					}
-
-					if (ySet.size() == 0) {
-						continue;
-					}
-
-					Collections.sort(ySet);
-
-					if (! ySets.containsKey(ySet)) {
-						ySets.put(ySet, new ArrayList<Integer>());
-					}
-
-					ySets.get(ySet).add(x);
-				}
-
-				// For each Y set find contiguous X sets
-				final LinkedHashMap<List<Integer>, List<Integer>> xSets =
-					new LinkedHashMap<List<Integer>, List<Integer>>();
-
-				for (final List<Integer> ySet: ySets.keySet()) {
-
-					final TreeSet<Integer> xList = new TreeSet<Integer>(ySets.get(ySet));
-
-					List<Integer> xSet = new ArrayList<Integer>();
-					for(int i = xList.first(); i < xList.last() + 1; ++i) {
-						if (xList.contains(new Integer(i))) {
-							xSet.add(new Integer(i));
-						} else {
-							if (xSet.size() > 0) {
-								xSets.put(ySet, xSet);
-								xSet = new ArrayList<Integer>();
-							}
-						}
-					}
-
-					if (xSet.size() > 0) {
-						xSets.put(ySet, xSet);
-					}
-				}
-
-				// For each contiguous X set, find contiguous Y sets and create GEMFRange object
-				for (final List<Integer> xSet: xSets.keySet()) {
-
-					final TreeSet<Integer> yList = new TreeSet<Integer>(xSet);
-					final TreeSet<Integer> xList = new TreeSet<Integer>(ySets.get(xSet));
-
-					GEMFRange range = new GEMFFile.GEMFRange();
-					range.zoom = zoom;
-					range.sourceIndex = sourceIndex.get(source);
-					range.xMin = xList.first();
-					range.xMax = xList.last();
-
-					for(int i = yList.first(); i < yList.last() + 1; ++i) {
-						if (yList.contains(new Integer(i))) {
-							if (range.yMin == null) {
-								range.yMin = i;
+						for (final File yFile: listFiles(xDir)) {
+							final String name = yFile.getName();
+							final int dot = name.indexOf('.');
+							final Integer y = parseNumber(dot == -1 ? name : name.substring(0, dot));
+							if (y == null) {
+								continue;
 							}
-							range.yMax = i;
-						} else {
 
-							if (range.yMin != null) {
-								ranges.add(range);
+							final byte[] data = readFile(yFile);
+							final ByteBuffer key = ByteBuffer.wrap(digest.digest(data));
+							final Integer sharedTile = sharedTiles.get(key);
 
-								range = new GEMFFile.GEMFRange();
-								range.zoom = zoom;
-								range.sourceIndex = sourceIndex.get(source);
-								range.xMin = xList.first();
-								range.xMax = xList.last();
+							if (sharedTile != null) {
+								writer.linkTile(source, zoom, x, y, sharedTile);
+							} else {
+								sharedTiles.put(key, writer.addTile(source, zoom, x, y, data));
 							}
 						}
 					}
-
-					if (range.yMin != null) {
-						ranges.add(range);
-					}
 				}
 			}
-		}
-
 
-		// Calculate size of header for computation of data offsets
-		int source_list_size = 0;
-		for (final String source: sourceIndex.keySet()) {
-			source_list_size += (U32_SIZE + U32_SIZE + source.length());
-		}
-
-		long offset =
-			U32_SIZE + // GEMF Version
-			U32_SIZE + // Tile size
-			U32_SIZE + // Number of sources
-			source_list_size +
-			ranges.size() * ((U32_SIZE * 6) + U64_SIZE) +
-			U32_SIZE; // Number of ranges
-
-		// Calculate offset for each range in the data set
-		for (final GEMFRange range: ranges) {
-			range.offset = offset;
-
-			for (int x = range.xMin; x < range.xMax + 1; ++x) {
-				for (int y = range.yMin; y < range.yMax + 1; ++y) {
-					offset += (U32_SIZE + U64_SIZE);
-				}
+			writer.close();
+			done = true;
+		} finally {
+			if (!done) {
+				writer.abort();
 			}
 		}
 
-		final long headerSize = offset;
-
-		RandomAccessFile gemfFile = new RandomAccessFile(pLocation, "rw");
-
-		// Write version header
-		gemfFile.writeInt(VERSION);
-
-		// Write file size header
-		gemfFile.writeInt(TILE_SIZE);
-
-		// Write number of sources
-		gemfFile.writeInt(sourceIndex.size());
-
-		// Write source list
-		for (final String source: sourceIndex.keySet()) {
-			gemfFile.writeInt(sourceIndex.get(source));
-			gemfFile.writeInt(source.length());
-			gemfFile.write(source.getBytes());
-		}
-
-		// Write number of ranges
-		gemfFile.writeInt(ranges.size());
-
-		// Write range objects
-		for (final GEMFRange range: ranges) {
-			gemfFile.writeInt(range.zoom);
-			gemfFile.writeInt(range.xMin);
-			gemfFile.writeInt(range.xMax);
-			gemfFile.writeInt(range.yMin);
-			gemfFile.writeInt(range.yMax);
-			gemfFile.writeInt(range.sourceIndex);
-			gemfFile.writeLong(range.offset);
-		}
-
-		// Write file offset list
-		for (final GEMFRange range: ranges) {
-			for (int x = range.xMin; x < range.xMax + 1; ++x) {
-				for (int y = range.yMin; y < range.yMax + 1; ++y) {
-					gemfFile.writeLong(offset);
-					final long fileSize = dirIndex.get(
-							indexSource.get(
-									range.sourceIndex)).get(range.zoom).get(x).get(y).length();
-					gemfFile.writeInt((int)fileSize);
-					offset += fileSize;
-				}
-			}
-		}
-
-		//
-		// Write tiles
-		//
-
-		final byte[] buf = new byte[FILE_COPY_BUFFER_SIZE];
-
-		long currentOffset = headerSize;
-		int fileIndex = 0;
-
-		for (final GEMFRange range: ranges) {
-			for (int x = range.xMin; x < range.xMax + 1; ++x) {
-				for (int y = range.yMin; y < range.yMax + 1; ++y) {
-
-					final long fileSize = dirIndex.get(
-							indexSource.get(range.sourceIndex)).get(range.zoom).get(x).get(y).length();
-
-					if (currentOffset + fileSize > FILE_SIZE_LIMIT) {
-						gemfFile.close();
-						++fileIndex;
-						gemfFile = new RandomAccessFile(pLocation + "-" + fileIndex, "rw");
-						currentOffset = 0;
-					} else {
-						currentOffset += fileSize;
-					}
-
-					final FileInputStream tile = new FileInputStream(
-							dirIndex.get(
-									indexSource.get(
-											range.sourceIndex)).get(range.zoom).get(x).get(y));
-
-					int read = tile.read(buf, 0, FILE_COPY_BUFFER_SIZE);
-					while (read != -1) {
-						gemfFile.write(buf, 0, read);
-						read = tile.read(buf, 0, FILE_COPY_BUFFER_SIZE);
-					}
-
-					tile.close();
-				}
-			}
-		}
-
-		gemfFile.close();
-
 		// Complete construction of GEMFFile object
 		openFiles();
 		readHeader();
@@ -510,6 +305,203 @@ public class GEMFFile {
 			rs.offset = baseFile.readLong();
 			mRangeData.add(rs);
 		}
+
+		mapFiles();
+		indexRanges();
+	}
+
+
+	/*
+	 * Memory map the file parts, and calculate the virtual offsets at which
+	 * they end. Parts too large for a single mapping are read with positional
+	 * reads instead.
+	 */
+	private void mapFiles() throws IOException {
+		mFileEnds = new long[mFiles.size()];
+
+		long end = 0;
+		for (int i = 0; i < mFiles.size(); i++) {
+			final long size = mFileSizes.get(i);
+			final FileChannel channel = mFiles.get(i).getChannel();
+
+			mMappedFiles.add(size <= Integer.MAX_VALUE
+					? channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+					: null);
+
+			end += size;
+			mFileEnds[i] = end;
+		}
+	}
+
+
+	/*
+	 * Build the lookup index of the ranges of each source and zoom level.
+	 */
+	private void indexRanges() {
+		final Map<Long, List<GEMFRange>> ranges =
+			new HashMap<Long, List<GEMFRange>>();
+
+		for (final GEMFRange rs: mRangeData) {
+			final Long key = rangeKey(rs.sourceIndex, rs.zoom);
+			List<GEMFRange> list = ranges.get(key);
+			if (list == null) {
+				list = new ArrayList<GEMFRange>();
+				ranges.put(key, list);
+			}
+			list.add(rs);
+		}
+
+		for (final Map.Entry<Long, List<GEMFRange>> entry: ranges.entrySet()) {
+			mRangeIndex.put(entry.getKey(), new GEMFRangeIndex(entry.getValue()));
+		}
+	}
+
+
+	/*
+	 * Key of the ranges of a source at a zoom level in the range index.
+	 */
+	private static Long rangeKey(final int pSource, final int pZoom) {
+		return Long.valueOf(((long) pSource << 32) | (pZoom & 0xFFFFFFFFL));
+	}
+
+
+	/*
+	 * Find the range holding a tile, in the selected source or in any source.
+	 *
+	 * @return the range holding the tile, or null if not found.
+	 */
+	private GEMFRange findRange(final int pX, final int pY, final int pZ) {
+		if (mSourceLimited) {
+			return findRange(mCurrentSource, pX, pY, pZ);
+		}
+
+		for (final Integer source: mSources.keySet()) {
+			final GEMFRange range = findRange(source, pX, pY, pZ);
+			if (range != null) {
+				return range;
+			}
+		}
+
+		return null;
+	}
+
+
+	/*
+	 * Find the range holding a tile of a source.
+	 *
+	 * @return the range holding the tile, or null if not found.
+	 */
+	private GEMFRange findRange(final int pSource,
+			final int pX, final int pY, final int pZ) {
+		final GEMFRangeIndex index = mRangeIndex.get(rangeKey(pSource, pZ));
+
+		return index == null ? null : index.find(pX, pY);
+	}
+
+
+	/*
+	 * Read a block of a file part: a slice of the part if it is memory mapped,
+	 * a positional read otherwise. Neither touches the shared file pointer, so
+	 * this is safe to call from many threads.
+	 *
+	 * @param pPart
+	 * 		index of the file part
+	 * @param pOffset
+	 * 		offset of the block within the file part
+	 * @param pLength
+	 * 		length of the block
+	 * @return read-only ByteBuffer of the block
+	 */
+	private ByteBuffer read(final int pPart, final long pOffset, final int pLength)
+		throws IOException {
+
+		if (pOffset < 0 || pLength < 0 || pOffset + pLength > mFileSizes.get(pPart)) {
+			throw new IOException("Bad block in " + mFileNames.get(pPart)
+					+ ": offset " + pOffset + ", length " + pLength);
+		}
+
+		final MappedByteBuffer mapped = mMappedFiles.get(pPart);
+		if (mapped != null) {
+			final ByteBuffer block = mapped.duplicate();
+			block.position((int) pOffset);
+			block.limit((int) pOffset + pLength);
+			return block.slice().asReadOnlyBuffer();
+		}
+
+		final FileChannel channel = mFiles.get(pPart).getChannel();
+		final ByteBuffer block = ByteBuffer.allocate(pLength);
+		while (block.hasRemaining()) {
+			if (channel.read(block, pOffset + block.position()) < 0) {
+				throw new EOFException("Unexpected end of " + mFileNames.get(pPart));
+			}
+		}
+		block.flip();
+
+		return block.asReadOnlyBuffer();
+	}
+
+
+	/*
+	 * List the files in a directory.
+	 *
+	 * @param pDir
+	 * 		the directory
+	 * @return the files in the directory, empty if it is not a directory
+	 */
+	private static File[] listFiles(final File pDir) {
+		final File[] files = pDir.listFiles();
+
+		return files == null ? new File[0] : files;
+	}
+
+
+	/*
+	 * Parse a tile directory or file name, which must be just a number.
+	 *
+	 * @param pName
+	 * 		the name to parse
+	 * @return the number, or null if the name is not a number
+	 */
+	private static Integer parseNumber(final String pName) {
+		try {
+			return Integer.valueOf(pName);
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+
+	/*
+	 * Read the contents of a file.
+	 *
+	 * @param pFile
+	 * 		the file to read
+	 * @return the contents of the file
+	 */
+	private static byte[] readFile(final File pFile) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(pFile, "r");
+		try {
+			final byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+
+	/*
+	 * Get the message digest telling tiles with the same data apart.
+	 *
+	 * @return a SHA-1 message digest
+	 */
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			// every Java platform has to support SHA-1
+			throw new IllegalStateException(e);
+		}
 	}
 
 
@@ -569,68 +561,194 @@ public class GEMFFile {
 	 * @return InputStream of tile data, or null if not found.
 	 */
 	public InputStream getInputStream(final int pX, final int pY, final int pZ) {
-		GEMFRange range = null;
-
-		for (final GEMFRange rs: mRangeData)
-		{
-			if ((pZ == rs.zoom)
-					&& (pX >= rs.xMin)
-					&& (pX <= rs.xMax)
-					&& (pY >= rs.yMin)
-					&& (pY <= rs.yMax)
-					&& (( ! mSourceLimited) || (rs.sourceIndex == mCurrentSource))) {
-				range = rs;
-				break;
-			}
-		}
+		try {
+			final ByteBuffer tile = getTile(pX, pY, pZ);
 
-		if (range == null)	{
+			return tile == null ? null : new GEMFInputStream(tile);
+		} catch (final IOException e) {
 			return null;
 		}
+	}
+
+	/*
+	 * Get the tile data specified by the Z/X/Y coordinates, in the selected source
+	 * or in any source. The data is not copied where the archive is memory mapped.
+	 *
+	 * @return read-only ByteBuffer of tile data, or null if not found.
+	 */
+	public ByteBuffer getTile(final int pX, final int pY, final int pZ)
+		throws IOException {
+
+		final GEMFRange range = findRange(pX, pY, pZ);
+
+		return range == null ? null : getTile(range, pX, pY);
+	}
+
+	/*
+	 * Get the tile data of a source specified by the Z/X/Y coordinates. Unlike
+	 * selectSource(), this does not change the state of the archive, so readers
+	 * of different sources can share it.
+	 *
+	 * @return read-only ByteBuffer of tile data, or null if not found.
+	 */
+	public ByteBuffer getTile(final int pSource,
+			final int pX, final int pY, final int pZ)
+		throws IOException {
+
+		final GEMFRange range = findRange(pSource, pX, pY, pZ);
+
+		return range == null ? null : getTile(range, pX, pY);
+	}
+
+	/*
+	 * Get the tile data specified by the X/Y coordinates within a range.
+	 *
+	 * @return read-only ByteBuffer of tile data.
+	 */
+	private ByteBuffer getTile(final GEMFRange pRange, final int pX, final int pY)
+		throws IOException {
 
-		long dataOffset;
-		int dataLength;
+		final ByteBuffer record = getRecord(pRange, pX, pY);
 
-		try	{
+		return getData(record.getLong(0), record.getInt(U64_SIZE));
+	}
+
+	/*
+	 * Read the index record of the tile specified by the X/Y coordinates within
+	 * a range.
+	 *
+	 * @return ByteBuffer of the offset and the size of the tile data.
+	 */
+	private ByteBuffer getRecord(final GEMFRange pRange,
+			final int pX, final int pY) throws IOException {
+
+		// Determine offset to requested tile record in the header
+		final long numY = pRange.yMax + 1 - pRange.yMin;
+		final long xIndex = pX - pRange.xMin;
+		final long yIndex = pY - pRange.yMin;
+		final long offset = pRange.offset
+				+ ((xIndex * numY) + yIndex) * (U32_SIZE + U64_SIZE);
+
+		return read(0, offset, U32_SIZE + U64_SIZE);
+	}
 
-			// Determine offset to requested tile record in the header
-			final int numY = range.yMax + 1 - range.yMin;
-			final int xIndex = pX - range.xMin;
-			final int yIndex = pY - range.yMin;
-			long offset = (xIndex * numY) + yIndex;
-			offset *= (U32_SIZE + U64_SIZE);
-			offset += range.offset;
+	/*
+	 * Read tile data, given its offset in the archive.
+	 *
+	 * @param pDataOffset
+	 * 		offset of the data, counted over all file parts
+	 * @param pDataLength
+	 * 		length of the data
+	 * @return read-only ByteBuffer of tile data.
+	 */
+	private ByteBuffer getData(final long pDataOffset, final int pDataLength)
+		throws IOException {
+
+		// Find the file part holding the data: the first one ending at or after
+		// the data offset
+		int index = Arrays.binarySearch(mFileEnds, pDataOffset);
+		if (index < 0) {
+			index = -index - 1;
+		}
+		index = Math.min(index, mFileEnds.length - 1);
 
+		final long dataOffset = index > 0
+				? pDataOffset - mFileEnds[index - 1] : pDataOffset;
 
-			// Read tile record from header, get offset and size of data record
-			final RandomAccessFile baseFile = mFiles.get(0);
-			baseFile.seek(offset);
-			dataOffset = baseFile.readLong();
-			dataLength = baseFile.readInt();
+		return read(index, dataOffset, pDataLength);
+	}
+
+	/*
+	 * Merge several archives into a new one, e.g. the zoom level bands of a
+	 * tileset rendered separately. The tile data is copied straight from the
+	 * file parts of the archives into the file parts of the new one, without
+	 * extracting the tiles, and only the index of the new archive is built in
+	 * memory. Tiles sharing their data in an archive share it in the new one
+	 * as well.
+	 *
+	 * @param pLocation
+	 * 		path of the archive to create, which must not be one of the archives
+	 * 		merged. An earlier archive of the same name is replaced once the new
+	 * 		one is complete.
+	 * @param pArchives
+	 * 		the archives to merge. The sources of the new archive are all their
+	 * 		sources, in the order of the archives.
+	 * @param pPrecedence
+	 * 		which archive a tile is taken from, when several archives hold the
+	 * 		same tile of the same source
+	 * @return the number of tiles in the new archive
+	 */
+	public static int merge(final String pLocation, final List<File> pArchives,
+			final MergePrecedence pPrecedence) throws IOException {
+
+		final File location = new File(pLocation).getCanonicalFile();
+		for (final File file: pArchives) {
+			if (file.getCanonicalFile().equals(location)) {
+				throw new IllegalArgumentException(
+						"Can't merge archive " + file + " into itself");
+			}
+		}
 
-			// Seek to correct data file and offset.
-			RandomAccessFile pDataFile = mFiles.get(0);
-			int index = 0;
-			if (dataOffset > mFileSizes.get(0))	{
-				final int fileListCount = mFileSizes.size();
+		final List<GEMFFile> archives = new ArrayList<GEMFFile>();
+		final GEMFWriter writer = new GEMFWriter(pLocation);
 
-				while ((index < (fileListCount - 1)) &&
-						(dataOffset > mFileSizes.get(index))) {
+		boolean done = false;
+		try {
+			for (final File file: pArchives) {
+				archives.add(new GEMFFile(file));
+			}
 
-					dataOffset -= mFileSizes.get(index);
-					index += 1;
+			for (final GEMFFile archive: archives) {
+				for (final String source: archive.getSources().values()) {
+					writer.addSource(source);
 				}
+			}
 
-				pDataFile = mFiles.get(index);
+			// The tiles added first take precedence over the same tiles of the
+			// archives added after them, which are skipped without copying
+			final List<GEMFFile> order = new ArrayList<GEMFFile>(archives);
+			if (pPrecedence == MergePrecedence.LAST) {
+				Collections.reverse(order);
+			}
+			for (final GEMFFile archive: order) {
+				writer.addTiles(archive);
 			}
 
-			// Read data block into a byte array
-			pDataFile.seek(dataOffset);
+			final int count = writer.getTileCount();
+			writer.close();
+			done = true;
 
-			return new GEMFInputStream(mFileNames.get(index), dataOffset, dataLength);
+			return count;
+		} finally {
+			if (!done) {
+				writer.abort();
+			}
+			for (final GEMFFile archive: archives) {
+				archive.close();
+			}
+		}
+	}
 
-		} catch (final java.io.IOException e) {
-			return null;
+	/*
+	 * Pass all tiles of the archive to a visitor, range by range.
+	 *
+	 * @param pVisitor
+	 * 		the visitor to receive the tiles
+	 */
+	public void visitTiles(final TileVisitor pVisitor) throws IOException {
+		for (final GEMFRange range: mRangeData) {
+			final String source = mSources.get(range.sourceIndex);
+
+			for (int x = range.xMin; x <= range.xMax; x++) {
+				for (int y = range.yMin; y <= range.yMax; y++) {
+					final ByteBuffer record = getRecord(range, x, y);
+					final long dataOffset = record.getLong(0);
+					final ByteBuffer data =
+						getData(dataOffset, record.getInt(U64_SIZE));
+
+					pVisitor.visitTile(source, range.zoom, x, y, dataOffset, data);
+				}
+			}
 		}
 	}
 
@@ -639,6 +757,38 @@ public class GEMFFile {
 	// Inner and Anonymous Classes
 	// ===========================================================
 
+	// Precedence of the archives merged, when several of them hold the same
+	// tile, see merge().
+	public enum MergePrecedence {
+		// The tile of the archive listed first is kept
+		FIRST,
+		// The tile of the archive listed last is kept
+		LAST
+	}
+
+	// Interface to receive the tiles of an archive, see visitTiles().
+	public interface TileVisitor {
+		/*
+		 * Receive a tile of the archive.
+		 *
+		 * @param pSource
+		 * 		name of the source of the tile
+		 * @param pZ
+		 * 		zoom level of the tile
+		 * @param pX
+		 * 		x coordinate of the tile
+		 * @param pY
+		 * 		y coordinate of the tile
+		 * @param pDataOffset
+		 * 		offset of the tile data in the archive, the same for tiles sharing
+		 * 		their data
+		 * @param pData
+		 * 		read-only ByteBuffer of the tile data
+		 */
+		void visitTile(String pSource, int pZ, int pX, int pY,
+				long pDataOffset, ByteBuffer pData) throws IOException;
+	}
+
 	// Class to represent a range of stored tiles within the archive.
 	private class GEMFRange	{
 		Integer zoom;
@@ -657,29 +807,104 @@ public class GEMFFile {
 		}
 	};
 
-	// InputStream class to hand to the tile loader system. It wants an InputStream, and it is more
-	// efficient to create a new open file handle pointed to the right place, than to buffer the file
-	// in memory.
-	class GEMFInputStream extends InputStream {
+	// Lookup index of the ranges of a source at a zoom level, which do not
+	// overlap. The X axis is cut into slabs at the range edges, and each slab
+	// lists the ranges spanning it ordered by Y, so that a lookup is two binary
+	// searches.
+	private static final class GEMFRangeIndex {
+		// First X coordinate of each slab
+		final int[] slabX;
+		// Ranges spanning each slab, ordered by yMin
+		final GEMFRange[][] slabRanges;
+
+		GEMFRangeIndex(final List<GEMFRange> pRanges) {
+			final TreeSet<Integer> edges = new TreeSet<Integer>();
+			for (final GEMFRange rs: pRanges) {
+				edges.add(rs.xMin);
+				edges.add(rs.xMax + 1);
+			}
+
+			final List<GEMFRange> byX = new ArrayList<GEMFRange>(pRanges);
+			Collections.sort(byX, new Comparator<GEMFRange>() {
+				@Override
+				public int compare(final GEMFRange a, final GEMFRange b) {
+					return a.xMin.compareTo(b.xMin);
+				}
+			});
+			final Comparator<GEMFRange> byY = new Comparator<GEMFRange>() {
+				@Override
+				public int compare(final GEMFRange a, final GEMFRange b) {
+					return a.yMin.compareTo(b.yMin);
+				}
+			};
+
+			slabX = new int[edges.size()];
+			slabRanges = new GEMFRange[edges.size()][];
+
+			// Sweep the slabs, keeping the ranges spanning the current one
+			final List<GEMFRange> active = new ArrayList<GEMFRange>();
+			int next = 0;
+			int slab = 0;
+			for (final Integer edge: edges) {
+				for (final Iterator<GEMFRange> it = active.iterator(); it.hasNext();) {
+					if (it.next().xMax < edge) {
+						it.remove();
+					}
+				}
+				while (next < byX.size() && byX.get(next).xMin <= edge) {
+					active.add(byX.get(next++));
+				}
+				Collections.sort(active, byY);
+
+				slabX[slab] = edge;
+				slabRanges[slab] = active.toArray(new GEMFRange[active.size()]);
+				slab++;
+			}
+		}
 
-		RandomAccessFile raf;
-		int remainingBytes;
+		// Find the range holding a tile, or null if none does.
+		GEMFRange find(final int pX, final int pY) {
+			int slab = Arrays.binarySearch(slabX, pX);
+			if (slab < 0) {
+				slab = -slab - 2;
+				if (slab < 0) {
+					return null;
+				}
+			}
 
-		GEMFInputStream(final String filePath, final long offset, final int length) throws IOException {
-			this.raf = new RandomAccessFile(filePath, "r");
-			raf.seek(offset);
+			final GEMFRange[] ranges = slabRanges[slab];
+			int low = 0;
+			int high = ranges.length - 1;
+			while (low <= high) {
+				final int mid = (low + high) >>> 1;
+				final GEMFRange rs = ranges[mid];
+				if (pY < rs.yMin) {
+					high = mid - 1;
+				} else if (pY > rs.yMax) {
+					low = mid + 1;
+				} else {
+					return rs;
+				}
+			}
 
-			this.remainingBytes = length;
+			return null;
 		}
+	};
 
-		@Override
-		public int available() {
-			return remainingBytes;
+	// InputStream class to hand to the tile loader system. It reads the tile
+	// data straight from the buffer returned by getTile(), without opening a
+	// file handle per tile.
+	static class GEMFInputStream extends InputStream {
+
+		final ByteBuffer buffer;
+
+		GEMFInputStream(final ByteBuffer pBuffer) {
+			this.buffer = pBuffer;
 		}
 
 		@Override
-		public void close() throws IOException {
-			raf.close();
+		public int available() {
+			return buffer.remaining();
 		}
 
 		@Override
@@ -688,26 +913,30 @@ public class GEMFFile {
 		}
 
 		@Override
-		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
-			final int read = raf.read(buffer, offset, length > remainingBytes ? remainingBytes : length);
+		public int read(final byte[] pBuffer, final int pOffset, final int pLength) {
+			if (pLength == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
 
-			remainingBytes -= read;
+			final int read = Math.min(pLength, buffer.remaining());
+			buffer.get(pBuffer, pOffset, read);
 			return read;
 		}
 
 		@Override
-		public int read() throws IOException {
-			if (remainingBytes > 0) {
-				remainingBytes--;
-				return raf.read();
-			} else {
-				throw new IOException("End of stream");
-			}
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
 		}
 
 		@Override
 		public long skip(final long byteCount) {
-			return 0;
+			final int skipped =
+				(int) Math.max(0, Math.min(byteCount, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
 		}
 	}
 }
@@ -0,0 +1,175 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import gnu.getopt.Getopt;
+import gnu.getopt.LongOpt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line utility to merge GEMF archives into one, e.g. the archives
+ * of the zoom level bands of a tileset rendered separately, see
+ * GEMFFile.merge(). The tiles are not extracted, their data is copied
+ * from archive to archive.
+ */
+public final class GEMFMerge {
+
+    /**
+     * Private default constructor.
+     */
+    private GEMFMerge() {
+    }
+
+    /**
+     * Print a help message.
+     */
+    private static void printHelpMessage() {
+        System.out.println(
+        "Open Aviation Map GEMF archive merge utility");
+        System.out.println();
+        System.out.println(
+        "usage:");
+        System.out.println();
+        System.out.println(
+        "  -i | --input <a.gemf,...>    a comma-separated list of GEMF");
+        System.out.println(
+        "                               archives to merge, required");
+        System.out.println(
+        "  -o | --output <out.gemf>     the GEMF archive to create, required");
+        System.out.println(
+        "  -p | --precedence <value>    the archive to take a tile from if");
+        System.out.println(
+        "                               several hold it: first or last in");
+        System.out.println(
+        "                               the list. optional, defaults to");
+        System.out.println(
+        "                               first");
+        System.out.println(
+        "  -f | --force                 overwrite an existing output file");
+        System.out.println(
+        "  -h | --help                  show this usage page");
+        System.out.println();
+    }
+
+    /**
+     * Program entry point.
+     *
+     * @param args command line arguments.
+     */
+    public static void main(String[] args) {
+
+        LongOpt[] longopts = new LongOpt[5];
+
+        longopts[0] = new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h');
+        longopts[1] = new LongOpt("input", LongOpt.REQUIRED_ARGUMENT,
+                null, 'i');
+        longopts[2] = new LongOpt("output", LongOpt.REQUIRED_ARGUMENT,
+                null, 'o');
+        longopts[3] = new LongOpt("precedence", LongOpt.REQUIRED_ARGUMENT,
+                null, 'p');
+        longopts[4] = new LongOpt("force", LongOpt.NO_ARGUMENT, null, 'f');
+
+        Getopt g = new Getopt("GEMFMerge", args, "fhi:o:p:", longopts);
+
+        int c;
+
+        String      inputFiles    = null;
+        String      outputFile    = null;
+        String      precedenceStr = "first";
+        boolean     force         = false;
+
+        while ((c = g.getopt()) != -1) {
+            switch (c) {
+            case 'f':
+                force = true;
+                break;
+
+            case 'i':
+                inputFiles = g.getOptarg();
+                break;
+
+            case 'o':
+                outputFile = g.getOptarg();
+                break;
+
+            case 'p':
+                precedenceStr = g.getOptarg();
+                break;
+
+            default:
+            case 'h':
+                printHelpMessage();
+                return;
+
+            case '?':
+                System.out.println("Invalid option '" + g.getOptopt()
+                                   + "' specified");
+                return;
+            }
+        }
+
+        if (inputFiles == null) {
+            System.out.println("Required option input not specified");
+            System.out.println();
+            printHelpMessage();
+            return;
+        }
+        if (outputFile == null) {
+            System.out.println("Required option output not specified");
+            System.out.println();
+            printHelpMessage();
+            return;
+        }
+
+        GEMFFile.MergePrecedence precedence;
+        if ("first".equals(precedenceStr.toLowerCase())) {
+            precedence = GEMFFile.MergePrecedence.FIRST;
+        } else if ("last".equals(precedenceStr.toLowerCase())) {
+            precedence = GEMFFile.MergePrecedence.LAST;
+        } else {
+            System.out.println("Invalid precedence value " + precedenceStr
+                             + ", should be first or last");
+            return;
+        }
+
+        if (!force && new File(outputFile).exists()) {
+            System.out.println("Output file " + outputFile
+                             + " exists, specify --force to overwrite");
+            return;
+        }
+
+        List<File> archives = new ArrayList<File>();
+        for (String file : inputFiles.split(",")) {
+            archives.add(new File(file.trim()));
+        }
+
+        try {
+            int count = GEMFFile.merge(outputFile, archives, precedence);
+
+            System.out.println("Merged " + count + " tiles from "
+                             + archives.size() + " archives into "
+                             + outputFile);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            e.printStackTrace(System.out);
+        }
+    }
+}
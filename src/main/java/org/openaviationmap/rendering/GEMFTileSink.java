@@ -0,0 +1,142 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A tile sink writing tiles directly into a GEMF archive with a single
+ * source, through a GEMFWriter. The archive replaces an earlier archive of
+ * the same name when the sink is closed.
+ *
+ * Tiles with the same contents share their data in the archive.
+ *
+ * In patch mode, the tiles of the earlier archive that were not written
+ * again are copied into the new archive when the sink is closed, so that
+ * only the changed tiles need to be written. Also, the sink continues with
+ * the tiles flushed by an earlier, interrupted sink of the same archive.
+ */
+public class GEMFTileSink implements TileSink {
+
+    /** The writer of the archive. */
+    private final GEMFWriter writer;
+
+    /** The name of the tile source in the archive. */
+    private final String source;
+
+    /** The GEMF archive file written. */
+    private final File file;
+
+    /** Flag to keep the tiles of the earlier archive not written again. */
+    private final boolean patch;
+
+    /**
+     * Constructor.
+     *
+     * @param file the GEMF archive file to write
+     * @param source the name of the tile source in the archive
+     * @throws IOException on I/O errors
+     */
+    public GEMFTileSink(File file, String source) throws IOException {
+        this(file, source, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param file the GEMF archive file to write
+     * @param source the name of the tile source in the archive
+     * @param patch if true, keep the tiles of the earlier archive, and the
+     *        tiles flushed by an interrupted sink, that are not written
+     *        again
+     * @throws IOException on I/O errors
+     */
+    public GEMFTileSink(File    file,
+                        String  source,
+                        boolean patch) throws IOException {
+        this.writer = new GEMFWriter(file.getPath(), patch);
+        this.source = source;
+        this.file   = file;
+        this.patch  = patch;
+
+        writer.addSource(source);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileSink#put(int, int, int, byte[])
+     */
+    @Override
+    public Object put(int zoom, int x, int y, byte[] data) throws IOException {
+        return writer.addTile(source, zoom, x, y, data);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileSink#link(int, int, int,
+     *                                                  java.lang.Object)
+     */
+    @Override
+    public Object link(int zoom, int x, int y, Object handle) {
+        writer.linkTile(source, zoom, x, y, (Integer) handle);
+
+        return handle;
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileSink#flush()
+     */
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Write the index of the GEMF archive, and move it in place. In patch
+     * mode, the tiles of the earlier archive not written again are copied
+     * first, and if no tiles were written at all, the earlier archive is
+     * simply left in place.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Override
+    public void close() throws IOException {
+        if (patch && writer.getTileCount() == 0 && file.exists()) {
+            writer.abort();
+            return;
+        }
+
+        boolean done = false;
+        try {
+            if (patch && file.exists()) {
+                GEMFFile earlier = new GEMFFile(file);
+                try {
+                    writer.addTiles(earlier);
+                } finally {
+                    earlier.close();
+                }
+            }
+
+            writer.close();
+            done = true;
+        } finally {
+            if (!done) {
+                writer.abort();
+            }
+        }
+    }
+}
@@ -0,0 +1,890 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A streaming writer for GEMF archives, see GEMFFile.
+ *
+ * Tiles can be added in any order, and their data is written into the
+ * size limited data parts of the archive as they arrive. Only a compact
+ * index of primitive arrays, 20 bytes per tile, is kept in memory. The
+ * ranges, the header and the index are calculated and written into the
+ * first part of the archive when the writer is closed.
+ *
+ * The archive is written under temporary file names, and is moved in
+ * place of an earlier archive of the same name only when closed. Thus
+ * an earlier archive remains intact until a new one is complete.
+ *
+ * The index entries are also appended to a journal next to the data
+ * parts. After flush(), the tiles added so far are durable: a writer
+ * created later in resume mode continues from where an interrupted writer
+ * left off, dropping only the tiles added after the last flush.
+ *
+ * The GEMF reader takes an offset equal to the size of an archive part
+ * to be still in that part, thus the first part holds only the header and
+ * the index, and each data part starts with a byte of padding.
+ */
+public class GEMFWriter {
+
+    /** The size of a range record in the GEMF header. */
+    private static final int RANGE_SIZE =
+                                GEMFFile.U32_SIZE * 6 + GEMFFile.U64_SIZE;
+
+    /** The size of a tile record in the GEMF index. */
+    private static final int TILE_RECORD_SIZE =
+                                GEMFFile.U64_SIZE + GEMFFile.U32_SIZE;
+
+    /** The number of bits used for x and y coordinates in tile keys. */
+    private static final int COORD_BITS = 25;
+
+    /** The number of bits used for the zoom level in tile keys. */
+    private static final int ZOOM_BITS = 6;
+
+    /** The maximum number of sources in an archive. */
+    private static final int MAX_SOURCES = 128;
+
+    /** The suffix of temporary file names. */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** The suffix of the journal file name, after TMP_SUFFIX. */
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /** The journal record type of a source. */
+    private static final byte JOURNAL_SOURCE = 'S';
+
+    /** The journal record type of an index entry. */
+    private static final byte JOURNAL_ENTRY = 'T';
+
+    /** The size of an index entry record in the journal. */
+    private static final int JOURNAL_ENTRY_SIZE = 1 + 8 + 8 + 4;
+
+    /** The journal records kept in memory before appending them. */
+    private static final int JOURNAL_BUFFER_SIZE = 65536;
+
+    /** The path of the archive, that is, of its first part. */
+    private final String location;
+
+    /** The maximum size of an archive part. */
+    private final long partSizeLimit;
+
+    /** The sources of the archive, with their indexes. */
+    private final Map<String, Integer> sources =
+                                        new LinkedHashMap<String, Integer>();
+
+    /** The key of each tile added, see tileKey(). */
+    private long[] keys = new long[1024];
+
+    /**
+     * The location of the data of each tile added, the index of the data
+     * part in the upper, and the offset in the part in the lower 32 bits.
+     */
+    private long[] locations = new long[1024];
+
+    /** The length of the data of each tile added. */
+    private int[] lengths = new int[1024];
+
+    /** The number of tiles added. */
+    private int count = 0;
+
+    /** The sizes of the data parts, except the current one. */
+    private final List<Long> partSizes = new ArrayList<Long>();
+
+    /** The current data part, or null if none is open yet. */
+    private FileChannel part = null;
+
+    /** The size of the current data part. */
+    private long partSize = 0;
+
+    /** The journal file. */
+    private FileChannel journal = null;
+
+    /** The journal records not yet appended to the journal file. */
+    private final ByteArrayOutputStream journalBuffer =
+                                                new ByteArrayOutputStream();
+
+    /** Writer of journal records into journalBuffer. */
+    private final DataOutputStream journalOut =
+                                        new DataOutputStream(journalBuffer);
+
+    /** Flag to mark that the writer is closed. */
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param location the path of the archive to write, that is, of its
+     *        first part. further parts get numerical suffixes, e.g.
+     *        test.gemf-1, test.gemf-2
+     * @throws IOException on I/O errors
+     */
+    public GEMFWriter(String location) throws IOException {
+        this(location, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param location the path of the archive to write, that is, of its
+     *        first part. further parts get numerical suffixes, e.g.
+     *        test.gemf-1, test.gemf-2
+     * @param resume if true, continue with the tiles flushed by an earlier,
+     *        interrupted writer of the same archive. if false, start anew.
+     * @throws IOException on I/O errors
+     */
+    public GEMFWriter(String location, boolean resume) throws IOException {
+        this(location, GEMFFile.FILE_SIZE_LIMIT, resume);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param location the path of the archive to write
+     * @param partSizeLimit the maximum size of an archive part
+     * @throws IOException on I/O errors
+     */
+    GEMFWriter(String location, long partSizeLimit) throws IOException {
+        this(location, partSizeLimit, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param location the path of the archive to write
+     * @param partSizeLimit the maximum size of an archive part
+     * @param resume if true, continue with the tiles flushed by an earlier,
+     *        interrupted writer of the same archive
+     * @throws IOException on I/O errors
+     */
+    GEMFWriter(String   location,
+               long     partSizeLimit,
+               boolean  resume) throws IOException {
+        if (partSizeLimit < 2 || partSizeLimit > 0xffffffffL) {
+            throw new IllegalArgumentException("invalid part size limit "
+                                             + partSizeLimit);
+        }
+
+        this.location      = location;
+        this.partSizeLimit = partSizeLimit;
+
+        File journalFile = new File(location + TMP_SUFFIX + JOURNAL_SUFFIX);
+        long journalSize = 0;
+        if (resume && journalFile.exists()) {
+            journalSize = recover(journalFile);
+        } else {
+            // remove what an earlier, interrupted writer might have left
+            deleteParts(location + TMP_SUFFIX);
+        }
+
+        journal = new RandomAccessFile(journalFile, "rw").getChannel();
+        journal.truncate(journalSize);
+        journal.position(journalSize);
+    }
+
+    /**
+     * Complete an archive left behind by an interrupted writer, with the
+     * tiles it flushed, and move it in place.
+     *
+     * @param location the path of the archive
+     * @return true if there was an interrupted archive to complete
+     * @throws IOException on I/O errors
+     */
+    public static boolean finish(String location) throws IOException {
+        if (!new File(location + TMP_SUFFIX + JOURNAL_SUFFIX).exists()) {
+            return false;
+        }
+
+        new GEMFWriter(location, true).close();
+
+        return true;
+    }
+
+    /**
+     * Add a source to the archive, if not added yet. Sources are also
+     * added when adding their first tile, but a source without tiles has
+     * to be added explicitly to be part of the archive.
+     *
+     * @param source the name of the source
+     * @return the index of the source in the archive
+     */
+    public synchronized int addSource(String source) {
+        Integer index = sources.get(source);
+        if (index == null) {
+            if (sources.size() == MAX_SOURCES) {
+                throw new IllegalArgumentException("too many sources");
+            }
+            index = sources.size();
+            sources.put(source, index);
+
+            byte[] name = source.getBytes();
+            try {
+                journalOut.writeByte(JOURNAL_SOURCE);
+                journalOut.writeInt(name.length);
+                journalOut.write(name);
+            } catch (IOException e) {
+                // not thrown when writing into memory
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Add a tile to the archive. A tile added twice replaces the earlier
+     * one.
+     *
+     * @param source the name of the source of the tile
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param data the tile data
+     * @return a handle to the tile, to be used for linkTile()
+     * @throws IOException on I/O errors
+     */
+    public int
+    addTile(String  source,
+            int     zoom,
+            int     x,
+            int     y,
+            byte[]  data) throws IOException {
+
+        return addTile(source, zoom, x, y, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Add a tile to the archive. A tile added twice replaces the earlier
+     * one.
+     *
+     * @param source the name of the source of the tile
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param data the tile data, from its position up to its limit
+     * @return a handle to the tile, to be used for linkTile()
+     * @throws IOException on I/O errors
+     */
+    public synchronized int
+    addTile(String      source,
+            int         zoom,
+            int         x,
+            int         y,
+            ByteBuffer  data) throws IOException {
+
+        checkOpen();
+        long key    = tileKey(addSource(source), zoom, x, y);
+        int  length = data.remaining();
+
+        if (length > partSizeLimit - 1) {
+            throw new IllegalArgumentException("tile " + zoom + "/" + x + "/"
+                                             + y + " is too large");
+        }
+        if (part == null || partSize + length > partSizeLimit) {
+            nextPart();
+        }
+
+        long offset = partSize;
+        while (data.hasRemaining()) {
+            part.write(data);
+        }
+        partSize += length;
+
+        int entry = addEntry(key, ((long) (partSizes.size() + 1) << 32)
+                                | offset, length);
+        if (journalBuffer.size() >= JOURNAL_BUFFER_SIZE) {
+            writeJournal();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Add a tile to the archive with the same data as a tile added before,
+     * sharing the data in the archive.
+     *
+     * @param source the name of the source of the tile
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param tile the handle of the tile added before, as returned by
+     *        addTile()
+     * @return a handle to the tile, to be used for linkTile()
+     */
+    public synchronized int
+    linkTile(String     source,
+             int        zoom,
+             int        x,
+             int        y,
+             int        tile) {
+
+        checkOpen();
+        if (tile < 0 || tile >= count) {
+            throw new IllegalArgumentException("invalid tile handle " + tile);
+        }
+
+        return addEntry(tileKey(addSource(source), zoom, x, y),
+                        locations[tile], lengths[tile]);
+    }
+
+    /**
+     * Copy the tiles of an existing archive into this one, except for the
+     * tiles added already, which take precedence. Tiles sharing their data
+     * in the existing archive share it in this one as well.
+     *
+     * @param archive the archive to copy the tiles of
+     * @throws IOException on I/O errors
+     */
+    public synchronized void addTiles(GEMFFile archive) throws IOException {
+        checkOpen();
+
+        final long[] added = Arrays.copyOf(keys, count);
+        Arrays.sort(added);
+
+        final Map<Long, Integer> shared = new HashMap<Long, Integer>();
+
+        archive.visitTiles(new GEMFFile.TileVisitor() {
+            @Override
+            public void visitTile(String        source,
+                                  int           zoom,
+                                  int           x,
+                                  int           y,
+                                  long          dataOffset,
+                                  ByteBuffer    data) throws IOException {
+
+                long key = tileKey(addSource(source), zoom, x, y);
+                if (Arrays.binarySearch(added, key) >= 0) {
+                    return;
+                }
+
+                Integer tile = shared.get(dataOffset);
+                if (tile != null) {
+                    linkTile(source, zoom, x, y, tile);
+                } else {
+                    shared.put(dataOffset, addTile(source, zoom, x, y, data));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of tiles added so far
+     */
+    public synchronized int getTileCount() {
+        return count;
+    }
+
+    /**
+     * Make the tiles added so far durable, so that a writer created in
+     * resume mode can continue with them if this writer is interrupted.
+     *
+     * @throws IOException on I/O errors
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+
+        // the data has to be on disk before the entries referring to it
+        if (part != null) {
+            part.force(false);
+        }
+        writeJournal();
+        journal.force(false);
+    }
+
+    /**
+     * Write the header and the index of the archive, and move it in place.
+     * If this fails, the data parts and the journal are kept, so that a
+     * writer in resume mode can continue with the tiles flushed.
+     *
+     * @throws IOException on I/O errors
+     */
+    public synchronized void close() throws IOException {
+        checkOpen();
+        closed = true;
+
+        boolean done = false;
+        try {
+            if (part != null) {
+                partSizes.add(partSize);
+                part.close();
+                part = null;
+            }
+            journal.close();
+
+            writeIndex();
+            moveInPlace();
+            deleteJournal();
+            done = true;
+        } finally {
+            if (!done) {
+                journal.close();
+                new File(location + TMP_SUFFIX).delete();
+            }
+        }
+    }
+
+    /**
+     * Abandon the archive, removing all data written so far. An earlier
+     * archive of the same name is left intact.
+     *
+     * @throws IOException on I/O errors
+     */
+    public synchronized void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (part != null) {
+            part.close();
+            part = null;
+        }
+        journal.close();
+        deleteParts(location + TMP_SUFFIX);
+        deleteJournal();
+    }
+
+    /**
+     * Make sure the writer is still open.
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("GEMF writer already closed");
+        }
+    }
+
+    /**
+     * Create the key for a tile, which orders tiles by source, zoom level,
+     * x and then y coordinate.
+     *
+     * @param source the index of the source of the tile
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the key of the tile
+     */
+    private static long tileKey(int source, int zoom, int x, int y) {
+        if (zoom < 0 || zoom > COORD_BITS
+         || x < 0 || x >= 1 << COORD_BITS || y < 0 || y >= 1 << COORD_BITS) {
+            throw new IllegalArgumentException("invalid tile coordinates "
+                                             + zoom + "/" + x + "/" + y);
+        }
+
+        return ((long) source << (ZOOM_BITS + 2 * COORD_BITS))
+             | ((long) zoom << (2 * COORD_BITS))
+             | ((long) x << COORD_BITS)
+             | y;
+    }
+
+    /**
+     * Add an entry to the index.
+     *
+     * @param key the key of the tile
+     * @param location the location of the data of the tile
+     * @param length the length of the data of the tile
+     * @return the index of the entry
+     */
+    private int addEntry(long key, long location, int length) {
+        if (count == keys.length) {
+            int capacity = count + (count >> 1);
+            keys      = Arrays.copyOf(keys, capacity);
+            locations = Arrays.copyOf(locations, capacity);
+            lengths   = Arrays.copyOf(lengths, capacity);
+        }
+
+        keys[count]      = key;
+        locations[count] = location;
+        lengths[count]   = length;
+
+        try {
+            journalOut.writeByte(JOURNAL_ENTRY);
+            journalOut.writeLong(key);
+            journalOut.writeLong(location);
+            journalOut.writeInt(length);
+        } catch (IOException e) {
+            // not thrown when writing into memory
+            throw new IllegalStateException(e);
+        }
+
+        return count++;
+    }
+
+    /**
+     * Append the journal records kept in memory to the journal file.
+     *
+     * @throws IOException on I/O errors
+     */
+    private void writeJournal() throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(journalBuffer.toByteArray());
+        while (records.hasRemaining()) {
+            journal.write(records);
+        }
+        journalBuffer.reset();
+    }
+
+    /**
+     * Continue with the tiles flushed by an earlier writer, as recorded in
+     * its journal. Reading the journal stops at the first incomplete
+     * record, or at the first entry with data missing from the data parts,
+     * as these were not flushed. Data parts beyond the last entry are
+     * removed, and the last data part is re-opened to append to.
+     *
+     * @param journalFile the journal of the earlier writer
+     * @return the size of the valid part of the journal
+     * @throws IOException on I/O errors
+     */
+    private long recover(File journalFile) throws IOException {
+        List<Long> sizes = new ArrayList<Long>();
+        long       valid = 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                new FileInputStream(journalFile), 65536));
+        try {
+            while (true) {
+                byte type = in.readByte();
+
+                if (type == JOURNAL_SOURCE) {
+                    byte[] name = new byte[in.readInt()];
+                    in.readFully(name);
+
+                    addSource(new String(name));
+                    valid += 1 + 4 + name.length;
+                    continue;
+                } else if (type != JOURNAL_ENTRY) {
+                    break;
+                }
+
+                long key    = in.readLong();
+                long loc    = in.readLong();
+                int  length = in.readInt();
+
+                int  index  = (int) (loc >>> 32);
+                long offset = loc & 0xffffffffL;
+                for (int i = sizes.size() + 1; i <= index; ++i) {
+                    File f = new File(location + TMP_SUFFIX + "-" + i);
+                    sizes.add(f.exists() ? f.length() : -1L);
+                }
+                if (index < 1 || offset < 1
+                 || offset + length > sizes.get(index - 1)) {
+                    break;
+                }
+
+                addEntry(key, loc, length);
+                valid += JOURNAL_ENTRY_SIZE;
+            }
+        } catch (EOFException e) {
+            // an incomplete record at the end
+        } finally {
+            in.close();
+        }
+        journalBuffer.reset();
+
+        // drop the parts after the last one referred to
+        int parts = 0;
+        for (int i = 0; i < count; ++i) {
+            parts = Math.max(parts, (int) (locations[i] >>> 32));
+        }
+        for (int i = parts + 1;; ++i) {
+            File f = new File(location + TMP_SUFFIX + "-" + i);
+            if (!f.exists()) {
+                break;
+            } else if (!f.delete()) {
+                throw new IOException("Could not delete " + f);
+            }
+        }
+        new File(location + TMP_SUFFIX).delete();
+
+        if (parts > 0) {
+            for (int i = 0; i < parts - 1; ++i) {
+                if (sizes.get(i) < 1) {
+                    throw new IOException("Missing data part "
+                                    + location + TMP_SUFFIX + "-" + (i + 1));
+                }
+                partSizes.add(sizes.get(i));
+            }
+
+            // anything after the last tile in the last part was not flushed
+            long end = 1;
+            for (int i = 0; i < count; ++i) {
+                if ((int) (locations[i] >>> 32) == parts) {
+                    end = Math.max(end, (locations[i] & 0xffffffffL)
+                                      + lengths[i]);
+                }
+            }
+            partSize = end;
+
+            part = new RandomAccessFile(
+                    location + TMP_SUFFIX + "-" + parts, "rw").getChannel();
+            part.truncate(partSize);
+            part.position(partSize);
+        }
+
+        return valid;
+    }
+
+    /**
+     * Delete the journal.
+     *
+     * @throws IOException if the journal could not be deleted
+     */
+    private void deleteJournal() throws IOException {
+        File file = new File(location + TMP_SUFFIX + JOURNAL_SUFFIX);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    /**
+     * Start a new data part.
+     *
+     * @throws IOException on I/O errors
+     */
+    private void nextPart() throws IOException {
+        if (part != null) {
+            partSizes.add(partSize);
+            part.close();
+        }
+
+        String name = location + TMP_SUFFIX + "-" + (partSizes.size() + 1);
+        RandomAccessFile file = new RandomAccessFile(name, "rw");
+        file.setLength(0);
+        part = file.getChannel();
+
+        // the padding byte
+        part.write(ByteBuffer.wrap(new byte[1]));
+        partSize = 1;
+    }
+
+    /**
+     * Calculate the tile ranges of the archive: rectangles of tiles of the
+     * same source and zoom level that are all present. Columns with the
+     * same runs of y coordinates next to each other are merged into the
+     * same range.
+     *
+     * @param sorted the sorted, distinct keys of all the tiles
+     * @return the list of ranges, each an array of the source index, the
+     *         zoom level, minimum and maximum x and minimum and maximum y
+     *         coordinates
+     */
+    private static List<int[]> calcRanges(long[] sorted) {
+        List<int[]>      ranges = new ArrayList<int[]>();
+        Map<Long, int[]> open   = new LinkedHashMap<Long, int[]>();
+        int[]            run    = null;
+        long             mask   = (1L << COORD_BITS) - 1;
+
+        for (long key : sorted) {
+            int source = (int) (key >>> (ZOOM_BITS + 2 * COORD_BITS));
+            int zoom   = (int) ((key >>> (2 * COORD_BITS))
+                              & ((1 << ZOOM_BITS) - 1));
+            int x      = (int) ((key >>> COORD_BITS) & mask);
+            int y      = (int) (key & mask);
+
+            if (run != null && run[0] == source && run[1] == zoom
+             && run[2] == x && run[5] + 1 == y) {
+                // continue the current run of y coordinates
+                ++run[5];
+                continue;
+            }
+
+            if (run != null) {
+                addRun(ranges, open, run);
+            }
+            if (run == null || run[0] != source || run[1] != zoom) {
+                open.clear();
+            }
+
+            run = new int[] {source, zoom, x, x, y, y};
+        }
+
+        if (run != null) {
+            addRun(ranges, open, run);
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Add a run of y coordinates in a column to the ranges, by extending
+     * the range of the same run in the previous column, or by starting a
+     * new range.
+     *
+     * @param ranges the ranges found so far
+     * @param open the ranges reaching up to the previous column, keyed by
+     *        their y coordinates
+     * @param run the run, as a range of a single column
+     */
+    private static void
+    addRun(List<int[]> ranges, Map<Long, int[]> open, int[] run) {
+        Long  key   = ((long) run[4] << 32) | run[5];
+        int[] range = open.get(key);
+
+        if (range != null && range[3] + 1 == run[2]) {
+            range[3] = run[2];
+        } else {
+            ranges.add(run);
+            open.put(key, run);
+        }
+    }
+
+    /**
+     * Write the first part of the archive: the header and the index.
+     *
+     * @throws IOException on I/O errors
+     */
+    private void writeIndex() throws IOException {
+        // sort the keys, and find the entry for each key. when a tile was
+        // added more than once, the last entry counts
+        long[] sorted = Arrays.copyOf(keys, count);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        sorted = Arrays.copyOf(sorted, distinct);
+
+        int[] entries = new int[distinct];
+        for (int i = 0; i < count; ++i) {
+            entries[Arrays.binarySearch(sorted, keys[i])] = i;
+        }
+
+        List<int[]> ranges = calcRanges(sorted);
+
+        long headerSize = GEMFFile.U32_SIZE * 3
+                        + GEMFFile.U32_SIZE
+                        + (long) ranges.size() * RANGE_SIZE;
+        for (String source : sources.keySet()) {
+            headerSize += GEMFFile.U32_SIZE * 2 + source.getBytes().length;
+        }
+        long indexSize = (long) distinct * TILE_RECORD_SIZE;
+
+        // the offset of each part, as seen by the reader
+        long[] partOffsets = new long[partSizes.size() + 1];
+        partOffsets[0] = 0;
+        long   offset  = headerSize + indexSize;
+        for (int i = 0; i < partSizes.size(); ++i) {
+            partOffsets[i + 1] = offset;
+            offset += partSizes.get(i);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(location + TMP_SUFFIX), 65536));
+        try {
+            out.writeInt(GEMFFile.VERSION);
+            out.writeInt(GEMFFile.TILE_SIZE);
+
+            out.writeInt(sources.size());
+            for (Map.Entry<String, Integer> source : sources.entrySet()) {
+                out.writeInt(source.getValue());
+                out.writeInt(source.getKey().getBytes().length);
+                out.write(source.getKey().getBytes());
+            }
+
+            out.writeInt(ranges.size());
+            offset = headerSize;
+            for (int[] range : ranges) {
+                out.writeInt(range[1]);
+                out.writeInt(range[2]);
+                out.writeInt(range[3]);
+                out.writeInt(range[4]);
+                out.writeInt(range[5]);
+                out.writeInt(range[0]);
+                out.writeLong(offset);
+
+                offset += (long) (range[3] - range[2] + 1)
+                               * (range[5] - range[4] + 1) * TILE_RECORD_SIZE;
+            }
+
+            for (int[] range : ranges) {
+                for (int x = range[2]; x <= range[3]; ++x) {
+                    for (int y = range[4]; y <= range[5]; ++y) {
+                        int entry = entries[Arrays.binarySearch(sorted,
+                                        tileKey(range[0], range[1], x, y))];
+                        long loc  = locations[entry];
+
+                        out.writeLong(partOffsets[(int) (loc >>> 32)]
+                                    + (loc & 0xffffffffL));
+                        out.writeInt(lengths[entry]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Move the archive written under temporary names in place, replacing
+     * an earlier archive of the same name.
+     *
+     * @throws IOException on I/O errors
+     */
+    private void moveInPlace() throws IOException {
+        deleteParts(location);
+
+        for (int i = 0; i <= partSizes.size(); ++i) {
+            String suffix = i == 0 ? "" : "-" + i;
+            File   from   = new File(location + TMP_SUFFIX + suffix);
+            File   to     = new File(location + suffix);
+
+            if (!from.renameTo(to)) {
+                throw new IOException("Could not rename " + from + " to "
+                                    + to);
+            }
+        }
+    }
+
+    /**
+     * Delete the files of an archive, that is, the first part and all
+     * further parts with numerical suffixes.
+     *
+     * @param path the path of the archive, that is, of its first part
+     * @throws IOException if a file could not be deleted
+     */
+    private static void deleteParts(String path) throws IOException {
+        File file = new File(path);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+
+        for (int i = 1; (file = new File(path + "-" + i)).exists(); ++i) {
+            if (!file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+        }
+    }
+}
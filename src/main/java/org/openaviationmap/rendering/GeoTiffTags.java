@@ -0,0 +1,147 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.Rectangle;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+
+/**
+ * Georeferencing of TIFF images by GeoTIFF tags: the position and size of
+ * the pixels in the CRS of the map, and the CRS itself. A CRS with an EPSG
+ * code is referred to by its code, other ones are described by their WKT
+ * in an ESRI PE string citation, as understood by GDAL.
+ */
+public final class GeoTiffTags {
+
+    /** GeoTIFF tag ModelPixelScaleTag. */
+    public static final int TAG_MODEL_PIXEL_SCALE = 33550;
+
+    /** GeoTIFF tag ModelTiepointTag. */
+    public static final int TAG_MODEL_TIEPOINT = 33922;
+
+    /** GeoTIFF tag GeoKeyDirectoryTag. */
+    public static final int TAG_GEO_KEY_DIRECTORY = 34735;
+
+    /** GeoTIFF tag GeoAsciiParamsTag. */
+    public static final int TAG_GEO_ASCII_PARAMS = 34737;
+
+    /** Geo key GTModelTypeGeoKey. */
+    private static final int KEY_MODEL_TYPE = 1024;
+
+    /** Geo key GTRasterTypeGeoKey. */
+    private static final int KEY_RASTER_TYPE = 1025;
+
+    /** Geo key GeographicTypeGeoKey. */
+    private static final int KEY_GEOGRAPHIC_TYPE = 2048;
+
+    /** Geo key ProjectedCSTypeGeoKey. */
+    private static final int KEY_PROJECTED_CS_TYPE = 3072;
+
+    /** The model type of projected coordinate systems. */
+    private static final int MODEL_TYPE_PROJECTED = 1;
+
+    /** The model type of geographic coordinate systems. */
+    private static final int MODEL_TYPE_GEOGRAPHIC = 2;
+
+    /** The raster type of pixels covering an area. */
+    private static final int RASTER_PIXEL_IS_AREA = 1;
+
+    /** The code of a user defined coordinate system. */
+    private static final int USER_DEFINED = 32767;
+
+    /** The unofficial code of the Google Mercator projection. */
+    private static final int GOOGLE_MERCATOR = 900913;
+
+    /** The EPSG code of the same projection, known to all readers. */
+    private static final int WEB_MERCATOR = 3857;
+
+    /** The prefix of a citation describing a CRS by its WKT. */
+    private static final String ESRI_PE_STRING = "ESRI PE String = ";
+
+    /**
+     * Private constructor, as this is a static utility class.
+     */
+    private GeoTiffTags() {
+    }
+
+    /**
+     * Georeference an image written by a TIFF writer.
+     *
+     * @param writer the writer of the image
+     * @param bounds the bounds of the map, in the CRS of the map
+     * @param mapRect the area of the image covered by the map, in pixels
+     * @throws FactoryException on CRS factory errors
+     */
+    public static void
+    georeference(BigTiffWriter      writer,
+                 ReferencedEnvelope bounds,
+                 Rectangle          mapRect) throws FactoryException {
+
+        writer.setDoubleTag(TAG_MODEL_PIXEL_SCALE,
+                            bounds.getWidth() / mapRect.width,
+                            bounds.getHeight() / mapRect.height,
+                            0);
+        writer.setDoubleTag(TAG_MODEL_TIEPOINT,
+                            mapRect.x, mapRect.y, 0,
+                            bounds.getMinX(), bounds.getMaxY(), 0);
+
+        CoordinateReferenceSystem crs = bounds.getCoordinateReferenceSystem();
+        boolean geographic = crs instanceof GeographicCRS;
+
+        Integer code = CRS.lookupEpsgCode(crs, true);
+        if (code != null && code == GOOGLE_MERCATOR) {
+            code = WEB_MERCATOR;
+        }
+
+        int modelType = geographic ? MODEL_TYPE_GEOGRAPHIC
+                                   : MODEL_TYPE_PROJECTED;
+        int typeKey   = geographic ? KEY_GEOGRAPHIC_TYPE
+                                   : KEY_PROJECTED_CS_TYPE;
+
+        long[] keys;
+        if (code != null) {
+            keys = new long[] {
+                1, 1, 0, 3,
+                KEY_MODEL_TYPE, 0, 1, modelType,
+                KEY_RASTER_TYPE, 0, 1, RASTER_PIXEL_IS_AREA,
+                typeKey, 0, 1, code
+            };
+        } else {
+            // a user defined CRS, described by the citation key following
+            // the type key
+            String citation = ESRI_PE_STRING + crs.toWKT() + "|";
+            writer.setAsciiTag(TAG_GEO_ASCII_PARAMS, citation);
+
+            keys = new long[] {
+                1, 1, 0, 4,
+                KEY_MODEL_TYPE, 0, 1, modelType,
+                KEY_RASTER_TYPE, 0, 1, RASTER_PIXEL_IS_AREA,
+                typeKey, 0, 1, USER_DEFINED,
+                typeKey + 1, TAG_GEO_ASCII_PARAMS, citation.length(), 0
+            };
+        }
+
+        writer.setIntTag(TAG_GEO_KEY_DIRECTORY, BigTiffWriter.TYPE_SHORT,
+                         keys);
+    }
+}
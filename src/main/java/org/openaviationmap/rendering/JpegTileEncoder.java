@@ -0,0 +1,106 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * A tile encoder producing JPEG files. As JPEG has no transparency, tiles
+ * are put onto a white background before encoding. This suits opaque tiles
+ * with a lot of color detail, like the ground map.
+ */
+public class JpegTileEncoder implements TileEncoder {
+
+    /** The default JPEG quality. */
+    public static final float DEFAULT_QUALITY = 0.85f;
+
+    /** The JPEG quality used. */
+    private final float quality;
+
+    /**
+     * Constructor.
+     *
+     * @param quality the JPEG quality, 0..1, where 1 is the best quality
+     */
+    public JpegTileEncoder(float quality) {
+        if (!(quality >= 0f && quality <= 1f)) {
+            throw new IllegalArgumentException("invalid JPEG quality "
+                                             + quality);
+        }
+
+        this.quality = quality;
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileEncoder#getExtension()
+     */
+    @Override
+    public String getExtension() {
+        return "jpg";
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileEncoder#encode(
+     *                                          java.awt.image.BufferedImage)
+     */
+    @Override
+    public byte[] encode(BufferedImage tile) throws IOException {
+        BufferedImage rgb = new BufferedImage(tile.getWidth(),
+                                              tile.getHeight(),
+                                              BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+        g.drawImage(tile, 0, 0, null);
+        g.dispose();
+
+        // image writers are not thread safe, thus each tile gets its own
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!it.hasNext()) {
+            throw new IOException("no JPEG image writer available");
+        }
+        ImageWriter writer = it.next();
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageOutputStream     ios = ImageIO.createImageOutputStream(bos);
+        try {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            ios.close();
+            writer.dispose();
+        }
+
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.data.collection.SpatialIndexFeatureCollection;
+import org.geotools.data.collection.SpatialIndexFeatureSource;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.openaviationmap.rendering.grid.Lines;
+import org.openaviationmap.rendering.grid.ortholine.OrthoLineDef;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * A lattice (grid) of latitude and longitude lines over an area, generated
+ * once for each zoom level it is drawn at. The lines are clipped into
+ * pieces along the tile grid of the zoom level, and are kept in a
+ * spatially indexed collection. Thus rendering a metatile or a strip of a
+ * large map only fetches the short pieces of lines within it, instead of
+ * filtering the long lines of the whole area.
+ */
+public class LatticeGrid {
+
+    /** The area the lattice covers, in WGS84. */
+    private final ReferencedEnvelope bounds;
+
+    /** The definitions of the lines of the lattice. */
+    private final List<OrthoLineDef> lineDefs;
+
+    /** The maximum distance between the vertices of a line, in degrees. */
+    private final double vertexSpacing;
+
+    /** The lattices generated so far, by zoom level. */
+    private final Map<Integer, SimpleFeatureSource> levels =
+                                    new HashMap<Integer, SimpleFeatureSource>();
+
+    /**
+     * Constructor.
+     *
+     * @param bounds the area the lattice covers, in WGS84
+     * @param lineDefs the definitions of the lines of the lattice
+     * @param vertexSpacing the maximum distance between the vertices of a
+     *        line, in degrees, to densify the lines for reprojection
+     */
+    public LatticeGrid(ReferencedEnvelope   bounds,
+                       List<OrthoLineDef>   lineDefs,
+                       double               vertexSpacing) {
+        this.bounds        = bounds;
+        this.lineDefs      = lineDefs;
+        this.vertexSpacing = vertexSpacing;
+    }
+
+    /**
+     * Return the size of the cells the lines are clipped into at a zoom
+     * level, the width of a tile at that level.
+     *
+     * @param zoom the zoom level
+     * @return the size of the cells at zoom, in degrees
+     */
+    public static double getCellSize(int zoom) {
+        return 360d / (1L << zoom);
+    }
+
+    /**
+     * Return the lattice at a zoom level, generating it on first use.
+     *
+     * @param zoom the zoom level
+     * @return the pieces of the lines of the lattice, clipped into the
+     *         cells of zoom, in a spatially indexed feature source
+     * @throws IOException on I/O errors
+     */
+    public synchronized SimpleFeatureSource
+    getFeatures(int zoom) throws IOException {
+        SimpleFeatureSource fs = levels.get(zoom);
+        if (fs == null) {
+            fs = generate(getCellSize(zoom));
+            levels.put(zoom, fs);
+        }
+
+        return fs;
+    }
+
+    /**
+     * Generate the lattice, with its lines clipped into cells.
+     *
+     * @param cellSize the size of the cells to clip the lines into, in
+     *        degrees
+     * @return the pieces of the lines of the lattice, in a spatially indexed
+     *         feature source
+     * @throws IOException on I/O errors
+     */
+    private SimpleFeatureSource
+    generate(double cellSize) throws IOException {
+        SimpleFeatureSource lines = Lines.createOrthoLines(bounds, lineDefs,
+                                                           vertexSpacing);
+        SimpleFeatureType   schema = lines.getSchema();
+        String              geom   =
+                            schema.getGeometryDescriptor().getLocalName();
+
+        SpatialIndexFeatureCollection pieces =
+                                    new SpatialIndexFeatureCollection(schema);
+        SimpleFeatureBuilder          builder =
+                                    new SimpleFeatureBuilder(schema);
+
+        SimpleFeatureIterator it = lines.getFeatures().features();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature line     = it.next();
+                Object        geometry = line.getDefaultGeometry();
+                if (!(geometry instanceof Geometry)) {
+                    continue;
+                }
+
+                List<LineString> clipped = clip((Geometry) geometry,
+                                                cellSize);
+                for (int i = 0; i < clipped.size(); ++i) {
+                    builder.addAll(line.getAttributes());
+                    builder.set(geom, clipped.get(i));
+                    pieces.add(builder.buildFeature(line.getID() + "." + i));
+                }
+            }
+        } finally {
+            it.close();
+        }
+
+        return new SpatialIndexFeatureSource(pieces);
+    }
+
+    /**
+     * Clip the lines of a geometry into square cells aligned to multiples
+     * of the cell size.
+     *
+     * @param geometry the geometry to clip, only its lines are kept
+     * @param cellSize the size of the cells
+     * @return the pieces of the lines of geometry, each within a cell
+     */
+    static List<LineString> clip(Geometry geometry, double cellSize) {
+        List<LineString> pieces = new ArrayList<LineString>();
+
+        Envelope e    = geometry.getEnvelopeInternal();
+        long     minX = (long) Math.floor(e.getMinX() / cellSize);
+        long     maxX = (long) Math.floor(e.getMaxX() / cellSize);
+        long     minY = (long) Math.floor(e.getMinY() / cellSize);
+        long     maxY = (long) Math.floor(e.getMaxY() / cellSize);
+
+        if (minX == maxX && minY == maxY) {
+            collectLines(geometry, null, pieces);
+            return pieces;
+        }
+
+        for (long x = minX; x <= maxX; ++x) {
+            for (long y = minY; y <= maxY; ++y) {
+                Envelope cell = new Envelope(x * cellSize, (x + 1) * cellSize,
+                                             y * cellSize, (y + 1) * cellSize);
+                collectLines(geometry.intersection(
+                        geometry.getFactory().toGeometry(cell)), cell, pieces);
+            }
+        }
+
+        return pieces;
+    }
+
+    /**
+     * Collect the non-degenerate lines of a geometry. A line along the edge
+     * of two cells is clipped into both, thus it is only kept in the cell
+     * its centre is in, counting the right and top edges as outside.
+     *
+     * @param geometry the geometry to collect the lines of
+     * @param cell the cell geometry was clipped into, or null
+     * @param lines the list to add the lines to
+     */
+    private static void collectLines(Geometry           geometry,
+                                     Envelope           cell,
+                                     List<LineString>   lines) {
+        for (int i = 0; i < geometry.getNumGeometries(); ++i) {
+            Geometry part = geometry.getGeometryN(i);
+            if (!(part instanceof LineString) || part.getLength() == 0) {
+                continue;
+            }
+
+            Coordinate centre = part.getEnvelopeInternal().centre();
+            if (cell == null
+             || (centre.x < cell.getMaxX() && centre.y < cell.getMaxY())) {
+                lines.add((LineString) part);
+            }
+        }
+    }
+}
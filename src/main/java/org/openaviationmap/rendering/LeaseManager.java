@@ -0,0 +1,430 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Work partitioning between processes through lease files in a shared
+ * directory, e.g. on a network file system. The work is split into units
+ * numbered from 0, and each process claims a unit by creating its lease
+ * file, which only one process can succeed at. When a unit is done, a done
+ * file is created for it, so that it is not claimed again.
+ *
+ * Leases are renewed periodically by touching their files, as long as the
+ * owner process is alive. A lease not renewed for longer than the lease
+ * time has expired: its owner is taken to have died, and the unit may be
+ * claimed by another process. An expired lease is removed under a lock
+ * made for its modification time, so that only one process reclaims it,
+ * and a lease claimed anew in the meantime is not taken for the expired
+ * one.
+ *
+ * Each lease file holds the name of its owner, so that a process does not
+ * renew or remove a lease that another process has reclaimed.
+ *
+ * Processes working on the units also announce themselves as members, in
+ * files renewed the same way, so that a coordinator can tell when all of
+ * them are finished.
+ *
+ * The directory layout is: leases/&lt;unit&gt;, done/&lt;unit&gt; and
+ * members/&lt;owner&gt;.
+ */
+public final class LeaseManager {
+
+    /** The default lease time, in milliseconds. */
+    public static final long DEFAULT_LEASE_TIME = 5 * 60 * 1000L;
+
+    /** The longest time waited between checks for claimable units. */
+    private static final long MAX_POLL_INTERVAL = 5000L;
+
+    /** The directory of the lease files. */
+    private final File leaseDir;
+
+    /** The directory of the done files. */
+    private final File doneDir;
+
+    /** The directory of the member files. */
+    private final File memberDir;
+
+    /** The name of this process, unique among the processes. */
+    private final String owner;
+
+    /** The lease time, in milliseconds. */
+    private final long leaseTime;
+
+    /** The units leased by this process. */
+    private final Set<Integer> held = new HashSet<Integer>();
+
+    /** The units known to be done. */
+    private final BitSet done = new BitSet();
+
+    /** The timer renewing the leases and the member file. */
+    private final Timer heartbeat;
+
+    /** Flag to mark that this process has joined as a member. */
+    private boolean member = false;
+
+    /**
+     * Constructor.
+     *
+     * @param dir the shared directory, created if it does not exist
+     * @param owner the name of this process, unique among the processes
+     *        sharing the directory, see defaultOwner()
+     * @param leaseTime the time after which a lease not renewed expires,
+     *        in milliseconds
+     * @throws IOException if the directories could not be created
+     */
+    public LeaseManager(File dir, String owner, long leaseTime)
+                                                        throws IOException {
+        if (leaseTime < 4) {
+            throw new IllegalArgumentException("invalid lease time "
+                                             + leaseTime);
+        }
+
+        this.leaseDir  = new File(dir, "leases");
+        this.doneDir   = new File(dir, "done");
+        this.memberDir = new File(dir, "members");
+        this.owner     = owner;
+        this.leaseTime = leaseTime;
+
+        for (File d : new File[] {leaseDir, doneDir, memberDir}) {
+            if (!d.isDirectory() && !d.mkdirs() && !d.isDirectory()) {
+                throw new IOException("Could not create directory " + d);
+            }
+        }
+
+        heartbeat = new Timer("lease heartbeat " + owner, true);
+        heartbeat.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                renew();
+            }
+        }, leaseTime / 4, leaseTime / 4);
+    }
+
+    /**
+     * @return a name for this process, made of its process id and host
+     *         name, usable as a file name
+     */
+    public static String defaultOwner() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * @return the name of this process
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Announce this process as a member working on the units.
+     *
+     * @throws IOException on I/O errors
+     */
+    public synchronized void join() throws IOException {
+        writeOwner(new File(memberDir, owner));
+        member = true;
+    }
+
+    /**
+     * @return the names of the members that are alive, that is, that have
+     *         renewed their member files within the lease time
+     */
+    public List<String> getActiveMembers() {
+        List<String> members = new ArrayList<String>();
+
+        File[] files = memberDir.listFiles();
+        if (files == null) {
+            return members;
+        }
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            long modified = file.lastModified();
+            if (modified != 0 && now - modified <= leaseTime) {
+                members.add(file.getName());
+            }
+        }
+
+        return members;
+    }
+
+    /**
+     * Claim one of a number of units, waiting while all the units not done
+     * are leased by other processes, as their leases may expire.
+     *
+     * @param units the units to choose from
+     * @return the unit claimed, or -1 if all the units are done
+     * @throws IOException on I/O errors, or if interrupted while waiting
+     */
+    public int acquire(List<Integer> units) throws IOException {
+        long poll = Math.max(1, Math.min(leaseTime / 4, MAX_POLL_INTERVAL));
+
+        while (true) {
+            int unit = tryAcquire(units);
+            if (unit >= 0) {
+                return unit;
+            } else if (getDoneCount(units) == units.size()) {
+                return -1;
+            }
+
+            try {
+                Thread.sleep(poll);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                                    "interrupted while waiting for a lease");
+            }
+        }
+    }
+
+    /**
+     * Claim one of a number of units, if any of them is neither done nor
+     * leased by a live process.
+     *
+     * @param units the units to choose from
+     * @return the unit claimed, or -1 if no unit could be claimed
+     * @throws IOException on I/O errors
+     */
+    public synchronized int tryAcquire(List<Integer> units)
+                                                        throws IOException {
+        for (int unit : units) {
+            if (held.contains(unit) || isDone(unit)) {
+                continue;
+            }
+
+            File lease = new File(leaseDir, Integer.toString(unit));
+            if (!lease.createNewFile()
+             && !(reclaim(lease) && lease.createNewFile())) {
+                continue;
+            }
+
+            // the unit may have been completed, and its lease removed,
+            // since checking for it being done
+            if (isDone(unit)) {
+                lease.delete();
+                continue;
+            }
+
+            held.add(unit);
+            writeOwner(lease);
+
+            return unit;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Remove a lease if it has expired. Of several processes trying this at
+     * the same time, only one succeeds.
+     *
+     * @param lease the lease file
+     * @return true if the lease was removed
+     */
+    private boolean reclaim(File lease) {
+        long modified = lease.lastModified();
+        if (modified == 0
+         || System.currentTimeMillis() - modified <= leaseTime) {
+            return false;
+        }
+
+        return reclaim(lease, modified);
+    }
+
+    /**
+     * Remove a lease seen expired, unless it has been renewed or claimed
+     * anew since. The lease is removed while holding a lock directory made
+     * for the modification time it was seen with, so that of the processes
+     * that have seen it expired, only one removes it, and the others do not
+     * remove the lease claimed anew after it.
+     *
+     * @param lease the lease file
+     * @param modified the modification time the lease was seen expired with
+     * @return true if the lease was removed
+     */
+    boolean reclaim(File lease, long modified) {
+        File lock = new File(leaseDir, lease.getName() + "." + modified
+                                     + ".reclaim");
+        if (!lock.mkdir()) {
+            // another process is reclaiming the lease, or has died while
+            // doing so, leaving the lock behind
+            long locked = lock.lastModified();
+            if (locked != 0
+             && System.currentTimeMillis() - locked > leaseTime) {
+                lock.delete();
+            }
+            return false;
+        }
+
+        try {
+            return lease.lastModified() == modified && lease.delete();
+        } finally {
+            lock.delete();
+        }
+    }
+
+    /**
+     * Mark a unit claimed by this process done, and give up its lease.
+     *
+     * @param unit the unit done
+     * @throws IOException on I/O errors
+     */
+    public synchronized void complete(int unit) throws IOException {
+        writeOwner(new File(doneDir, Integer.toString(unit)));
+        done.set(unit);
+        release(unit);
+    }
+
+    /**
+     * Give up the lease of a unit claimed by this process, without it being
+     * done, so that other processes can claim it right away.
+     *
+     * @param unit the unit to give up
+     */
+    public synchronized void release(int unit) {
+        File lease = new File(leaseDir, Integer.toString(unit));
+        if (held.remove(unit) && owns(lease)) {
+            lease.delete();
+        }
+    }
+
+    /**
+     * Tell if a unit is done.
+     *
+     * @param unit the unit to check
+     * @return true if the unit is done, by any process
+     */
+    public synchronized boolean isDone(int unit) {
+        if (!done.get(unit)
+         && new File(doneDir, Integer.toString(unit)).exists()) {
+            done.set(unit);
+        }
+
+        return done.get(unit);
+    }
+
+    /**
+     * Count the units done.
+     *
+     * @param units the units to check
+     * @return the number of units done from units
+     */
+    public synchronized int getDoneCount(List<Integer> units) {
+        int count = 0;
+        for (int unit : units) {
+            if (isDone(unit)) {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Renew the leases held, and the member file, by touching them. A lease
+     * that has been reclaimed by another process in the meantime is lost.
+     */
+    public synchronized void renew() {
+        long now = System.currentTimeMillis();
+
+        for (Integer unit : new ArrayList<Integer>(held)) {
+            File lease = new File(leaseDir, unit.toString());
+            if (!owns(lease) || !lease.setLastModified(now)) {
+                held.remove(unit);
+            }
+        }
+
+        if (member) {
+            new File(memberDir, owner).setLastModified(now);
+        }
+    }
+
+    /**
+     * Stop renewing, give up all the leases held, and leave the members.
+     */
+    public synchronized void close() {
+        heartbeat.cancel();
+
+        for (Integer unit : new ArrayList<Integer>(held)) {
+            release(unit);
+        }
+
+        if (member) {
+            new File(memberDir, owner).delete();
+            member = false;
+        }
+    }
+
+    /**
+     * Tell if a lease file is owned by this process, and not by a process
+     * that has reclaimed it.
+     *
+     * @param lease the lease file
+     * @return true if the lease file holds the name of this process
+     */
+    private boolean owns(File lease) {
+        try {
+            FileInputStream in = new FileInputStream(lease);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                byte[] buffer = new byte[256];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+            return owner.equals(new String(out.toByteArray()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write the name of this process into a file.
+     *
+     * @param file the file to write
+     * @throws IOException on I/O errors
+     */
+    private void writeOwner(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(owner.getBytes());
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * A tile sink writing tiles into an MBTiles SQLite database, see
+ * https://github.com/mapbox/mbtiles-spec
+ *
+ * The database uses the de-duplicated layout, where the tiles view is
+ * made up of a map table, referencing tile contents in an images table by
+ * id. Thus tiles with the same contents share their data. Note that MBTiles
+ * uses the TMS tile scheme, where y grows northwards.
+ *
+ * An existing database is added to, thus a render can be continued.
+ */
+public class MBTilesTileSink implements TileSink {
+
+    /** The name of the SQLite JDBC driver class. */
+    private static final String DRIVER = "org.sqlite.JDBC";
+
+    /** The number of tiles stored in a single transaction. */
+    private static final int BATCH_SIZE = 1000;
+
+    /** The connection to the database. */
+    private final Connection connection;
+
+    /** Statement to insert tile contents. */
+    private final PreparedStatement insertImage;
+
+    /** Statement to insert or replace a tile. */
+    private final PreparedStatement insertTile;
+
+    /** The name of the tileset. */
+    private final String name;
+
+    /** The image format of the tiles, e.g. "png". */
+    private final String format;
+
+    /** Flag to mark that the tileset is an overlay, not a base layer. */
+    private final boolean overlay;
+
+    /** The id for the next tile contents inserted. */
+    private long nextId;
+
+    /** The number of changes since the last commit. */
+    private int uncommitted = 0;
+
+    /** The lowest zoom level stored. */
+    private int minZoom = Integer.MAX_VALUE;
+
+    /** The highest zoom level stored. */
+    private int maxZoom = Integer.MIN_VALUE;
+
+    /**
+     * Constructor.
+     *
+     * @param file the database file to write
+     * @param name the name of the tileset
+     * @param format the image format of the tiles, the file name extension
+     *        of the tile encoder, e.g. "png" or "jpg"
+     * @param overlay true if the tileset is an overlay, false if it is a
+     *        base layer
+     * @throws IOException on database errors
+     */
+    public
+    MBTilesTileSink(File        file,
+                    String      name,
+                    String      format,
+                    boolean     overlay) throws IOException {
+        this.name    = name;
+        this.format  = format;
+        this.overlay = overlay;
+
+        try {
+            Class.forName(DRIVER);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("SQLite JDBC driver not found", e);
+        }
+
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:"
+                                                   + file.getPath());
+
+            Statement st = connection.createStatement();
+            try {
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS metadata"
+                               + " (name TEXT, value TEXT)");
+                st.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS"
+                               + " metadata_name ON metadata (name)");
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS map"
+                               + " (zoom_level INTEGER, tile_column INTEGER,"
+                               + " tile_row INTEGER, tile_id TEXT)");
+                st.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS"
+                               + " map_index ON map"
+                               + " (zoom_level, tile_column, tile_row)");
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS images"
+                               + " (tile_data BLOB, tile_id TEXT)");
+                st.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS"
+                               + " images_id ON images (tile_id)");
+                st.executeUpdate("CREATE VIEW IF NOT EXISTS tiles AS SELECT"
+                               + " map.zoom_level AS zoom_level,"
+                               + " map.tile_column AS tile_column,"
+                               + " map.tile_row AS tile_row,"
+                               + " images.tile_data AS tile_data"
+                               + " FROM map JOIN images"
+                               + " ON images.tile_id = map.tile_id");
+
+                // tile contents ids are the rowids of the images table
+                ResultSet rs = st.executeQuery(
+                                        "SELECT MAX(rowid) FROM images");
+                try {
+                    nextId = rs.next() ? rs.getLong(1) + 1 : 1;
+                } finally {
+                    rs.close();
+                }
+
+                rs = st.executeQuery("SELECT MIN(zoom_level),"
+                                   + " MAX(zoom_level) FROM map");
+                try {
+                    if (rs.next() && rs.getObject(1) != null) {
+                        minZoom = rs.getInt(1);
+                        maxZoom = rs.getInt(2);
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                st.close();
+            }
+
+            connection.setAutoCommit(false);
+
+            insertImage = connection.prepareStatement(
+                            "INSERT INTO images (tile_data, tile_id)"
+                          + " VALUES (?, ?)");
+            insertTile  = connection.prepareStatement(
+                            "INSERT OR REPLACE INTO map"
+                          + " (zoom_level, tile_column, tile_row, tile_id)"
+                          + " VALUES (?, ?, ?, ?)");
+        } catch (SQLException e) {
+            throw new IOException("Could not open MBTiles database "
+                                + file.getPath(), e);
+        }
+    }
+
+    /**
+     * Convert a tile y coordinate to an MBTiles tile row.
+     *
+     * @param zoom the zoom level of the tile
+     * @param y the y coordinate of the tile, growing southwards
+     * @return the tile row, growing northwards
+     */
+    private static int tileRow(int zoom, int y) {
+        return (1 << zoom) - 1 - y;
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileSink#put(int, int, int, byte[])
+     */
+    @Override
+    public synchronized Object
+    put(int zoom, int x, int y, byte[] data) throws IOException {
+        String id = Long.toString(nextId++);
+
+        try {
+            insertImage.setBytes(1, data);
+            insertImage.setString(2, id);
+            insertImage.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+        return link(zoom, x, y, id);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileSink#link(int, int, int,
+     *                                                  java.lang.Object)
+     */
+    @Override
+    public synchronized Object link(int zoom, int x, int y, Object handle)
+                                                        throws IOException {
+        try {
+            insertTile.setInt(1, zoom);
+            insertTile.setInt(2, x);
+            insertTile.setInt(3, tileRow(zoom, y));
+            insertTile.setString(4, (String) handle);
+            insertTile.executeUpdate();
+
+            if (++uncommitted >= BATCH_SIZE) {
+                connection.commit();
+                uncommitted = 0;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+        minZoom = Math.min(minZoom, zoom);
+        maxZoom = Math.max(maxZoom, zoom);
+
+        return handle;
+    }
+
+    /**
+     * Store a metadata entry.
+     *
+     * @param key the name of the entry
+     * @param value the value of the entry
+     * @throws SQLException on database errors
+     */
+    private void putMetadata(String key, String value) throws SQLException {
+        PreparedStatement st = connection.prepareStatement(
+                "INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?)");
+        try {
+            st.setString(1, key);
+            st.setString(2, value);
+            st.executeUpdate();
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * Commit the tiles stored so far.
+     *
+     * @throws IOException on database errors
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (uncommitted == 0) {
+            return;
+        }
+
+        try {
+            connection.commit();
+            uncommitted = 0;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Write the metadata, remove tile contents no longer referenced, and
+     * close the database.
+     *
+     * @throws IOException on database errors
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            putMetadata("name", name);
+            putMetadata("type", overlay ? "overlay" : "baselayer");
+            putMetadata("version", "1.0");
+            putMetadata("description", name);
+            putMetadata("format", format);
+            if (minZoom <= maxZoom) {
+                putMetadata("minzoom", Integer.toString(minZoom));
+                putMetadata("maxzoom", Integer.toString(maxZoom));
+                putMetadata("bounds", calcBounds());
+            }
+
+            Statement st = connection.createStatement();
+            try {
+                st.executeUpdate("DELETE FROM images WHERE tile_id NOT IN"
+                               + " (SELECT tile_id FROM map)");
+            } finally {
+                st.close();
+            }
+
+            connection.commit();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // ignore, as the data is already committed, or the original
+                // error is being thrown
+            }
+        }
+    }
+
+    /**
+     * Calculate the bounds of the tileset, from the tiles at the highest
+     * zoom level.
+     *
+     * @return the bounds as "left,bottom,right,top" in degrees
+     * @throws SQLException on database errors
+     */
+    private String calcBounds() throws SQLException {
+        Statement st = connection.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT MIN(tile_column),"
+                    + " MAX(tile_column), MIN(tile_row), MAX(tile_row)"
+                    + " FROM map WHERE zoom_level = " + maxZoom);
+            try {
+                rs.next();
+                double n = 1 << maxZoom;
+
+                double left   = rs.getInt(1) / n * 360.0 - 180.0;
+                double right  = (rs.getInt(2) + 1) / n * 360.0 - 180.0;
+                double bottom = tileLat(rs.getInt(3), n);
+                double top    = tileLat(rs.getInt(4) + 1, n);
+
+                return String.format(Locale.US, "%f,%f,%f,%f",
+                                     left, bottom, right, top);
+            } finally {
+                rs.close();
+            }
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * Return the latitude of the southern edge of a TMS tile row.
+     *
+     * @param row the tile row
+     * @param n the number of tile rows at the zoom level
+     * @return the latitude in degrees
+     */
+    private static double tileLat(int row, double n) {
+        double y = Math.PI * (2.0 * row / n - 1.0);
+        return Math.toDegrees(Math.atan(Math.sinh(y)));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A metatile: a rectangular block of tiles at a zoom level that is rendered
+ * in one go, and is then cut up into individual tiles.
+ */
+public final class Metatile {
+
+    /** The zoom level of the metatile. */
+    private final int level;
+
+    /** The x coordinate of the left-most tile. */
+    private final int x;
+
+    /** The y coordinate of the upper-most tile. */
+    private final int y;
+
+    /** The width of the metatile, in tiles. */
+    private final int width;
+
+    /** The height of the metatile, in tiles. */
+    private final int height;
+
+    /**
+     * Constructor.
+     *
+     * @param level the zoom level
+     * @param x the x coordinate of the left-most tile
+     * @param y the y coordinate of the upper-most tile
+     * @param width the width of the metatile, in tiles
+     * @param height the height of the metatile, in tiles
+     */
+    public Metatile(int level, int x, int y, int width, int height) {
+        this.level  = level;
+        this.x      = x;
+        this.y      = y;
+        this.width  = width;
+        this.height = height;
+    }
+
+    /**
+     * Split a rectangle of tiles into metatiles, column by column. The
+     * rectangle is interpreted inclusively, that is, tiles with coordinates
+     * up to and including the maximum x and y values are covered.
+     *
+     * @param tileBounds the tile index rectangle to cover
+     * @param level the zoom level
+     * @param metatileSize the maximum size of a metatile, in tiles
+     * @return the list of metatiles covering tileBounds
+     */
+    public static List<Metatile>
+    split(Rectangle tileBounds, int level, int metatileSize) {
+        List<Metatile> metatiles = new ArrayList<Metatile>();
+
+        int maxX = (int) tileBounds.getMaxX();
+        int maxY = (int) tileBounds.getMaxY();
+
+        int x = (int) tileBounds.getMinX();
+        while (x <= maxX) {
+            int w = x + metatileSize <= maxX ? metatileSize : maxX - x + 1;
+
+            int y = (int) tileBounds.getMinY();
+            while (y <= maxY) {
+                int h = y + metatileSize <= maxY ? metatileSize : maxY - y + 1;
+
+                metatiles.add(new Metatile(level, x, y, w, h));
+
+                y += h;
+            }
+
+            x += w;
+        }
+
+        return metatiles;
+    }
+
+    /**
+     * Split a rectangle of tiles into metatiles, column by column, with
+     * the edges of the metatiles aligned to multiples of the metatile size
+     * in tile coordinates. Thus if the metatile size is a power of two, the
+     * tiles of a metatile cover whole tiles at the levels below, as long as
+     * these are larger than a single tile. The rectangle is interpreted
+     * inclusively, as in split().
+     *
+     * @param tileBounds the tile index rectangle to cover
+     * @param level the zoom level
+     * @param metatileSize the size of the metatile grid, in tiles
+     * @return the list of metatiles covering tileBounds
+     */
+    public static List<Metatile>
+    splitAligned(Rectangle tileBounds, int level, int metatileSize) {
+        List<Metatile> metatiles = new ArrayList<Metatile>();
+
+        int maxX = (int) tileBounds.getMaxX();
+        int maxY = (int) tileBounds.getMaxY();
+
+        int x = (int) tileBounds.getMinX();
+        while (x <= maxX) {
+            int w = Math.min((x / metatileSize + 1) * metatileSize,
+                             maxX + 1) - x;
+
+            int y = (int) tileBounds.getMinY();
+            while (y <= maxY) {
+                int h = Math.min((y / metatileSize + 1) * metatileSize,
+                                 maxY + 1) - y;
+
+                metatiles.add(new Metatile(level, x, y, w, h));
+
+                y += h;
+            }
+
+            x += w;
+        }
+
+        return metatiles;
+    }
+
+    /**
+     * @return the zoom level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the x coordinate of the left-most tile
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return the y coordinate of the upper-most tile
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * @return the width of the metatile, in tiles
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the metatile, in tiles
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the number of tiles in this metatile
+     */
+    public int getTileCount() {
+        return width * height;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        } else if (!(obj instanceof Metatile)) {
+            return false;
+        }
+
+        Metatile other = (Metatile) obj;
+        return level == other.level && x == other.x && y == other.y
+            && width == other.width && height == other.height;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return (((level * 31 + x) * 31 + y) * 31 + width) * 31 + height;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "" + level + File.separator
+                + x + ".." + (x + width - 1) + File.separator
+                + y + ".." + (y + height - 1);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses the size of metatiles for each zoom level of a tileset.
+ *
+ * The size is bounded by a heap budget: each render thread holds a
+ * metatile image being rendered, and one more waiting to be saved, see
+ * MetatileWriter. Within this bound, the size is chosen so that rendering
+ * a metatile takes about TARGET_RENDER_TIME, based on the render time per
+ * tile observed at the same or at the closest lower zoom level. Thus
+ * sparse low zoom levels get large metatiles, amortising the per-metatile
+ * query overhead, while label-dense high zoom levels get smaller ones.
+ * Finally, a level is split into at least as many metatiles as there are
+ * render threads, if possible, so that all threads have work.
+ */
+public final class MetatileSizer {
+
+    /** The smallest metatile size chosen, in tiles. */
+    public static final int MIN_SIZE = 2;
+
+    /** The largest metatile size chosen, in tiles. */
+    public static final int MAX_SIZE = 64;
+
+    /** The render time aimed at for a metatile, in milliseconds. */
+    public static final long TARGET_RENDER_TIME = 15000;
+
+    /** The memory needed for a pixel of a metatile image, in bytes. */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /** The largest metatile size fitting into the heap budget. */
+    private final int maxSize;
+
+    /** The number of render threads. */
+    private final int threads;
+
+    /** The fixed metatile size to use, or 0 to choose adaptively. */
+    private final int fixedSize;
+
+    /**
+     * The number of tiles rendered, and the time spent rendering them in
+     * nanoseconds, by zoom level.
+     */
+    private final TreeMap<Integer, long[]> costs =
+                                            new TreeMap<Integer, long[]>();
+
+    /**
+     * Constructor.
+     *
+     * @param heapBudget the heap available for metatile images, in bytes
+     * @param threads the number of render threads
+     * @param fixedSize the metatile size to use at all levels, or 0 to
+     *        choose it adaptively
+     */
+    public MetatileSizer(long heapBudget, int threads, int fixedSize) {
+        if (heapBudget <= 0 || threads < 1 || fixedSize < 0) {
+            throw new IllegalArgumentException(
+                        "the heap budget and number of threads must be"
+                      + " positive, the metatile size non-negative");
+        }
+
+        this.threads   = threads;
+        this.fixedSize = fixedSize;
+
+        // a metatile image being rendered, and one waiting to be saved,
+        // for each thread
+        long tileBytes     = (long) RenderMap.TILE_SIZE * RenderMap.TILE_SIZE
+                           * BYTES_PER_PIXEL;
+        long tilesInBudget = heapBudget / (2L * threads * tileBytes);
+        int  size          = (int) Math.sqrt(tilesInBudget);
+
+        maxSize = Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+    }
+
+    /**
+     * Return the default heap budget for metatile images: half of the
+     * maximum heap size.
+     *
+     * @return the default heap budget, in bytes
+     */
+    public static long defaultHeapBudget() {
+        return Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    /**
+     * @return the largest metatile size fitting into the heap budget
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Return the metatile size to use for a zoom level.
+     *
+     * @param level the zoom level
+     * @param tileCount the number of tiles to render at the level
+     * @return the metatile size for the level, in tiles
+     */
+    public synchronized int getSize(int level, long tileCount) {
+        if (fixedSize > 0) {
+            return fixedSize;
+        }
+
+        int  size;
+        long tileCost = getTileCost(level);
+        if (tileCost <= 0) {
+            size = RenderMap.METATILE_SIZE;
+        } else {
+            size = (int) Math.sqrt(TARGET_RENDER_TIME * 1000000L / tileCost);
+        }
+
+        // give all render threads a metatile to work on
+        int spread = (int) Math.ceil(Math.sqrt((double) tileCount / threads));
+
+        return Math.max(MIN_SIZE, Math.min(Math.min(size, spread), maxSize));
+    }
+
+    /**
+     * Record the time it took to render a metatile.
+     *
+     * @param metatile the metatile rendered
+     * @param nanos the time spent rendering, in nanoseconds
+     */
+    public synchronized void record(Metatile metatile, long nanos) {
+        long[] cost = costs.get(metatile.getLevel());
+        if (cost == null) {
+            cost = new long[2];
+            costs.put(metatile.getLevel(), cost);
+        }
+
+        cost[0] += metatile.getTileCount();
+        cost[1] += nanos;
+    }
+
+    /**
+     * Return the render time per tile observed at a zoom level, or at the
+     * closest lower zoom level rendered.
+     *
+     * @param level the zoom level
+     * @return the render time per tile in nanoseconds, or 0 if nothing
+     *         has been rendered up to level
+     */
+    public synchronized long getTileCost(int level) {
+        Map.Entry<Integer, long[]> e = costs.floorEntry(level);
+        if (e == null || e.getValue()[0] == 0) {
+            return 0;
+        }
+
+        return Math.max(1, e.getValue()[1] / e.getValue()[0]);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.media.jai.PlanarImage;
+
+/**
+ * The second stage of the tile rendering pipeline: cuts rendered metatiles
+ * into tiles, and encodes &amp; saves these tiles on a pool of encoder
+ * threads. This lets the render threads continue with the next metatile
+ * while the previous one is being saved.
+ *
+ * The number of metatiles waiting to be saved is bounded: a render thread
+ * handing over a metatile is blocked until there is room for it, so that
+ * memory use stays bounded even if encoding is slower than rendering.
+ *
+ * Identical tiles are encoded and stored only once, see TileDeduplicator.
+ *
+ * When all the tiles of a metatile are saved, the tile sink is flushed,
+ * and the metatile is recorded in the render manifest, if any.
+ *
+ * Tiles outside the tile coverage, if set, are not saved at all.
+ */
+public final class MetatileWriter {
+
+    /** The thread pool the tiles are encoded on. */
+    private final ExecutorService encoderPool;
+
+    /** Permits for metatiles being saved, providing backpressure. */
+    private final Semaphore permits;
+
+    /** The area to save tiles within, or null to save all tiles. */
+    private volatile TileCoverage coverage = null;
+
+    /** Lock guarding pending and error. */
+    private final Object lock = new Object();
+
+    /** The number of metatiles handed over, but not yet saved. */
+    private int pending = 0;
+
+    /** The first error encountered while saving tiles, if any. */
+    private Throwable error = null;
+
+    /**
+     * Constructor.
+     *
+     * @param threads the number of encoder threads
+     * @param maxPending the maximum number of metatiles that may wait for
+     *        being saved at any time
+     */
+    public MetatileWriter(int threads, int maxPending) {
+        if (threads < 1 || maxPending < 1) {
+            throw new IllegalArgumentException(
+                        "the number of threads and pending metatiles must be"
+                      + " positive");
+        }
+
+        this.encoderPool = Executors.newFixedThreadPool(threads);
+        this.permits     = new Semaphore(maxPending);
+    }
+
+    /**
+     * Set the area to save tiles within. Tiles outside of it are skipped,
+     * as there is no data to render there.
+     *
+     * @param coverage the area to save tiles within, or null to save all
+     *        tiles
+     */
+    public void setCoverage(TileCoverage coverage) {
+        this.coverage = coverage;
+    }
+
+    /**
+     * Hand over a rendered metatile to be cut up and saved as tiles. Blocks
+     * while the maximum number of metatiles are waiting to be saved. The
+     * image is disposed of once all its tiles are saved.
+     *
+     * @param metatile the metatile the image was rendered for
+     * @param image the rendered metatile
+     * @param tiles the deduplicator to encode and save the tiles with
+     * @throws IOException if an earlier tile could not be saved, or if
+     *         interrupted while waiting
+     */
+    public void
+    write(Metatile          metatile,
+          PlanarImage       image,
+          TileDeduplicator  tiles) throws IOException {
+
+        write(metatile, image, tiles, null);
+    }
+
+    /**
+     * Hand over a rendered metatile to be cut up and saved as tiles. Blocks
+     * while the maximum number of metatiles are waiting to be saved. The
+     * image is disposed of once all its tiles are saved, at which point the
+     * tiles are flushed, and the metatile is recorded in the manifest.
+     *
+     * @param metatile the metatile the image was rendered for
+     * @param image the rendered metatile
+     * @param tiles the deduplicator to encode and save the tiles with
+     * @param manifest the manifest to record the metatile in once saved,
+     *        or null
+     * @throws IOException if an earlier tile could not be saved, or if
+     *         interrupted while waiting
+     */
+    public void
+    write(Metatile          metatile,
+          PlanarImage       image,
+          TileDeduplicator  tiles,
+          RenderManifest    manifest) throws IOException {
+
+        write(metatile, image, tiles, manifest, null);
+    }
+
+    /**
+     * Hand over a rendered metatile to be cut up and saved as tiles, and
+     * to have the tiles downsampled into the lower levels. Blocks while the
+     * maximum number of metatiles are waiting to be saved. The image is
+     * disposed of once all its tiles are saved, at which point the tiles
+     * are flushed, and the metatile is recorded in the manifest.
+     *
+     * The tiles are downsampled only if saved, thus existing tiles must
+     * not be kept when downsampling.
+     *
+     * @param metatile the metatile the image was rendered for
+     * @param image the rendered metatile
+     * @param tiles the deduplicator to encode and save the tiles with
+     * @param manifest the manifest to record the metatile in once saved,
+     *        or null
+     * @param downsampler the downsampler to add the tiles to once saved,
+     *        or null
+     * @throws IOException if an earlier tile could not be saved, or if
+     *         interrupted while waiting
+     */
+    public void
+    write(final Metatile            metatile,
+          final PlanarImage         image,
+          final TileDeduplicator    tiles,
+          final RenderManifest      manifest,
+          final TileDownsampler     downsampler) throws IOException {
+
+        checkError();
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                        "interrupted while waiting to save tiles " + metatile);
+        }
+
+        synchronized (lock) {
+            ++pending;
+        }
+
+        final AtomicInteger remaining =
+                                new AtomicInteger(metatile.getTileCount());
+
+        final int level = metatile.getLevel();
+        final int x     = metatile.getX();
+        final int y     = metatile.getY();
+
+        for (int i = x; i < x + metatile.getWidth(); ++i) {
+            for (int j = y; j < y + metatile.getHeight(); ++j) {
+                final int tileX = i;
+                final int tileY = j;
+
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            writeTile(image, tiles, downsampler, level,
+                                      tileX, tileY,
+                                      (tileX - x) * RenderMap.TILE_SIZE,
+                                      (tileY - y) * RenderMap.TILE_SIZE);
+                        } catch (Throwable t) {
+                            fail(t);
+                        } finally {
+                            tileDone(metatile, image, tiles, manifest,
+                                     remaining);
+                        }
+                    }
+                };
+
+                try {
+                    encoderPool.execute(task);
+                } catch (RejectedExecutionException e) {
+                    fail(e);
+                    tileDone(metatile, image, tiles, manifest, remaining);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cut a tile out of a metatile, save it, and add it to the downsampler.
+     *
+     * @param image the rendered metatile
+     * @param tiles the deduplicator to encode and save the tile with
+     * @param downsampler the downsampler to add the tile to, or null
+     * @param level the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param left the left edge of the tile within the metatile, in pixels
+     * @param top the top edge of the tile within the metatile, in pixels
+     * @throws IOException on I/O errors
+     */
+    private void
+    writeTile(PlanarImage       image,
+              TileDeduplicator  tiles,
+              TileDownsampler   downsampler,
+              int               level,
+              int               x,
+              int               y,
+              int               left,
+              int               top) throws IOException {
+
+        TileCoverage c = coverage;
+        if (c != null && !c.intersects(level, x, y)) {
+            tiles.skip();
+            return;
+        }
+
+        Rectangle r = new Rectangle(left, top,
+                                    RenderMap.TILE_SIZE, RenderMap.TILE_SIZE);
+        BufferedImage tile = image.getAsBufferedImage(r, null);
+
+        tiles.save(tile, level, x, y);
+
+        if (downsampler != null) {
+            downsampler.add(tile, level, x, y);
+        }
+    }
+
+    /**
+     * Mark a tile of a metatile done. When all the tiles of a metatile are
+     * done, the tiles are flushed and the metatile is recorded in the
+     * manifest if no error occurred, the metatile image is disposed of, and
+     * room is made for a new metatile.
+     *
+     * @param metatile the metatile the tile belongs to
+     * @param image the rendered metatile
+     * @param tiles the deduplicator the tiles were saved with
+     * @param manifest the manifest to record the metatile in, or null
+     * @param remaining the number of tiles remaining for the metatile
+     */
+    private void
+    tileDone(Metatile           metatile,
+             PlanarImage        image,
+             TileDeduplicator   tiles,
+             RenderManifest     manifest,
+             AtomicInteger      remaining) {
+        if (remaining.decrementAndGet() > 0) {
+            return;
+        }
+
+        try {
+            if (manifest != null && !failed()) {
+                tiles.getSink().flush();
+                manifest.add(metatile);
+            }
+        } catch (Throwable t) {
+            fail(t);
+        } finally {
+            image.dispose();
+            permits.release();
+
+            synchronized (lock) {
+                --pending;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Record an error encountered while saving tiles. Only the first error
+     * is kept.
+     *
+     * @param t the error
+     */
+    private void fail(Throwable t) {
+        synchronized (lock) {
+            if (error == null) {
+                error = t;
+            }
+        }
+    }
+
+    /**
+     * @return true if an error was encountered while saving tiles
+     */
+    private boolean failed() {
+        synchronized (lock) {
+            return error != null;
+        }
+    }
+
+    /**
+     * Throw the first error encountered while saving tiles, if any.
+     *
+     * @throws IOException the error encountered
+     */
+    private void checkError() throws IOException {
+        Throwable t;
+
+        synchronized (lock) {
+            t = error;
+        }
+
+        if (t == null) {
+            return;
+        } else if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+
+        throw new IOException("error saving tiles", t);
+    }
+
+    /**
+     * Wait until all metatiles handed over are saved.
+     *
+     * @throws IOException if a tile could not be saved, or if interrupted
+     *         while waiting
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                                        "interrupted while saving tiles");
+                }
+            }
+        }
+
+        checkError();
+    }
+
+    /**
+     * Stop the encoder threads. Metatiles not yet saved are discarded.
+     */
+    public void close() {
+        encoderPool.shutdownNow();
+    }
+}
@@ -0,0 +1,694 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+
+/**
+ * An encoder of a single Mapbox vector tile, version 2.1: features are
+ * added layer by layer, and are encoded into the protocol buffer format
+ * of the specification.
+ *
+ * The geometries of the features are given in the projected CRS of the
+ * tileset, e.g. EPSG:900913. They are clipped to the bounds of the tile,
+ * extended by a buffer so that lines and labels crossing the edges of the
+ * tile can be drawn seamlessly, and are quantised to the integer grid of
+ * the tile extent, y pointing down. Rings collapsing under quantisation
+ * are dropped, and the rings of polygons are oriented as the specification
+ * requires.
+ *
+ * Geometries should be simplified before being added, see simplify(), once
+ * for all the tiles of a metatile, so that the tiles get the same shapes
+ * along their common edges.
+ *
+ * An instance is not safe to use from multiple threads at the same time.
+ */
+public final class MvtEncoder {
+
+    /** The default extent of a tile, the size of the integer grid. */
+    public static final int DEFAULT_EXTENT = 4096;
+
+    /** The default buffer around a tile, in units of the extent. */
+    public static final int DEFAULT_BUFFER = 64;
+
+    /** The file name extension of vector tiles. */
+    public static final String EXTENSION = "pbf";
+
+    /** The version of the vector tile specification implemented. */
+    private static final int VERSION = 2;
+
+    /** The geometry type of points. */
+    private static final int POINT = 1;
+
+    /** The geometry type of line strings. */
+    private static final int LINESTRING = 2;
+
+    /** The geometry type of polygons. */
+    private static final int POLYGON = 3;
+
+    /** The MoveTo geometry command. */
+    private static final int MOVE_TO = 1;
+
+    /** The LineTo geometry command. */
+    private static final int LINE_TO = 2;
+
+    /** The ClosePath geometry command. */
+    private static final int CLOSE_PATH = 7;
+
+    /** The varint protocol buffer wire type. */
+    private static final int WIRE_VARINT = 0;
+
+    /** The 64 bit protocol buffer wire type. */
+    private static final int WIRE_FIXED64 = 1;
+
+    /** The length delimited protocol buffer wire type. */
+    private static final int WIRE_BYTES = 2;
+
+    /** The 32 bit protocol buffer wire type. */
+    private static final int WIRE_FIXED32 = 5;
+
+    /**
+     * A buffer of protocol buffer encoded data.
+     */
+    private static final class ProtoBuffer extends ByteArrayOutputStream {
+
+        /**
+         * Write a variable length integer.
+         *
+         * @param value the value to write, taken as unsigned
+         */
+        private void writeVarint(long value) {
+            long v = value;
+            while ((v & ~0x7fL) != 0) {
+                write((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        /**
+         * Write the key of a field.
+         *
+         * @param field the number of the field
+         * @param wireType the wire type of the field
+         */
+        private void writeKey(int field, int wireType) {
+            writeVarint((field << 3) | wireType);
+        }
+
+        /**
+         * Write a varint field.
+         *
+         * @param field the number of the field
+         * @param value the value of the field
+         */
+        private void writeVarint(int field, long value) {
+            writeKey(field, WIRE_VARINT);
+            writeVarint(value);
+        }
+
+        /**
+         * Write a length delimited field.
+         *
+         * @param field the number of the field
+         * @param data the contents of the field
+         */
+        private void writeBytes(int field, byte[] data) {
+            writeKey(field, WIRE_BYTES);
+            writeVarint(data.length);
+            write(data, 0, data.length);
+        }
+
+        /**
+         * Write a string field.
+         *
+         * @param field the number of the field
+         * @param value the value of the field
+         */
+        private void writeString(int field, String value) {
+            try {
+                writeBytes(field, value.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Write a little endian fixed size value.
+         *
+         * @param value the bits of the value
+         * @param bytes the size of the value, in bytes
+         */
+        private void writeFixed(long value, int bytes) {
+            for (int i = 0; i < bytes; ++i) {
+                write((int) (value >>> (8 * i)));
+            }
+        }
+    }
+
+    /**
+     * A layer of the tile being encoded.
+     */
+    private static final class Layer {
+        /** The name of the layer. */
+        private final String name;
+
+        /** The encoded features of the layer. */
+        private final List<byte[]> features = new ArrayList<byte[]>();
+
+        /** The attribute keys of the layer, with their indexes. */
+        private final Map<String, Integer> keys =
+                                        new LinkedHashMap<String, Integer>();
+
+        /** The attribute values of the layer, with their indexes. */
+        private final Map<Object, Integer> values =
+                                        new LinkedHashMap<Object, Integer>();
+
+        /**
+         * Constructor.
+         *
+         * @param name the name of the layer
+         */
+        private Layer(String name) {
+            this.name = name;
+        }
+    }
+
+    /** The bounds of the tile, in the projected CRS. */
+    private final Envelope bounds;
+
+    /** The bounds of the tile extended by the buffer, to clip to. */
+    private final Envelope clipBounds;
+
+    /** The extent of the tile. */
+    private final int extent;
+
+    /** The layers of the tile, in the order of their first feature. */
+    private final Map<String, Layer> layers =
+                                        new LinkedHashMap<String, Layer>();
+
+    /** The x coordinate of the geometry cursor, while encoding. */
+    private int cursorX;
+
+    /** The y coordinate of the geometry cursor, while encoding. */
+    private int cursorY;
+
+    /**
+     * Constructor.
+     *
+     * @param bounds the bounds of the tile, in the projected CRS
+     * @param extent the extent of the tile, the size of its integer grid
+     * @param buffer the buffer around the tile to keep geometries in, in
+     *        units of the extent
+     */
+    public MvtEncoder(Envelope bounds, int extent, int buffer) {
+        if (extent < 1) {
+            throw new IllegalArgumentException("extent must be positive");
+        }
+        if (buffer < 0) {
+            throw new IllegalArgumentException(
+                                        "buffer must not be negative");
+        }
+
+        this.bounds     = new Envelope(bounds);
+        this.extent     = extent;
+        this.clipBounds = new Envelope(bounds);
+        clipBounds.expandBy(bounds.getWidth() * buffer / extent,
+                            bounds.getHeight() * buffer / extent);
+    }
+
+    /**
+     * Simplify a geometry for a zoom level, by the Douglas-Peucker
+     * algorithm. Points are returned as they are.
+     *
+     * @param geometry the geometry to simplify
+     * @param tolerance the distance tolerance, in the units of the
+     *        geometry, typically the size of a pixel at the scale of the
+     *        zoom level
+     * @return the simplified geometry, which might be empty
+     */
+    public static Geometry simplify(Geometry geometry, double tolerance) {
+        if (geometry.getDimension() == 0 || tolerance <= 0) {
+            return geometry;
+        }
+
+        return DouglasPeuckerSimplifier.simplify(geometry, tolerance);
+    }
+
+    /**
+     * Add a feature to the tile. Features not inside the buffered bounds
+     * of the tile, or collapsing when quantised, are dropped.
+     *
+     * @param layer the name of the layer to add the feature to
+     * @param geometry the geometry of the feature, in the projected CRS
+     * @param attributes the attributes of the feature, null values are
+     *        omitted
+     * @return true if the feature was added, false if it was dropped
+     */
+    public boolean
+    addFeature(String                   layer,
+               Geometry                 geometry,
+               Map<String, ?>           attributes) {
+
+        if (geometry == null || geometry.isEmpty()
+         || !clipBounds.intersects(geometry.getEnvelopeInternal())) {
+            return false;
+        }
+
+        int dimension = geometry.getDimension();
+
+        List<Geometry> parts = new ArrayList<Geometry>();
+        collect(clip(geometry), dimension, parts);
+
+        ProtoBuffer commands = new ProtoBuffer();
+        cursorX = 0;
+        cursorY = 0;
+
+        int type;
+        if (dimension == 0) {
+            type = POINT;
+            encodePoints(parts, commands);
+        } else if (dimension == 1) {
+            type = LINESTRING;
+            for (Geometry part : parts) {
+                encodeLine((LineString) part, commands);
+            }
+        } else {
+            type = POLYGON;
+            for (Geometry part : parts) {
+                encodePolygon((Polygon) part, commands);
+            }
+        }
+
+        if (commands.size() == 0) {
+            return false;
+        }
+
+        Layer l = layers.get(layer);
+        if (l == null) {
+            l = new Layer(layer);
+            layers.put(layer, l);
+        }
+
+        ProtoBuffer tags = new ProtoBuffer();
+        if (attributes != null) {
+            for (Map.Entry<String, ?> e : attributes.entrySet()) {
+                Object value = normalize(e.getValue());
+                if (value == null) {
+                    continue;
+                }
+
+                tags.writeVarint(index(l.keys, e.getKey()));
+                tags.writeVarint(index(l.values, value));
+            }
+        }
+
+        ProtoBuffer feature = new ProtoBuffer();
+        if (tags.size() > 0) {
+            feature.writeBytes(2, tags.toByteArray());
+        }
+        feature.writeVarint(3, type);
+        feature.writeBytes(4, commands.toByteArray());
+
+        l.features.add(feature.toByteArray());
+
+        return true;
+    }
+
+    /**
+     * @return true if no features were added to the tile
+     */
+    public boolean isEmpty() {
+        return layers.isEmpty();
+    }
+
+    /**
+     * Encode the tile.
+     *
+     * @return the tile in the protocol buffer format, without compression
+     */
+    public byte[] encode() {
+        ProtoBuffer tile = new ProtoBuffer();
+
+        for (Layer l : layers.values()) {
+            ProtoBuffer layer = new ProtoBuffer();
+            layer.writeVarint(15, VERSION);
+            layer.writeString(1, l.name);
+            for (byte[] feature : l.features) {
+                layer.writeBytes(2, feature);
+            }
+            for (String key : l.keys.keySet()) {
+                layer.writeString(3, key);
+            }
+            for (Object value : l.values.keySet()) {
+                layer.writeBytes(4, encodeValue(value));
+            }
+            layer.writeVarint(5, extent);
+
+            tile.writeBytes(3, layer.toByteArray());
+        }
+
+        return tile.toByteArray();
+    }
+
+    /**
+     * Clip a geometry to the buffered bounds of the tile.
+     *
+     * @param geometry the geometry to clip
+     * @return the part of geometry inside the buffered bounds
+     */
+    private Geometry clip(Geometry geometry) {
+        if (clipBounds.contains(geometry.getEnvelopeInternal())
+         || geometry.getDimension() == 0) {
+            // points outside are skipped when encoded
+            return geometry;
+        }
+
+        Geometry clip = geometry.getFactory().toGeometry(clipBounds);
+        try {
+            return geometry.intersection(clip);
+        } catch (TopologyException e) {
+            // self-intersecting polygons are cleaned up first
+            return geometry.buffer(0).intersection(clip);
+        }
+    }
+
+    /**
+     * Collect the simple parts of a geometry of a dimension, as clipping
+     * may result in a collection of parts of various dimensions.
+     *
+     * @param geometry the geometry to collect the parts of
+     * @param dimension the dimension of the parts to collect
+     * @param parts the list to add the parts to
+     */
+    private static void
+    collect(Geometry geometry, int dimension, List<Geometry> parts) {
+        if (geometry instanceof GeometryCollection) {
+            for (int i = 0; i < geometry.getNumGeometries(); ++i) {
+                collect(geometry.getGeometryN(i), dimension, parts);
+            }
+        } else if (!geometry.isEmpty()
+                && geometry.getDimension() == dimension
+                && (geometry instanceof Point
+                 || geometry instanceof LineString
+                 || geometry instanceof Polygon)) {
+            parts.add(geometry);
+        }
+    }
+
+    /**
+     * Quantise the coordinates of a geometry part to the grid of the tile,
+     * dropping repeated points.
+     *
+     * @param coords the coordinates to quantise
+     * @return the quantised coordinates, x and y interleaved
+     */
+    private int[] quantise(Coordinate[] coords) {
+        int[] q = new int[coords.length * 2];
+        int   n = 0;
+
+        double sx = extent / bounds.getWidth();
+        double sy = extent / bounds.getHeight();
+        for (Coordinate c : coords) {
+            int x = (int) Math.round((c.x - bounds.getMinX()) * sx);
+            int y = (int) Math.round((bounds.getMaxY() - c.y) * sy);
+            if (n > 0 && q[n - 2] == x && q[n - 1] == y) {
+                continue;
+            }
+            q[n++] = x;
+            q[n++] = y;
+        }
+
+        int[] result = new int[n];
+        System.arraycopy(q, 0, result, 0, n);
+
+        return result;
+    }
+
+    /**
+     * Encode the points inside the buffered bounds of the tile, as a single
+     * MoveTo command.
+     *
+     * @param points the points to encode
+     * @param commands the buffer to write the geometry commands to
+     */
+    private void encodePoints(List<Geometry> points, ProtoBuffer commands) {
+        List<Coordinate> inside = new ArrayList<Coordinate>();
+        for (Geometry point : points) {
+            Coordinate c = point.getCoordinate();
+            if (clipBounds.contains(c)) {
+                inside.add(c);
+            }
+        }
+
+        if (inside.isEmpty()) {
+            return;
+        }
+
+        int[] q = quantise(inside.toArray(new Coordinate[inside.size()]));
+
+        writeCommand(commands, MOVE_TO, q.length / 2);
+        writeDeltas(commands, q, 0, q.length / 2);
+    }
+
+    /**
+     * Encode a line string, as a MoveTo and a LineTo command. Lines
+     * collapsing into a single point are dropped.
+     *
+     * @param line the line to encode
+     * @param commands the buffer to write the geometry commands to
+     */
+    private void encodeLine(LineString line, ProtoBuffer commands) {
+        int[] q = quantise(line.getCoordinates());
+        int   n = q.length / 2;
+        if (n < 2) {
+            return;
+        }
+
+        writeCommand(commands, MOVE_TO, 1);
+        writeDeltas(commands, q, 0, 1);
+        writeCommand(commands, LINE_TO, n - 1);
+        writeDeltas(commands, q, 1, n - 1);
+    }
+
+    /**
+     * Encode a polygon, as a MoveTo, a LineTo and a ClosePath command for
+     * each of its rings. The exterior ring is oriented to have a positive
+     * area in tile coordinates, interior rings a negative one. A polygon
+     * whose exterior ring collapses is dropped, and so are collapsing
+     * interior rings.
+     *
+     * @param polygon the polygon to encode
+     * @param commands the buffer to write the geometry commands to
+     */
+    private void encodePolygon(Polygon polygon, ProtoBuffer commands) {
+        if (!encodeRing(polygon.getExteriorRing(), true, commands)) {
+            return;
+        }
+
+        for (int i = 0; i < polygon.getNumInteriorRing(); ++i) {
+            encodeRing(polygon.getInteriorRingN(i), false, commands);
+        }
+    }
+
+    /**
+     * Encode a ring of a polygon.
+     *
+     * @param ring the ring to encode
+     * @param exterior true for the exterior ring, false for interior rings
+     * @param commands the buffer to write the geometry commands to
+     * @return true if the ring was encoded, false if it collapsed
+     */
+    private boolean
+    encodeRing(LineString ring, boolean exterior, ProtoBuffer commands) {
+        int[] q = quantise(ring.getCoordinates());
+        int   n = q.length / 2;
+
+        // the closing point is implied by ClosePath
+        if (n > 1 && q[0] == q[2 * n - 2] && q[1] == q[2 * n - 1]) {
+            --n;
+        }
+        if (n < 3) {
+            return false;
+        }
+
+        long area = 0;
+        for (int i = 0; i < n; ++i) {
+            int j = (i + 1) % n;
+            area += (long) q[2 * i] * q[2 * j + 1]
+                  - (long) q[2 * j] * q[2 * i + 1];
+        }
+        if (area == 0) {
+            return false;
+        }
+
+        if ((area > 0) != exterior) {
+            for (int i = 0, j = n - 1; i < j; ++i, --j) {
+                int x = q[2 * i];
+                int y = q[2 * i + 1];
+                q[2 * i]     = q[2 * j];
+                q[2 * i + 1] = q[2 * j + 1];
+                q[2 * j]     = x;
+                q[2 * j + 1] = y;
+            }
+        }
+
+        writeCommand(commands, MOVE_TO, 1);
+        writeDeltas(commands, q, 0, 1);
+        writeCommand(commands, LINE_TO, n - 1);
+        writeDeltas(commands, q, 1, n - 1);
+        writeCommand(commands, CLOSE_PATH, 1);
+
+        return true;
+    }
+
+    /**
+     * Write a geometry command integer.
+     *
+     * @param commands the buffer to write to
+     * @param id the id of the command
+     * @param count the number of times the command is repeated
+     */
+    private static void
+    writeCommand(ProtoBuffer commands, int id, int count) {
+        commands.writeVarint((id & 0x7) | (count << 3));
+    }
+
+    /**
+     * Write the parameters of a command: the points, as zigzag encoded
+     * differences from the cursor, moving the cursor along.
+     *
+     * @param commands the buffer to write to
+     * @param q the quantised points, x and y interleaved
+     * @param from the index of the first point to write
+     * @param count the number of points to write
+     */
+    private void
+    writeDeltas(ProtoBuffer commands, int[] q, int from, int count) {
+        for (int i = from; i < from + count; ++i) {
+            int dx = q[2 * i] - cursorX;
+            int dy = q[2 * i + 1] - cursorY;
+            commands.writeVarint(zigzag(dx) & 0xffffffffL);
+            commands.writeVarint(zigzag(dy) & 0xffffffffL);
+            cursorX = q[2 * i];
+            cursorY = q[2 * i + 1];
+        }
+    }
+
+    /**
+     * Zigzag encode a signed integer.
+     *
+     * @param n the integer to encode
+     * @return the encoded integer
+     */
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /**
+     * Normalize an attribute value into the types a vector tile can hold:
+     * strings, booleans, floats, doubles and longs. Other values are
+     * converted into strings.
+     *
+     * @param value the value to normalize, may be null
+     * @return the normalized value, or null if value is null
+     */
+    private static Object normalize(Object value) {
+        if (value == null || value instanceof String
+         || value instanceof Boolean || value instanceof Float
+         || value instanceof Double || value instanceof Long) {
+            return value;
+        } else if (value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof BigInteger
+                && ((BigInteger) value).bitLength() < 64) {
+            return ((BigInteger) value).longValue();
+        } else if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).doubleValue();
+        }
+
+        return value.toString();
+    }
+
+    /**
+     * Encode a value message of a layer.
+     *
+     * @param value the normalized value to encode
+     * @return the encoded value message
+     */
+    private static byte[] encodeValue(Object value) {
+        ProtoBuffer v = new ProtoBuffer();
+
+        if (value instanceof String) {
+            v.writeString(1, (String) value);
+        } else if (value instanceof Float) {
+            v.writeKey(2, WIRE_FIXED32);
+            v.writeFixed(Float.floatToIntBits((Float) value), 4);
+        } else if (value instanceof Double) {
+            v.writeKey(3, WIRE_FIXED64);
+            v.writeFixed(Double.doubleToLongBits((Double) value), 8);
+        } else if (value instanceof Long) {
+            long l = (Long) value;
+            if (l >= 0) {
+                v.writeVarint(5, l);
+            } else {
+                v.writeVarint(6, (l << 1) ^ (l >> 63));
+            }
+        } else {
+            v.writeVarint(7, ((Boolean) value) ? 1 : 0);
+        }
+
+        return v.toByteArray();
+    }
+
+    /**
+     * Return the index of a key or value in a layer, adding it if new.
+     *
+     * @param <T> the type of the keys or values
+     * @param indexes the keys or values of the layer, with their indexes
+     * @param item the key or value to look up
+     * @return the index of item
+     */
+    private static <T> int index(Map<T, Integer> indexes, T item) {
+        Integer ix = indexes.get(item);
+        if (ix == null) {
+            ix = indexes.size();
+            indexes.put(item, ix);
+        }
+
+        return ix;
+    }
+}
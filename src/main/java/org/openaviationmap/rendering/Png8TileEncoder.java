@@ -0,0 +1,174 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A tile encoder producing palette-quantized PNG files with at most 256
+ * colors, including partially transparent ones. This suits tiles with
+ * mostly flat colors, like the aviation map overlay.
+ *
+ * If a tile has at most 256 distinct colors, it is encoded losslessly.
+ * Otherwise the color precision is reduced step by step until the colors
+ * fit in the palette, and each palette entry becomes the average of the
+ * original colors mapped to it. This keeps the large flat areas exact,
+ * while the antialiased edges lose some precision.
+ */
+public class Png8TileEncoder extends PngTileEncoder {
+
+    /** The maximum number of colors in a PNG palette. */
+    private static final int MAX_COLORS = 256;
+
+    /**
+     * The maximum number of low bits dropped from each color channel
+     * while quantizing. With only two bits kept for all four channels,
+     * the palette is guaranteed to fit.
+     */
+    private static final int MAX_SHIFT = 6;
+
+    /**
+     * Constructor.
+     *
+     * @param level the deflate compression level, 0..9, where 0 is no
+     *        compression, 1 is the fastest and 9 is the best compression.
+     */
+    public Png8TileEncoder(int level) {
+        super(level);
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileEncoder#encode(
+     *                                          java.awt.image.BufferedImage)
+     */
+    @Override
+    public byte[] encode(BufferedImage tile) throws IOException {
+        int   width  = tile.getWidth();
+        int   height = tile.getHeight();
+        int[] argb   = tile.getRGB(0, 0, width, height, null, 0, width);
+
+        // fully transparent pixels are all the same, whatever their color
+        for (int i = 0; i < argb.length; ++i) {
+            if ((argb[i] >>> 24) == 0) {
+                argb[i] = 0;
+            }
+        }
+
+        int[] bucketOf = new int[argb.length];
+        int   colors   = 0;
+        for (int shift = 0; shift <= MAX_SHIFT; ++shift) {
+            colors = bucketColors(argb, shift, bucketOf);
+            if (colors > 0) {
+                break;
+            }
+        }
+
+        // each palette entry is the average of the colors mapped to it
+        long[] sums   = new long[colors * 4];
+        int[]  counts = new int[colors];
+        for (int i = 0; i < argb.length; ++i) {
+            int b = bucketOf[i] * 4;
+            sums[b]     += argb[i] >>> 24;
+            sums[b + 1] += (argb[i] >> 16) & 0xff;
+            sums[b + 2] += (argb[i] >> 8) & 0xff;
+            sums[b + 3] += argb[i] & 0xff;
+            ++counts[bucketOf[i]];
+        }
+
+        // put the non-opaque entries first, so that the tRNS chunk,
+        // which lists alpha values from the start of the palette, is short
+        int[] order       = new int[colors];
+        int[] alpha       = new int[colors];
+        int   translucent = 0;
+        for (int i = 0; i < colors; ++i) {
+            alpha[i] = (int) ((sums[i * 4] + counts[i] / 2) / counts[i]);
+            if (alpha[i] < 0xff) {
+                order[i] = translucent++;
+            }
+        }
+        for (int i = 0, opaque = translucent; i < colors; ++i) {
+            if (alpha[i] == 0xff) {
+                order[i] = opaque++;
+            }
+        }
+
+        byte[] palette      = new byte[colors * 3];
+        byte[] transparency = translucent > 0 ? new byte[translucent] : null;
+        for (int i = 0; i < colors; ++i) {
+            int o = order[i];
+            for (int c = 0; c < 3; ++c) {
+                palette[o * 3 + c] = (byte) ((sums[i * 4 + c + 1]
+                                             + counts[i] / 2) / counts[i]);
+            }
+            if (o < translucent) {
+                transparency[o] = (byte) alpha[i];
+            }
+        }
+
+        // palette images compress best unfiltered
+        byte[] raw = new byte[height * (width + 1)];
+        for (int y = 0, p = 0; y < height; ++y) {
+            int off = y * (width + 1);
+            raw[off] = FILTER_NONE;
+            for (int x = 0; x < width; ++x, ++p) {
+                raw[off + 1 + x] = (byte) order[bucketOf[p]];
+            }
+        }
+
+        return toPng(width, height, 8, COLOR_TYPE_PALETTE,
+                     palette, transparency, raw, getLevel());
+    }
+
+    /**
+     * Map colors into buckets, where colors that only differ in the
+     * dropped low bits of their channels fall into the same bucket.
+     *
+     * @param argb the colors to map
+     * @param shift the number of low bits to drop from each color channel
+     * @param bucketOf the array to put the bucket index of each color into
+     * @return the number of buckets used, or 0 if there would be more
+     *         buckets than colors in a palette
+     */
+    private static int
+    bucketColors(int[] argb, int shift, int[] bucketOf) {
+        int channelMask = (0xff << shift) & 0xff;
+        int mask        = channelMask * 0x01010101;
+
+        Map<Integer, Integer> buckets = new HashMap<Integer, Integer>();
+
+        for (int i = 0; i < argb.length; ++i) {
+            Integer key = argb[i] & mask;
+            Integer ix  = buckets.get(key);
+
+            if (ix == null) {
+                if (buckets.size() == MAX_COLORS) {
+                    return 0;
+                }
+                ix = buckets.size();
+                buckets.put(key, ix);
+            }
+
+            bucketOf[i] = ix;
+        }
+
+        return buckets.size();
+    }
+}
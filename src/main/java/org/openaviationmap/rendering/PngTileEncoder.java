@@ -0,0 +1,339 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A tile encoder producing full color PNG files. Fully opaque tiles are
+ * written as RGB, others as RGBA images. Each image row is filtered by the
+ * PNG filter type that promises the best compression for it, and the
+ * compression level of the deflate stream can be selected, trading off
+ * file size and encoding speed.
+ *
+ * The PNG file structure is written directly, as described by the PNG
+ * specification, see http://www.w3.org/TR/PNG/
+ */
+public class PngTileEncoder implements TileEncoder {
+
+    /** The default deflate compression level. */
+    public static final int DEFAULT_LEVEL = 6;
+
+    /** The PNG file signature. */
+    private static final byte[] SIGNATURE = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    /** The RGB color type. */
+    protected static final int COLOR_TYPE_RGB = 2;
+
+    /** The palette color type. */
+    protected static final int COLOR_TYPE_PALETTE = 3;
+
+    /** The RGBA color type. */
+    protected static final int COLOR_TYPE_RGBA = 6;
+
+    /** The None filter type. */
+    protected static final int FILTER_NONE = 0;
+
+    /** The Sub filter type. */
+    protected static final int FILTER_SUB = 1;
+
+    /** The Up filter type. */
+    protected static final int FILTER_UP = 2;
+
+    /** The Average filter type. */
+    protected static final int FILTER_AVERAGE = 3;
+
+    /** The Paeth filter type. */
+    protected static final int FILTER_PAETH = 4;
+
+    /** The deflate compression level used. */
+    private final int level;
+
+    /**
+     * Constructor.
+     *
+     * @param level the deflate compression level, 0..9, where 0 is no
+     *        compression, 1 is the fastest and 9 is the best compression.
+     */
+    public PngTileEncoder(int level) {
+        if (level < Deflater.NO_COMPRESSION
+         || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(
+                                "invalid PNG compression level " + level);
+        }
+
+        this.level = level;
+    }
+
+    /**
+     * @return the deflate compression level used
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileEncoder#getExtension()
+     */
+    @Override
+    public String getExtension() {
+        return "png";
+    }
+
+    /* (non-Javadoc)
+     * @see org.openaviationmap.rendering.TileEncoder#encode(
+     *                                          java.awt.image.BufferedImage)
+     */
+    @Override
+    public byte[] encode(BufferedImage tile) throws IOException {
+        int   width  = tile.getWidth();
+        int   height = tile.getHeight();
+        int[] argb   = tile.getRGB(0, 0, width, height, null, 0, width);
+
+        boolean opaque = true;
+        for (int i = 0; i < argb.length && opaque; ++i) {
+            opaque = (argb[i] >>> 24) == 0xff;
+        }
+
+        int    bpp      = opaque ? 3 : 4;
+        int    rowBytes = width * bpp;
+        byte[] prev     = new byte[rowBytes];
+        byte[] row      = new byte[rowBytes];
+        byte[] raw      = new byte[height * (rowBytes + 1)];
+
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            for (int x = 0, o = 0; x < width; ++x, ++p) {
+                row[o++] = (byte) (argb[p] >> 16);
+                row[o++] = (byte) (argb[p] >> 8);
+                row[o++] = (byte) argb[p];
+                if (!opaque) {
+                    row[o++] = (byte) (argb[p] >>> 24);
+                }
+            }
+
+            filterRow(row, prev, bpp, raw, y * (rowBytes + 1));
+
+            byte[] b = prev;
+            prev = row;
+            row  = b;
+        }
+
+        return toPng(width, height, 8,
+                     opaque ? COLOR_TYPE_RGB : COLOR_TYPE_RGBA,
+                     null, null, raw, level);
+    }
+
+    /**
+     * Filter an image row with the filter type that is likely to compress
+     * best, that is, the one resulting in the lowest sum of absolute
+     * differences.
+     *
+     * @param row the image row to filter
+     * @param prev the previous image row, all zeros for the first row
+     * @param bpp the number of bytes per pixel
+     * @param out the buffer to put the filter type and filtered row into
+     * @param off the offset into out to put the filtered row at
+     */
+    private static void
+    filterRow(byte[]    row,
+              byte[]    prev,
+              int       bpp,
+              byte[]    out,
+              int       off) {
+
+        int  bestType = FILTER_NONE;
+        long bestSum  = Long.MAX_VALUE;
+
+        for (int type = FILTER_NONE; type <= FILTER_PAETH; ++type) {
+            long sum = 0;
+            for (int i = 0; i < row.length && sum < bestSum; ++i) {
+                sum += Math.abs(filter(type, row, prev, bpp, i));
+            }
+            if (sum < bestSum) {
+                bestSum  = sum;
+                bestType = type;
+            }
+        }
+
+        out[off] = (byte) bestType;
+        for (int i = 0; i < row.length; ++i) {
+            out[off + 1 + i] = filter(bestType, row, prev, bpp, i);
+        }
+    }
+
+    /**
+     * Calculate a filtered byte of an image row.
+     *
+     * @param type the PNG filter type
+     * @param row the image row to filter
+     * @param prev the previous image row
+     * @param bpp the number of bytes per pixel
+     * @param i the index of the byte in the row
+     * @return the filtered byte
+     */
+    private static byte
+    filter(int      type,
+           byte[]   row,
+           byte[]   prev,
+           int      bpp,
+           int      i) {
+
+        int x = row[i] & 0xff;
+        int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+        int b = prev[i] & 0xff;
+        int c = i >= bpp ? prev[i - bpp] & 0xff : 0;
+
+        switch (type) {
+        case FILTER_SUB:
+            return (byte) (x - a);
+
+        case FILTER_UP:
+            return (byte) (x - b);
+
+        case FILTER_AVERAGE:
+            return (byte) (x - ((a + b) >> 1));
+
+        case FILTER_PAETH:
+            int p  = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            int predictor = pa <= pb && pa <= pc ? a : (pb <= pc ? b : c);
+            return (byte) (x - predictor);
+
+        default:
+        case FILTER_NONE:
+            return (byte) x;
+        }
+    }
+
+    /**
+     * Assemble a PNG file.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param bitDepth the bit depth of the image
+     * @param colorType the PNG color type of the image
+     * @param palette the contents of the PLTE chunk, or null if none
+     * @param transparency the contents of the tRNS chunk, or null if none
+     * @param raw the filtered image data, not yet compressed
+     * @param level the deflate compression level to use
+     * @return the contents of the PNG file
+     * @throws IOException on I/O errors
+     */
+    protected static byte[]
+    toPng(int       width,
+          int       height,
+          int       bitDepth,
+          int       colorType,
+          byte[]    palette,
+          byte[]    transparency,
+          byte[]    raw,
+          int       level) throws IOException {
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream      h      = new DataOutputStream(header);
+        h.writeInt(width);
+        h.writeInt(height);
+        h.writeByte(bitDepth);
+        h.writeByte(colorType);
+        h.writeByte(0);     // compression method: deflate
+        h.writeByte(0);     // filter method: adaptive
+        h.writeByte(0);     // interlace method: none
+
+        byte[] data = deflate(raw, level);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length
+                                                        + 1024);
+        DataOutputStream      out = new DataOutputStream(bos);
+
+        out.write(SIGNATURE);
+        writeChunk(out, "IHDR", header.toByteArray());
+        if (palette != null) {
+            writeChunk(out, "PLTE", palette);
+        }
+        if (transparency != null) {
+            writeChunk(out, "tRNS", transparency);
+        }
+        writeChunk(out, "IDAT", data);
+        writeChunk(out, "IEND", new byte[0]);
+        out.flush();
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Compress data into a zlib stream.
+     *
+     * @param data the data to compress
+     * @param level the deflate compression level
+     * @return the compressed data
+     */
+    private static byte[] deflate(byte[] data, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                                                    data.length / 4 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buf);
+                bos.write(buf, 0, len);
+            }
+
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write a PNG chunk.
+     *
+     * @param out the stream to write the chunk to
+     * @param type the four character chunk type
+     * @param data the chunk data
+     * @throws IOException on I/O errors
+     */
+    private static void
+    writeChunk(DataOutputStream out,
+               String           type,
+               byte[]           data) throws IOException {
+
+        byte[] typeBytes = type.getBytes("US-ASCII");
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
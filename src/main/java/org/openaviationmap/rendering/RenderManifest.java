@@ -0,0 +1,227 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A persistent record of the metatiles of a tileset that have been rendered
+ * and saved completely. Each metatile is appended to the manifest file, and
+ * synced to disk, as it is done. Thus an interrupted rendering can be
+ * resumed by rendering only the metatiles not in the manifest, without
+ * looking at the tiles themselves.
+ *
+ * The manifest file consists of a header of a magic number and a version,
+ * followed by a record of 20 bytes for each metatile: its zoom level, x
+ * and y coordinates, width and height, each a 32 bit integer. A record
+ * cut short by an interruption is ignored.
+ */
+public final class RenderManifest {
+
+    /** The magic number at the start of a manifest file, "OAMM". */
+    private static final int MAGIC = 0x4f414d4d;
+
+    /** The version of the manifest file format. */
+    private static final int VERSION = 1;
+
+    /** The size of the manifest file header. */
+    private static final int HEADER_SIZE = 8;
+
+    /** The size of a metatile record. */
+    private static final int RECORD_SIZE = 20;
+
+    /** The manifest file. */
+    private final File file;
+
+    /** The open manifest file. */
+    private final FileChannel channel;
+
+    /** The metatiles done. */
+    private final Set<Metatile> done = new HashSet<Metatile>();
+
+    /**
+     * Constructor, opening an existing manifest, or creating a new one.
+     *
+     * @param file the manifest file
+     * @param reset if true, forget the metatiles recorded earlier
+     * @throws IOException on I/O errors, or if the file is not a manifest
+     */
+    public RenderManifest(File file, boolean reset) throws IOException {
+        this.file = file;
+
+        if (reset && file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+
+        boolean ok = false;
+        try {
+            load();
+            ok = true;
+        } finally {
+            if (!ok) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Read the metatiles recorded in the manifest file, or write the header
+     * of a new manifest file.
+     *
+     * @throws IOException on I/O errors, or if the file is not a manifest
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+
+        if (size < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+            channel.position(HEADER_SIZE);
+
+            return;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size,
+                                                            Integer.MAX_VALUE));
+        while (buf.hasRemaining() && channel.read(buf, buf.position()) > 0) {
+            // keep reading
+        }
+        buf.flip();
+
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IOException(file + " is not a render manifest");
+        }
+
+        while (buf.remaining() >= RECORD_SIZE) {
+            done.add(new Metatile(buf.getInt(), buf.getInt(), buf.getInt(),
+                                  buf.getInt(), buf.getInt()));
+        }
+
+        // drop a record cut short
+        long valid = buf.position();
+        channel.truncate(valid);
+        channel.position(valid);
+    }
+
+    /**
+     * Tell if a metatile is recorded as done. Only the same metatile counts,
+     * a metatile covered by other metatiles recorded does not.
+     *
+     * @param metatile the metatile to check
+     * @return true if the metatile is recorded as done
+     */
+    public synchronized boolean contains(Metatile metatile) {
+        return done.contains(metatile);
+    }
+
+    /**
+     * Return the metatiles not recorded as done.
+     *
+     * @param metatiles the metatiles to check
+     * @return the metatiles from metatiles not done, in the same order
+     */
+    public synchronized List<Metatile> remaining(List<Metatile> metatiles) {
+        List<Metatile> remaining = new ArrayList<Metatile>();
+        for (Metatile metatile : metatiles) {
+            if (!done.contains(metatile)) {
+                remaining.add(metatile);
+            }
+        }
+
+        return remaining;
+    }
+
+    /**
+     * Return the metatile size a zoom level was split by, as seen from the
+     * metatiles recorded at that level. As only the same metatiles count
+     * as done, a level has to be split the same way when resuming.
+     *
+     * @param level the zoom level
+     * @return the largest width or height of the metatiles recorded at
+     *         level, or 0 if none are recorded
+     */
+    public synchronized int getMetatileSize(int level) {
+        int size = 0;
+        for (Metatile metatile : done) {
+            if (metatile.getLevel() == level) {
+                size = Math.max(size, Math.max(metatile.getWidth(),
+                                               metatile.getHeight()));
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Record a metatile as done, and sync the manifest file to disk. The
+     * tiles of the metatile have to be durably stored before this call.
+     *
+     * @param metatile the metatile done
+     * @throws IOException on I/O errors
+     */
+    public synchronized void add(Metatile metatile) throws IOException {
+        if (!done.add(metatile)) {
+            return;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putInt(metatile.getLevel())
+              .putInt(metatile.getX())
+              .putInt(metatile.getY())
+              .putInt(metatile.getWidth())
+              .putInt(metatile.getHeight())
+              .flip();
+
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * @return the number of metatiles recorded as done
+     */
+    public synchronized int getCount() {
+        return done.size();
+    }
+
+    /**
+     * Close the manifest file.
+     *
+     * @throws IOException on I/O errors
+     */
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -33,9 +33,15 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.SampleModel;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -45,12 +51,19 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
-import javax.media.jai.JAI;
+import javax.management.JMException;
 import javax.media.jai.PlanarImage;
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -62,9 +75,11 @@ import org.apache.batik.util.XMLResourceDescriptor;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.jdbc.JDBCDataStore;
 import org.geotools.map.FeatureLayer;
@@ -79,9 +94,16 @@ import org.geotools.styling.DefaultResourceLocator;
 import org.geotools.styling.SLDParser;
 import org.geotools.styling.Style;
 import org.jaitools.tiledimage.DiskMemImage;
-import org.openaviationmap.rendering.grid.Lines;
+import org.openaviationmap.converter.OAMReader;
+import org.openaviationmap.converter.ParseException;
+import org.openaviationmap.model.oam.Oam;
 import org.openaviationmap.rendering.grid.ortholine.LineOrientation;
 import org.openaviationmap.rendering.grid.ortholine.OrthoLineDef;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.cs.AxisDirection;
@@ -93,6 +115,8 @@ import org.w3c.dom.svg.SVGDocument;
 import org.xml.sax.SAXException;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
 
 /**
  * Command line utility to render a map into a bitmap, possibly for printing.
@@ -111,9 +135,81 @@ public final class RenderMap {
     /** The tile size, in pixels. */
     public static final int TILE_SIZE = 256;
 
-    /** The metatile size, in tiles. */
+    /**
+     * The default metatile size, in tiles, used until render times are
+     * observed, see MetatileSizer.
+     */
     public static final int METATILE_SIZE = 24;
 
+    /**
+     * The height of the strips a map rendered into a file is rendered in,
+     * in tile rows.
+     */
+    public static final int STRIP_TILE_ROWS = 4;
+
+    /** The default number of threads used to render metatiles or strips. */
+    public static final int DEFAULT_THREADS = 1;
+
+    /**
+     * The rendering buffer, in pixels: features this far outside of the
+     * rendered area are still drawn, as they may show within it.
+     */
+    public static final int RENDERING_BUFFER = 100;
+
+    /** The file name suffix of render manifests, see RenderManifest. */
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    /**
+     * The base name of the render metrics reports, see RenderMetrics. The
+     * reports are written into the output directory of a tileset, or next
+     * to the file a map is rendered into.
+     */
+    public static final String METRICS_REPORT = "metrics";
+
+    /**
+     * The default buffer around the extents of the aviation map features
+     * taken as the area with data of a tileset, in degrees, see
+     * TileCoverage.
+     */
+    public static final double DEFAULT_COVERAGE_BUFFER = 0.5;
+
+    /** The name of the vector tileset of the aviation map. */
+    public static final String VECTOR_TILESET = "oam-mvt";
+
+    /**
+     * The aviation map feature types put into vector tiles, with the names
+     * of the vector tile layers they are put into.
+     */
+    private static final String[][] VECTOR_LAYERS = {
+        {"planet_osm_polygon", "airspaces"},
+        {"planet_osm_point",   "navaids"},
+        {"planet_osm_line",    "runways"},
+    };
+
+    /**
+     * The maximum distance between the vertices of the lattice lines, in
+     * degrees, so that they are drawn curved when reprojected.
+     */
+    private static final double LATTICE_VERTEX_SPACING = 0.1;
+
+    /** The highest zoom level the lattice is clipped along the tiles of. */
+    private static final int LATTICE_MAX_ZOOM = 20;
+
+    /** Half the circumference of the earth in EPSG:900913, in meters. */
+    private static final double MERCATOR_HALF_WORLD = Math.PI * 6378137d;
+
+    /** The maximum number of metatiles in a distributed work unit. */
+    public static final int UNIT_METATILES = 16;
+
+    /** The name of the work plan file in a distributed work directory. */
+    private static final String PLAN_FILE = "plan";
+
+    /** The directory of the worker tilesets in a distributed work dir. */
+    private static final String WORKERS_DIR = "workers";
+
+    /** The time between distributed progress checks, in milliseconds. */
+    private static final long POLL_INTERVAL = 5000L;
+
     /** Float formatter. */
     private static final DecimalFormat FLOAT_FORMAT =
                                                 new DecimalFormat("###.##");
@@ -162,6 +258,75 @@ public final class RenderMap {
         TILESET
     }
 
+    /** A grid line label on the edge of the map, placed in advance. */
+    private static final class GridLabel {
+        /** The x coordinate to draw the label at. */
+        private final int x;
+
+        /** The y coordinate to draw the label at. */
+        private final int y;
+
+        /** The alignment of the label. */
+        private final Alignment align;
+
+        /** The rotation of the label. */
+        private final Rotation rotation;
+
+        /** The degree the label shows. */
+        private final double degree;
+
+        /**
+         * Constructor.
+         *
+         * @param x the x coordinate to draw the label at
+         * @param y the y coordinate to draw the label at
+         * @param align the alignment of the label
+         * @param rotation the rotation of the label
+         * @param degree the degree the label shows
+         */
+        private GridLabel(int       x,
+                          int       y,
+                          Alignment align,
+                          Rotation  rotation,
+                          double    degree) {
+            this.x        = x;
+            this.y        = y;
+            this.align    = align;
+            this.rotation = rotation;
+            this.degree   = degree;
+        }
+    }
+
+    /**
+     * A feature of the aviation map to put into vector tiles, reprojected
+     * and simplified.
+     */
+    private static final class VectorFeature {
+        /** The name of the vector tile layer of the feature. */
+        private final String layer;
+
+        /** The geometry of the feature, in EPSG:900913. */
+        private final Geometry geometry;
+
+        /** The attributes of the feature, without null values. */
+        private final Map<String, Object> attributes;
+
+        /**
+         * Constructor.
+         *
+         * @param layer the name of the vector tile layer of the feature
+         * @param geometry the geometry of the feature, in EPSG:900913
+         * @param attributes the attributes of the feature
+         */
+        private VectorFeature(String                layer,
+                              Geometry              geometry,
+                              Map<String, Object>   attributes) {
+            this.layer      = layer;
+            this.geometry   = geometry;
+            this.attributes = attributes;
+        }
+    }
+
     /** Parameters of the Open Street Map data store. */
     private final Map<String, Object> osmParams;
 
@@ -213,6 +378,21 @@ public final class RenderMap {
     /** The SLD parser. */
     private SLDParser sldParser;
 
+    /**
+     * The styles parsed so far, shared by all the maps opened during the
+     * render job. Scaled SLD templates are keyed by the template name, the
+     * scale, the DPI value, the reference point and its CRS, plain SLDs
+     * by their name.
+     */
+    private final Map<String, Style> styleCache = new HashMap<String, Style>();
+
+    /**
+     * The bounds of the feature types queried so far, by data store and
+     * feature name, shared by all the maps opened during the render job.
+     */
+    private final Map<DataStore, Map<String, ReferencedEnvelope>> boundsCache =
+                    new HashMap<DataStore, Map<String, ReferencedEnvelope>>();
+
     /** The bounds of the map. */
     private ReferencedEnvelope mapBounds;
 
@@ -231,6 +411,110 @@ public final class RenderMap {
     /** The validity string, if provided. */
     private String validityStr;
 
+    /** The number of threads used to render metatiles or strips. */
+    private int threads = DEFAULT_THREADS;
+
+    /** The thread pool metatiles are rendered on, for tilesets. */
+    private ExecutorService renderPool;
+
+    /** The writer cutting up and saving rendered metatiles, for tilesets. */
+    private MetatileWriter metatileWriter;
+
+    /** The tile sinks to save tiles into, see TileSinks. */
+    private String sinks = TileSinks.DEFAULT_SINKS;
+
+    /** The encoder for the Open Street Map tiles. */
+    private TileEncoder osmEncoder =
+                            TileEncoders.forName(TileEncoders.DEFAULT_FORMAT);
+
+    /** The encoder for the Open Aviation Map tiles. */
+    private TileEncoder oamEncoder =
+                            TileEncoders.forName(TileEncoders.DEFAULT_FORMAT);
+
+    /**
+     * The changed areas of the aviation map, if only the tiles affected by
+     * them are to be re-rendered. null to render the whole tileset.
+     */
+    private DirtyTiles dirtyTiles = null;
+
+    /**
+     * The shared work directory of a distributed tileset rendering, or null
+     * if the tileset is rendered by this process alone.
+     */
+    private File workDir = null;
+
+    /**
+     * Flag to mark that this process coordinates a distributed rendering,
+     * as opposed to rendering work units as a worker.
+     */
+    private boolean coordinator = false;
+
+    /**
+     * The memory budget for caching the features of each feature type when
+     * rendering a tileset, in bytes, see CachingFeatureSource. 0 to disable
+     * caching.
+     */
+    private long featureCacheSize = CachingFeatureSource.DEFAULT_CACHE_SIZE;
+
+    /**
+     * The heap budget for the metatile images when rendering a tileset, in
+     * bytes, see MetatileSizer. 0 for the default budget.
+     */
+    private long heapBudget = 0;
+
+    /** The metatile size to use at all levels, or 0 to choose adaptively. */
+    private int metatileSize = 0;
+
+    /** The lattice drawn onto the map, once generated. */
+    private LatticeGrid lattice;
+
+    /** The chooser of metatile sizes, while rendering a tileset. */
+    private MetatileSizer metatileSizer;
+
+    /** The metrics of the rendering job, while rendering. */
+    private RenderMetrics metrics;
+
+    /** The base name of the metrics report files, while rendering. */
+    private String metricsReport;
+
+    /**
+     * Flag to mark that a map rendered into a file is written as a cloud
+     * optimized GeoTIFF, with overviews.
+     */
+    private boolean cloudOptimized = false;
+
+    /**
+     * Flag to mark that the lower levels of the Open Street Map tileset are
+     * built by downsampling its highest level, instead of being rendered.
+     */
+    private boolean downsampleOsm = false;
+
+    /**
+     * Flag to mark that the lower levels of the Open Aviation Map tileset
+     * are built by downsampling its highest level, instead of being
+     * rendered.
+     */
+    private boolean downsampleOam = false;
+
+    /**
+     * Flag to mark that a tileset is rendered as vector tiles of the
+     * aviation map, instead of images of the ground and the aviation map.
+     */
+    private boolean vectorTiles = false;
+
+    /**
+     * The area of a tileset with data to render, the metatiles and tiles
+     * outside of it are skipped. null to render the whole tileset.
+     */
+    private TileCoverage tileCoverage = null;
+
+    /**
+     * The buffer around the extents of the aviation map features to take
+     * the area with data of a tileset from, in degrees, or NaN if not taken
+     * from the features.
+     */
+    private double oamCoverageBuffer = Double.NaN;
+
     /**
      * The grid definition.
      *
@@ -267,6 +551,12 @@ public final class RenderMap {
         System.out.println(
         "                               comma-separated list");
         System.out.println(
+        "  -b | --heapbudget <MB>       the memory for metatile images when");
+        System.out.println(
+        "                               rendering a tileset, defaults to half");
+        System.out.println(
+        "                               of the maximum heap size");
+        System.out.println(
         "  -c | --coverage A,B,C,D      map coverage in degrees, with A,B");
         System.out.println(
         "                               the lower-left, C,D the upper-right");
@@ -282,8 +572,45 @@ public final class RenderMap {
         "                               optional, defaults to "
                                       + DEFAULT_DPI);
         System.out.println(
+        "  -e | --oamformat <value>     the tile format for the Open Aviation");
+        System.out.println(
+        "                               Map tiles, see osmformat");
+        System.out.println(
         "  -f | --force                 overwrite existing output files");
         System.out.println(
+        "                               a tileset rendering resumes where an");
+        System.out.println(
+        "                               earlier one left off, unless forced");
+        System.out.println(
+        "  -g | --osmformat <value>     the tile format for the Open Street");
+        System.out.println(
+        "                               Map tiles: png[:level], png8[:level]");
+        System.out.println(
+        "                               or jpeg[:quality], defaults to "
+                                      + TileEncoders.DEFAULT_FORMAT);
+        System.out.println(
+        "  -i | --downsample <list>     build the lower tileset levels of the");
+        System.out.println(
+        "                               maps in a comma separated list of osm");
+        System.out.println(
+        "                               and oam by downsampling their highest");
+        System.out.println(
+        "                               level, instead of rendering them");
+        System.out.println(
+        "  -j | --threads <value>       the number of threads to render");
+        System.out.println(
+        "                               tileset metatiles or map strips with,");
+        System.out.println(
+        "                               defaults to "
+                                      + DEFAULT_THREADS);
+        System.out.println(
+        "  -k | --sinks <list>          where to save tileset tiles, a comma");
+        System.out.println(
+        "                               separated list of dir, gemf and");
+        System.out.println(
+        "                               mbtiles, defaults to "
+                                      + TileSinks.DEFAULT_SINKS);
+        System.out.println(
         "  -l | --levels <value>        the zoom levels used for tileset");
         System.out.println(
         "                               creation, e.g 1,8 - defaults to "
@@ -295,10 +622,33 @@ public final class RenderMap {
         System.out.println(
         "                               comma-separated list");
         System.out.println(
+        "  -n | --node <value>          the role of this process in a");
+        System.out.println(
+        "                               distributed rendering: coordinator,");
+        System.out.println(
+        "                               which plans the work and merges the");
+        System.out.println(
+        "                               results, or worker, which renders");
+        System.out.println(
+        "                               the work units of its levels");
+        System.out.println(
         "  -o | --output <output.file>  the output, a file name for single");
         System.out.println(
         "                               files, a directory for tilesets");
         System.out.println(
+        "  -p | --polygon <value>       render only the tileset tiles within");
+        System.out.println(
+        "                               an area with data: a file of a WKT");
+        System.out.println(
+        "                               polygon in degrees, or oam[:buffer]");
+        System.out.println(
+        "                               for the extents of the aviation map");
+        System.out.println(
+        "                               features, buffered by degrees,");
+        System.out.println(
+        "                               defaults to "
+                                      + DEFAULT_COVERAGE_BUFFER);
+        System.out.println(
         "  -r | --crs <value>           the CRS id to use for projection");
         System.out.println(
         "                               defaults to the CRS of the OAM data");
@@ -311,9 +661,18 @@ public final class RenderMap {
         System.out.println(
         "                               e.g. 1:<value>");
         System.out.println(
-        "  -t | --type <value>          type of rendering, one of TIFF or");
+        "  -t | --type <value>          type of rendering, one of TIFF, COG,");
+        System.out.println(
+        "                               tileset or mvt. COG is a cloud");
+        System.out.println(
+        "                               optimized GeoTIFF with overviews, for");
         System.out.println(
-        "                               tileset");
+        "                               web use, without the legend. mvt is");
+        System.out.println(
+        "                               a tileset of Mapbox vector tiles of");
+        System.out.println(
+        "                               the aviation map, named "
+                                      + VECTOR_TILESET);
         System.out.println(
         "  -u | --sldurl <value>        the base URL where the SLD files are");
         System.out.println(
@@ -321,6 +680,39 @@ public final class RenderMap {
         System.out.println(
         "  -v | --validity <value>      a validity statement (optional)");
         System.out.println(
+        "  -w | --workdir <dir>         render a tileset distributed over");
+        System.out.println(
+        "                               several processes sharing this");
+        System.out.println(
+        "                               directory. tileset only, optional");
+        System.out.println(
+        "  -x | --dirty <base,new,tag>  re-render only the aviation map tiles");
+        System.out.println(
+        "                               affected by the changes between two");
+        System.out.println(
+        "                               OAM files, compared by the OSM tag");
+        System.out.println(
+        "                               identifying elements, see OamDiff.");
+        System.out.println(
+        "                               may be specified several times.");
+        System.out.println(
+        "                               tileset only, optional");
+        System.out.println(
+        "  -y | --featurecache <MB>     the memory for caching the features");
+        System.out.println(
+        "                               of each table when rendering a");
+        System.out.println(
+        "                               tileset, 0 to disable, defaults to "
+                    + CachingFeatureSource.DEFAULT_CACHE_SIZE / 1024 / 1024);
+        System.out.println(
+        "  -z | --metatile <tiles>      the size of tileset metatiles, in");
+        System.out.println(
+        "                               tiles. chosen for each level from");
+        System.out.println(
+        "                               the heap budget and the render time");
+        System.out.println(
+        "                               observed if not specified");
+        System.out.println(
         "  -h | --help                  show this usage page");
         System.out.println();
     }
@@ -342,7 +734,7 @@ public final class RenderMap {
                                          TransformException,
                                          FactoryException {
 
-        LongOpt[] longopts = new LongOpt[13];
+        LongOpt[] longopts = new LongOpt[25];
 
         longopts[0] = new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h');
         longopts[1] = new LongOpt("oam", LongOpt.REQUIRED_ARGUMENT,
@@ -368,9 +760,34 @@ public final class RenderMap {
                 null, 'u');
         longopts[12] = new LongOpt("validity", LongOpt.REQUIRED_ARGUMENT,
                 null, 'v');
-
-        Getopt g = new Getopt("RenderMap", args, "a:c:d:fhl:m:o:r:s:t:u:v:",
-                              longopts);
+        longopts[13] = new LongOpt("threads", LongOpt.REQUIRED_ARGUMENT,
+                null, 'j');
+        longopts[14] = new LongOpt("osmformat", LongOpt.REQUIRED_ARGUMENT,
+                null, 'g');
+        longopts[15] = new LongOpt("oamformat", LongOpt.REQUIRED_ARGUMENT,
+                null, 'e');
+        longopts[16] = new LongOpt("sinks", LongOpt.REQUIRED_ARGUMENT,
+                null, 'k');
+        longopts[17] = new LongOpt("dirty", LongOpt.REQUIRED_ARGUMENT,
+                null, 'x');
+        longopts[18] = new LongOpt("workdir", LongOpt.REQUIRED_ARGUMENT,
+                null, 'w');
+        longopts[19] = new LongOpt("node", LongOpt.REQUIRED_ARGUMENT,
+                null, 'n');
+        longopts[20] = new LongOpt("featurecache", LongOpt.REQUIRED_ARGUMENT,
+                null, 'y');
+        longopts[21] = new LongOpt("metatile", LongOpt.REQUIRED_ARGUMENT,
+                null, 'z');
+        longopts[22] = new LongOpt("heapbudget", LongOpt.REQUIRED_ARGUMENT,
+                null, 'b');
+        longopts[23] = new LongOpt("downsample", LongOpt.REQUIRED_ARGUMENT,
+                null, 'i');
+        longopts[24] = new LongOpt("polygon", LongOpt.REQUIRED_ARGUMENT,
+                null, 'p');
+
+        Getopt g = new Getopt("RenderMap", args,
+                        "a:b:c:d:e:fg:hi:j:k:l:m:n:o:p:r:s:t:u:v:w:x:y:z:",
+                        longopts);
 
         int c;
 
@@ -386,6 +803,18 @@ public final class RenderMap {
         String      levelsStr   = null;
         boolean     force       = false;
         String      validityStr = null;
+        String      threadsStr  = null;
+        String      osmFormat   = TileEncoders.DEFAULT_FORMAT;
+        String      oamFormat   = TileEncoders.DEFAULT_FORMAT;
+        String      sinksStr    = TileSinks.DEFAULT_SINKS;
+        List<String> dirtyStrs  = new ArrayList<String>();
+        String      workDirStr  = null;
+        String      nodeStr     = null;
+        String      cacheStr    = null;
+        String      metatileStr = null;
+        String      budgetStr   = null;
+        String      downStr     = null;
+        String      polygonStr  = null;
 
         while ((c = g.getopt()) != -1) {
             switch (c) {
@@ -401,10 +830,30 @@ public final class RenderMap {
                 strDpi = g.getOptarg();
                 break;
 
+            case 'e':
+                oamFormat = g.getOptarg();
+                break;
+
             case 'f':
                 force = true;
                 break;
 
+            case 'g':
+                osmFormat = g.getOptarg();
+                break;
+
+            case 'i':
+                downStr = g.getOptarg();
+                break;
+
+            case 'j':
+                threadsStr = g.getOptarg();
+                break;
+
+            case 'k':
+                sinksStr = g.getOptarg();
+                break;
+
             case 'l':
                 levelsStr = g.getOptarg();
                 break;
@@ -413,10 +862,18 @@ public final class RenderMap {
                 osmStr = g.getOptarg();
                 break;
 
+            case 'n':
+                nodeStr = g.getOptarg();
+                break;
+
             case 'o':
                 outputPath = g.getOptarg();
                 break;
 
+            case 'p':
+                polygonStr = g.getOptarg();
+                break;
+
             case 'r':
                 crsStr = g.getOptarg();
                 break;
@@ -437,6 +894,26 @@ public final class RenderMap {
                 validityStr = g.getOptarg();
                 break;
 
+            case 'w':
+                workDirStr = g.getOptarg();
+                break;
+
+            case 'x':
+                dirtyStrs.add(g.getOptarg());
+                break;
+
+            case 'y':
+                cacheStr = g.getOptarg();
+                break;
+
+            case 'z':
+                metatileStr = g.getOptarg();
+                break;
+
+            case 'b':
+                budgetStr = g.getOptarg();
+                break;
+
             default:
             case 'h':
                 printHelpMessage();
@@ -480,6 +957,41 @@ public final class RenderMap {
             return;
         }
 
+        if (workDirStr != null && nodeStr == null) {
+            System.out.println("Required option node not specified");
+            System.out.println();
+            printHelpMessage();
+            return;
+        }
+        if (nodeStr != null && !"coordinator".equals(nodeStr.toLowerCase())
+         && !"worker".equals(nodeStr.toLowerCase())) {
+            System.out.println("Invalid node value " + nodeStr
+                             + ", should be coordinator or worker");
+            return;
+        }
+        if (workDirStr != null && "mvt".equals(typeStr.toLowerCase())) {
+            System.out.println("A vector tileset can't be rendered"
+                             + " distributed, omit --workdir");
+            return;
+        }
+        if (downStr != null && (workDirStr != null || !dirtyStrs.isEmpty())) {
+            System.out.println("Downsampled levels can't be rendered"
+                             + " distributed or limited to changes, omit"
+                             + " --downsample");
+            return;
+        }
+        if (downStr != null && polygonStr != null) {
+            System.out.println("Downsampled levels are built from all the"
+                             + " tiles of the highest level, omit either"
+                             + " --downsample or --polygon");
+            return;
+        }
+        if (workDirStr != null && !dirtyStrs.isEmpty()) {
+            System.out.println("A distributed rendering can't be limited to"
+                             + " changes, omit either --workdir or --dirty");
+            return;
+        }
+
         // normalize the base URL
         if (!sldUrlStr.endsWith("/")) {
             sldUrlStr = sldUrlStr + "/";
@@ -510,6 +1022,148 @@ public final class RenderMap {
             }
         }
 
+        // parse the number of threads, if supplied
+        int threads = DEFAULT_THREADS;
+        if (threadsStr != null) {
+            try {
+                threads = Integer.parseInt(threadsStr);
+            } catch (Exception e) {
+                System.out.println("Error parsing threads value.");
+                System.out.println();
+                e.printStackTrace(System.out);
+                return;
+            }
+            if (threads < 1) {
+                System.out.println("The number of threads must be positive.");
+                return;
+            }
+        }
+
+        // parse the feature cache size, if supplied
+        long featureCacheSize = CachingFeatureSource.DEFAULT_CACHE_SIZE;
+        if (cacheStr != null) {
+            try {
+                featureCacheSize = Long.parseLong(cacheStr) * 1024 * 1024;
+            } catch (Exception e) {
+                System.out.println("Error parsing feature cache value.");
+                System.out.println();
+                e.printStackTrace(System.out);
+                return;
+            }
+            if (featureCacheSize < 0) {
+                System.out.println(
+                            "The feature cache size must not be negative.");
+                return;
+            }
+        }
+
+        // parse the metatile size, if supplied
+        int metatileSize = 0;
+        if (metatileStr != null) {
+            try {
+                metatileSize = Integer.parseInt(metatileStr);
+            } catch (Exception e) {
+                System.out.println("Error parsing metatile value.");
+                System.out.println();
+                e.printStackTrace(System.out);
+                return;
+            }
+            if (metatileSize < 1) {
+                System.out.println("The metatile size must be positive.");
+                return;
+            }
+        }
+
+        // parse the heap budget, if supplied
+        long heapBudget = 0;
+        if (budgetStr != null) {
+            try {
+                heapBudget = Long.parseLong(budgetStr) * 1024 * 1024;
+            } catch (Exception e) {
+                System.out.println("Error parsing heap budget value.");
+                System.out.println();
+                e.printStackTrace(System.out);
+                return;
+            }
+            if (heapBudget < 1) {
+                System.out.println("The heap budget must be positive.");
+                return;
+            }
+        }
+
+        // parse the maps to downsample, if supplied
+        boolean downsampleOsm = false;
+        boolean downsampleOam = false;
+        if (downStr != null) {
+            StringTokenizer tok = new StringTokenizer(downStr, ",");
+            while (tok.hasMoreTokens()) {
+                String map = tok.nextToken().trim().toLowerCase();
+                if ("osm".equals(map)) {
+                    downsampleOsm = true;
+                } else if ("oam".equals(map)) {
+                    downsampleOam = true;
+                } else {
+                    System.out.println("Invalid downsample value " + map
+                                     + ", should be osm or oam");
+                    return;
+                }
+            }
+        }
+
+        // parse the area with data, if supplied
+        TileCoverage tileCoverage      = null;
+        double       oamCoverageBuffer = Double.NaN;
+        if (polygonStr != null) {
+            String polygon = polygonStr.toLowerCase();
+            if ("oam".equals(polygon) || polygon.startsWith("oam:")) {
+                oamCoverageBuffer = DEFAULT_COVERAGE_BUFFER;
+                if (polygon.length() > 4) {
+                    try {
+                        oamCoverageBuffer = Double.parseDouble(
+                                                    polygon.substring(4));
+                    } catch (Exception e) {
+                        System.out.println("Error parsing polygon buffer.");
+                        System.out.println();
+                        e.printStackTrace(System.out);
+                        return;
+                    }
+                }
+                if (oamCoverageBuffer < 0) {
+                    System.out.println(
+                                "The polygon buffer must not be negative.");
+                    return;
+                }
+            } else {
+                try {
+                    tileCoverage = TileCoverage.read(new File(polygonStr));
+                } catch (Exception e) {
+                    System.out.println("Error reading polygon file.");
+                    System.out.println();
+                    e.printStackTrace(System.out);
+                    return;
+                }
+            }
+        }
+
+        // parse the tile formats
+        TileEncoder osmEncoder;
+        TileEncoder oamEncoder;
+        try {
+            osmEncoder = TileEncoders.forName(osmFormat);
+            oamEncoder = TileEncoders.forName(oamFormat);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error parsing tile format: " + e.getMessage());
+            return;
+        }
+
+        // check the tile sinks
+        try {
+            TileSinks.validate(sinksStr);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error parsing tile sinks: " + e.getMessage());
+            return;
+        }
+
         // parse the levels value
         int lowLevel  = DEFAULT_LOW_LEVEL;
         int highLevel = DEFAULT_HIGH_LEVEL;
@@ -554,7 +1208,8 @@ public final class RenderMap {
         Map<String, Object> osmParams = parseDbParams(osmStr);
         Map<String, Object> oamParams = parseDbParams(oamStr);
 
-        if ("TIFF".equals(typeStr.toUpperCase())) {
+        boolean cog = "COG".equals(typeStr.toUpperCase());
+        if ("TIFF".equals(typeStr.toUpperCase()) || cog) {
 
             if (!force) {
                 File f = new File(outputPath);
@@ -569,19 +1224,50 @@ public final class RenderMap {
                              + " at " + ((int) dpi) + " dpi to " + outputPath);
 
             RenderMap rm = new RenderMap(osmParams, oamParams, coverage, crs,
-                                         sldUrlStr, scale, dpi, true, true,
+                                         sldUrlStr, scale, dpi, true, !cog,
                                          validityStr, outputPath);
+            rm.setThreads(threads);
+            rm.setCloudOptimized(cog);
 
             rm.render();
 
-        } else if ("tileset".equals(typeStr.toLowerCase())) {
+        } else if ("tileset".equals(typeStr.toLowerCase())
+                || "mvt".equals(typeStr.toLowerCase())) {
 
-            System.out.println("Rendering map into tileset levels "
-                    + lowLevel + "..." + highLevel + " to " + outputPath);
+            boolean mvt = "mvt".equals(typeStr.toLowerCase());
+
+            System.out.println("Rendering map into " + (mvt ? "vector " : "")
+                    + "tileset levels " + lowLevel + "..." + highLevel
+                    + " to " + outputPath);
 
             RenderMap rm = new RenderMap(osmParams, oamParams, coverage, crs,
                                          sldUrlStr, dpi, lowLevel, highLevel,
                                          force, outputPath);
+            rm.setThreads(threads);
+            rm.setOsmEncoder(osmEncoder);
+            rm.setOamEncoder(oamEncoder);
+            rm.setSinks(sinksStr);
+            rm.setFeatureCacheSize(featureCacheSize);
+            rm.setMetatileSize(metatileSize);
+            rm.setHeapBudget(heapBudget);
+            rm.setVectorTiles(mvt);
+            rm.setDownsample(downsampleOsm, downsampleOam);
+            rm.setTileCoverage(tileCoverage);
+            if (!Double.isNaN(oamCoverageBuffer)) {
+                rm.setOamCoverage(oamCoverageBuffer);
+            }
+
+            if (!dirtyStrs.isEmpty()) {
+                DirtyTiles dirty = loadDirtyTiles(dirtyStrs);
+                if (dirty == null) {
+                    return;
+                }
+                rm.setDirtyTiles(dirty);
+            }
+            if (workDirStr != null) {
+                rm.setDistributed(new File(workDirStr),
+                                  "coordinator".equals(nodeStr.toLowerCase()));
+            }
 
             rm.render();
         }
@@ -679,15 +1365,216 @@ public final class RenderMap {
     }
 
     /**
-     * Render a map into a file or tileset.
+     * Set the number of threads used to render metatiles, when rendering
+     * a tileset, or strips, when rendering a file. Each thread renders whole
+     * metatiles or strips with its own renderer.
      *
-     * @throws FactoryException on CRS factory errors
-     * @throws TransformException on CRS transformation errors
-     * @throws IOException on I/O errors
+     * @param threads the number of threads, must be positive
      */
-    public void render()                        throws IOException,
-                                                       TransformException,
-                                                       FactoryException {
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                                    "the number of threads must be positive");
+        }
+
+        this.threads = threads;
+    }
+
+    /**
+     * Set where to save tiles, when rendering a tileset.
+     *
+     * @param sinks a comma-separated list of tile sinks, see TileSinks
+     * @throws IllegalArgumentException if the list is not valid
+     */
+    public void setSinks(String sinks) {
+        TileSinks.validate(sinks);
+
+        this.sinks = sinks;
+    }
+
+    /**
+     * Set the encoder for the Open Street Map tiles, when rendering a
+     * tileset.
+     *
+     * @param osmEncoder the tile encoder to use
+     */
+    public void setOsmEncoder(TileEncoder osmEncoder) {
+        this.osmEncoder = osmEncoder;
+    }
+
+    /**
+     * Set the encoder for the Open Aviation Map tiles, when rendering a
+     * tileset.
+     *
+     * @param oamEncoder the tile encoder to use
+     */
+    public void setOamEncoder(TileEncoder oamEncoder) {
+        this.oamEncoder = oamEncoder;
+    }
+
+    /**
+     * Re-render only the aviation map tiles affected by changes, when
+     * rendering a tileset, and patch them into the existing tileset. The
+     * affected tiles are overwritten, all other tiles are kept.
+     *
+     * @param dirtyTiles the changed areas of the aviation map, or null to
+     *        render the whole tileset
+     */
+    public void setDirtyTiles(DirtyTiles dirtyTiles) {
+        this.dirtyTiles = dirtyTiles;
+    }
+
+    /**
+     * Render a tileset distributed over several processes, possibly on
+     * several machines, sharing a work directory. The coordinator splits
+     * the tileset into work units of metatiles, and writes the work plan
+     * into the work directory. Workers claim work units through leases,
+     * see LeaseManager, and render them into tile archives of their own.
+     * When all work units are done, the coordinator merges the worker
+     * archives into the tileset.
+     *
+     * All processes should be started with the same options, except for
+     * the levels of workers, which may be limited to a part of the levels
+     * of the coordinator, e.g. to have the high levels rendered by workers
+     * with more memory.
+     *
+     * @param workDir the shared work directory, or null to render the
+     *        tileset in this process alone
+     * @param coordinator true if this process is the coordinator, false if
+     *        it is a worker
+     */
+    public void setDistributed(File workDir, boolean coordinator) {
+        this.workDir     = workDir;
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Set the memory budget for caching the features of each feature type,
+     * when rendering a tileset. The features are fetched from the database
+     * for regions of several metatiles, instead of for each metatile.
+     *
+     * @param featureCacheSize the budget in bytes, 0 to disable caching
+     */
+    public void setFeatureCacheSize(long featureCacheSize) {
+        if (featureCacheSize < 0) {
+            throw new IllegalArgumentException(
+                                    "the feature cache size must not be"
+                                  + " negative");
+        }
+
+        this.featureCacheSize = featureCacheSize;
+    }
+
+    /**
+     * Set whether a map rendered into a file is written as a cloud
+     * optimized GeoTIFF: with overviews, and with the directories in front
+     * of the tiles, so that clients can read just the tiles of the
+     * resolution they need by range requests.
+     *
+     * @param cloudOptimized true to write a cloud optimized GeoTIFF
+     */
+    public void setCloudOptimized(boolean cloudOptimized) {
+        this.cloudOptimized = cloudOptimized;
+    }
+
+    /**
+     * Set whether a tileset is rendered as Mapbox vector tiles of the
+     * aviation map, to be styled by the client, instead of images of the
+     * ground and the aviation map. Vector tiles are not rendered at a
+     * DPI value, but are simplified at the scale of the zoom level at the
+     * DPI value set. A vector tileset can't be rendered distributed.
+     *
+     * @param vectorTiles true to render vector tiles
+     */
+    public void setVectorTiles(boolean vectorTiles) {
+        this.vectorTiles = vectorTiles;
+    }
+
+    /**
+     * Set which maps of a tileset have their lower levels built by
+     * downsampling, see TileDownsampler. Only the highest level of such a
+     * map is rendered, and the levels below are built from its tiles while
+     * it is rendered, with 2x2 downsampling. This saves the queries and
+     * the rendering of the lower levels, at the cost of their cartography.
+     * As the lower levels are built from the whole highest level, such a
+     * map is always rendered anew, it is not resumed, patched or rendered
+     * distributed.
+     *
+     * @param osm true to downsample the Open Street Map
+     * @param oam true to downsample the Open Aviation Map
+     */
+    public void setDownsample(boolean osm, boolean oam) {
+        this.downsampleOsm = osm;
+        this.downsampleOam = oam;
+    }
+
+    /**
+     * Set the size of the metatiles when rendering a tileset.
+     *
+     * @param metatileSize the metatile size to use at all levels, in
+     *        tiles, or 0 to choose it for each level, see MetatileSizer
+     */
+    public void setMetatileSize(int metatileSize) {
+        if (metatileSize < 0) {
+            throw new IllegalArgumentException(
+                                    "the metatile size must not be negative");
+        }
+
+        this.metatileSize = metatileSize;
+    }
+
+    /**
+     * Set the heap budget for the metatile images when rendering a tileset,
+     * which bounds the size of the metatiles chosen.
+     *
+     * @param heapBudget the budget in bytes, or 0 for the default budget
+     */
+    public void setHeapBudget(long heapBudget) {
+        if (heapBudget < 0) {
+            throw new IllegalArgumentException(
+                                    "the heap budget must not be negative");
+        }
+
+        this.heapBudget = heapBudget;
+    }
+
+    /**
+     * Set the area of a tileset with data to render. The metatiles and
+     * tiles outside of it are skipped before querying or rendering them.
+     *
+     * @param tileCoverage the area with data, or null to render the whole
+     *        tileset
+     */
+    public void setTileCoverage(TileCoverage tileCoverage) {
+        this.tileCoverage = tileCoverage;
+    }
+
+    /**
+     * Take the area of a tileset with data to render from the extents of
+     * the aviation map features when rendering, see setTileCoverage().
+     *
+     * @param buffer the buffer to add around the extent of each feature,
+     *        in degrees, as symbols and labels are drawn around features
+     */
+    public void setOamCoverage(double buffer) {
+        if (buffer < 0) {
+            throw new IllegalArgumentException(
+                                "the coverage buffer must not be negative");
+        }
+
+        this.oamCoverageBuffer = buffer;
+    }
+
+    /**
+     * Render a map into a file or tileset.
+     *
+     * @throws FactoryException on CRS factory errors
+     * @throws TransformException on CRS transformation errors
+     * @throws IOException on I/O errors
+     */
+    public void render()                        throws IOException,
+                                                       TransformException,
+                                                       FactoryException {
 
         // create the data stores
         osmDataStore = DataStoreFinder.getDataStore(osmParams);
@@ -719,16 +1606,41 @@ public final class RenderMap {
         sldParser.setOnLineResourceLocator(rl);
 
 
-        switch (type) {
-        case TIFF:
-            renderMapToFile();
-            break;
+        // the metrics can be watched over JMX while rendering, and are
+        // reported at the end, even if rendering failed
+        metrics       = new RenderMetrics();
+        metricsReport = type == Type.TIFF
+                      ? outputPath + "." + METRICS_REPORT
+                      : new File(outputPath, METRICS_REPORT).getPath();
+        try {
+            metrics.register(outputPath);
+        } catch (JMException e) {
+            System.out.println("Could not register the render metrics: "
+                             + e.getMessage());
+        }
 
-        case TILESET:
-            renderMapToTileset();
-            break;
+        try {
+            switch (type) {
+            case TIFF:
+                renderMapToFile();
+                break;
 
-        default:
+            case TILESET:
+                renderMapToTileset();
+                break;
+
+            default:
+            }
+        } finally {
+            metrics.unregister();
+            try {
+                metrics.writeReport(metricsReport);
+                System.out.println("Render metrics written to "
+                                 + metricsReport + ".json");
+            } catch (IOException e) {
+                System.out.println("Could not write the render metrics: "
+                                 + e.getMessage());
+            }
         }
 
         oamDataStore.dispose();
@@ -756,10 +1668,6 @@ public final class RenderMap {
         mapBounds = coverage == null ? calcCoverage(osmMap, oamMap, refCrs)
                                      : transformCoverage(coverage, refCrs);
 
-        if (renderGrid) {
-            addLatticeLayer(oamMap);
-        }
-
         ReferencedEnvelope mapBoundsWgs84 =
                 mapBounds.transform(DefaultGeographicCRS.WGS84, false);
         normalizeWgs84Bounds(mapBoundsWgs84);
@@ -778,6 +1686,17 @@ public final class RenderMap {
         System.out.println("Image size: " + ((int) imageBounds.getWidth())
                 + "x" + ((int) imageBounds.getHeight()) + " pixels");
 
+        if (renderGrid) {
+            // the lattice is clipped along the tiles of the zoom level
+            // closest to the resolution of the image
+            double degreesPerPixel = mapBoundsWgs84.getWidth()
+                                   / imageBounds.getWidth();
+            int    zoom = (int) Math.round(Math.log(360d
+                                / (degreesPerPixel * TILE_SIZE)) / Math.log(2));
+            addLatticeLayer(oamMap,
+                            Math.max(0, Math.min(zoom, LATTICE_MAX_ZOOM)));
+        }
+
         renderMap(osmMap, oamMap);
 
         oamMap.dispose();
@@ -810,6 +1729,58 @@ public final class RenderMap {
         return mapBounds;
     }
 
+    /**
+     * Take the area with data of a tileset from the extents of the aviation
+     * map features put into tilesets, each buffered.
+     *
+     * @param buffer the buffer to add around the extent of each feature,
+     *        in degrees
+     * @return the area with data
+     * @throws IOException on I/O errors
+     * @throws TransformException on CRS transformation issues
+     * @throws FactoryException on CRS factory issues
+     */
+    private TileCoverage
+    loadOamCoverage(double buffer)                throws IOException,
+                                                         TransformException,
+                                                         FactoryException {
+        List<Envelope> areas = new ArrayList<Envelope>();
+
+        for (String[] layer : VECTOR_LAYERS) {
+            SimpleFeatureSource       fs    =
+                                    oamDataStore.getFeatureSource(layer[0]);
+            CoordinateReferenceSystem fsCrs =
+                                fs.getSchema().getCoordinateReferenceSystem();
+            boolean transform = fsCrs != null && !CRS.equalsIgnoreMetadata(
+                                            fsCrs, DefaultGeographicCRS.WGS84);
+
+            SimpleFeatureIterator it = fs.getFeatures().features();
+            try {
+                while (it.hasNext()) {
+                    Object g = it.next().getDefaultGeometry();
+                    if (!(g instanceof Geometry)) {
+                        continue;
+                    }
+
+                    Envelope e = ((Geometry) g).getEnvelopeInternal();
+                    if (transform && !e.isNull()) {
+                        e = new ReferencedEnvelope(e, fsCrs).transform(
+                                            DefaultGeographicCRS.WGS84, false);
+                    }
+                    areas.add(e);
+                }
+            } finally {
+                it.close();
+            }
+        }
+
+        System.out.println("Area with data taken from " + areas.size()
+                         + " aviation map features, buffered by " + buffer
+                         + " degrees");
+
+        return TileCoverage.union(areas, buffer);
+    }
+
     /**
      * Transform a coverage into the provided CRS. Only performs a
      * transformation if necessary
@@ -838,7 +1809,13 @@ public final class RenderMap {
     }
 
     /**
-     * Render a map.
+     * Render a map into a tiled, compressed and georeferenced BigTIFF
+     * file. The map is rendered in horizontal strips of tile rows on the
+     * render threads: each strip is composited from the ground and the
+     * aviation map, framed by the legend, and written into the file as
+     * soon as it is done. Thus the memory needed depends on the size of the
+     * strips, not on the size of the map. The overviews of a cloud
+     * optimized GeoTIFF are downsampled from the tiles as they are written.
      *
      * @param osmMap the Open Street Map to render
      * @param oamMap the Open Aviation Map to render
@@ -852,32 +1829,182 @@ public final class RenderMap {
                                                   throws TransformException,
                                                          FactoryException,
                                                          IOException {
-        // first, generate the ground map
-        System.out.println("Rendering ground map...");
-        PlanarImage osmImage = renderMap(osmMap, imageBounds, mapBounds);
 
+        // the legend expands the map at 3.5% on top & bottom, at 1.5% on
+        // the sides
+        final Rectangle mapRect;
+        if (renderLegend) {
+            mapRect = new Rectangle((int) (imageBounds.height * .015),
+                                    (int) (imageBounds.height * .035),
+                                    imageBounds.width, imageBounds.height);
+        } else {
+            mapRect = new Rectangle(imageBounds.width, imageBounds.height);
+        }
+        final Rectangle bounds = new Rectangle(mapRect.width + 2 * mapRect.x,
+                                               mapRect.height + 2 * mapRect.y);
+
+        final BigTiffWriter writer = new BigTiffWriter(new File(outputPath),
+                                        bounds.width, bounds.height,
+                                        BigTiffWriter.DEFAULT_TILE_SIZE,
+                                        cloudOptimized);
+        writer.setResolution(dpi);
+        GeoTiffTags.georeference(writer, mapBounds, mapRect);
+
+        final ThreadLocal<GTRenderer> osmRenderers = createRenderers(osmMap);
+        final ThreadLocal<GTRenderer> oamRenderers = createRenderers(oamMap);
+
+        // the grid labels are placed once, and drawn by the strips they
+        // fall into
+        final List<GridLabel> gridLabels = renderLegend
+                            ? createGridLabels(mapRect, bounds, mapRect.y,
+                                               mapRect.x)
+                            : null;
+
+        int       stripHeight = STRIP_TILE_ROWS * writer.getTileSize();
+        final int strips      = (bounds.height + stripHeight - 1)
+                              / stripHeight;
+        final AtomicInteger done = new AtomicInteger();
+
+        System.out.println("Rendering ground & aviation map in " + strips
+                         + " strips...");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        boolean         complete = false;
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int y = 0; y < bounds.height; y += stripHeight) {
+                final Rectangle strip = new Rectangle(0, y, bounds.width,
+                                    Math.min(stripHeight, bounds.height - y));
+
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        renderStrip(osmRenderers.get(), oamRenderers.get(),
+                                    strip, bounds, mapRect, gridLabels,
+                                    writer);
+
+                        System.out.println(done.incrementAndGet() + "/"
+                                         + strips + " strips rendered");
+
+                        return null;
+                    }
+                }));
+            }
+
+            waitFor(futures);
+
+            if (cloudOptimized) {
+                System.out.println("Laying out the map with "
+                                 + writer.getOverviewCount()
+                                 + " overviews...");
+            }
+            writer.close();
+            complete = true;
+        } finally {
+            executor.shutdownNow();
+
+            if (!complete) {
+                writer.abort();
+            }
+        }
+
+        System.out.println("Map saved to " + outputPath);
+    }
 
-        // second, generate the aviation map
-        System.out.println("Rendering aviation map...");
-        PlanarImage oamImage = renderMap(oamMap, imageBounds, mapBounds);
+    /**
+     * Render a horizontal strip of the map, and write it as tiles.
+     *
+     * @param osmRenderer the renderer of the Open Street Map
+     * @param oamRenderer the renderer of the Open Aviation Map
+     * @param strip the strip to render, within bounds
+     * @param bounds the bounds of the whole image, including the legend
+     * @param mapRect the area of the map within bounds
+     * @param gridLabels the grid labels of the legend, null if no legend
+     *        is drawn
+     * @param writer the writer to write the tiles of the strip with
+     * @throws TransformException on CRS transformation errors
+     * @throws FactoryException on transformation factory errors
+     * @throws IOException on I/O errors
+     */
+    private void
+    renderStrip(GTRenderer          osmRenderer,
+                GTRenderer          oamRenderer,
+                Rectangle           strip,
+                Rectangle           bounds,
+                Rectangle           mapRect,
+                List<GridLabel>     gridLabels,
+                BigTiffWriter       writer)
+                                                  throws TransformException,
+                                                         FactoryException,
+                                                         IOException {
 
+        BufferedImage image = new BufferedImage(strip.width, strip.height,
+                                                BufferedImage.TYPE_INT_RGB);
 
-        // third, combine these together and into outputFile
-        System.out.println("Combining ground & aviation map...");
-        DiskMemImage image = combineImages(osmImage, oamImage);
-        oamImage.dispose();
-        osmImage.dispose();
+        // draw in the coordinates of the whole image
+        Graphics2D gr = image.createGraphics();
+        gr.translate(-strip.x, -strip.y);
+        gr.clip(strip);
+        gr.setColor(Color.WHITE);
+        gr.fill(strip);
+
+        Rectangle mapPart = strip.intersection(mapRect);
+        if (!mapPart.isEmpty()) {
+            // render the map with a margin above and below the strip, so
+            // that features and labels near the edge of the strip are
+            // rendered along with their surroundings. labels crossing the
+            // edge may still be placed differently in the neighbouring
+            // strip, as label conflicts are resolved per strip
+            int top    = Math.max(mapRect.y,
+                                  mapPart.y - RENDERING_BUFFER);
+            int bottom = Math.min(mapRect.y + mapRect.height,
+                                  mapPart.y + mapPart.height
+                                + RENDERING_BUFFER);
+
+            double pixelHeight = mapBounds.getHeight() / mapRect.height;
+            ReferencedEnvelope areaBounds = new ReferencedEnvelope(
+                    mapBounds.getMinX(),
+                    mapBounds.getMaxX(),
+                    mapBounds.getMaxY() - (bottom - mapRect.y) * pixelHeight,
+                    mapBounds.getMaxY() - (top - mapRect.y) * pixelHeight,
+                    mapBounds.getCoordinateReferenceSystem());
+            Rectangle area = new Rectangle(mapRect.width, bottom - top);
+
+            // the aviation map is drawn over the ground map
+            BufferedImage mapImage = new BufferedImage(area.width,
+                                                area.height,
+                                                BufferedImage.TYPE_INT_RGB);
+            Graphics2D mapGr = mapImage.createGraphics();
+            mapGr.setColor(Color.WHITE);
+            mapGr.fill(area);
+            long start = System.nanoTime();
+            osmRenderer.paint(mapGr, area, areaBounds);
+            metrics.recordTime("osm", RenderMetrics.RENDER_TIME, start);
+            start = System.nanoTime();
+            oamRenderer.paint(mapGr, area, areaBounds);
+            metrics.recordTime("oam", RenderMetrics.RENDER_TIME, start);
+            mapGr.dispose();
+
+            gr.drawImage(mapImage.getSubimage(0, mapPart.y - top,
+                                              area.width, mapPart.height),
+                         mapRect.x, mapPart.y, null);
+        }
 
         if (renderLegend) {
-            // draw the labels around the map
-            System.out.println("Drawing legend...");
-            image = drawLegend(image);
+            drawLegend(gr, bounds, mapRect, strip, gridLabels);
         }
 
-        // save the map
-        JAI.create("filestore", image, outputPath, "TIFF", null);
-        System.out.println("Map saved to " + outputPath);
-        image.dispose();
+        gr.dispose();
+
+        int tileSize = writer.getTileSize();
+        for (int y = 0; y < strip.height; y += tileSize) {
+            for (int col = 0; col < writer.getColumns(); ++col) {
+                long start = System.nanoTime();
+                writer.writeTile(col, (strip.y + y) / tileSize, image,
+                                 col * tileSize, y);
+                metrics.recordTime("map", RenderMetrics.ENCODE_TIME, start);
+            }
+        }
     }
 
     /**
@@ -911,11 +2038,17 @@ public final class RenderMap {
 
         MapContent oamMap = new MapContent();
 
+        // layers of the same feature type share their feature source
+        Map<String, SimpleFeatureSource> sources =
+                                    new HashMap<String, SimpleFeatureSource>();
+
         // add the aviation layers
         addLayer(oamDataStore, "planet_osm_polygon", "oam_airspaces.sldt",
-                 oamMap);
-        addLayer(oamDataStore, "planet_osm_point", "oam_navaids.sldt", oamMap);
-        addLayer(oamDataStore, "planet_osm_line", "oam_runways.sld", oamMap);
+                 oamMap, sources);
+        addLayer(oamDataStore, "planet_osm_point", "oam_navaids.sldt", oamMap,
+                 sources);
+        addLayer(oamDataStore, "planet_osm_line", "oam_runways.sld", oamMap,
+                 sources);
 
         return oamMap;
     }
@@ -934,15 +2067,25 @@ public final class RenderMap {
 
         System.out.println("Opening Open Street Map database...");
 
+        // layers of the same feature type share their feature source
+        Map<String, SimpleFeatureSource> sources =
+                                    new HashMap<String, SimpleFeatureSource>();
+
         // add the ground layers
-        addLayer(osmDataStore, "planet_osm_polygon", "oam_forests.sld", osmMap);
+        addLayer(osmDataStore, "planet_osm_polygon", "oam_forests.sld", osmMap,
+                 sources);
         addLayer(osmDataStore, "planet_osm_point", "oam_city_markers.sldt",
-                 osmMap);
-        addLayer(osmDataStore, "planet_osm_polygon", "oam_cities.sldt", osmMap);
-        addLayer(osmDataStore, "planet_osm_polygon", "oam_waters.sldt", osmMap);
-        addLayer(osmDataStore, "planet_osm_point", "oam_peaks.sldt", osmMap);
-        addLayer(osmDataStore, "planet_osm_line", "oam_roads.sldt", osmMap);
-        addLayer(osmDataStore, "planet_osm_point", "oam_labels.sldt", osmMap);
+                 osmMap, sources);
+        addLayer(osmDataStore, "planet_osm_polygon", "oam_cities.sldt", osmMap,
+                 sources);
+        addLayer(osmDataStore, "planet_osm_polygon", "oam_waters.sldt", osmMap,
+                 sources);
+        addLayer(osmDataStore, "planet_osm_point", "oam_peaks.sldt", osmMap,
+                 sources);
+        addLayer(osmDataStore, "planet_osm_line", "oam_roads.sldt", osmMap,
+                 sources);
+        addLayer(osmDataStore, "planet_osm_point", "oam_labels.sldt", osmMap,
+                 sources);
 
         return osmMap;
     }
@@ -970,231 +2113,1126 @@ public final class RenderMap {
                                         + outputPath);
         }
 
-        scales = KnownScaleList.epsg900913ScaleList(dpi, highLevel + 1);
+        scales = KnownScaleList.epsg900913ScaleList(dpi, highLevel + 1);
+
+        // vector tiles are not rendered into images, the metatiles just
+        // bound the area queried at once
+        metatileSizer = new MetatileSizer(heapBudget > 0 ? heapBudget
+                                            : MetatileSizer.defaultHeapBudget(),
+                                          threads,
+                                          vectorTiles && metatileSize == 0
+                                            ? METATILE_SIZE : metatileSize);
+
+        // workers skip the tiles without data as well
+        if (!Double.isNaN(oamCoverageBuffer)) {
+            tileCoverage = loadOamCoverage(oamCoverageBuffer);
+        }
+
+        if (workDir != null && !coordinator) {
+            renderWorkUnits();
+            return;
+        }
+
+        if (coverage == null) {
+            scale = scales.get(highLevel);
+            MapContent osmMap = openOSM();
+            MapContent oamMap = openOAM();
+
+            mapBounds = calcCoverage(osmMap, oamMap,
+                                     DefaultGeographicCRS.WGS84);
+
+            osmMap.dispose();
+            oamMap.dispose();
+        } else {
+            mapBounds = transformCoverage(coverage, DefaultGeographicCRS.WGS84);
+        }
+
+        // there is nothing to render outside the area with data
+        if (tileCoverage != null) {
+            Envelope e = mapBounds.intersection(tileCoverage.getBounds());
+            if (e.isNull()) {
+                throw new IllegalArgumentException(
+                                "The area with data is outside of the map");
+            }
+            mapBounds = new ReferencedEnvelope(e, DefaultGeographicCRS.WGS84);
+        }
+
+        if (vectorTiles) {
+            renderVectorTileset(dir);
+            return;
+        }
+
+        if (workDir != null) {
+            coordinateWorkUnits();
+            return;
+        }
+
+        // when patching changes, only the aviation map is affected, and
+        // its dirty tiles are overwritten
+        boolean patch = dirtyTiles != null;
+
+        // the metatiles rendered by an earlier, possibly interrupted, run
+        // are recorded in the manifests, and are not rendered again. a
+        // downsampled map is rendered anew, as its lower levels are built
+        // from all of its highest level
+        RenderManifest osmManifest = patch ? null
+                : new RenderManifest(new File(dir, "osm" + MANIFEST_SUFFIX),
+                                     forceOverwrite || downsampleOsm);
+        RenderManifest oamManifest = patch ? null
+                : new RenderManifest(new File(dir, "oam" + MANIFEST_SUFFIX),
+                                     forceOverwrite || downsampleOam);
+
+        List<List<Metatile>> osmWork = new ArrayList<List<Metatile>>();
+        List<List<Metatile>> oamWork = new ArrayList<List<Metatile>>();
+        int                  total   = 0;
+        for (int level = lowLevel; level <= highLevel; ++level) {
+            osmWork.add(patch ? new ArrayList<Metatile>(0)
+                        : planMetatiles(level, osmManifest, downsampleOsm));
+            oamWork.add(planMetatiles(level, oamManifest, downsampleOam));
+
+            total += osmWork.get(osmWork.size() - 1).size()
+                   + oamWork.get(oamWork.size() - 1).size();
+        }
+
+        if (patch) {
+            System.out.println(total + " metatiles affected by changes");
+        } else {
+            System.out.println(total + " metatiles to render, "
+                    + (osmManifest.getCount() + oamManifest.getCount())
+                    + " rendered earlier, specify --force to render all");
+        }
+
+        // the tiles are written directly into their final destinations,
+        // e.g. a directory tree and a GEMF archive for mobile use. the
+        // tiles of an earlier run are kept, unless rendering all anew
+        boolean  keep    = patch || !forceOverwrite;
+        TileSink osmSink = patch ? null
+                         : TileSinks.create(sinks, outputPath, "osm",
+                                            osmEncoder, false, keep);
+        TileSink oamSink = TileSinks.create(sinks, outputPath, "oam",
+                                            oamEncoder, true, keep);
+        TileDeduplicator osmTiles = patch ? null
+                         : new TileDeduplicator(osmEncoder, osmSink,
+                                        TileDeduplicator.DEFAULT_CACHE_SIZE);
+        TileDeduplicator oamTiles = new TileDeduplicator(oamEncoder, oamSink,
+                                        TileDeduplicator.DEFAULT_CACHE_SIZE);
+        if (osmTiles != null) {
+            osmTiles.setMetrics(metrics, "osm");
+        }
+        oamTiles.setMetrics(metrics, "oam");
+
+        // the lower levels of downsampled maps are built while their
+        // highest level is rendered
+        Rectangle        highBounds     = getTileBounds(mapBounds, highLevel);
+        TileDownsampler  osmDownsampler = patch || !downsampleOsm ? null
+                         : new TileDownsampler(osmTiles, highBounds,
+                                               highLevel, lowLevel);
+        TileDownsampler  oamDownsampler = patch || !downsampleOam ? null
+                         : new TileDownsampler(oamTiles, highBounds,
+                                               highLevel, lowLevel);
+        if (osmDownsampler != null || oamDownsampler != null) {
+            System.out.println("Levels " + lowLevel + "..." + (highLevel - 1)
+                    + " of " + (osmDownsampler == null ? "oam"
+                                : oamDownsampler == null ? "osm" : "osm, oam")
+                    + " are built by downsampling level " + highLevel);
+        }
+
+        renderPool = Executors.newFixedThreadPool(threads);
+        // each render thread may have one more metatile waiting to be saved,
+        // while rendering the next one. metatiles not in the manifest are
+        // rendered anew, thus their tiles are always overwritten
+        metatileWriter = new MetatileWriter(threads, threads);
+        metatileWriter.setCoverage(tileCoverage);
+
+        try {
+            for (int level = lowLevel; level <= highLevel; ++level) {
+                List<Metatile> osmMetatiles = osmWork.get(level - lowLevel);
+                List<Metatile> oamMetatiles = oamWork.get(level - lowLevel);
+
+                // the metatile size of a level not yet started is chosen
+                // again, based on the render time of the levels before
+                if (level > lowLevel && metatileSize == 0) {
+                    if (!patch) {
+                        osmMetatiles = planMetatiles(level, osmManifest,
+                                                     downsampleOsm);
+                    }
+                    oamMetatiles = planMetatiles(level, oamManifest,
+                                                 downsampleOam);
+                }
+
+                if (osmMetatiles.isEmpty() && oamMetatiles.isEmpty()) {
+                    System.out.println("No tiles to render for level "
+                                     + level);
+                    continue;
+                }
+
+                System.out.println("Rendering tiles for level " + level
+                         + ", at dpi " + dpi + ", scale: " + scales.get(level)
+                         + ", " + (osmMetatiles.size() + oamMetatiles.size())
+                         + " metatiles");
+
+                scale = scales.get(level);
+
+                MapContent osmMap = openOSM();
+                MapContent oamMap = openOAM();
+
+                // the metatiles of the ground and the aviation map are put
+                // on the same pool, so that the two maps render concurrently
+                List<Future<Object>> futures = new ArrayList<Future<Object>>();
+
+                if (!patch) {
+                    futures.addAll(renderMapTileset(osmMap, "osm", level,
+                                                    osmMetatiles, osmTiles,
+                                                    osmManifest,
+                                                    osmDownsampler));
+                }
+                futures.addAll(renderMapTileset(oamMap, "oam", level,
+                                                oamMetatiles, oamTiles,
+                                                oamManifest,
+                                                oamDownsampler));
+
+                waitFor(futures);
+                metatileWriter.flush();
+
+                if (level == highLevel) {
+                    if (osmDownsampler != null) {
+                        osmDownsampler.finish();
+                    }
+                    if (oamDownsampler != null) {
+                        oamDownsampler.finish();
+                    }
+                }
+
+                osmMap.dispose();
+                oamMap.dispose();
+
+                System.out.println("Level " + level + " done.");
+            }
+        } finally {
+            renderPool.shutdownNow();
+            renderPool = null;
+            metatileWriter.close();
+            metatileWriter = null;
+
+            if (osmManifest != null) {
+                osmManifest.close();
+                oamManifest.close();
+            }
+        }
+
+        osmDataStore.dispose();
+        oamDataStore.dispose();
+
+        // finish the tile archives. this is not done on errors, so as not
+        // to replace a complete archive from an earlier run with a partial
+        System.out.println("Writing tile archives.");
+        if (osmSink != null) {
+            osmSink.close();
+        }
+        oamSink.close();
+    }
+
+    /**
+     * Render the aviation map into a tileset of Mapbox vector tiles. The
+     * features of each metatile are queried at once, reprojected into
+     * EPSG:900913 and simplified at the scale of the zoom level, and are
+     * then clipped and encoded into each tile of the metatile, see
+     * MvtEncoder. Empty tiles are not saved, except when patching changes,
+     * where they replace the tiles saved earlier.
+     *
+     * @param dir the output directory
+     * @throws IOException on I/O issues
+     * @throws FactoryException in CRS factory issues
+     * @throws TransformException on coordinate transformation issues
+     */
+    private void
+    renderVectorTileset(File dir)           throws IOException,
+                                                   TransformException,
+                                                   FactoryException {
+
+        final boolean patch = dirtyTiles != null;
+
+        final RenderManifest manifest = patch ? null
+                : new RenderManifest(new File(dir, VECTOR_TILESET
+                                                 + MANIFEST_SUFFIX),
+                                     forceOverwrite);
+        final TileSink sink = TileSinks.create(sinks, outputPath,
+                                               VECTOR_TILESET,
+                                               MvtEncoder.EXTENSION, true,
+                                               patch || !forceOverwrite);
+        final CoordinateReferenceSystem mercator =
+                                                CRS.decode("EPSG:900913");
+
+        renderPool = Executors.newFixedThreadPool(threads);
+
+        try {
+            for (int level = lowLevel; level <= highLevel; ++level) {
+                List<Metatile> metatiles = planMetatiles(level, manifest,
+                                                         false);
+
+                if (metatiles.isEmpty()) {
+                    System.out.println("No tiles to render for level "
+                                     + level);
+                    continue;
+                }
+
+                System.out.println("Rendering vector tiles for level "
+                         + level + ", scale: " + scales.get(level)
+                         + ", " + metatiles.size() + " metatiles");
+
+                // simplify to the size of a pixel at the scale of the level,
+                // there are 39.37 inches per meter
+                final double tolerance = scales.get(level) / 39.37d / dpi;
+
+                final Map<String, SimpleFeatureSource> sources =
+                                                        openVectorSources();
+
+                final int           lvl   = level;
+                final int           total = metatiles.size();
+                final AtomicInteger done  = new AtomicInteger();
+
+                List<Future<Object>> futures =
+                                        new ArrayList<Future<Object>>(total);
+                for (final Metatile metatile : metatiles) {
+                    futures.add(renderPool.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            renderVectorMetatile(sources, mercator, metatile,
+                                                 tolerance, sink, manifest,
+                                                 patch);
+
+                            System.out.println("Level " + lvl + ": "
+                                         + done.incrementAndGet() + "/"
+                                         + total + " metatiles rendered");
+
+                            return null;
+                        }
+                    }));
+                }
+
+                waitFor(futures);
+
+                System.out.println("Level " + level + " done.");
+            }
+        } finally {
+            renderPool.shutdownNow();
+            renderPool = null;
+
+            if (manifest != null) {
+                manifest.close();
+            }
+        }
+
+        osmDataStore.dispose();
+        oamDataStore.dispose();
+
+        // finish the tile archives. this is not done on errors, so as not
+        // to replace a complete archive from an earlier run with a partial
+        System.out.println("Writing tile archives.");
+        sink.close();
+    }
+
+    /**
+     * Open the feature sources of the aviation map feature types put into
+     * vector tiles.
+     *
+     * @return the feature sources, by feature name
+     * @throws IOException on I/O errors
+     */
+    private Map<String, SimpleFeatureSource>
+    openVectorSources() throws IOException {
+        Map<String, SimpleFeatureSource> sources =
+                                    new HashMap<String, SimpleFeatureSource>();
+
+        for (String[] layer : VECTOR_LAYERS) {
+            SimpleFeatureSource fs = oamDataStore.getFeatureSource(layer[0]);
+            if (featureCacheSize > 0) {
+                CachingFeatureSource cfs =
+                                new CachingFeatureSource(fs, featureCacheSize);
+                cfs.setMetrics(metrics, "oam." + layer[0]);
+                fs = cfs;
+            }
+            sources.put(layer[0], fs);
+        }
+
+        return sources;
+    }
+
+    /**
+     * Render the vector tiles of a metatile, and save them.
+     *
+     * @param sources the feature sources to query, by feature name
+     * @param mercator the EPSG:900913 CRS
+     * @param metatile the metatile to render
+     * @param tolerance the distance tolerance to simplify geometries by,
+     *        in meters
+     * @param sink the sink to save the tiles into
+     * @param manifest the manifest to record the metatile in once saved,
+     *        or null
+     * @param saveEmpty true to save empty tiles as well
+     * @throws IOException on I/O errors
+     * @throws FactoryException on CRS factory errors
+     * @throws TransformException the CRS transformation errors
+     */
+    private void
+    renderVectorMetatile(Map<String, SimpleFeatureSource>   sources,
+                         CoordinateReferenceSystem          mercator,
+                         Metatile                           metatile,
+                         double                             tolerance,
+                         TileSink                           sink,
+                         RenderManifest                     manifest,
+                         boolean                            saveEmpty)
+                                                     throws IOException,
+                                                            FactoryException,
+                                                            TransformException {
+
+        int level = metatile.getLevel();
+        int minX  = metatile.getX();
+        int minY  = metatile.getY();
+        int maxX  = minX + metatile.getWidth() - 1;
+        int maxY  = minY + metatile.getHeight() - 1;
+
+        // the buffer kept around each tile
+        Envelope area   = tile2MercatorBounds(minX, minY, level);
+        double   buffer = area.getWidth() * MvtEncoder.DEFAULT_BUFFER
+                        / MvtEncoder.DEFAULT_EXTENT;
+
+        area.expandToInclude(tile2MercatorBounds(maxX, maxY, level));
+        area.expandBy(buffer);
+
+        List<VectorFeature> features = new ArrayList<VectorFeature>();
+        for (String[] layer : VECTOR_LAYERS) {
+            SimpleFeatureSource fs = sources.get(layer[0]);
+
+            // cached feature sources record their own queries
+            long start = System.nanoTime();
+            int  count = features.size();
+            queryVectorFeatures(fs, layer[1], mercator, area, tolerance,
+                                features);
+            if (!(fs instanceof CachingFeatureSource)) {
+                metrics.recordTime("oam." + layer[0],
+                                   RenderMetrics.QUERY_TIME, start);
+                metrics.record("oam." + layer[0], RenderMetrics.FEATURES,
+                               features.size() - count);
+            }
+        }
+
+        long start = System.nanoTime();
+
+        for (int x = minX; x <= maxX; ++x) {
+            for (int y = minY; y <= maxY; ++y) {
+                if (tileCoverage != null
+                 && !tileCoverage.intersects(level, x, y)) {
+                    metrics.increment(VECTOR_TILESET, RenderMetrics.SKIPPED);
+                    continue;
+                }
+
+                Envelope   bounds = tile2MercatorBounds(x, y, level);
+                MvtEncoder tile   = new MvtEncoder(bounds,
+                                                MvtEncoder.DEFAULT_EXTENT,
+                                                MvtEncoder.DEFAULT_BUFFER);
+
+                Envelope clip = new Envelope(bounds);
+                clip.expandBy(buffer);
+                for (VectorFeature feature : features) {
+                    if (clip.intersects(
+                                feature.geometry.getEnvelopeInternal())) {
+                        tile.addFeature(feature.layer, feature.geometry,
+                                        feature.attributes);
+                    }
+                }
+
+                if (!tile.isEmpty() || saveEmpty) {
+                    long   encodeStart = System.nanoTime();
+                    byte[] data        = tile.encode();
+                    metrics.recordTime(VECTOR_TILESET,
+                                       RenderMetrics.ENCODE_TIME,
+                                       encodeStart);
+                    metrics.record(VECTOR_TILESET, RenderMetrics.BYTES,
+                                   data.length);
+                    sink.put(level, x, y, data);
+                } else {
+                    metrics.increment(VECTOR_TILESET, RenderMetrics.SKIPPED);
+                }
+            }
+        }
+        metrics.recordTime(VECTOR_TILESET, RenderMetrics.RENDER_TIME, start);
+
+        if (manifest != null) {
+            sink.flush();
+            manifest.add(metatile);
+        }
+    }
+
+    /**
+     * Query the features of a feature type in an area, reproject them
+     * into EPSG:900913 and simplify them.
+     *
+     * @param fs the feature source to query
+     * @param layer the name of the vector tile layer of the features
+     * @param mercator the EPSG:900913 CRS
+     * @param area the area to query, in EPSG:900913
+     * @param tolerance the distance tolerance to simplify geometries by,
+     *        in meters
+     * @param features the list to add the features to
+     * @throws IOException on I/O errors
+     * @throws FactoryException on CRS factory errors
+     * @throws TransformException the CRS transformation errors
+     */
+    private static void
+    queryVectorFeatures(SimpleFeatureSource         fs,
+                        String                      layer,
+                        CoordinateReferenceSystem   mercator,
+                        Envelope                    area,
+                        double                      tolerance,
+                        List<VectorFeature>         features)
+                                                     throws IOException,
+                                                            FactoryException,
+                                                            TransformException {
+
+        SimpleFeatureType         schema    = fs.getSchema();
+        CoordinateReferenceSystem fsCrs     =
+                                    schema.getCoordinateReferenceSystem();
+        ReferencedEnvelope        queryArea =
+                                    new ReferencedEnvelope(area, mercator);
+        MathTransform             transform = null;
+
+        if (fsCrs != null && !CRS.equalsIgnoreMetadata(fsCrs, mercator)) {
+            transform = CRS.findMathTransform(fsCrs, mercator, true);
+            queryArea = queryArea.transform(fsCrs, false);
+        }
+
+        FilterFactory2 ff   = CommonFactoryFinder.getFilterFactory2();
+        Filter         bbox = ff.bbox(ff.property(
+                                schema.getGeometryDescriptor().getLocalName()),
+                                queryArea);
+
+        List<AttributeDescriptor> descriptors =
+                                            schema.getAttributeDescriptors();
+
+        SimpleFeatureIterator it = fs.getFeatures(
+                        new Query(schema.getTypeName(), bbox)).features();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature feature = it.next();
+                Object        g       = feature.getDefaultGeometry();
+                if (!(g instanceof Geometry)) {
+                    continue;
+                }
+
+                Geometry geometry = (Geometry) g;
+                if (transform != null) {
+                    geometry = JTS.transform(geometry, transform);
+                }
+                geometry = MvtEncoder.simplify(geometry, tolerance);
+                if (geometry.isEmpty()) {
+                    continue;
+                }
+
+                Map<String, Object> attributes =
+                                        new LinkedHashMap<String, Object>();
+                for (int i = 0; i < descriptors.size(); ++i) {
+                    Object value = feature.getAttribute(i);
+                    if (value != null && !(value instanceof Geometry)) {
+                        attributes.put(descriptors.get(i).getLocalName(),
+                                       value);
+                    }
+                }
+
+                features.add(new VectorFeature(layer, geometry, attributes));
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Coordinate a distributed tileset rendering: write the work plan,
+     * wait for the workers to render all the work units, and merge their
+     * tile archives into the tileset. A coordinator started again continues
+     * with the work plan written earlier.
+     *
+     * @throws IOException on I/O errors
+     */
+    private void coordinateWorkUnits() throws IOException {
+        osmDataStore.dispose();
+        oamDataStore.dispose();
+
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new IOException("Could not create work directory "
+                                + workDir);
+        }
+
+        File                 plan = new File(workDir, PLAN_FILE);
+        List<List<Metatile>> units;
+        if (plan.exists()) {
+            units = readPlan(plan);
+            System.out.println("Continuing with the work plan in " + plan);
+        } else {
+            units = new ArrayList<List<Metatile>>();
+            for (int level = lowLevel; level <= highLevel; ++level) {
+                List<Metatile> metatiles = planMetatiles(level, null, false);
+
+                for (int i = 0; i < metatiles.size(); i += UNIT_METATILES) {
+                    units.add(new ArrayList<Metatile>(metatiles.subList(i,
+                            Math.min(i + UNIT_METATILES, metatiles.size()))));
+                }
+            }
+            writePlan(plan, units);
+        }
+
+        List<Integer> all = new ArrayList<Integer>(units.size());
+        for (int i = 0; i < units.size(); ++i) {
+            all.add(i);
+        }
+
+        System.out.println(units.size() + " work units planned in " + plan
+                         + ", waiting for workers");
+
+        // wait until all units are done, and all workers have finished
+        // their tile archives
+        LeaseManager leases = new LeaseManager(workDir,
+                                        LeaseManager.defaultOwner(),
+                                        LeaseManager.DEFAULT_LEASE_TIME);
+        try {
+            int reported = -1;
+            while (true) {
+                int done = leases.getDoneCount(all);
+                if (done != reported) {
+                    System.out.println(done + "/" + all.size()
+                                     + " work units done");
+                    reported = done;
+                }
+                if (done == all.size()
+                 && leases.getActiveMembers().isEmpty()) {
+                    break;
+                }
+
+                try {
+                    Thread.sleep(POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                                    "interrupted while waiting for workers");
+                }
+            }
+        } finally {
+            leases.close();
+        }
+
+        System.out.println("Merging worker tile archives.");
+        mergeWorkerTiles("osm", osmEncoder, false);
+        mergeWorkerTiles("oam", oamEncoder, true);
+    }
+
+    /**
+     * Merge the tile archives of the workers of a distributed rendering
+     * into a tileset. The archives of workers that died are completed with
+     * the tiles they flushed, which include those of all the work units
+     * they marked done.
+     *
+     * @param name the name of the tileset
+     * @param encoder the encoder the tiles are encoded with
+     * @param overlay true if the tileset is an overlay, false if it is a
+     *        base layer
+     * @throws IOException on I/O errors
+     */
+    private void
+    mergeWorkerTiles(String         name,
+                     TileEncoder    encoder,
+                     boolean        overlay) throws IOException {
+
+        File[] workers = new File(workDir, WORKERS_DIR).listFiles();
+        if (workers == null) {
+            workers = new File[0];
+        }
+        Arrays.sort(workers);
+
+        TileSink sink = TileSinks.create(sinks, outputPath, name, encoder,
+                                         overlay, false);
+        for (File worker : workers) {
+            File file = new File(worker, name + ".gemf");
+            if (GEMFWriter.finish(file.getPath())) {
+                System.out.println("Completed interrupted archive " + file);
+            }
+            if (!file.exists()) {
+                continue;
+            }
+
+            GEMFFile archive = new GEMFFile(file);
+            try {
+                System.out.println("Merged " + TileSinks.copy(archive, sink)
+                                 + " tiles from " + file);
+            } finally {
+                archive.close();
+            }
+        }
+        sink.close();
+    }
+
+    /**
+     * Render the work units of a distributed tileset rendering as a worker,
+     * until all the work units in the levels of this process are done. The
+     * tiles are saved into tile archives of this worker in the work
+     * directory, and are flushed before a work unit is marked done.
+     *
+     * @throws IOException on I/O errors
+     * @throws FactoryException in CRS factory issues
+     * @throws TransformException on coordinate transformation issues
+     */
+    private void renderWorkUnits()               throws IOException,
+                                                        TransformException,
+                                                        FactoryException {
+
+        // wait for the coordinator to write the work plan
+        File plan = new File(workDir, PLAN_FILE);
+        if (!plan.exists()) {
+            System.out.println("Waiting for the work plan in " + plan);
+        }
+        while (!plan.exists()) {
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                                    "interrupted while waiting for the plan");
+            }
+        }
+
+        List<List<Metatile>> units = readPlan(plan);
+        List<Integer>        mine  = new ArrayList<Integer>();
+        for (int i = 0; i < units.size(); ++i) {
+            int level = units.get(i).get(0).getLevel();
+            if (level >= lowLevel && level <= highLevel) {
+                mine.add(i);
+            }
+        }
+
+        LeaseManager leases = new LeaseManager(workDir,
+                                        LeaseManager.defaultOwner(),
+                                        LeaseManager.DEFAULT_LEASE_TIME);
+        try {
+            File dir = new File(new File(workDir, WORKERS_DIR),
+                                leases.getOwner());
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+            metricsReport = new File(dir, METRICS_REPORT).getPath();
+
+            System.out.println("Rendering work units as " + leases.getOwner()
+                    + ", " + (mine.size() - leases.getDoneCount(mine))
+                    + " of " + mine.size() + " remaining for levels "
+                    + lowLevel + "..." + highLevel);
+            leases.join();
+
+            renderWorkUnits(units, mine, leases, dir);
+        } finally {
+            leases.close();
+        }
+    }
+
+    /**
+     * Render work units claimed one by one, until all of them are done.
+     *
+     * @param units the work units of the work plan
+     * @param mine the indexes of the work units to render
+     * @param leases the lease manager to claim the work units through
+     * @param dir the directory to save the tile archives of this worker in
+     * @throws IOException on I/O errors
+     * @throws FactoryException in CRS factory issues
+     * @throws TransformException on coordinate transformation issues
+     */
+    private void
+    renderWorkUnits(List<List<Metatile>>    units,
+                    List<Integer>           mine,
+                    LeaseManager            leases,
+                    File                    dir)    throws IOException,
+                                                           TransformException,
+                                                           FactoryException {
+
+        // the worker archives continue with the tiles of an earlier run
+        TileSink osmSink = TileSinks.create("gemf", dir.getPath(), "osm",
+                                            osmEncoder, false, true);
+        TileSink oamSink = TileSinks.create("gemf", dir.getPath(), "oam",
+                                            oamEncoder, true, true);
+        TileDeduplicator osmTiles = new TileDeduplicator(osmEncoder, osmSink,
+                                        TileDeduplicator.DEFAULT_CACHE_SIZE);
+        TileDeduplicator oamTiles = new TileDeduplicator(oamEncoder, oamSink,
+                                        TileDeduplicator.DEFAULT_CACHE_SIZE);
+        osmTiles.setMetrics(metrics, "osm");
+        oamTiles.setMetrics(metrics, "oam");
+
+        renderPool     = Executors.newFixedThreadPool(threads);
+        metatileWriter = new MetatileWriter(threads, threads);
+        metatileWriter.setCoverage(tileCoverage);
+
+        MapContent osmMap   = null;
+        MapContent oamMap   = null;
+        int        mapLevel = -1;
+        try {
+            int unit;
+            while ((unit = leases.acquire(mine)) >= 0) {
+                List<Metatile> metatiles = units.get(unit);
+                int            level     = metatiles.get(0).getLevel();
+
+                // the maps are opened for the scale of the level, and
+                // units come in the order of levels
+                if (level != mapLevel) {
+                    if (osmMap != null) {
+                        osmMap.dispose();
+                        oamMap.dispose();
+                    }
+                    scale    = scales.get(level);
+                    osmMap   = openOSM();
+                    oamMap   = openOAM();
+                    mapLevel = level;
+                }
+
+                List<Future<Object>> futures = new ArrayList<Future<Object>>();
+                futures.addAll(renderMapTileset(osmMap, "osm", level,
+                                                metatiles, osmTiles,
+                                                null, null));
+                futures.addAll(renderMapTileset(oamMap, "oam", level,
+                                                metatiles, oamTiles,
+                                                null, null));
+                waitFor(futures);
+                metatileWriter.flush();
+
+                // make the tiles durable before marking the unit done
+                osmSink.flush();
+                oamSink.flush();
+                leases.complete(unit);
+
+                System.out.println("Work unit " + unit + " done.");
+            }
+
+            if (osmMap != null) {
+                osmMap.dispose();
+                oamMap.dispose();
+            }
+        } finally {
+            renderPool.shutdownNow();
+            renderPool = null;
+            metatileWriter.close();
+            metatileWriter = null;
+        }
 
-        if (coverage == null) {
-            scale = scales.get(highLevel);
-            MapContent osmMap = openOSM();
-            MapContent oamMap = openOAM();
+        osmDataStore.dispose();
+        oamDataStore.dispose();
 
-            mapBounds = calcCoverage(osmMap, oamMap,
-                                     DefaultGeographicCRS.WGS84);
+        System.out.println("Writing tile archives.");
+        osmSink.close();
+        oamSink.close();
+    }
 
-            osmMap.dispose();
-            oamMap.dispose();
-        } else {
-            mapBounds = transformCoverage(coverage, DefaultGeographicCRS.WGS84);
+    /**
+     * Write the work plan of a distributed rendering: a line for each
+     * metatile, with the index of its work unit, its level, x and y
+     * coordinates, width and height. The plan is written under a temporary
+     * name first, so that workers never see a partial plan.
+     *
+     * @param plan the work plan file
+     * @param units the work units, lists of metatiles
+     * @throws IOException on I/O errors
+     */
+    private static void
+    writePlan(File plan, List<List<Metatile>> units) throws IOException {
+        File        tmp = new File(plan.getPath() + ".tmp");
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                                                    new FileWriter(tmp)));
+        try {
+            for (int i = 0; i < units.size(); ++i) {
+                for (Metatile m : units.get(i)) {
+                    out.println(i + " " + m.getLevel() + " " + m.getX() + " "
+                              + m.getY() + " " + m.getWidth() + " "
+                              + m.getHeight());
+                }
+            }
+        } finally {
+            out.close();
         }
 
-        for (int level = lowLevel; level <= highLevel; ++level) {
-            System.out.println("Rendering tiles for level " + level
-                         + ", at dpi " + dpi + ", scale: " + scales.get(level));
+        if (out.checkError()) {
+            throw new IOException("Could not write " + tmp);
+        }
+        if (!tmp.renameTo(plan)) {
+            throw new IOException("Could not rename " + tmp + " to " + plan);
+        }
+    }
 
-            scale = scales.get(level);
+    /**
+     * Read the work plan of a distributed rendering, see writePlan().
+     *
+     * @param plan the work plan file
+     * @return the work units, lists of metatiles
+     * @throws IOException on I/O errors, or if the plan is not valid
+     */
+    private static List<List<Metatile>>
+    readPlan(File plan) throws IOException {
+        List<List<Metatile>> units = new ArrayList<List<Metatile>>();
 
-            MapContent osmMap = openOSM();
+        BufferedReader in = new BufferedReader(new FileReader(plan));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                StringTokenizer tok = new StringTokenizer(line);
+                if (tok.countTokens() != 6) {
+                    throw new IOException("Invalid work plan line: " + line);
+                }
 
-            renderMapTileset(osmMap, level,
-                         outputPath + File.separator + "osm" + File.separator);
+                int[] v = new int[6];
+                try {
+                    for (int i = 0; i < v.length; ++i) {
+                        v[i] = Integer.parseInt(tok.nextToken());
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid work plan line: " + line);
+                }
 
-            osmMap.dispose();
+                if (v[0] == units.size()) {
+                    units.add(new ArrayList<Metatile>());
+                } else if (v[0] != units.size() - 1) {
+                    throw new IOException("Invalid work plan line: " + line);
+                }
+                units.get(v[0]).add(new Metatile(v[1], v[2], v[3], v[4],
+                                                 v[5]));
+            }
+        } finally {
+            in.close();
+        }
 
-            MapContent oamMap = openOAM();
+        return units;
+    }
 
-            renderMapTileset(oamMap, level,
-                        outputPath + File.separator + "oam" + File.separator);
+    /**
+     * Split a zoom level of the tileset into the metatiles to render. A
+     * level started earlier, as recorded in the manifest, is split by the
+     * same metatile size as before, otherwise the size is chosen by the
+     * metatile sizer. When patching changes, only the metatiles affected
+     * by the changes are returned.
+     *
+     * The lower levels of a downsampled map are not rendered at all, and
+     * its highest level is split by a power of two metatile size, aligned
+     * to the metatile grid, so that few downsampled tiles have to wait for
+     * the tiles of another metatile.
+     *
+     * Metatiles outside the area with data, if set, are left out.
+     *
+     * @param level the zoom level to split
+     * @param manifest the manifest of the metatiles rendered earlier, or
+     *        null
+     * @param downsample true if the map is downsampled, see
+     *        TileDownsampler
+     * @return the metatiles to render at level
+     */
+    private List<Metatile>
+    planMetatiles(int level, RenderManifest manifest, boolean downsample) {
+        if (downsample && level < highLevel) {
+            return new ArrayList<Metatile>(0);
+        }
 
-            oamMap.dispose();
+        Rectangle tileBounds = getTileBounds(mapBounds, level);
 
-            System.out.println("Level " + level + " done.");
+        int size = manifest == null ? 0 : manifest.getMetatileSize(level);
+        if (size == 0) {
+            // tile bounds are inclusive
+            long tileCount = (long) (tileBounds.width + 1)
+                           * (tileBounds.height + 1);
+            size = metatileSizer.getSize(level, tileCount);
         }
 
-        osmDataStore.dispose();
-        oamDataStore.dispose();
+        List<Metatile> metatiles;
+        if (dirtyTiles != null) {
+            metatiles = dirtyTiles.getMetatiles(tileBounds, level, size,
+                                                RENDERING_BUFFER);
+        } else if (downsample) {
+            metatiles = Metatile.splitAligned(tileBounds, level,
+                                              Integer.highestOneBit(size));
+        } else {
+            metatiles = Metatile.split(tileBounds, level, size);
+        }
 
-        // create the GEMF files, for mobile use
-        // first the Open Street Map GEMF file
-        List<File> sourceFolders = new ArrayList<File>();
-        sourceFolders.add(new File(outputPath + File.separator + "osm"));
-        String destFile = outputPath + File.separator + "osm.gemf";
-        GEMFFile gemffile = new GEMFFile(destFile, sourceFolders);
-        gemffile.close();
+        if (tileCoverage != null) {
+            metatiles = tileCoverage.filter(metatiles);
+        }
 
-        // then the Open Aviation Map GEMF file
-        sourceFolders.clear();
-        sourceFolders.add(new File(outputPath + File.separator + "oam"));
-        destFile = outputPath + File.separator + "oam.gemf";
-        gemffile = new GEMFFile(destFile, sourceFolders);
-        gemffile.close();
+        return manifest == null ? metatiles : manifest.remaining(metatiles);
     }
 
     /**
-     * Render a tiles for a particular map.
+     * Render a tiles for a particular map. The metatiles are submitted
+     * to the render pool, and are rendered asynchronously.
      *
      * @param map the map to render
+     * @param name the name of the map, to record metrics as
      * @param level the zoom level to render at
-     * @param outputBase the base output path to render tiles into
+     * @param metatiles the metatiles to render
+     * @param tiles the deduplicator to encode and save the tiles with
+     * @param manifest the manifest to record the metatiles rendered in,
+     *        or null
+     * @param downsampler the downsampler to build lower levels with from
+     *        the tiles rendered, or null
+     * @return the tasks rendering the metatiles of the map
      * @throws IOException on I/O errors
      * @throws FactoryException on CRS factory errors
      * @throws TransformException the CRS transformation errors
      */
-    private void
-    renderMapTileset(MapContent         map,
-                     int                level,
-                     String             outputBase)
+    private List<Future<Object>>
+    renderMapTileset(final MapContent           map,
+                     final String               name,
+                     final int                  level,
+                     final List<Metatile>       metatiles,
+                     final TileDeduplicator     tiles,
+                     final RenderManifest       manifest,
+                     final TileDownsampler      downsampler)
                                                      throws IOException,
                                                             FactoryException,
                                                             TransformException {
 
-        refCrs = crs == null ? map.getCoordinateReferenceSystem()
-                             : crs;
-
-        Rectangle tileBounds = getTileBounds(mapBounds, level);
-
-        boolean allExist = allTilesExist(outputBase, level,
-                                         (int) tileBounds.getMinX(),
-                                         (int) tileBounds.getMinY(),
-                                         (int) tileBounds.getWidth(),
-                                         (int) tileBounds.getHeight());
-
-        if (allExist && !forceOverwrite) {
-            System.out.println("All tiles for level " + level + " already exist"
-                             + ", specify --force to overwrite");
-
-            return;
-        }
-
-
-        int x = (int) tileBounds.getMinX();
-        while (x <= (int) tileBounds.getMaxX()) {
-
-            int metatileWidth = x + METATILE_SIZE <= (int) tileBounds.getMaxX()
-                              ? METATILE_SIZE
-                              : ((int) tileBounds.getMaxX()) - x + 1;
+        final CoordinateReferenceSystem mapCrs =
+                        crs == null ? map.getCoordinateReferenceSystem() : crs;
 
-            int y = (int) tileBounds.getMinY();
-            while (y <= (int) tileBounds.getMaxY()) {
+        // each worker thread re-uses its renderer for all its metatiles
+        final ThreadLocal<GTRenderer> renderers = createRenderers(map);
 
-                int metatileHeight =
-                                y + METATILE_SIZE <= (int) tileBounds.getMaxY()
-                                ? METATILE_SIZE
-                                : ((int) tileBounds.getMaxY()) - y + 1;
+        final int           total = metatiles.size();
+        final AtomicInteger done  = new AtomicInteger();
 
-                // check to see if all tiles for this metatile exist
-                // now we have the metatile, cut it up and save it as tiles
-                allExist = allTilesExist(outputBase, level, x, y,
-                                         metatileWidth, metatileHeight);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(total);
+        for (final Metatile metatile : metatiles) {
+            futures.add(renderPool.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    renderMetatile(renderers.get(), mapCrs, name, metatile,
+                                   tiles, manifest, downsampler);
 
-                if (allExist) {
-                    System.out.println("Tiles " + level + File.separator
-                            + x + ".." + (x + metatileWidth - 1)
-                                                            + File.separator
-                            + y + ".." + (y + metatileHeight - 1)
-                            + " already exist, specify --force to overwrite");
+                    System.out.println("Level " + level + ": "
+                                     + done.incrementAndGet() + "/" + total
+                                     + " metatiles rendered");
 
-                    y += metatileHeight;
-
-                    continue;
+                    return null;
                 }
+            }));
+        }
 
-                System.out.println("Rendering tiles " + level + File.separator
-                        + x + ".." + (x + metatileWidth - 1) + File.separator
-                        + y + ".." + (y + metatileHeight - 1));
-
-                Rectangle rTile = new Rectangle(TILE_SIZE * metatileWidth,
-                                                TILE_SIZE * metatileHeight);
-
-                ReferencedEnvelope c = tile2BoundingBox(x, y, level);
-                ReferencedEnvelope d = tile2BoundingBox(x + metatileWidth - 1,
-                                                        y + metatileHeight - 1,
-                                                        level);
-                c.expandToInclude(d);
-                c = c.transform(refCrs, false);
-
-                // first, generate the ground map
-                PlanarImage image = renderMap(map, rTile, c);
-
-                // now we have the metatile, cut it up and save it as tiles
-                for (int i = x; i < x + metatileWidth; ++i) {
-                    File tileDir = new File(outputBase + File.separator + level
-                                                       + File.separator + i);
+        return futures;
+    }
 
-                    if (!tileDir.exists() && !tileDir.mkdirs()) {
-                        throw new IllegalArgumentException(
-                                             "Could not create tile dir "
-                                              + tileDir.getAbsolutePath());
-                    }
+    /**
+     * Render a single metatile, and hand it over to the metatile writer
+     * to be cut up and saved as tiles.
+     *
+     * @param renderer the renderer to use, set up for the map to render
+     * @param mapCrs the CRS of the map to render
+     * @param name the name of the map, to record metrics as
+     * @param metatile the metatile to render
+     * @param tiles the deduplicator to encode and save the tiles with
+     * @param manifest the manifest to record the metatile in once saved,
+     *        or null
+     * @param downsampler the downsampler to build lower levels with from
+     *        the tiles rendered, or null
+     * @throws IOException on I/O errors
+     * @throws FactoryException on CRS factory errors
+     * @throws TransformException the CRS transformation errors
+     */
+    private void
+    renderMetatile(GTRenderer                   renderer,
+                   CoordinateReferenceSystem    mapCrs,
+                   String                       name,
+                   Metatile                     metatile,
+                   TileDeduplicator             tiles,
+                   RenderManifest               manifest,
+                   TileDownsampler              downsampler)
+                                                     throws IOException,
+                                                            FactoryException,
+                                                            TransformException {
 
-                    for (int j = y; j < y + metatileHeight; ++j) {
+        int level          = metatile.getLevel();
+        int x              = metatile.getX();
+        int y              = metatile.getY();
+        int metatileWidth  = metatile.getWidth();
+        int metatileHeight = metatile.getHeight();
 
-                        String fileName = tileDir.getAbsolutePath()
-                                                + File.separator + j + ".png";
+        System.out.println("Rendering tiles " + metatile);
 
-                        File f = new File(fileName);
+        Rectangle rTile = new Rectangle(TILE_SIZE * metatileWidth,
+                                        TILE_SIZE * metatileHeight);
 
-                        if (f.exists() && !forceOverwrite) {
-                            continue;
-                        }
+        ReferencedEnvelope c = tile2BoundingBox(x, y, level);
+        ReferencedEnvelope d = tile2BoundingBox(x + metatileWidth - 1,
+                                                y + metatileHeight - 1,
+                                                level);
+        c.expandToInclude(d);
+        c = c.transform(mapCrs, false);
 
-                        Rectangle r = new Rectangle((i - x) * TILE_SIZE,
-                                                    (j - y) * TILE_SIZE,
-                                                    TILE_SIZE, TILE_SIZE);
-                        BufferedImage tile = image.getAsBufferedImage(r, null);
+        long        start = System.nanoTime();
+        PlanarImage image = renderMap(renderer, rTile, c);
+        metatileSizer.record(metatile, System.nanoTime() - start);
+        metrics.recordTime(name, RenderMetrics.RENDER_TIME, start);
 
-                        // save the tile
-                        JAI.create("filestore", tile, fileName, "PNG", null);
-                    }
-                }
+        // now we have the metatile, have it cut up and saved as tiles
+        // while the next metatile is rendered
+        metatileWriter.write(metatile, image, tiles, manifest, downsampler);
+    }
 
-                image.dispose();
+    /**
+     * Wait for a number of tasks to complete. If any of the tasks fail,
+     * the remaining ones are cancelled, and the error is re-thrown.
+     *
+     * @param <T> the type of the results of the tasks
+     * @param futures the tasks to wait for
+     * @return the results of the tasks, in the order of futures
+     * @throws IOException on I/O errors, or if interrupted while waiting
+     * @throws FactoryException on CRS factory errors
+     * @throws TransformException the CRS transformation errors
+     */
+    private static <T> List<T>
+    waitFor(List<? extends Future<? extends T>> futures)
+                                                     throws IOException,
+                                                            FactoryException,
+                                                            TransformException {
+        List<T> results = new ArrayList<T>(futures.size());
 
-                y += metatileHeight;
+        try {
+            for (Future<? extends T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while rendering", e);
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof FactoryException) {
+                throw (FactoryException) cause;
+            } else if (cause instanceof TransformException) {
+                throw (TransformException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
 
-            x += metatileWidth;
+            throw new IOException(cause);
         }
+
+        return results;
     }
 
     /**
-     * Check to see if all tiles exist for a given set of tiles.
+     * Cancel a number of tasks.
      *
-     * @param outputBase the base directory where the tiles are generated
-     * @param level the zoom level
-     * @param x the left-most tile
-     * @param y the upper-most tile
-     * @param width the width of the tile area to check for
-     * @param height the height of the tile area to check for
-     * @return true if all tile files exist, false otherwise
+     * @param futures the tasks to cancel
      */
-    private boolean
-    allTilesExist(String    outputBase,
-                  int       level,
-                  int       x,
-                  int       y,
-                  int       width,
-                  int       height) {
-
-        for (int i = x; i <= x + width; ++i) {
-            File tileDir = new File(outputBase + File.separator + level
-                                               + File.separator + i);
-
-            System.out.println("tileDir: " + tileDir.getAbsolutePath());
-            for (int j = y; j <= y + height; ++j) {
-                String fileName = tileDir.getAbsolutePath()
-                                        + File.separator + j + ".png";
-
-                File f = new File(fileName);
-
-                System.out.println("fileName: " + fileName
-                                 + ", exists: " + f.exists());
-
-                if (!f.exists()) {
-                    return false;
-                }
-            }
+    private static void
+    cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
         }
-
-        return true;
     }
 
     /**
@@ -1276,6 +3314,25 @@ public final class RenderMap {
                                       DefaultGeographicCRS.WGS84);
     }
 
+    /**
+     * Generate the EPSG:900913 bounds of a particular tile at a particular
+     * zoom level.
+     *
+     * @param x the x tile coordinate
+     * @param y the y tile coordinate
+     * @param zoom the zoom level
+     * @return the bounds of the tile, in EPSG:900913 meters
+     */
+    private static Envelope
+    tile2MercatorBounds(final int x, final int y, final int zoom) {
+        double size = 2 * MERCATOR_HALF_WORLD / (1 << zoom);
+
+        return new Envelope(x * size - MERCATOR_HALF_WORLD,
+                            (x + 1) * size - MERCATOR_HALF_WORLD,
+                            MERCATOR_HALF_WORLD - (y + 1) * size,
+                            MERCATOR_HALF_WORLD - y * size);
+    }
+
     /**
      * Convert a tile x coordinate into a longitude value in degrees, at
      * a particular zoom level.
@@ -1306,29 +3363,32 @@ public final class RenderMap {
     }
 
     /**
-     * Add a lattice (grid) layer to a map.
+     * Add a lattice (grid) layer to a map. The lattice is generated once for
+     * each zoom level, and is spatially indexed, so that only the pieces of
+     * lines within a metatile or strip are rendered with it.
      *
      * @param map the map to add the lattice layer to
+     * @param zoom the zoom level to clip the lattice along the tiles of
      * @throws FactoryException if some factories are not found
      * @throws TransformException on CRS transformation issues
      * @throws IOException on I/O errors
      */
     private void
-    addLatticeLayer(MapContent map)
+    addLatticeLayer(MapContent map, int zoom)
                                                     throws TransformException,
                                                            FactoryException,
                                                            IOException {
 
-        ReferencedEnvelope b = mapBounds.transform(DefaultGeographicCRS.WGS84,
-                                                   false);
+        if (lattice == null) {
+            ReferencedEnvelope b = mapBounds.transform(
+                                        DefaultGeographicCRS.WGS84, false);
 
-        b = noramlizeEnvelope(b);
+            b = noramlizeEnvelope(b);
 
-        // Specify vertex spacing to get "densified" polygons
-        double vertexSpacing = 0.1;
-        SimpleFeatureSource grid = Lines.createOrthoLines(b,
-                                                          GRID_DEF,
-                                                          vertexSpacing);
+            // Specify vertex spacing to get "densified" polygons
+            lattice = new LatticeGrid(b, GRID_DEF, LATTICE_VERTEX_SPACING);
+        }
+        SimpleFeatureSource grid = lattice.getFeatures(zoom);
 
         // get the style by parsing & scaling an SLD
         Style style;
@@ -1342,11 +3402,9 @@ public final class RenderMap {
             return;
         }
 
-        // add the layer to the map
-        Query query = new Query(Query.ALL);
-        query.setCoordinateSystemReproject(crs);
-
-        FeatureLayer layer = new FeatureLayer(grid.getFeatures(query), style);
+        // add the layer to the map, the renderer queries and reprojects
+        // the pieces of lines within the area rendered
+        FeatureLayer layer = new FeatureLayer(grid, style);
 
         map.addLayer(layer);
     }
@@ -1395,47 +3453,69 @@ public final class RenderMap {
     }
 
     /**
-     * Draw the static labels on the rendered map, like scale, title, etc.
+     * Draw the static labels around the rendered map, like scale, title,
+     * etc, and a frame around the map. Only the labels near an area of the
+     * image are drawn, so that the legend is not drawn in whole for each
+     * strip of the image.
      *
-     * @param mapImage the map image to draw around
-     * @return an extended image, with the labels around the original map image
+     * @param gr the graphics to draw with, in the coordinates of the whole
+     *        image
+     * @param bounds the bounds of the whole image
+     * @param mapRect the area of the map within bounds, the labels are
+     *        drawn on the edges around it
+     * @param area the area of the image to draw the labels of
+     * @param gridLabels the grid labels placed by createGridLabels()
      * @throws FactoryException on CRS conversion errors
      * @throws TransformException on CRS conversion errors
      */
-    private DiskMemImage
-    drawLegend(DiskMemImage         mapImage) throws TransformException,
-                                                     FactoryException {
-
-        // expand our original image at 3.5% on top & bottom, at 1.5% on the
-        // sides
-        Rectangle bounds = mapImage.getBounds();
-        int edgeHeight = (int) (bounds.height * .035);
-        int edgeWidth  = (int) (bounds.height * .015);
-
-        DiskMemImage image = new DiskMemImage(
-                                        0, 0,
-                                        mapImage.getWidth() + 2 * edgeWidth,
-                                        mapImage.getHeight() + 2 * edgeHeight,
-                                        0, 0,
-                                        mapImage.getSampleModel(),
-                                        mapImage.getColorModel());
-
-        // get a graphics object & create a while fill
-        Graphics2D gr = image.createGraphics();
-        bounds = image.getBounds();
-        gr.setColor(Color.WHITE);
-        gr.fill(bounds);
+    private void
+    drawLegend(Graphics2D           gr,
+               Rectangle            bounds,
+               Rectangle            mapRect,
+               Rectangle            area,
+               List<GridLabel>      gridLabels) throws TransformException,
+                                                       FactoryException {
 
-        // draw the original map on our image
-        gr.drawRenderedImage(mapImage, new AffineTransform(1.0, 0, 0, 1.0,
-                                                        edgeWidth, edgeHeight));
+        int edgeHeight = mapRect.y;
+        int edgeWidth  = mapRect.x;
 
         // draw a frame around the map
         gr.setColor(Color.BLACK);
         gr.setStroke(new BasicStroke((int) (bounds.height * .002)));
-        gr.draw(new Rectangle(edgeWidth, edgeHeight,
-                              bounds.width - 2 * edgeWidth,
-                              bounds.height - 2 * edgeHeight));
+        gr.draw(mapRect);
+
+        // draw grid line values
+        drawGridLabels(gridLabels, (int) (edgeWidth * .3), area, gr);
+
+        // the labels on the top and the bottom edge are drawn only near
+        // these edges, allowing for labels reaching a bit into the map
+        if (area.intersects(new Rectangle(0, 0, bounds.width,
+                                          2 * edgeHeight))) {
+            drawLegendTop(gr, bounds, mapRect);
+        }
+        if (area.intersects(new Rectangle(0, bounds.height - 2 * edgeHeight,
+                                          bounds.width, 2 * edgeHeight))) {
+            drawLegendBottom(gr, bounds, mapRect);
+        }
+    }
+
+    /**
+     * Draw the labels on the top edge of the map: the title, the scale and
+     * the projection.
+     *
+     * @param gr the graphics to draw with, in the coordinates of the whole
+     *        image
+     * @param bounds the bounds of the whole image
+     * @param mapRect the area of the map within bounds
+     * @throws FactoryException on CRS conversion errors
+     */
+    private void
+    drawLegendTop(Graphics2D            gr,
+                  Rectangle             bounds,
+                  Rectangle             mapRect) throws FactoryException {
+
+        int edgeHeight = mapRect.y;
+        int edgeWidth  = mapRect.x;
 
         // set a large bold font
         gr.setFont(getFont("Arial", Font.BOLD, (int) (edgeHeight * .50),
@@ -1486,6 +3566,27 @@ public final class RenderMap {
             gr.drawString(projStr2, edgeWidth, (int) ((edgeHeight * .55)
                                  + (strR.getHeight() - fm.getDescent()) / 2.0));
         }
+    }
+
+    /**
+     * Draw the labels on the bottom edge of the map: the license logo, the
+     * project reference, the validity and the scale bars.
+     *
+     * @param gr the graphics to draw with, in the coordinates of the whole
+     *        image
+     * @param bounds the bounds of the whole image
+     * @param mapRect the area of the map within bounds
+     */
+    private void
+    drawLegendBottom(Graphics2D         gr,
+                     Rectangle          bounds,
+                     Rectangle          mapRect) {
+
+        int edgeHeight = mapRect.y;
+        int edgeWidth  = mapRect.x;
+        FontMetrics fm;
+        Rectangle2D strR;
+        String str;
 
         // draw a CC-by-sa logo unto the lower right
         int ccLogoOffset = 0;
@@ -1557,14 +3658,6 @@ public final class RenderMap {
                              gr,
                              bounds,
                              edgeHeight);
-
-        // draw grid line values
-        drawGridLabels(mapImage, bounds, edgeHeight, edgeWidth, gr);
-
-        // clean up
-        gr.dispose();
-
-        return image;
     }
 
     /**
@@ -1592,28 +3685,29 @@ public final class RenderMap {
     }
 
     /**
-     * Draw labels for the grid lines outside the map.
+     * Place the labels for the grid lines outside the map.
      *
-     * @param mapImage the image of the original map
+     * @param mapRect the area of the map within bounds
      * @param bounds the bounds of the image to draw on
      * @param edgeHeight the height of the edge area to draw, this extends
      *        beyond the map image
      * @param edgeWidth the width of the edge area to draw, this extends
      *        beyond the map image
-     * @param gr the graphics object to draw into
+     * @return the grid labels
      * @throws FactoryException on CRS transformation errors
      * @throws TransformException on CRS transformation errors
      */
-    private void
-    drawGridLabels(DiskMemImage         mapImage,
-                   Rectangle            bounds,
-                   int                  edgeHeight,
-                   int                  edgeWidth,
-                   Graphics2D           gr) throws FactoryException,
-                                                   TransformException {
+    private List<GridLabel>
+    createGridLabels(Rectangle          mapRect,
+                     Rectangle          bounds,
+                     int                edgeHeight,
+                     int                edgeWidth) throws FactoryException,
+                                                         TransformException {
+
+        List<GridLabel> labels = new ArrayList<GridLabel>();
 
         AffineTransform ws = RendererUtilities.worldToScreenTransform(
-                                              mapBounds, mapImage.getBounds());
+                    mapBounds, new Rectangle(mapRect.width, mapRect.height));
 
         OrthoLineDef hDef = null;
         OrthoLineDef vDef = null;
@@ -1654,7 +3748,6 @@ public final class RenderMap {
 
         wgs84Bounds = noramlizeEnvelope(wgs84Bounds);
 
-
         int fontSize = (int) (edgeWidth * .3);
 
         if (hDef != null && vDef != null) {
@@ -1673,11 +3766,10 @@ public final class RenderMap {
                 wgs84ToMapT.transform(p1, 0, p2, 0, 1);
                 // transform from map coordinates to screen coordinates
                 ws.transform(p2,  0, p3, 0, 1);
-                drawGridLabel(bounds.width - edgeWidth,
-                              (int) (edgeHeight + p3[1]),
-                              fontSize,
-                              Alignment.RIGHT, Rotation.CW,
-                              p1[1], gr);
+                labels.add(new GridLabel(bounds.width - edgeWidth,
+                                         (int) (edgeHeight + p3[1]),
+                                         Alignment.RIGHT, Rotation.CW,
+                                         p1[1]));
 
                 // draw on the west edge
                 p1 = new double[] {wgs84Bounds.getMinX(), v};
@@ -1686,11 +3778,10 @@ public final class RenderMap {
                 wgs84ToMapT.transform(p1, 0, p2, 0, 1);
                 // transform from map coordinates to screen coordinates
                 ws.transform(p2,  0, p3, 0, 1);
-                drawGridLabel(edgeWidth,
-                              (int) (edgeHeight + p3[1]),
-                              fontSize,
-                              Alignment.LEFT, Rotation.CCW,
-                              p1[1], gr);
+                labels.add(new GridLabel(edgeWidth,
+                                         (int) (edgeHeight + p3[1]),
+                                         Alignment.LEFT, Rotation.CCW,
+                                         p1[1]));
             }
 
             double maxHorizontal = wgs84Bounds.getMaxX();
@@ -1707,11 +3798,10 @@ public final class RenderMap {
                 wgs84ToMapT.transform(p1, 0, p2, 0, 1);
                 // transform from map coordinates to screen coordinates
                 ws.transform(p2,  0, p3, 0, 1);
-                drawGridLabel((int) (edgeWidth + p3[0]),
-                              edgeHeight,
-                              fontSize,
-                              Alignment.CENTER, Rotation.NONE,
-                              p1[0], gr);
+                labels.add(new GridLabel((int) (edgeWidth + p3[0]),
+                                         edgeHeight,
+                                         Alignment.CENTER, Rotation.NONE,
+                                         p1[0]));
 
                 // draw on the south edge
                 p1 = new double[] {v, wgs84Bounds.getMinY()};
@@ -1720,11 +3810,39 @@ public final class RenderMap {
                 wgs84ToMapT.transform(p1, 0, p2, 0, 1);
                 // transform from map coordinates to screen coordinates
                 ws.transform(p2,  0, p3, 0, 1);
-                drawGridLabel((int) (edgeWidth + p3[0]),
-                              bounds.height - edgeHeight + fontSize * 2,
-                              fontSize,
-                              Alignment.CENTER, Rotation.NONE,
-                              p1[0], gr);
+                labels.add(new GridLabel((int) (edgeWidth + p3[0]),
+                                         bounds.height - edgeHeight
+                                                       + fontSize * 2,
+                                         Alignment.CENTER, Rotation.NONE,
+                                         p1[0]));
+            }
+        }
+
+        return labels;
+    }
+
+    /**
+     * Draw the grid labels near an area of the image.
+     *
+     * @param labels the grid labels placed by createGridLabels()
+     * @param size the size of the font to use
+     * @param area the area of the image to draw the labels of
+     * @param gr the graphics object used for drawing
+     */
+    private void
+    drawGridLabels(List<GridLabel>  labels,
+                   int              size,
+                   Rectangle        area,
+                   Graphics2D       gr) {
+
+        // a label is drawn within a few font sizes of its position
+        int margin = 8 * size;
+
+        for (GridLabel label : labels) {
+            if (label.y >= area.y - margin
+             && label.y < area.y + area.height + margin) {
+                drawGridLabel(label.x, label.y, size, label.align,
+                              label.rotation, label.degree, gr);
             }
         }
     }
@@ -2049,39 +4167,6 @@ public final class RenderMap {
                       (int) (y + 2 * scaleHeight + strR.getHeight()));
     }
 
-    /**
-     * Combine two image files into a third one, but superimposing the two
-     * images with each other.
-     *
-     * @param osmImage the lower layer to combine
-     * @param oamImage the upper layer to combine
-     * @return the combined image
-     * @throws IOException on I/O errors
-     */
-    private DiskMemImage
-    combineImages(PlanarImage   osmImage,
-                  PlanarImage   oamImage)
-                                                        throws IOException {
-
-        ColorModel cm = ColorModel.getRGBdefault();
-        SampleModel sm = cm.createCompatibleSampleModel(1024, 1024);
-
-        DiskMemImage image = new DiskMemImage(0, 0,
-                                        imageBounds.width, imageBounds.height,
-                                        0, 0, sm, cm);
-
-        Graphics2D gr = image.createGraphics();
-        gr.setPaint(Color.WHITE);
-        gr.fill(imageBounds);
-
-        gr.drawRenderedImage(osmImage, new AffineTransform());
-        gr.drawRenderedImage(oamImage, new AffineTransform());
-
-        gr.dispose();
-
-        return image;
-    }
-
     /**
      * Parse a db parameter string, and create a parameter object that
      * is acceptable by the GeoTools DataStoreFinder.
@@ -2118,20 +4203,39 @@ public final class RenderMap {
      * @param featureName the name of the feature from the data store
      * @param styleName the name of the SLD file to use
      * @param map the map to add the layer to
+     * @param sources the feature sources of the map opened so far, by
+     *        feature name
      * @throws IOException on I/O errors
      * @throws FactoryException on CRS factory errors
      */
     private void
-    addLayer(DataStore                  dataStore,
-             String                     featureName,
-             String                     styleName,
-             MapContent                 map) throws IOException,
-                                                    FactoryException {
+    addLayer(DataStore                          dataStore,
+             String                             featureName,
+             String                             styleName,
+             MapContent                         map,
+             Map<String, SimpleFeatureSource>   sources)
+                                                    throws IOException,
+                                                           FactoryException {
+
+        SimpleFeatureSource fs = sources.get(featureName);
+        if (fs == null) {
+            fs = dataStore.getFeatureSource(featureName);
+
+            // the features are cached for the many metatiles of a tileset,
+            // unless reprojected
+            if (type == Type.TILESET && crs == null && featureCacheSize > 0) {
+                CachingFeatureSource cfs =
+                                new CachingFeatureSource(fs, featureCacheSize);
+                cfs.setMetrics(metrics, (dataStore == osmDataStore
+                                         ? "osm." : "oam.") + featureName);
+                fs = cfs;
+            }
+            sources.put(featureName, fs);
+        }
 
         if (styleName.endsWith(".sldt")) {
 
-            SimpleFeatureSource fs = dataStore.getFeatureSource(featureName);
-            ReferencedEnvelope bounds = fs.getBounds();
+            ReferencedEnvelope bounds = getBounds(dataStore, featureName, fs);
 
             try {
                 Style style = scaleSld(styleName, bounds);
@@ -2153,25 +4257,58 @@ public final class RenderMap {
                 System.out.println(e.getMessage());
             }
         } else {
-            sldParser.setInput(new URL(sldUrl + styleName));
-            Style[] styles = sldParser.readXML();
+            Style style = styleCache.get(styleName);
+            if (style == null) {
+                sldParser.setInput(new URL(sldUrl + styleName));
+                style = sldParser.readXML()[0];
+                styleCache.put(styleName, style);
+            }
             FeatureLayer layer;
             if (crs != null) {
                 Query query = new Query(Query.ALL);
                 query.setCoordinateSystemReproject(crs);
-                layer = new FeatureLayer(
-                    dataStore.getFeatureSource(featureName).getFeatures(query),
-                    styles[0]);
+                layer = new FeatureLayer(fs.getFeatures(query), style);
             } else {
-                layer = new FeatureLayer(
-                        dataStore.getFeatureSource(featureName), styles[0]);
+                layer = new FeatureLayer(fs, style);
             }
             map.addLayer(layer);
         }
     }
 
     /**
-     * Scale an SLD and produce a style object from it.
+     * Return the bounds of a feature type. As this is a query over the
+     * whole extent of the feature type, the bounds are queried only once
+     * during the render job.
+     *
+     * @param dataStore the data store the feature type is from
+     * @param featureName the name of the feature type
+     * @param fs the feature source of the feature type
+     * @return the bounds of the feature type
+     * @throws IOException on I/O errors
+     */
+    private ReferencedEnvelope
+    getBounds(DataStore             dataStore,
+              String                featureName,
+              SimpleFeatureSource   fs)                 throws IOException {
+
+        Map<String, ReferencedEnvelope> bounds = boundsCache.get(dataStore);
+        if (bounds == null) {
+            bounds = new HashMap<String, ReferencedEnvelope>();
+            boundsCache.put(dataStore, bounds);
+        }
+
+        ReferencedEnvelope b = bounds.get(featureName);
+        if (b == null) {
+            b = fs.getBounds();
+            bounds.put(featureName, b);
+        }
+
+        return b;
+    }
+
+    /**
+     * Scale an SLD and produce a style object from it. Styles are scaled
+     * and parsed only once for the same scale, DPI value and area.
      *
      * @param styleName the name of the SLD file to use
      * @param bounds the bounds of the area to scale the SLD for
@@ -2182,16 +4319,23 @@ public final class RenderMap {
     scaleSld(String             styleName,
              ReferencedEnvelope bounds)                 throws Exception {
 
-        Coordinate centerPoint = bounds.centre();
+        Coordinate                centerPoint = bounds.centre();
+        CoordinateReferenceSystem cpCrs = bounds.getCoordinateReferenceSystem();
+
+        String key = styleName + ";" + scale + ";" + dpi + ";"
+                   + centerPoint.x + ";" + centerPoint.y + ";"
+                   + (cpCrs == null ? "" : cpCrs.toWKT());
 
-        Reader scaledSld = scaleSld(styleName,
-                                    bounds.getCoordinateReferenceSystem(),
-                                    centerPoint);
+        Style style = styleCache.get(key);
+        if (style == null) {
+            Reader scaledSld = scaleSld(styleName, cpCrs, centerPoint);
 
-        sldParser.setInput(scaledSld);
-        Style[] styles = sldParser.readXML();
+            sldParser.setInput(scaledSld);
+            style = sldParser.readXML()[0];
+            styleCache.put(key, style);
+        }
 
-        return styles[0];
+        return style;
     }
 
     /**
@@ -2228,23 +4372,31 @@ public final class RenderMap {
     }
 
     /**
-     * Render a map into an image.
+     * Create renderers for a map, one for each thread using it, as a
+     * renderer is not safe to share between threads.
      *
-     * @param map the map to save
-     * @param iBounds the dimensions of the image to render
-     * @param mBounds the area of the map to render
-     * @return the image containing the rendered map
-     * @throws FactoryException on CRS transformation errors
-     * @throws TransformException on CRS transformation errors
+     * @param map the map to render
+     * @return renderers set up to render map, created on first use by each
+     *         thread
      */
-    private PlanarImage
-    renderMap(final MapContent          map,
-              Rectangle                 iBounds,
-              ReferencedEnvelope        mBounds)
-                                                  throws TransformException,
-                                                         FactoryException {
+    private ThreadLocal<GTRenderer>
+    createRenderers(final MapContent map) {
+        return new ThreadLocal<GTRenderer>() {
+            @Override
+            protected GTRenderer initialValue() {
+                return createRenderer(map);
+            }
+        };
+    }
 
-        // set up the renderer
+    /**
+     * Create a renderer for a map, at the current scale.
+     *
+     * @param map the map to render
+     * @return a renderer, set up to render map
+     */
+    private GTRenderer
+    createRenderer(MapContent map) {
         GTRenderer renderer = new StreamingRenderer();
         renderer.setMapContent(map);
 
@@ -2258,7 +4410,7 @@ public final class RenderMap {
         rendererParams.put(StreamingRenderer.VECTOR_RENDERING_KEY,
                             new Boolean(true));
         rendererParams.put(StreamingRenderer.DECLARED_SCALE_DENOM_KEY, scale);
-        rendererParams.put("renderingBuffer", 100);
+        rendererParams.put("renderingBuffer", RENDERING_BUFFER);
         renderer.setRendererHints(rendererParams);
 
         RenderingHints hints2D =
@@ -2268,6 +4420,26 @@ public final class RenderMap {
                     RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
         renderer.setJava2DHints(hints2D);
 
+        return renderer;
+    }
+
+    /**
+     * Render a map into an image.
+     *
+     * @param renderer the renderer to render the map with
+     * @param iBounds the dimensions of the image to render
+     * @param mBounds the area of the map to render
+     * @return the image containing the rendered map
+     * @throws FactoryException on CRS transformation errors
+     * @throws TransformException on CRS transformation errors
+     */
+    private PlanarImage
+    renderMap(GTRenderer                renderer,
+              Rectangle                 iBounds,
+              ReferencedEnvelope        mBounds)
+                                                  throws TransformException,
+                                                         FactoryException {
+
         // render the map
         ColorModel cm = ColorModel.getRGBdefault();
         SampleModel sm = cm.createCompatibleSampleModel(1024, 1024);
@@ -2359,6 +4531,50 @@ public final class RenderMap {
         return ib;
     }
 
+    /**
+     * Collect the changed areas of the aviation map, by comparing OAM files.
+     * Errors are reported on the standard output.
+     *
+     * @param dirtyStrs the comparisons to make, each a base OAM file, a
+     *        new OAM file and the OSM tag identifying elements uniquely,
+     *        separated by commas
+     * @return the changed areas, or null on errors
+     */
+    private static DirtyTiles loadDirtyTiles(List<String> dirtyStrs) {
+        DirtyTiles dirty = new DirtyTiles();
+
+        for (String dirtyStr : dirtyStrs) {
+            String[] parts = dirtyStr.split(",");
+            if (parts.length != 3) {
+                System.out.println("invalid dirty option specified: "
+                                 + dirtyStr);
+                return null;
+            }
+
+            List<ParseException> errors = new ArrayList<ParseException>();
+            try {
+                Oam baseOam  = OAMReader.loadOam(parts[0], errors);
+                Oam inputOam = OAMReader.loadOam(parts[1], errors);
+
+                dirty.addChanges(baseOam, inputOam, parts[2]);
+            } catch (Exception e) {
+                System.out.println("Error comparing OAM files.");
+                System.out.println();
+                e.printStackTrace(System.out);
+                return null;
+            }
+
+            for (ParseException e : errors) {
+                System.out.println(e.toString());
+            }
+        }
+
+        System.out.println("Found " + dirty.getAreaCount()
+                         + " changed areas.");
+
+        return dirty;
+    }
+
     /**
      * Parse the map coverage string parameter and create a WGS84 referenced
      * envelope out of it.
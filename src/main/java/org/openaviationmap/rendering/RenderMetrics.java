@@ -0,0 +1,601 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a rendering job: where the time goes, and how much is done.
+ * Values are recorded per layer, for example "osm" or
+ * "oam.planet_osm_polygon", and per metric, for example the time a
+ * database query took, into histograms. Some events are only counted.
+ *
+ * Times are recorded in microseconds. The metrics can be watched over JMX
+ * while the job is running, and written as a JSON or CSV report when it
+ * is done. All methods are thread-safe.
+ */
+public class RenderMetrics implements RenderMetricsMBean {
+
+    /** The JMX domain the metrics are registered in. */
+    public static final String JMX_DOMAIN = "org.openaviationmap.rendering";
+
+    /** The time of a database query, in microseconds. */
+    public static final String QUERY_TIME = "query_us";
+
+    /** The number of features fetched by a database query. */
+    public static final String FEATURES = "features";
+
+    /** The time of rendering a metatile or strip, in microseconds. */
+    public static final String RENDER_TIME = "render_us";
+
+    /** The time of encoding a tile, in microseconds. */
+    public static final String ENCODE_TIME = "encode_us";
+
+    /** The size of an encoded tile, in bytes. */
+    public static final String BYTES = "bytes";
+
+    /** The count of tiles not rendered. */
+    public static final String SKIPPED = "skipped";
+
+    /** The count of tiles stored as links to an identical earlier tile. */
+    public static final String LINKED = "linked";
+
+    /**
+     * A histogram of non-negative values, with four buckets for each power
+     * of two. Thus the percentiles are within about 20% of the real ones,
+     * while the count, sum, minimum and maximum are exact.
+     */
+    public static final class Histogram {
+
+        /** The number of buckets, enough for any long value. */
+        private static final int BUCKETS = 248;
+
+        /** The number of values in each bucket. */
+        private final long[] buckets = new long[BUCKETS];
+
+        /** The number of values recorded. */
+        private long count = 0;
+
+        /** The sum of the values recorded. */
+        private long sum = 0;
+
+        /** The smallest value recorded. */
+        private long min = Long.MAX_VALUE;
+
+        /** The largest value recorded. */
+        private long max = 0;
+
+        /**
+         * Return the bucket of a value.
+         *
+         * @param value the value, not negative
+         * @return the index of the bucket value belongs to
+         */
+        static int bucket(long value) {
+            if (value < 4) {
+                return (int) value;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) ((value >>> (exp - 2)) & 3);
+
+            return 4 * (exp - 1) + sub;
+        }
+
+        /**
+         * Return the smallest value of a bucket.
+         *
+         * @param bucket the index of the bucket
+         * @return the smallest value belonging to bucket
+         */
+        static long lowerBound(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int exp = bucket / 4 + 1;
+            int sub = bucket % 4;
+
+            return (4L + sub) << (exp - 2);
+        }
+
+        /**
+         * Record a value.
+         *
+         * @param value the value, negative values are recorded as 0
+         */
+        public synchronized void record(long value) {
+            long v = Math.max(0, value);
+
+            ++buckets[bucket(v)];
+            ++count;
+            sum += v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+
+        /**
+         * @return the number of values recorded
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the values recorded
+         */
+        public synchronized long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the smallest value recorded, or 0 if none
+         */
+        public synchronized long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        /**
+         * @return the largest value recorded, or 0 if none
+         */
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the mean of the values recorded, or 0 if none
+         */
+        public synchronized double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Return a percentile of the values recorded, as the upper end of
+         * the bucket it falls into.
+         *
+         * @param percent the percentile, between 0 and 100
+         * @return the approximate percentile, or 0 if no values recorded
+         */
+        public synchronized long getPercentile(double percent) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; ++i) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.max(min,
+                                    Math.min(max, lowerBound(i + 1) - 1));
+                }
+            }
+
+            return max;
+        }
+    }
+
+    /** The time the metrics were created, in nanoseconds. */
+    private final long start = System.nanoTime();
+
+    /** The histograms recorded, by layer and metric. */
+    private final Map<String, Histogram> histograms =
+                                            new TreeMap<String, Histogram>();
+
+    /** The counters, by layer and metric. */
+    private final Map<String, AtomicLong> counters =
+                                            new TreeMap<String, AtomicLong>();
+
+    /** The name the metrics are registered with over JMX, if registered. */
+    private ObjectName objectName = null;
+
+    /**
+     * Return the histogram of a metric of a layer, creating it if needed.
+     *
+     * @param layer the layer
+     * @param metric the metric
+     * @return the histogram of metric for layer
+     */
+    public Histogram getHistogram(String layer, String metric) {
+        String key = layer + "." + metric;
+        synchronized (histograms) {
+            Histogram histogram = histograms.get(key);
+            if (histogram == null) {
+                histogram = new Histogram();
+                histograms.put(key, histogram);
+            }
+
+            return histogram;
+        }
+    }
+
+    /**
+     * Record a value of a metric of a layer.
+     *
+     * @param layer the layer
+     * @param metric the metric
+     * @param value the value
+     */
+    public void record(String layer, String metric, long value) {
+        getHistogram(layer, metric).record(value);
+    }
+
+    /**
+     * Record the time passed since a start time.
+     *
+     * @param layer the layer
+     * @param metric the metric, a time in microseconds
+     * @param startNanos the start time, as returned by System.nanoTime()
+     */
+    public void recordTime(String layer, String metric, long startNanos) {
+        record(layer, metric, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Increment a counter of a layer.
+     *
+     * @param layer the layer
+     * @param metric the counter
+     */
+    public void increment(String layer, String metric) {
+        String key = layer + "." + metric;
+        AtomicLong counter;
+        synchronized (counters) {
+            counter = counters.get(key);
+            if (counter == null) {
+                counter = new AtomicLong();
+                counters.put(key, counter);
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Return the value of a counter of a layer.
+     *
+     * @param layer the layer
+     * @param metric the counter
+     * @return the value of the counter, or 0 if never incremented
+     */
+    public long getCount(String layer, String metric) {
+        synchronized (counters) {
+            AtomicLong counter = counters.get(layer + "." + metric);
+            return counter == null ? 0 : counter.get();
+        }
+    }
+
+    /**
+     * @return a snapshot of the histograms, sorted by name
+     */
+    private Map<String, Histogram> histograms() {
+        synchronized (histograms) {
+            return new TreeMap<String, Histogram>(histograms);
+        }
+    }
+
+    /**
+     * @return a snapshot of the counters, sorted by name
+     */
+    private Map<String, Long> counters() {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        synchronized (counters) {
+            for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+                snapshot.put(e.getKey(), e.getValue().get());
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Sum a metric over all layers.
+     *
+     * @param metric the metric
+     * @param count if true, sum the number of values recorded, otherwise
+     *        the values themselves
+     * @return the sum over all layers
+     */
+    private long total(String metric, boolean count) {
+        long total = 0;
+        for (Map.Entry<String, Histogram> e : histograms().entrySet()) {
+            if (e.getKey().endsWith("." + metric)) {
+                total += count ? e.getValue().getCount()
+                               : e.getValue().getSum();
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Sum a counter over all layers.
+     *
+     * @param counter the counter
+     * @return the sum over all layers
+     */
+    private long totalCount(String counter) {
+        long total = 0;
+        for (Map.Entry<String, Long> e : counters().entrySet()) {
+            if (e.getKey().endsWith("." + counter)) {
+                total += e.getValue();
+            }
+        }
+
+        return total;
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getElapsedTime()
+     */
+    @Override
+    public long getElapsedTime() {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getMetatileCount()
+     */
+    @Override
+    public long getMetatileCount() {
+        return total(RENDER_TIME, true);
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getTileCount()
+     */
+    @Override
+    public long getTileCount() {
+        return total(ENCODE_TIME, true);
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getSkippedTileCount()
+     */
+    @Override
+    public long getSkippedTileCount() {
+        return totalCount(SKIPPED);
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getLinkedTileCount()
+     */
+    @Override
+    public long getLinkedTileCount() {
+        return totalCount(LINKED);
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getBytesWritten()
+     */
+    @Override
+    public long getBytesWritten() {
+        return total(BYTES, false);
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getFeaturesFetched()
+     */
+    @Override
+    public long getFeaturesFetched() {
+        return total(FEATURES, false);
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getQueryTime()
+     */
+    @Override
+    public long getQueryTime() {
+        return total(QUERY_TIME, false) / 1000;
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getRenderTime()
+     */
+    @Override
+    public long getRenderTime() {
+        return total(RENDER_TIME, false) / 1000;
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getEncodeTime()
+     */
+    @Override
+    public long getEncodeTime() {
+        return total(ENCODE_TIME, false) / 1000;
+    }
+
+    /* (non-Javadoc)
+     * @see RenderMetricsMBean#getHistograms()
+     */
+    @Override
+    public String[] getHistograms() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, Histogram> e : histograms().entrySet()) {
+            Histogram h = e.getValue();
+            lines.add(String.format(Locale.US,
+                        "%s count=%d mean=%.1f p50=%d p95=%d max=%d",
+                        e.getKey(), h.getCount(), h.getMean(),
+                        h.getPercentile(50), h.getPercentile(95),
+                        h.getMax()));
+        }
+
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Register the metrics with the platform MBean server.
+     *
+     * @param name the name to register under, to tell apart several jobs
+     *        running in the same JVM
+     * @throws JMException if the metrics could not be registered
+     */
+    public synchronized void register(String name) throws JMException {
+        ObjectName on = new ObjectName(JMX_DOMAIN + ":type=RenderMetrics,name="
+                                     + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, if registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            // not registered any more
+        }
+        objectName = null;
+    }
+
+    /**
+     * @return the metrics as a JSON document
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"elapsed_ms\": ").append(getElapsedTime())
+            .append(",\n  \"counters\": {");
+
+        String sep = "\n";
+        for (Map.Entry<String, Long> e : counters().entrySet()) {
+            json.append(sep).append("    ").append(quote(e.getKey()))
+                .append(": ").append(e.getValue());
+            sep = ",\n";
+        }
+        json.append("\n  },\n  \"histograms\": {");
+
+        sep = "\n";
+        for (Map.Entry<String, Histogram> e : histograms().entrySet()) {
+            Histogram h = e.getValue();
+            json.append(sep).append("    ").append(quote(e.getKey()))
+                .append(": {")
+                .append("\"count\": ").append(h.getCount())
+                .append(", \"sum\": ").append(h.getSum())
+                .append(", \"min\": ").append(h.getMin())
+                .append(", \"max\": ").append(h.getMax())
+                .append(", \"mean\": ")
+                .append(String.format(Locale.US, "%.3f", h.getMean()))
+                .append(", \"p50\": ").append(h.getPercentile(50))
+                .append(", \"p90\": ").append(h.getPercentile(90))
+                .append(", \"p99\": ").append(h.getPercentile(99))
+                .append("}");
+            sep = ",\n";
+        }
+        json.append("\n  }\n}\n");
+
+        return json.toString();
+    }
+
+    /**
+     * @return the metrics as CSV, a line for each histogram and counter
+     */
+    public String toCsv() {
+        StringBuilder csv = new StringBuilder();
+        csv.append("name,count,sum,min,max,mean,p50,p90,p99\n");
+
+        for (Map.Entry<String, Histogram> e : histograms().entrySet()) {
+            Histogram h = e.getValue();
+            csv.append(e.getKey())
+               .append(',').append(h.getCount())
+               .append(',').append(h.getSum())
+               .append(',').append(h.getMin())
+               .append(',').append(h.getMax())
+               .append(',')
+               .append(String.format(Locale.US, "%.3f", h.getMean()))
+               .append(',').append(h.getPercentile(50))
+               .append(',').append(h.getPercentile(90))
+               .append(',').append(h.getPercentile(99))
+               .append('\n');
+        }
+        for (Map.Entry<String, Long> e : counters().entrySet()) {
+            csv.append(e.getKey()).append(',').append(e.getValue())
+               .append(",,,,,,,\n");
+        }
+
+        return csv.toString();
+    }
+
+    /**
+     * Write the metrics as a JSON and a CSV report, with the .json and
+     * .csv extensions appended to a base name.
+     *
+     * @param base the base name of the report files
+     * @throws IOException on I/O errors
+     */
+    public void writeReport(String base) throws IOException {
+        write(new File(base + ".json"), toJson());
+        write(new File(base + ".csv"), toCsv());
+    }
+
+    /**
+     * Write a string into a file.
+     *
+     * @param file the file to write
+     * @param contents the string to write
+     * @throws IOException on I/O errors
+     */
+    private static void write(File file, String contents) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                                            "UTF-8");
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Quote a string for JSON.
+     *
+     * @param str the string to quote
+     * @return str as a JSON string
+     */
+    private static String quote(String str) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < str.length(); ++i) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+/**
+ * The management interface of the render metrics, to watch a rendering
+ * job while it is running, for example with jconsole.
+ */
+public interface RenderMetricsMBean {
+
+    /**
+     * @return the time passed since the metrics were created, in
+     *         milliseconds
+     */
+    long getElapsedTime();
+
+    /**
+     * @return the number of metatiles or strips rendered
+     */
+    long getMetatileCount();
+
+    /**
+     * @return the number of tiles encoded
+     */
+    long getTileCount();
+
+    /**
+     * @return the number of tiles not rendered, as they were stored in an
+     *         earlier run, or were outside the area with data
+     */
+    long getSkippedTileCount();
+
+    /**
+     * @return the number of tiles not encoded, but stored as links to an
+     *         identical earlier tile
+     */
+    long getLinkedTileCount();
+
+    /**
+     * @return the number of encoded bytes written
+     */
+    long getBytesWritten();
+
+    /**
+     * @return the number of features fetched from the databases
+     */
+    long getFeaturesFetched();
+
+    /**
+     * @return the total time spent querying the databases, in milliseconds
+     */
+    long getQueryTime();
+
+    /**
+     * @return the total time spent rendering, in milliseconds
+     */
+    long getRenderTime();
+
+    /**
+     * @return the total time spent encoding tiles, in milliseconds
+     */
+    long getEncodeTime();
+
+    /**
+     * @return a one line summary of each histogram recorded
+     */
+    String[] getHistograms();
+}
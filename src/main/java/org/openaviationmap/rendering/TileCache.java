@@ -0,0 +1,151 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An in-memory cache of encoded tiles, bounded by the total size of the
+ * tiles held. When the size budget is exceeded, the least recently used
+ * tiles are evicted. Safe to use from many threads.
+ */
+public final class TileCache {
+
+    /**
+     * An encoded tile, with an entity tag identifying its contents.
+     */
+    public static final class Tile {
+
+        /** The encoded tile. */
+        private final byte[] data;
+
+        /** The entity tag of the tile, a quoted string. */
+        private final String etag;
+
+        /**
+         * Constructor.
+         *
+         * @param data the encoded tile
+         */
+        public Tile(byte[] data) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+
+            this.data = data;
+            this.etag = "\"" + Long.toHexString(crc.getValue())
+                      + "-" + Integer.toHexString(data.length) + "\"";
+        }
+
+        /**
+         * @return the encoded tile
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the entity tag of the tile, a quoted string
+         */
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+    /** The maximum total size of the tiles held, in bytes. */
+    private final long budget;
+
+    /** The tiles held, in access order. */
+    private final LinkedHashMap<String, Tile> tiles =
+                        new LinkedHashMap<String, Tile>(16, 0.75f, true);
+
+    /** The total size of the tiles held, in bytes. */
+    private long size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param budget the maximum total size of the tiles held, in bytes
+     */
+    public TileCache(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("negative cache size");
+        }
+
+        this.budget = budget;
+    }
+
+    /**
+     * Look up a tile, marking it as recently used.
+     *
+     * @param key the key of the tile
+     * @return the tile, or null if it is not cached
+     */
+    public synchronized Tile get(String key) {
+        return tiles.get(key);
+    }
+
+    /**
+     * Put a tile into the cache, evicting the least recently used tiles
+     * if the size budget is exceeded. Tiles larger than the whole budget
+     * are not cached.
+     *
+     * @param key the key of the tile
+     * @param tile the tile
+     */
+    public synchronized void put(String key, Tile tile) {
+        if (tile.getData().length > budget) {
+            return;
+        }
+
+        Tile previous = tiles.put(key, tile);
+        if (previous != null) {
+            size -= previous.getData().length;
+        }
+        size += tile.getData().length;
+
+        Iterator<Map.Entry<String, Tile>> it = tiles.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            size -= it.next().getValue().getData().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the number of tiles held
+     */
+    public synchronized int getCount() {
+        return tiles.size();
+    }
+
+    /**
+     * @return the total size of the tiles held, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the maximum total size of the tiles held, in bytes
+     */
+    public long getBudget() {
+        return budget;
+    }
+}
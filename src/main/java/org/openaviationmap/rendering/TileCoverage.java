@@ -0,0 +1,320 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+
+/**
+ * The area of a tileset that has data to render, so that the metatiles
+ * and tiles outside of it are skipped before querying or rendering them.
+ *
+ * Tiles are tested against the area along a quadtree of the tile pyramid:
+ * each tile is the parent of four tiles on the level below. The tiles
+ * above the one tested are looked at from the top, and a tile found to be
+ * fully inside or fully outside the area decides for all the tiles below
+ * it. Only tiles along the edge of the area are tested against its
+ * geometry, and the results for the tiles above the ones tested are kept,
+ * so that each level is in effect indexed by the levels above it.
+ */
+public final class TileCoverage {
+
+    /** The highest zoom level tiles can be tested at. */
+    public static final int MAX_LEVEL = 29;
+
+    /** The state of a tile fully outside the area. */
+    private static final int OUTSIDE = 0;
+
+    /** The state of a tile fully inside the area. */
+    private static final int INSIDE = 1;
+
+    /** The state of a tile on the edge of the area. */
+    private static final int PARTIAL = 2;
+
+    /** The geometry factory to create tile polygons with. */
+    private final GeometryFactory gf = new GeometryFactory();
+
+    /** The area, in WGS84 longitude / latitude. */
+    private final Geometry area;
+
+    /** The area prepared for repeated tests, guarded by itself. */
+    private final PreparedGeometry prepared;
+
+    /** The bounds of the area. */
+    private final Envelope bounds;
+
+    /** The states of the tiles looked at so far, by tile key. */
+    private final ConcurrentMap<Long, Integer> states =
+                                    new ConcurrentHashMap<Long, Integer>();
+
+    /**
+     * Constructor.
+     *
+     * @param area the area with data to render, in WGS84 longitude /
+     *        latitude
+     */
+    public TileCoverage(Geometry area) {
+        if (area == null || area.isEmpty()) {
+            throw new IllegalArgumentException("the area must not be empty");
+        }
+
+        this.area     = area;
+        this.prepared = PreparedGeometryFactory.prepare(area);
+        this.bounds   = area.getEnvelopeInternal();
+    }
+
+    /**
+     * Read the area from a file of a single WKT geometry, e.g. a POLYGON or
+     * a MULTIPOLYGON, in WGS84 longitude / latitude.
+     *
+     * @param file the file to read
+     * @return the tile coverage of the area in the file
+     * @throws IOException on I/O errors, or if the file is not valid WKT
+     */
+    public static TileCoverage read(File file) throws IOException {
+        Reader in = new FileReader(file);
+        try {
+            return new TileCoverage(new WKTReader().read(in));
+        } catch (ParseException e) {
+            throw new IOException("Invalid WKT in " + file + ": "
+                                + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Create the coverage of the union of some areas, each buffered.
+     *
+     * @param areas the areas, in WGS84 longitude / latitude
+     * @param buffer the buffer to add around each area, in degrees
+     * @return the tile coverage of the union of the areas
+     */
+    public static TileCoverage
+    union(Collection<Envelope> areas, double buffer) {
+        GeometryFactory gf       = new GeometryFactory();
+        List<Geometry>  polygons = new ArrayList<Geometry>(areas.size());
+
+        for (Envelope a : areas) {
+            if (a.isNull()) {
+                continue;
+            }
+            Envelope e = new Envelope(a);
+            e.expandBy(buffer);
+            polygons.add(gf.toGeometry(e));
+        }
+        if (polygons.isEmpty()) {
+            throw new IllegalArgumentException("no areas to cover");
+        }
+
+        return new TileCoverage(CascadedPolygonUnion.union(polygons));
+    }
+
+    /**
+     * @return the area, in WGS84 longitude / latitude
+     */
+    public Geometry getArea() {
+        return area;
+    }
+
+    /**
+     * @return the bounds of the area, in WGS84 longitude / latitude
+     */
+    public Envelope getBounds() {
+        return new Envelope(bounds);
+    }
+
+    /**
+     * Tell if a tile intersects the area.
+     *
+     * @param level the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return true if the tile intersects the area
+     */
+    public boolean intersects(int level, int x, int y) {
+        if (level < 0 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("level " + level
+                            + " is not between 0 and " + MAX_LEVEL);
+        }
+
+        // the tiles above decide, unless on the edge of the area
+        for (int z = 0; z < level; ++z) {
+            int shift = level - z;
+            int state = getState(z, x >> shift, y >> shift);
+
+            if (state == OUTSIDE) {
+                return false;
+            } else if (state == INSIDE) {
+                return true;
+            }
+        }
+
+        // the tiles tested are not kept, only the ones above them
+        Polygon tile = getTilePolygon(level, x, y);
+        synchronized (prepared) {
+            return prepared.intersects(tile);
+        }
+    }
+
+    /**
+     * Tell if any of the tiles of a metatile intersects the area.
+     *
+     * @param metatile the metatile
+     * @return true if the metatile intersects the area
+     */
+    public boolean intersects(Metatile metatile) {
+        int level = metatile.getLevel();
+        int minX  = metatile.getX();
+        int minY  = metatile.getY();
+        int maxX  = minX + metatile.getWidth() - 1;
+        int maxY  = minY + metatile.getHeight() - 1;
+
+        Envelope e = getTileBounds(level, minX, minY);
+        e.expandToInclude(getTileBounds(level, maxX, maxY));
+        if (!e.intersects(bounds)) {
+            return false;
+        }
+
+        for (int x = minX; x <= maxX; ++x) {
+            for (int y = minY; y <= maxY; ++y) {
+                if (intersects(level, x, y)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the metatiles that intersect the area.
+     *
+     * @param metatiles the metatiles to filter
+     * @return the metatiles of metatiles that intersect the area, in their
+     *         original order
+     */
+    public List<Metatile> filter(List<Metatile> metatiles) {
+        List<Metatile> result = new ArrayList<Metatile>(metatiles.size());
+
+        for (Metatile m : metatiles) {
+            if (intersects(m)) {
+                result.add(m);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the state of a tile, testing it against the area if not
+     * looked at before.
+     *
+     * @param level the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the state of the tile, OUTSIDE, INSIDE or PARTIAL
+     */
+    private int getState(int level, int x, int y) {
+        Long    key   = ((long) level << 58) | ((long) x << 29) | y;
+        Integer state = states.get(key);
+
+        if (state == null) {
+            Envelope e = getTileBounds(level, x, y);
+
+            if (!e.intersects(bounds)) {
+                state = OUTSIDE;
+            } else {
+                Polygon tile = getTilePolygon(level, x, y);
+                synchronized (prepared) {
+                    state = prepared.contains(tile) ? INSIDE
+                          : prepared.intersects(tile) ? PARTIAL : OUTSIDE;
+                }
+            }
+            states.putIfAbsent(key, state);
+        }
+
+        return state;
+    }
+
+    /**
+     * Return the bounds of a tile.
+     *
+     * @param level the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the bounds of the tile, in WGS84 longitude / latitude
+     */
+    static Envelope getTileBounds(int level, int x, int y) {
+        return new Envelope(tile2lon(x, level), tile2lon(x + 1, level),
+                            tile2lat(y + 1, level), tile2lat(y, level));
+    }
+
+    /**
+     * Return the polygon of a tile.
+     *
+     * @param level the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the polygon of the tile, in WGS84 longitude / latitude
+     */
+    private Polygon getTilePolygon(int level, int x, int y) {
+        return (Polygon) gf.toGeometry(getTileBounds(level, x, y));
+    }
+
+    /**
+     * Convert a tile x coordinate into a longitude.
+     *
+     * @param x the tile x coordinate
+     * @param zoom the zoom level
+     * @return the longitude, in degrees
+     */
+    private static double tile2lon(int x, int zoom) {
+        return (double) x / (1L << zoom) * 360.0 - 180;
+    }
+
+    /**
+     * Convert a tile y coordinate into a latitude.
+     *
+     * @param y the tile y coordinate
+     * @param zoom the zoom level
+     * @return the latitude, in degrees
+     */
+    private static double tile2lat(int y, int zoom) {
+        double n = Math.PI - (2.0 * Math.PI * y) / (1L << zoom);
+
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+}
@@ -0,0 +1,318 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Saves tiles so that identical tiles are stored only once. Large parts of
+ * a tileset are empty sea or empty aviation overlay, thus many tiles are
+ * of a single color, and are the same.
+ *
+ * Single color tiles, including fully transparent ones, are recognized
+ * directly, while all other tiles are identified by a hash of their
+ * pixels. When a tile is the same as one saved before, it is not encoded
+ * again, but is linked to the earlier tile in the tile sink, which stores
+ * its data only once.
+ *
+ * All single color tiles are remembered, while only a limited number of
+ * recently seen other tiles are, as these mostly repeat locally.
+ *
+ * An instance is safe to use from multiple threads at the same time.
+ */
+public final class TileDeduplicator {
+
+    /** The default number of hashes of recent tiles to remember. */
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    /**
+     * A tile saved earlier, and possibly still being saved.
+     */
+    private static final class Entry {
+        /** Flag to mark that saving the tile finished. */
+        private boolean done = false;
+
+        /** The tile sink handle of the saved tile, or null if saving failed. */
+        private Object handle = null;
+
+        /**
+         * Mark the tile as saved.
+         *
+         * @param handle the tile sink handle of the saved tile, or null if
+         *        it could not be saved
+         */
+        private synchronized void publish(Object handle) {
+            this.handle = handle;
+            this.done   = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait for the tile to be saved.
+         *
+         * @return the tile sink handle of the saved tile, or null if it could
+         *         not be saved
+         * @throws InterruptedException if interrupted while waiting
+         */
+        private synchronized Object await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+
+            return handle;
+        }
+    }
+
+    /** The encoder to encode new tiles with. */
+    private final TileEncoder encoder;
+
+    /** The sink to save tiles into. */
+    private final TileSink sink;
+
+    /** The single color tiles saved so far, by color and size. */
+    private final Map<String, Entry> solidTiles =
+                                                new HashMap<String, Entry>();
+
+    /** Recently saved tiles, by the hash of their pixels. */
+    private final Map<String, Entry> recentTiles;
+
+    /** The metrics to record tiles saved into, or null. */
+    private volatile RenderMetrics metrics = null;
+
+    /** The layer to record tiles saved as. */
+    private volatile String metricsLayer = null;
+
+    /**
+     * Constructor.
+     *
+     * @param encoder the encoder to encode new tiles with
+     * @param sink the sink to save tiles into
+     * @param cacheSize the number of hashes of recent tiles to remember
+     */
+    public TileDeduplicator(TileEncoder     encoder,
+                            TileSink        sink,
+                            final int       cacheSize) {
+        this.encoder     = encoder;
+        this.sink        = sink;
+        this.recentTiles = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean
+            removeEldestEntry(Map.Entry<String, TileDeduplicator.Entry> e) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return the encoder new tiles are encoded with
+     */
+    public TileEncoder getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * @return the sink tiles are saved into
+     */
+    public TileSink getSink() {
+        return sink;
+    }
+
+    /**
+     * Record the encoding time and size of the tiles saved, and the number
+     * of tiles linked instead of encoded, into render metrics.
+     *
+     * @param metrics the metrics to record into, or null not to record
+     * @param layer the layer to record the tiles as
+     */
+    public void setMetrics(RenderMetrics metrics, String layer) {
+        this.metricsLayer = layer;
+        this.metrics      = metrics;
+    }
+
+    /**
+     * Encode a tile and put it into the sink, recording metrics if set.
+     *
+     * @param tile the tile to save
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the tile sink handle of the saved tile
+     * @throws IOException on I/O errors
+     */
+    private Object
+    put(BufferedImage   tile,
+        int             zoom,
+        int             x,
+        int             y) throws IOException {
+        RenderMetrics m = metrics;
+        if (m == null) {
+            return sink.put(zoom, x, y, encoder.encode(tile));
+        }
+
+        long   start = System.nanoTime();
+        byte[] data  = encoder.encode(tile);
+        m.recordTime(metricsLayer, RenderMetrics.ENCODE_TIME, start);
+        m.record(metricsLayer, RenderMetrics.BYTES, data.length);
+
+        return sink.put(zoom, x, y, data);
+    }
+
+    /**
+     * Record a tile not saved, as it was saved in an earlier run, or as it
+     * is outside the area with data.
+     */
+    public void skip() {
+        RenderMetrics m = metrics;
+        if (m != null) {
+            m.increment(metricsLayer, RenderMetrics.SKIPPED);
+        }
+    }
+
+    /**
+     * Save a tile, or link it to an identical tile saved earlier.
+     *
+     * @param tile the tile to save
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @throws IOException on I/O errors
+     */
+    public void
+    save(BufferedImage  tile,
+         int            zoom,
+         int            x,
+         int            y) throws IOException {
+        int   width  = tile.getWidth();
+        int   height = tile.getHeight();
+        int[] argb   = tile.getRGB(0, 0, width, height, null, 0, width);
+
+        // fully transparent pixels are all the same, whatever their color
+        boolean solid = true;
+        for (int i = 0; i < argb.length; ++i) {
+            if ((argb[i] >>> 24) == 0) {
+                argb[i] = 0;
+            }
+            solid = solid && argb[i] == argb[0];
+        }
+
+        Entry   entry;
+        boolean owner = false;
+
+        if (solid) {
+            String key = width + "x" + height + ":"
+                       + Integer.toHexString(argb[0]);
+            synchronized (solidTiles) {
+                entry = solidTiles.get(key);
+                if (entry == null) {
+                    entry = new Entry();
+                    solidTiles.put(key, entry);
+                    owner = true;
+                }
+            }
+        } else {
+            String key = hash(width, height, argb);
+            synchronized (recentTiles) {
+                entry = recentTiles.get(key);
+                if (entry == null) {
+                    entry = new Entry();
+                    recentTiles.put(key, entry);
+                    owner = true;
+                }
+            }
+        }
+
+        if (owner) {
+            Object handle = null;
+            try {
+                handle = put(tile, zoom, x, y);
+            } finally {
+                entry.publish(handle);
+            }
+            return;
+        }
+
+        Object handle;
+        try {
+            handle = entry.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while saving tile "
+                                           + zoom + "/" + x + "/" + y);
+        }
+
+        if (handle == null) {
+            // the earlier tile could not be saved, try on our own
+            put(tile, zoom, x, y);
+            return;
+        }
+
+        RenderMetrics m = metrics;
+        if (m != null) {
+            m.increment(metricsLayer, RenderMetrics.LINKED);
+        }
+
+        Object newHandle = sink.link(zoom, x, y, handle);
+        if (newHandle != handle) {
+            entry.publish(newHandle);
+        }
+    }
+
+    /**
+     * Calculate a hash of the pixels of a tile.
+     *
+     * @param width the width of the tile
+     * @param height the height of the tile
+     * @param argb the pixels of the tile
+     * @return the hash, as a hexadecimal string
+     */
+    private static String hash(int width, int height, int[] argb) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] bytes = new byte[argb.length * 4];
+        for (int i = 0, j = 0; i < argb.length; ++i) {
+            bytes[j++] = (byte) (argb[i] >>> 24);
+            bytes[j++] = (byte) (argb[i] >> 16);
+            bytes[j++] = (byte) (argb[i] >> 8);
+            bytes[j++] = (byte) argb[i];
+        }
+
+        digest.update((width + "x" + height).getBytes());
+        digest.update(bytes);
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+
+        return sb.toString();
+    }
+}
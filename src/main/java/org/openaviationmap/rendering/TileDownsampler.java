@@ -0,0 +1,269 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the lower zoom levels of a tileset from the tiles of its highest
+ * level, instead of rendering them from the data. Each tile saved at a
+ * level is downsampled by a 2x2 box filter into a quarter of its parent
+ * tile, and a parent tile is saved, and downsampled further, as soon as
+ * all its child tiles within the tileset are there. Child tiles outside
+ * the tileset leave their quarter transparent.
+ *
+ * Thus the lower levels are built while the highest level is rendered,
+ * and only the parent tiles waiting for some of their children are kept
+ * in memory. These are few if the metatiles rendered are aligned to the
+ * parent tiles, see Metatile.splitAligned().
+ *
+ * An instance is safe to use from multiple threads at the same time.
+ */
+public final class TileDownsampler {
+
+    /** The size of a tile, in pixels. */
+    private static final int SIZE = RenderMap.TILE_SIZE;
+
+    /**
+     * A parent tile waiting for some of its child tiles.
+     */
+    private static final class Parent {
+        /** The pixels of the tile, ARGB. */
+        private final int[] argb = new int[SIZE * SIZE];
+
+        /** The number of child tiles not yet there. */
+        private int remaining;
+
+        /**
+         * Constructor.
+         *
+         * @param remaining the number of child tiles to wait for
+         */
+        private Parent(int remaining) {
+            this.remaining = remaining;
+        }
+    }
+
+    /** The deduplicator to encode and save the lower level tiles with. */
+    private final TileDeduplicator tiles;
+
+    /** The highest zoom level, the one rendered. */
+    private final int highLevel;
+
+    /** The lowest zoom level built. */
+    private final int lowLevel;
+
+    /**
+     * The inclusive tile bounds of each level, indexed by the level minus
+     * the lowest level.
+     */
+    private final Rectangle[] bounds;
+
+    /** The parent tiles waiting for child tiles, by level, x and y. */
+    private final Map<Long, Parent> pending = new HashMap<Long, Parent>();
+
+    /**
+     * Constructor.
+     *
+     * @param tiles the deduplicator to encode and save the lower level
+     *        tiles with
+     * @param highBounds the tiles of the highest level, interpreted
+     *        inclusively, as in Metatile.split()
+     * @param highLevel the highest zoom level, the one rendered
+     * @param lowLevel the lowest zoom level to build
+     */
+    public TileDownsampler(TileDeduplicator tiles,
+                           Rectangle        highBounds,
+                           int              highLevel,
+                           int              lowLevel) {
+        if (lowLevel < 0 || lowLevel > highLevel) {
+            throw new IllegalArgumentException("invalid levels " + lowLevel
+                                             + "..." + highLevel);
+        }
+
+        this.tiles     = tiles;
+        this.highLevel = highLevel;
+        this.lowLevel  = lowLevel;
+        this.bounds    = new Rectangle[highLevel - lowLevel + 1];
+
+        Rectangle b = new Rectangle(highBounds);
+        for (int level = highLevel; level >= lowLevel; --level) {
+            bounds[level - lowLevel] = b;
+
+            int minX = b.x >> 1;
+            int minY = b.y >> 1;
+            b = new Rectangle(minX, minY, ((b.x + b.width) >> 1) - minX,
+                                          ((b.y + b.height) >> 1) - minY);
+        }
+    }
+
+    /**
+     * Return the tiles of a level that are built from the highest level.
+     *
+     * @param level the zoom level
+     * @return the tiles of level, interpreted inclusively
+     */
+    public Rectangle getTileBounds(int level) {
+        return new Rectangle(bounds[level - lowLevel]);
+    }
+
+    /**
+     * Add a tile saved at a level to its parent tile. If this completes
+     * the parent tile, it is saved and added to its own parent, and so on.
+     * The tile itself has to be saved by the caller.
+     *
+     * @param tile the tile saved
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @throws IOException on I/O errors
+     */
+    public void
+    add(BufferedImage   tile,
+        int             zoom,
+        int             x,
+        int             y) throws IOException {
+
+        if (zoom <= lowLevel || zoom > highLevel) {
+            return;
+        }
+
+        int[] quarter = downsample(tile);
+
+        int px = x >> 1;
+        int py = y >> 1;
+        Long key = ((long) (zoom - 1) << 56) | ((long) px << 28) | py;
+
+        Parent parent;
+        synchronized (pending) {
+            parent = pending.get(key);
+            if (parent == null) {
+                parent = new Parent(countChildren(zoom, px, py));
+                pending.put(key, parent);
+            }
+
+            int left = (x & 1) * SIZE / 2;
+            int top  = (y & 1) * SIZE / 2;
+            for (int j = 0; j < SIZE / 2; ++j) {
+                System.arraycopy(quarter, j * SIZE / 2, parent.argb,
+                                 (top + j) * SIZE + left, SIZE / 2);
+            }
+
+            if (--parent.remaining > 0) {
+                return;
+            }
+            pending.remove(key);
+        }
+
+        BufferedImage image = new BufferedImage(SIZE, SIZE,
+                                                BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, SIZE, SIZE, parent.argb, 0, SIZE);
+
+        tiles.save(image, zoom - 1, px, py);
+        add(image, zoom - 1, px, py);
+    }
+
+    /**
+     * Count the child tiles of a parent tile that are within the tileset.
+     *
+     * @param zoom the zoom level of the child tiles
+     * @param px the x coordinate of the parent tile
+     * @param py the y coordinate of the parent tile
+     * @return the number of child tiles within the tileset, 1 to 4
+     */
+    private int countChildren(int zoom, int px, int py) {
+        Rectangle b = bounds[zoom - lowLevel];
+
+        int w = Math.min(2 * px + 1, b.x + b.width)
+              - Math.max(2 * px, b.x) + 1;
+        int h = Math.min(2 * py + 1, b.y + b.height)
+              - Math.max(2 * py, b.y) + 1;
+
+        return w * h;
+    }
+
+    /**
+     * Downsample a tile to half its size by a 2x2 box filter. The colors
+     * are averaged weighted by their alpha, so that transparent pixels do
+     * not darken the edges of what is drawn.
+     *
+     * @param tile the tile to downsample
+     * @return the pixels of the downsampled tile, ARGB
+     */
+    private static int[] downsample(BufferedImage tile) {
+        int[] argb   = tile.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE);
+        int   half   = SIZE / 2;
+        int[] result = new int[half * half];
+
+        for (int y = 0; y < half; ++y) {
+            for (int x = 0; x < half; ++x) {
+                int a = 0;
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int i = 0; i < 4; ++i) {
+                    int p  = argb[(2 * y + (i >> 1)) * SIZE + 2 * x + (i & 1)];
+                    int pa = p >>> 24;
+                    a += pa;
+                    r += ((p >> 16) & 0xff) * pa;
+                    g += ((p >> 8) & 0xff) * pa;
+                    b += (p & 0xff) * pa;
+                }
+
+                if (a == 0) {
+                    continue;
+                }
+                result[y * half + x] = ((a + 2) / 4) << 24
+                                     | ((r + a / 2) / a) << 16
+                                     | ((g + a / 2) / a) << 8
+                                     | ((b + a / 2) / a);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the number of parent tiles waiting for some of their child
+     *         tiles
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Check that all the tiles of the lower levels have been built, that
+     * is, that all the tiles of the highest level have been added.
+     *
+     * @throws IllegalStateException if some tiles were not built
+     */
+    public void finish() {
+        int count = getPendingCount();
+        if (count > 0) {
+            throw new IllegalStateException(count + " downsampled tiles are"
+                                          + " missing some of their child"
+                                          + " tiles");
+        }
+    }
+}
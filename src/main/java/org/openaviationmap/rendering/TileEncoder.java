@@ -0,0 +1,44 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * An encoder turning rendered tiles into the bytes of an image file.
+ * Implementations must be safe to use from multiple threads at the same
+ * time, as tiles are encoded in parallel.
+ */
+public interface TileEncoder {
+
+    /**
+     * Encode a tile.
+     *
+     * @param tile the tile to encode
+     * @return the encoded tile, as the contents of an image file
+     * @throws IOException on encoding errors
+     */
+    byte[] encode(BufferedImage tile) throws IOException;
+
+    /**
+     * @return the file name extension for the files produced by this
+     *         encoder, without the leading dot, e.g. "png"
+     */
+    String getExtension();
+}
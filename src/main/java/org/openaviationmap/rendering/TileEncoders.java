@@ -0,0 +1,84 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+/**
+ * Factory for tile encoders, creating encoders from their textual
+ * description, as given on the command line.
+ *
+ * The description is a format name, optionally followed by a colon and
+ * a format specific parameter:
+ * <ul>
+ *   <li>png[:level] - full color PNG, with a deflate level of 0..9</li>
+ *   <li>png8[:level] - palette-quantized PNG with at most 256 colors,
+ *       with a deflate level of 0..9</li>
+ *   <li>jpeg[:quality] - JPEG, with a quality of 0..1. As JPEG has no
+ *       transparency, tiles are put on a white background.</li>
+ * </ul>
+ */
+public final class TileEncoders {
+
+    /** The default tile format. */
+    public static final String DEFAULT_FORMAT = "png";
+
+    /**
+     * Private default constructor.
+     */
+    private TileEncoders() {
+    }
+
+    /**
+     * Create a tile encoder based on its textual description.
+     *
+     * @param format the description of the encoder, e.g. "png:6" or
+     *        "jpeg:0.85"
+     * @return the tile encoder described
+     * @throws IllegalArgumentException if the description is not valid
+     */
+    public static TileEncoder forName(String format) {
+        String name  = format.trim().toLowerCase();
+        String param = null;
+
+        int ix = name.indexOf(':');
+        if (ix != -1) {
+            param = name.substring(ix + 1);
+            name  = name.substring(0, ix);
+        }
+
+        try {
+            if ("png".equals(name)) {
+                return new PngTileEncoder(param == null
+                                            ? PngTileEncoder.DEFAULT_LEVEL
+                                            : Integer.parseInt(param));
+            } else if ("png8".equals(name)) {
+                return new Png8TileEncoder(param == null
+                                            ? PngTileEncoder.DEFAULT_LEVEL
+                                            : Integer.parseInt(param));
+            } else if ("jpeg".equals(name) || "jpg".equals(name)) {
+                return new JpegTileEncoder(param == null
+                                        ? JpegTileEncoder.DEFAULT_QUALITY
+                                        : Float.parseFloat(param));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid parameter for tile "
+                                             + "format " + format, e);
+        }
+
+        throw new IllegalArgumentException("unknown tile format " + format);
+    }
+}
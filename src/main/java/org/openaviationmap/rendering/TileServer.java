@@ -0,0 +1,624 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import gnu.getopt.Getopt;
+import gnu.getopt.LongOpt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A lightweight HTTP tile server, serving tiles straight from GEMF
+ * archives at URLs of the form /{source}/{z}/{x}/{y}.png, where source is
+ * the name of a source within one of the archives. Recently served tiles
+ * are kept in a byte-budgeted cache.
+ *
+ * Tiles are served with an ETag and a Cache-Control header, and requests
+ * carrying a matching If-None-Match header are answered with 304 Not
+ * Modified. Request metrics are available through the getters, and as
+ * plain text at /metrics.
+ */
+public final class TileServer {
+
+    /** The default port to listen on. */
+    public static final int DEFAULT_PORT = 8080;
+
+    /** The default number of request handler threads. */
+    public static final int DEFAULT_THREADS = 8;
+
+    /** The default size of the tile cache, in megabytes. */
+    public static final int DEFAULT_CACHE_SIZE_MB = 64;
+
+    /** The default time clients may cache tiles for, in seconds. */
+    public static final int DEFAULT_MAX_AGE = 3600;
+
+    /** The path metrics are served at. */
+    public static final String METRICS_PATH = "/metrics";
+
+    /** The PNG file signature. */
+    private static final byte[] PNG_SIGNATURE = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    /**
+     * A source within a GEMF archive.
+     */
+    private static final class Source {
+
+        /** The archive the source is in. */
+        private final GEMFFile archive;
+
+        /** The index of the source within the archive. */
+        private final int index;
+
+        /**
+         * Constructor.
+         *
+         * @param archive the archive the source is in
+         * @param index the index of the source within the archive
+         */
+        private Source(GEMFFile archive, int index) {
+            this.archive = archive;
+            this.index   = index;
+        }
+    }
+
+    /** The sources served, by name. */
+    private final Map<String, Source> sources =
+                                        new LinkedHashMap<String, Source>();
+
+    /** The cache of recently served tiles. */
+    private final TileCache cache;
+
+    /** The value of the Cache-Control header of tile responses. */
+    private final String cacheControl;
+
+    /** The HTTP server. */
+    private final HttpServer server;
+
+    /** The request handler threads. */
+    private final ExecutorService handlerPool;
+
+    /** The number of requests handled. */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** The number of tiles served from the cache. */
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    /** The number of tiles read from the archives. */
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /** The number of requests answered with 304 Not Modified. */
+    private final AtomicLong notModified = new AtomicLong();
+
+    /** The number of requests answered with 404 Not Found. */
+    private final AtomicLong notFound = new AtomicLong();
+
+    /** The number of requests failed by errors. */
+    private final AtomicLong errors = new AtomicLong();
+
+    /** The number of tile bytes sent. */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /** The total time spent handling requests, in nanoseconds. */
+    private final AtomicLong handlingTime = new AtomicLong();
+
+    /**
+     * Constructor. The server is not started until start() is called.
+     *
+     * @param address the address to listen on, port 0 for any free port
+     * @param archives the archives to serve tiles from. If a source name
+     *        appears in several archives, the first one is served.
+     * @param threads the number of request handler threads
+     * @param cacheSize the size of the tile cache, in bytes
+     * @param maxAge the time clients may cache tiles for, in seconds
+     * @throws IOException if the server could not be bound to the address
+     */
+    public TileServer(InetSocketAddress     address,
+                      List<GEMFFile>        archives,
+                      int                   threads,
+                      long                  cacheSize,
+                      int                   maxAge) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                                "the number of threads must be positive");
+        }
+
+        for (GEMFFile archive : archives) {
+            for (Map.Entry<Integer, String> e
+                                        : archive.getSources().entrySet()) {
+                if (!sources.containsKey(e.getValue())) {
+                    sources.put(e.getValue(),
+                                new Source(archive, e.getKey()));
+                }
+            }
+        }
+
+        this.cache        = new TileCache(cacheSize);
+        this.cacheControl = "public, max-age=" + maxAge;
+        this.handlerPool  = Executors.newFixedThreadPool(threads);
+
+        server = HttpServer.create(address, 0);
+        server.setExecutor(handlerPool);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+    }
+
+    /**
+     * Start serving requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop serving requests, and stop the request handler threads. The
+     * archives are not closed.
+     *
+     * @param delay the maximum time to wait for requests being handled to
+     *        finish, in seconds
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        handlerPool.shutdown();
+    }
+
+    /**
+     * @return the address the server listens on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Handle a request, and record its metrics.
+     *
+     * @param exchange the request exchange
+     * @throws IOException on I/O errors
+     */
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+
+        requests.incrementAndGet();
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+            } else if (METRICS_PATH.equals(
+                                    exchange.getRequestURI().getPath())) {
+                send(exchange, "text/plain; charset=UTF-8",
+                     getMetrics().getBytes("UTF-8"));
+            } else {
+                serveTile(exchange);
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            errors.incrementAndGet();
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+            handlingTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Serve a tile request.
+     *
+     * @param exchange the request exchange
+     * @throws IOException on I/O errors
+     */
+    private void serveTile(HttpExchange exchange) throws IOException {
+        String   path  = exchange.getRequestURI().getPath();
+        String[] parts = path.startsWith("/")
+                       ? path.substring(1).split("/") : new String[0];
+
+        Source source = parts.length == 4 ? sources.get(parts[0]) : null;
+        int    dot    = parts.length == 4 ? parts[3].indexOf('.') : -1;
+        if (source == null || dot == -1) {
+            notFound(exchange);
+            return;
+        }
+
+        int zoom;
+        int x;
+        int y;
+        try {
+            zoom = Integer.parseInt(parts[1]);
+            x    = Integer.parseInt(parts[2]);
+            y    = Integer.parseInt(parts[3].substring(0, dot));
+        } catch (NumberFormatException e) {
+            notFound(exchange);
+            return;
+        }
+
+        String         key  = parts[0] + "/" + zoom + "/" + x + "/" + y;
+        TileCache.Tile tile = cache.get(key);
+        if (tile != null) {
+            cacheHits.incrementAndGet();
+        } else {
+            cacheMisses.incrementAndGet();
+
+            ByteBuffer data = source.archive.getTile(source.index,
+                                                     x, y, zoom);
+            if (data == null) {
+                notFound(exchange);
+                return;
+            }
+
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            tile = new TileCache.Tile(bytes);
+            cache.put(key, tile);
+        }
+
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", tile.getEtag());
+        headers.set("Cache-Control", cacheControl);
+
+        String ifNoneMatch =
+                        exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null
+         && (ifNoneMatch.contains(tile.getEtag())
+          || "*".equals(ifNoneMatch.trim()))) {
+            notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        send(exchange, getContentType(tile.getData()), tile.getData());
+    }
+
+    /**
+     * Send a response with a body, or just the headers for HEAD requests.
+     *
+     * @param exchange the request exchange
+     * @param contentType the content type of the body
+     * @param body the body
+     * @throws IOException on I/O errors
+     */
+    private void
+    send(HttpExchange   exchange,
+         String         contentType,
+         byte[]         body) throws IOException {
+
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Content-Length",
+                                              Integer.toString(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+
+        bytesSent.addAndGet(body.length);
+    }
+
+    /**
+     * Answer a request with 404 Not Found.
+     *
+     * @param exchange the request exchange
+     * @throws IOException on I/O errors
+     */
+    private void notFound(HttpExchange exchange) throws IOException {
+        notFound.incrementAndGet();
+        exchange.sendResponseHeaders(404, -1);
+    }
+
+    /**
+     * Determine the content type of an encoded tile from its signature.
+     *
+     * @param data the encoded tile
+     * @return the content type of the tile
+     */
+    private static String getContentType(byte[] data) {
+        if (data.length >= PNG_SIGNATURE.length) {
+            boolean png = true;
+            for (int i = 0; png && i < PNG_SIGNATURE.length; ++i) {
+                png = data[i] == PNG_SIGNATURE[i];
+            }
+            if (png) {
+                return "image/png";
+            }
+        }
+        if (data.length >= 2
+         && data[0] == (byte) 0xff && data[1] == (byte) 0xd8) {
+            return "image/jpeg";
+        }
+
+        return "application/octet-stream";
+    }
+
+    /**
+     * @return the number of requests handled
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of tiles served from the cache
+     */
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the number of tiles looked up in the archives
+     */
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * @return the number of requests answered with 304 Not Modified
+     */
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * @return the number of requests answered with 404 Not Found
+     */
+    public long getNotFoundCount() {
+        return notFound.get();
+    }
+
+    /**
+     * @return the number of requests failed by errors
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of tile bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return the average time spent handling a request, in microseconds
+     */
+    public double getAverageHandlingTime() {
+        long n = requests.get();
+
+        return n == 0 ? 0 : handlingTime.get() / 1000.0 / n;
+    }
+
+    /**
+     * @return the tile cache of the server
+     */
+    public TileCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return the request metrics, as plain text lines of name value pairs
+     */
+    public String getMetrics() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("requests ").append(getRequestCount()).append('\n');
+        sb.append("cache_hits ").append(getCacheHitCount()).append('\n');
+        sb.append("cache_misses ").append(getCacheMissCount()).append('\n');
+        sb.append("not_modified ").append(getNotModifiedCount()).append('\n');
+        sb.append("not_found ").append(getNotFoundCount()).append('\n');
+        sb.append("errors ").append(getErrorCount()).append('\n');
+        sb.append("bytes_sent ").append(getBytesSent()).append('\n');
+        sb.append("avg_handling_us ")
+          .append(String.format("%.1f", getAverageHandlingTime()))
+          .append('\n');
+        sb.append("cache_tiles ").append(cache.getCount()).append('\n');
+        sb.append("cache_bytes ").append(cache.getSize()).append('\n');
+
+        return sb.toString();
+    }
+
+    /**
+     * Print a help message.
+     */
+    private static void printHelpMessage() {
+        System.out.println(
+        "Open Aviation Map tile server");
+        System.out.println();
+        System.out.println(
+        "serves tiles from GEMF archives at /{source}/{z}/{x}/{y}.png");
+        System.out.println();
+        System.out.println(
+        "usage:");
+        System.out.println();
+        System.out.println(
+        "  -i | --input <a.gemf,...>    a comma-separated list of GEMF");
+        System.out.println(
+        "                               archives to serve, required");
+        System.out.println(
+        "  -p | --port <value>          the port to listen on");
+        System.out.println(
+        "                               optional, defaults to "
+                                      + DEFAULT_PORT);
+        System.out.println(
+        "  -j | --threads <value>       the number of request handler");
+        System.out.println(
+        "                               threads, optional, defaults to "
+                                      + DEFAULT_THREADS);
+        System.out.println(
+        "  -c | --cache <value>         the size of the tile cache in MB");
+        System.out.println(
+        "                               optional, defaults to "
+                                      + DEFAULT_CACHE_SIZE_MB);
+        System.out.println(
+        "  -m | --maxage <value>        the time clients may cache tiles");
+        System.out.println(
+        "                               for, in seconds, optional,");
+        System.out.println(
+        "                               defaults to " + DEFAULT_MAX_AGE);
+        System.out.println(
+        "  -h | --help                  show this usage page");
+        System.out.println();
+    }
+
+    /**
+     * Program entry point.
+     *
+     * @param args command line arguments.
+     */
+    public static void main(String[] args) {
+
+        LongOpt[] longopts = new LongOpt[6];
+
+        longopts[0] = new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h');
+        longopts[1] = new LongOpt("input", LongOpt.REQUIRED_ARGUMENT,
+                null, 'i');
+        longopts[2] = new LongOpt("port", LongOpt.REQUIRED_ARGUMENT,
+                null, 'p');
+        longopts[3] = new LongOpt("threads", LongOpt.REQUIRED_ARGUMENT,
+                null, 'j');
+        longopts[4] = new LongOpt("cache", LongOpt.REQUIRED_ARGUMENT,
+                null, 'c');
+        longopts[5] = new LongOpt("maxage", LongOpt.REQUIRED_ARGUMENT,
+                null, 'm');
+
+        Getopt g = new Getopt("TileServer", args, "c:hi:j:m:p:", longopts);
+
+        int c;
+
+        String      inputFiles  = null;
+        String      strPort     = null;
+        String      strThreads  = null;
+        String      strCache    = null;
+        String      strMaxAge   = null;
+
+        while ((c = g.getopt()) != -1) {
+            switch (c) {
+            case 'c':
+                strCache = g.getOptarg();
+                break;
+
+            case 'i':
+                inputFiles = g.getOptarg();
+                break;
+
+            case 'j':
+                strThreads = g.getOptarg();
+                break;
+
+            case 'm':
+                strMaxAge = g.getOptarg();
+                break;
+
+            case 'p':
+                strPort = g.getOptarg();
+                break;
+
+            default:
+            case 'h':
+                printHelpMessage();
+                return;
+
+            case '?':
+                System.out.println("Invalid option '" + g.getOptopt()
+                                   + "' specified");
+                return;
+            }
+        }
+
+        if (inputFiles == null) {
+            System.out.println("Required option input not specified");
+            System.out.println();
+            printHelpMessage();
+            return;
+        }
+
+        int port;
+        int threads;
+        int cacheSize;
+        int maxAge;
+        try {
+            port      = strPort == null
+                      ? DEFAULT_PORT : Integer.parseInt(strPort);
+            threads   = strThreads == null
+                      ? DEFAULT_THREADS : Integer.parseInt(strThreads);
+            cacheSize = strCache == null
+                      ? DEFAULT_CACHE_SIZE_MB : Integer.parseInt(strCache);
+            maxAge    = strMaxAge == null
+                      ? DEFAULT_MAX_AGE : Integer.parseInt(strMaxAge);
+        } catch (NumberFormatException e) {
+            System.out.println("Error parsing numeric option: "
+                             + e.getMessage());
+            System.out.println();
+            printHelpMessage();
+            return;
+        }
+
+        List<GEMFFile> archives = new ArrayList<GEMFFile>();
+        try {
+            for (String file : inputFiles.split(",")) {
+                archives.add(new GEMFFile(file.trim()));
+            }
+
+            TileServer server = new TileServer(new InetSocketAddress(port),
+                                               archives,
+                                               threads,
+                                               cacheSize * 1024L * 1024L,
+                                               maxAge);
+            server.start();
+
+            System.out.println("Serving tiles at port "
+                             + server.getAddress().getPort());
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            e.printStackTrace(System.out);
+
+            for (GEMFFile archive : archives) {
+                try {
+                    archive.close();
+                } catch (IOException ex) {
+                    // ignore, we are failing anyway
+                }
+            }
+        }
+    }
+}
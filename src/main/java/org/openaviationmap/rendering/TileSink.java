@@ -0,0 +1,82 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.IOException;
+
+/**
+ * A destination for encoded tiles, like a directory tree or a tile archive.
+ * Tiles are addressed by their zoom level, and x and y coordinates in the
+ * usual z/x/y tile scheme, with y growing southwards.
+ *
+ * Tiles with identical contents are stored only once, where the sink
+ * allows it: put() returns a handle to the stored data, which can be passed
+ * to link() to store a further tile with the same contents.
+ *
+ * Implementations must be safe to use from multiple threads at the same
+ * time, as tiles are saved in parallel. The sink must be closed after all
+ * tiles are stored, which for archives also writes the archive index.
+ *
+ * Tiles stored before a call to flush() are kept by sinks that can be
+ * continued, even if the process is terminated before the sink is closed.
+ */
+public interface TileSink {
+
+    /**
+     * Store a tile, replacing it if it already exists.
+     *
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param data the encoded tile
+     * @return a handle to the stored data, to be passed to link()
+     * @throws IOException on I/O errors
+     */
+    Object put(int zoom, int x, int y, byte[] data) throws IOException;
+
+    /**
+     * Store a tile with the same contents as a tile stored earlier,
+     * replacing it if it already exists.
+     *
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param handle the handle returned by put() when storing the earlier
+     *        tile
+     * @return the handle to use for linking further tiles to the same
+     *         contents, which might differ from handle, e.g. if the stored
+     *         data could not be shared any further
+     * @throws IOException on I/O errors
+     */
+    Object link(int zoom, int x, int y, Object handle) throws IOException;
+
+    /**
+     * Make the tiles stored so far durable, so that they are not lost if
+     * the process is terminated before the sink is closed.
+     *
+     * @throws IOException on I/O errors
+     */
+    void flush() throws IOException;
+
+    /**
+     * Finish storing tiles, and release all resources.
+     *
+     * @throws IOException on I/O errors
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,317 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Factory for tile sinks, creating sinks from their textual description,
+ * as given on the command line: a comma-separated list of the following:
+ * <ul>
+ *   <li>dir - a z/x/y directory tree of tile files</li>
+ *   <li>gemf - a GEMF archive, for mobile use</li>
+ *   <li>mbtiles - an MBTiles SQLite database</li>
+ * </ul>
+ * When more than one sink is listed, tiles are stored in all of them.
+ */
+public final class TileSinks {
+
+    /** The default tile sinks. */
+    public static final String DEFAULT_SINKS = "dir,gemf";
+
+    /**
+     * A tile sink storing tiles in several other sinks.
+     */
+    private static final class CompositeTileSink implements TileSink {
+
+        /** The sinks to store tiles in. */
+        private final List<TileSink> sinks;
+
+        /**
+         * Constructor.
+         *
+         * @param sinks the sinks to store tiles in
+         */
+        private CompositeTileSink(List<TileSink> sinks) {
+            this.sinks = sinks;
+        }
+
+        /* (non-Javadoc)
+         * @see org.openaviationmap.rendering.TileSink#put(int, int, int,
+         *                                                 byte[])
+         */
+        @Override
+        public Object put(int zoom, int x, int y, byte[] data)
+                                                        throws IOException {
+            Object[] handles = new Object[sinks.size()];
+            for (int i = 0; i < handles.length; ++i) {
+                handles[i] = sinks.get(i).put(zoom, x, y, data);
+            }
+
+            return handles;
+        }
+
+        /* (non-Javadoc)
+         * @see org.openaviationmap.rendering.TileSink#link(int, int, int,
+         *                                                  java.lang.Object)
+         */
+        @Override
+        public Object link(int zoom, int x, int y, Object handle)
+                                                        throws IOException {
+            Object[] handles    = (Object[]) handle;
+            Object[] newHandles = new Object[handles.length];
+            boolean  same       = true;
+            for (int i = 0; i < handles.length; ++i) {
+                newHandles[i] = sinks.get(i).link(zoom, x, y, handles[i]);
+                same = same && newHandles[i] == handles[i];
+            }
+
+            return same ? handles : newHandles;
+        }
+
+        /* (non-Javadoc)
+         * @see org.openaviationmap.rendering.TileSink#flush()
+         */
+        @Override
+        public void flush() throws IOException {
+            for (TileSink sink : sinks) {
+                sink.flush();
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see org.openaviationmap.rendering.TileSink#close()
+         */
+        @Override
+        public void close() throws IOException {
+            closeAll(sinks);
+        }
+    }
+
+    /**
+     * Private default constructor.
+     */
+    private TileSinks() {
+    }
+
+    /**
+     * Check a tile sink description.
+     *
+     * @param description the comma-separated list of sink names
+     * @throws IllegalArgumentException if the description is not valid
+     */
+    public static void validate(String description) {
+        StringTokenizer tok = new StringTokenizer(description, ",");
+        if (!tok.hasMoreTokens()) {
+            throw new IllegalArgumentException("no tile sinks specified");
+        }
+
+        while (tok.hasMoreTokens()) {
+            String sink = tok.nextToken().trim().toLowerCase();
+            if (!"dir".equals(sink) && !"gemf".equals(sink)
+             && !"mbtiles".equals(sink)) {
+                throw new IllegalArgumentException("unknown tile sink "
+                                                 + sink);
+            }
+        }
+    }
+
+    /**
+     * Create the tile sink for a tileset, based on its textual description.
+     *
+     * @param description the comma-separated list of sink names
+     * @param outputPath the directory to create the sinks in
+     * @param name the name of the tileset, used as the name of the tile
+     *        directory, archive file and source inside the archive
+     * @param encoder the encoder the tiles are encoded with
+     * @param overlay true if the tileset is an overlay, false if it is a
+     *        base layer
+     * @return the tile sink storing tiles in all the sinks described
+     * @throws IOException on I/O errors
+     * @throws IllegalArgumentException if the description is not valid
+     */
+    public static TileSink
+    create(String       description,
+           String       outputPath,
+           String       name,
+           TileEncoder  encoder,
+           boolean      overlay) throws IOException {
+
+        return create(description, outputPath, name, encoder, overlay, false);
+    }
+
+    /**
+     * Create the tile sink for a tileset, based on its textual description.
+     *
+     * @param description the comma-separated list of sink names
+     * @param outputPath the directory to create the sinks in
+     * @param name the name of the tileset, used as the name of the tile
+     *        directory, archive file and source inside the archive
+     * @param encoder the encoder the tiles are encoded with
+     * @param overlay true if the tileset is an overlay, false if it is a
+     *        base layer
+     * @param patch true if only some tiles of an existing tileset are
+     *        written, and the rest are to be kept. tile directories and
+     *        MBTiles databases keep the tiles not written anyway, GEMF
+     *        archives copy them over from the earlier archive, and keep
+     *        the tiles flushed by an interrupted earlier run.
+     * @return the tile sink storing tiles in all the sinks described
+     * @throws IOException on I/O errors
+     * @throws IllegalArgumentException if the description is not valid
+     */
+    public static TileSink
+    create(String       description,
+           String       outputPath,
+           String       name,
+           TileEncoder  encoder,
+           boolean      overlay,
+           boolean      patch) throws IOException {
+
+        return create(description, outputPath, name, encoder.getExtension(),
+                      overlay, patch);
+    }
+
+    /**
+     * Create the tile sink for a tileset of tiles in any format, based on
+     * its textual description.
+     *
+     * @param description the comma-separated list of sink names
+     * @param outputPath the directory to create the sinks in
+     * @param name the name of the tileset, used as the name of the tile
+     *        directory, archive file and source inside the archive
+     * @param extension the file name extension of the tiles, without the
+     *        leading dot, e.g. "png"
+     * @param overlay true if the tileset is an overlay, false if it is a
+     *        base layer
+     * @param patch true if only some tiles of an existing tileset are
+     *        written, and the rest are to be kept, see above
+     * @return the tile sink storing tiles in all the sinks described
+     * @throws IOException on I/O errors
+     * @throws IllegalArgumentException if the description is not valid
+     */
+    public static TileSink
+    create(String       description,
+           String       outputPath,
+           String       name,
+           String       extension,
+           boolean      overlay,
+           boolean      patch) throws IOException {
+
+        validate(description);
+
+        List<TileSink>  sinks = new ArrayList<TileSink>();
+        StringTokenizer tok   = new StringTokenizer(description, ",");
+        try {
+            while (tok.hasMoreTokens()) {
+                String sink = tok.nextToken().trim().toLowerCase();
+                if ("dir".equals(sink)) {
+                    sinks.add(new DirectoryTileSink(
+                                        new File(outputPath, name),
+                                        extension));
+                } else if ("gemf".equals(sink)) {
+                    sinks.add(new GEMFTileSink(
+                                        new File(outputPath, name + ".gemf"),
+                                        name, patch));
+                } else {
+                    sinks.add(new MBTilesTileSink(
+                                    new File(outputPath, name + ".mbtiles"),
+                                    name, extension, overlay));
+                }
+            }
+        } catch (IOException e) {
+            try {
+                closeAll(sinks);
+            } catch (IOException ee) {
+                // ignore, as the original error is more relevant
+            }
+            throw e;
+        }
+
+        return sinks.size() == 1 ? sinks.get(0) : new CompositeTileSink(sinks);
+    }
+
+    /**
+     * Store all the tiles of a GEMF archive in a tile sink. Tiles sharing
+     * their data in the archive are linked in the sink.
+     *
+     * @param archive the archive to copy the tiles of
+     * @param sink the sink to store the tiles in
+     * @return the number of tiles copied
+     * @throws IOException on I/O errors
+     */
+    public static int
+    copy(GEMFFile archive, final TileSink sink) throws IOException {
+        final Map<Long, Object> shared = new HashMap<Long, Object>();
+        final int[]             count  = new int[1];
+
+        archive.visitTiles(new GEMFFile.TileVisitor() {
+            @Override
+            public void visitTile(String        source,
+                                  int           zoom,
+                                  int           x,
+                                  int           y,
+                                  long          dataOffset,
+                                  ByteBuffer    data) throws IOException {
+
+                Object handle = shared.get(dataOffset);
+                if (handle != null) {
+                    // a sink may return a new handle to link later tiles to
+                    shared.put(dataOffset, sink.link(zoom, x, y, handle));
+                } else {
+                    byte[] tile = new byte[data.remaining()];
+                    data.get(tile);
+                    shared.put(dataOffset, sink.put(zoom, x, y, tile));
+                }
+                ++count[0];
+            }
+        });
+
+        return count[0];
+    }
+
+    /**
+     * Close a number of tile sinks. All sinks are closed, even if closing
+     * some of them fail.
+     *
+     * @param sinks the sinks to close
+     * @throws IOException the first error encountered when closing sinks
+     */
+    private static void closeAll(List<TileSink> sinks) throws IOException {
+        IOException error = null;
+        for (TileSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering.grid;
+
+/**
+ * The position of an element within a grid, by its column and row. Columns
+ * grow to the east, rows to the north, starting from the element at the
+ * origin of the grid. Cells can be used as keys, for example to count the
+ * points falling into each element of a grid.
+ */
+public final class GridCell {
+
+    /** The column of the cell. */
+    private final int col;
+
+    /** The row of the cell. */
+    private final int row;
+
+    /**
+     * Constructor.
+     *
+     * @param col the column of the cell
+     * @param row the row of the cell
+     */
+    public GridCell(int col, int row) {
+        this.col = col;
+        this.row = row;
+    }
+
+    /**
+     * @return the column of the cell
+     */
+    public int getCol() {
+        return col;
+    }
+
+    /**
+     * @return the row of the cell
+     */
+    public int getRow() {
+        return row;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof GridCell)) {
+            return false;
+        }
+        GridCell other = (GridCell) o;
+
+        return col == other.col && row == other.row;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * col + row;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + col + "," + row + ")";
+    }
+}
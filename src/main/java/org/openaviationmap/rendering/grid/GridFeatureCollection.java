@@ -0,0 +1,190 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering.grid;
+
+import java.util.Iterator;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.spatial.BBOX;
+import org.opengis.geometry.BoundingBox;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * A feature collection of the elements of a vector grid, generated as the
+ * collection is iterated. The elements are not kept, thus a fine grid over
+ * a large area takes about the same memory as a coarse one.
+ *
+ * A bounding box sub collection, as queried by a renderer, only generates
+ * the elements intersecting the bounding box, other filters are evaluated
+ * on the elements generated.
+ */
+public class GridFeatureCollection extends AbstractFeatureCollection {
+
+    /**
+     * Generates the features of the elements of a grid.
+     */
+    public interface Generator {
+
+        /**
+         * Start generating the features of a grid.
+         *
+         * @param filter only the elements with bounds intersecting filter
+         *        are needed, or all elements if null
+         * @return an iterator generating the features of the elements
+         */
+        Iterator<SimpleFeature> iterator(Envelope filter);
+    }
+
+    /** The bounds of the grid. */
+    private final ReferencedEnvelope gridBounds;
+
+    /** The generator of the features of the grid. */
+    private final Generator generator;
+
+    /** The bounding box the elements have to intersect, or null. */
+    private final Envelope filter;
+
+    /** The number of features, or -1 if not counted yet. */
+    private int size = -1;
+
+    /** The bounds of the features, or null if not calculated yet. */
+    private ReferencedEnvelope bounds = null;
+
+    /**
+     * Constructor.
+     *
+     * @param type the feature type of the grid features
+     * @param gridBounds the bounds of the grid
+     * @param generator the generator of the features of the grid
+     */
+    public GridFeatureCollection(SimpleFeatureType     type,
+                                 ReferencedEnvelope    gridBounds,
+                                 Generator             generator) {
+        this(type, gridBounds, generator, null);
+    }
+
+    /**
+     * Constructor of a bounding box sub collection.
+     *
+     * @param type the feature type of the grid features
+     * @param gridBounds the bounds of the grid
+     * @param generator the generator of the features of the grid
+     * @param filter the bounding box the elements have to intersect, or
+     *        null for all elements
+     */
+    private GridFeatureCollection(SimpleFeatureType     type,
+                                  ReferencedEnvelope    gridBounds,
+                                  Generator             generator,
+                                  Envelope              filter) {
+        super(type);
+
+        this.gridBounds = gridBounds;
+        this.generator  = generator;
+        this.filter     = filter;
+    }
+
+    /* (non-Javadoc)
+     * @see org.geotools.feature.collection.AbstractFeatureCollection#openIterator()
+     */
+    @Override
+    protected Iterator<SimpleFeature> openIterator() {
+        return generator.iterator(filter);
+    }
+
+    /**
+     * Return the number of features, generating them once to count them.
+     *
+     * @return the number of features in the collection
+     */
+    @Override
+    public synchronized int size() {
+        if (size < 0) {
+            int count = 0;
+            for (Iterator<SimpleFeature> it = openIterator(); it.hasNext();) {
+                it.next();
+                ++count;
+            }
+            size = count;
+        }
+
+        return size;
+    }
+
+    /**
+     * Return the bounds of the features. These are the bounds of the grid,
+     * or of a bounding box sub collection, the bounds of the elements
+     * intersecting its bounding box, generating them once.
+     *
+     * @return the bounds of the features in the collection
+     */
+    @Override
+    public synchronized ReferencedEnvelope getBounds() {
+        if (filter == null) {
+            return new ReferencedEnvelope(gridBounds);
+        }
+
+        if (bounds == null) {
+            ReferencedEnvelope b = new ReferencedEnvelope(
+                                    gridBounds.getCoordinateReferenceSystem());
+            for (Iterator<SimpleFeature> it = openIterator(); it.hasNext();) {
+                Object geometry = it.next().getDefaultGeometry();
+                if (geometry instanceof Geometry) {
+                    b.expandToInclude(
+                                ((Geometry) geometry).getEnvelopeInternal());
+                }
+            }
+            bounds = b;
+        }
+
+        return new ReferencedEnvelope(bounds);
+    }
+
+    /**
+     * Return the features matching a filter. A bounding box filter is
+     * applied while generating the elements, other filters on the elements
+     * generated.
+     *
+     * @param f the filter to match
+     * @return the features matching f
+     */
+    @Override
+    public SimpleFeatureCollection subCollection(Filter f) {
+        if (f == Filter.INCLUDE) {
+            return this;
+        }
+
+        if (f instanceof BBOX) {
+            BoundingBox b  = ((BBOX) f).getBounds();
+            Envelope    bb = new Envelope(b.getMinX(), b.getMaxX(),
+                                          b.getMinY(), b.getMaxY());
+
+            return new GridFeatureCollection(getSchema(), gridBounds,
+                        generator, filter == null ? bb
+                                                  : filter.intersection(bb));
+        }
+
+        return super.subCollection(f);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering.grid;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * An index of the elements of a regular polygonal grid, calculating the
+ * element containing a point, and the neighbors of an element, without
+ * building the grid. The elements are laid out the same way as by the grid
+ * builders, starting from the origin of the grid.
+ */
+public interface GridIndex {
+
+    /**
+     * Return the cell of the element containing a point. Points on the edge
+     * of two elements belong to either of them.
+     *
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return the cell of the element containing the point
+     */
+    GridCell getCell(double x, double y);
+
+    /**
+     * Return the center of the element of a cell.
+     *
+     * @param cell the cell
+     * @return the center of the element of cell
+     */
+    Coordinate getCenter(GridCell cell);
+
+    /**
+     * Tell if a neighbor position is valid for the elements of the grid.
+     *
+     * @param neighbor the neighbor position
+     * @return true if the elements of the grid have a neighbor at neighbor
+     */
+    boolean isValidNeighbor(Neighbor neighbor);
+
+    /**
+     * Return the cell of a neighbor of an element.
+     *
+     * @param cell the cell of the element
+     * @param neighbor the neighbor position
+     * @return the cell of the neighbor of cell at neighbor
+     * @throws IllegalArgumentException if neighbor is not valid for the
+     *         elements of the grid
+     */
+    GridCell getNeighbor(GridCell cell, Neighbor neighbor);
+
+    /**
+     * Create the element of a cell.
+     *
+     * @param cell the cell
+     * @return the element of cell
+     */
+    PolygonElement createElement(GridCell cell);
+}
@@ -17,6 +17,7 @@
 
 package org.openaviationmap.rendering.grid;
 
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.openaviationmap.rendering.grid.hexagon.HexagonOrientation;
@@ -325,4 +326,53 @@ public class Grids {
                 HexagonOrientation.FLAT, builder);
     }
 
+    /**
+     * Creates a vector grid of square elements, as a feature collection
+     * generating the elements as it is iterated.
+     *
+     * @param bounds bounds of the grid
+     *
+     * @param sideLen the side length of grid elements
+     *
+     * @param vertexSpacing maximum distance between adjacent vertices in a grid
+     *        element; if {@code <= 0} or {@code >= sideLen / 2.0} it is ignored
+     *        and the polygons will not be densified
+     *
+     * @param builder the {@code GridFeatureBuilder} used to control feature creation
+     *        and the setting of feature attribute values
+     *
+     * @return the vector grid, generating its elements when iterated
+     */
+    public static SimpleFeatureCollection createSquareGridCollection(
+            ReferencedEnvelope bounds, double sideLen, double vertexSpacing,
+            GridFeatureBuilder builder) {
+
+        return Oblongs.createGridCollection(bounds, sideLen, sideLen, vertexSpacing, builder);
+    }
+
+    /**
+     * Creates a vector grid of hexagonal elements in the flat orientation, as a
+     * feature collection generating the elements as it is iterated.
+     *
+     * @param bounds bounds of the grid
+     *
+     * @param sideLen the side length of grid elements
+     *
+     * @param vertexSpacing maximum distance between adjacent vertices in a grid
+     *        element; if {@code <= 0} or {@code >= sideLen / 2.0} it is ignored
+     *        and the polygons will not be densified
+     *
+     * @param builder the {@code GridFeatureBuilder} used to control feature creation
+     *        and the setting of feature attribute values
+     *
+     * @return the vector grid, generating its elements when iterated
+     */
+    public static SimpleFeatureCollection createHexagonalGridCollection(
+            ReferencedEnvelope bounds, double sideLen, double vertexSpacing,
+            GridFeatureBuilder builder) {
+
+        return Hexagons.createGridCollection(bounds, sideLen, vertexSpacing,
+                HexagonOrientation.FLAT, builder);
+    }
+
 }
@@ -18,17 +18,21 @@
 package org.openaviationmap.rendering.grid;
 
 import java.util.Collection;
+import java.util.Iterator;
 
 import org.geotools.data.DataUtilities;
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.openaviationmap.rendering.grid.ortholine.OrthoLineBuilder;
 import org.openaviationmap.rendering.grid.ortholine.OrthoLineDef;
 import org.openaviationmap.rendering.grid.ortholine.OrthoLineFeatureBuilder;
 import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 
 /**
  * A utility class to create line grids with basic attributes. 
@@ -96,6 +100,28 @@ public class Lines {
             double vertexSpacing,
             GridFeatureBuilder lineFeatureBuilder) {
 
+        return DataUtilities.source(createOrthoLineCollection(bounds, lineDefs,
+                vertexSpacing, lineFeatureBuilder));
+    }
+
+    /**
+     * Creates a grid of ortho-lines, as a feature collection generating the lines
+     * as it is iterated. Thus fine grids over large areas need no more memory
+     * than coarse ones. Line features will be created using the supplied feature
+     * builder.
+     * 
+     * @param bounds the bounding envelope
+     * @param lineDefs one or more ortho-line definitions
+     * @param vertexSpacing maximum distance between adjacent vertices along a line
+     * @param lineFeatureBuilder feature build to create line features
+     * @return the vector grid of lines, generating its lines when iterated
+     */
+    public static SimpleFeatureCollection createOrthoLineCollection(
+            final ReferencedEnvelope bounds,
+            final Collection<OrthoLineDef> lineDefs,
+            final double vertexSpacing,
+            final GridFeatureBuilder lineFeatureBuilder) {
+
         if (bounds == null || bounds.isEmpty() || bounds.isNull()) {
             throw new IllegalArgumentException("The bounds should not be null or empty");
         }
@@ -112,10 +138,16 @@ public class Lines {
             throw new IllegalArgumentException("Different CRS set for bounds and the feature builder");
         }
 
-        final ListFeatureCollection fc = new ListFeatureCollection(lineFeatureBuilder.getType());
-        OrthoLineBuilder lineBuilder = new OrthoLineBuilder(bounds);
-        lineBuilder.buildGrid(lineDefs, lineFeatureBuilder, vertexSpacing, fc);
-        return DataUtilities.source(fc);
+        return new GridFeatureCollection(lineFeatureBuilder.getType(), bounds,
+                new GridFeatureCollection.Generator() {
+                    @Override
+                    public Iterator<SimpleFeature> iterator(Envelope filter) {
+                        // the builder keeps the state of the lines generated
+                        OrthoLineBuilder lineBuilder = new OrthoLineBuilder(bounds);
+                        return lineBuilder.iterator(lineDefs, lineFeatureBuilder,
+                                vertexSpacing, filter);
+                    }
+                });
     }
 
 }
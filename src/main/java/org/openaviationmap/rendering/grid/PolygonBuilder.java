@@ -18,12 +18,15 @@
 package org.openaviationmap.rendering.grid;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
 
 import com.vividsolutions.jts.geom.Envelope;
 
@@ -55,45 +58,169 @@ public abstract class PolygonBuilder {
             double vertexSpacing,
             ListFeatureCollection fc) {
 
-        boolean result = true;
+        Iterator<SimpleFeature> it = iterator(gridFeatureBuilder, vertexSpacing, null);
+        while (it.hasNext()) {
+            fc.add(it.next());
+        }
+
+        return true;
+    }
+
+    /**
+     * Creates an iterator generating the features of the grid elements one by one,
+     * instead of all at once.
+     *
+     * @param gridFeatureBuilder the builder to create features from grid elements
+     * @param vertexSpacing maximum distance between adjacent vertices of an element,
+     *        ignored if not valid for the grid
+     * @param filter only the elements with bounds intersecting filter are generated,
+     *        all elements if null
+     * @return an iterator generating the features
+     */
+    public Iterator<SimpleFeature> iterator(GridFeatureBuilder gridFeatureBuilder,
+            double vertexSpacing,
+            Envelope filter) {
+
+        return new ElementIterator(gridFeatureBuilder, vertexSpacing, filter);
+    }
+
+    /**
+     * Generates the features of the grid elements, row by row. The elements
+     * of a row are generated by {@code getNextXElement}, starting from the
+     * element generated by {@code getNextYElement} from the start of the
+     * previous row. When filtered, the first row and column are the ones
+     * at the lower left corner of the filter, so that only the elements
+     * around the filter are looked at.
+     */
+    private class ElementIterator implements Iterator<SimpleFeature> {
+
+        private final GridFeatureBuilder gridFeatureBuilder;
+        private final double vertexSpacing;
+        private final boolean densify;
+        private final Envelope filter;
+
+        private final SimpleFeatureBuilder fb;
+        private final String geomPropName;
+        private final Map<String, Object> attrMap = new HashMap<String, Object>();
 
-        final boolean densify = isValidDenseVertexSpacing(vertexSpacing);
+        /** The first element of the current row, or null when done. */
+        private PolygonElement el0;
 
-        final SimpleFeatureBuilder fb = new SimpleFeatureBuilder(gridFeatureBuilder.getType());
-        final String geomPropName = gridFeatureBuilder.getType().getGeometryDescriptor().getLocalName();
+        /** The next element of the current row to look at. */
+        private PolygonElement el;
 
-        PolygonElement el0 = getFirstElement();
-        PolygonElement el = el0;
+        /** The next feature, or null if not generated yet. */
+        private SimpleFeature next;
 
-        while (el.getBounds().getMinY() <= gridBounds.getMaxY()) {
-            while (el.getBounds().getMaxX() <= gridBounds.getMaxX()) {
-                if (((Envelope) gridBounds).contains(el.getBounds())) {
-                    if (gridFeatureBuilder.getCreateFeature(el)) {
-                        Map<String, Object> attrMap = new HashMap<String, Object>();
-                        gridFeatureBuilder.setAttributes(el, attrMap);
+        ElementIterator(GridFeatureBuilder gridFeatureBuilder,
+                double vertexSpacing,
+                Envelope filter) {
+            this.gridFeatureBuilder = gridFeatureBuilder;
+            this.vertexSpacing = vertexSpacing;
+            this.densify = isValidDenseVertexSpacing(vertexSpacing);
+            this.filter = filter;
 
-                        if (densify) {
-                            fb.set(geomPropName, el.toDenseGeometry(vertexSpacing));
-                        } else {
-                            fb.set(geomPropName, el.toGeometry());
-                        }
+            fb = new SimpleFeatureBuilder(gridFeatureBuilder.getType());
+            geomPropName = gridFeatureBuilder.getType().getGeometryDescriptor().getLocalName();
 
-                        for (String propName : attrMap.keySet()) {
-                            fb.set(propName, attrMap.get(propName));
-                        }
+            el0 = filter == null ? getFirstElement() : getFirstElement(filter);
+            el = el0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature feature = next;
+            next = null;
+            return feature;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
 
-                        fc.add(fb.buildFeature(gridFeatureBuilder.getFeatureID(el)));
+        /**
+         * Looks for the next element to create a feature for.
+         *
+         * @return the feature of the next element, or null if there are no more
+         */
+        private SimpleFeature advance() {
+            while (el0 != null) {
+                ReferencedEnvelope rowBounds = el0.getBounds();
+
+                // the elements of a row may be offset by up to their height,
+                // as hexagons are
+                if (rowBounds.getMinY() > gridBounds.getMaxY()
+                        || (filter != null
+                            && rowBounds.getMinY() - rowBounds.getHeight() > filter.getMaxY())) {
+                    el0 = null;
+                    break;
+                }
+
+                if (filter != null
+                        && rowBounds.getMaxY() + rowBounds.getHeight() < filter.getMinY()) {
+                    // the whole row is below the filter
+                    el = null;
+                }
+
+                while (el != null && el.getBounds().getMaxX() <= gridBounds.getMaxX()) {
+                    PolygonElement cur = el;
+                    ReferencedEnvelope curBounds = cur.getBounds();
+
+                    if (filter != null && curBounds.getMinX() > filter.getMaxX()) {
+                        // the rest of the row is outside the filter
+                        el = null;
+                        break;
+                    }
+                    el = getNextXElement(cur);
+
+                    if (((Envelope) gridBounds).contains(curBounds)
+                            && (filter == null || filter.intersects(curBounds))
+                            && gridFeatureBuilder.getCreateFeature(cur)) {
+                        return buildFeature(cur);
                     }
                 }
 
-                el = getNextXElement(el);
+                el0 = getNextYElement(el0);
+                el = el0;
             }
 
-            el0 = getNextYElement(el0);
-            el = el0;
+            return null;
         }
 
-        return result;
+        /**
+         * Creates the feature of an element.
+         *
+         * @param element the element
+         * @return the feature of element
+         */
+        private SimpleFeature buildFeature(PolygonElement element) {
+            attrMap.clear();
+            gridFeatureBuilder.setAttributes(element, attrMap);
+
+            if (densify) {
+                fb.set(geomPropName, element.toDenseGeometry(vertexSpacing));
+            } else {
+                fb.set(geomPropName, element.toGeometry());
+            }
+
+            for (Map.Entry<String, Object> e : attrMap.entrySet()) {
+                fb.set(e.getKey(), e.getValue());
+            }
+
+            return fb.buildFeature(gridFeatureBuilder.getFeatureID(element));
+        }
     }
 
     public abstract boolean isValidNeighbor(Neighbor neighbor);
@@ -102,6 +229,34 @@ public abstract class PolygonBuilder {
 
     public abstract PolygonElement getFirstElement();
 
+    /**
+     * Returns the element to start generating the elements intersecting a filter
+     * from: one at or below and left of the lower left corner of the filter, so
+     * that the rows and columns before it need not be looked at. Builders that
+     * can not position an element directly start from the first element of the grid.
+     *
+     * @param filter the envelope the generated elements intersect
+     * @return the element to start from
+     */
+    public PolygonElement getFirstElement(Envelope filter) {
+        return getFirstElement();
+    }
+
+    /**
+     * Returns the index of the first of the evenly spaced rows or columns of elements
+     * that may reach a coordinate. One index is subtracted to be safe from rounding
+     * errors.
+     *
+     * @param coord the coordinate
+     * @param origin the coordinate of the first row or column
+     * @param spacing the distance between consecutive rows or columns
+     * @param reach the farthest an element reaches beyond the start of its row or column
+     * @return the index of the row or column, at least 0
+     */
+    protected static int getStartIndex(double coord, double origin, double spacing, double reach) {
+        return Math.max(0, (int) Math.floor((coord - origin - reach) / spacing) - 1);
+    }
+
     public abstract PolygonElement getNextXElement(PolygonElement el);
 
     public abstract PolygonElement getNextYElement(PolygonElement el);
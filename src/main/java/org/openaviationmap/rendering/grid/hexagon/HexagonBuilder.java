@@ -22,6 +22,8 @@ import org.openaviationmap.rendering.grid.Neighbor;
 import org.openaviationmap.rendering.grid.PolygonBuilder;
 import org.openaviationmap.rendering.grid.PolygonElement;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * Used by {@code Hexagons} class to build grids.
  *
@@ -211,6 +213,38 @@ public class HexagonBuilder extends PolygonBuilder {
                 sideLen, orientation, gridBounds.getCoordinateReferenceSystem());
     }
 
+    /**
+     * Starts at an even row and column, where the neighbor positions alternate
+     * from, and where hexagons are not offset by half of their width or height.
+     */
+    @Override
+    public PolygonElement getFirstElement(Envelope filter) {
+        double minX;
+        double minY;
+
+        if (orientation == HexagonOrientation.ANGLED) {
+            double width = Math.sqrt(3.0) * sideLen;
+            double height = 2.0 * sideLen;
+            int col = getStartIndex(filter.getMinX(), gridBounds.getMinX(), width, 1.5 * width) & ~1;
+            int row = getStartIndex(filter.getMinY(), gridBounds.getMinY(), 0.75 * height, height) & ~1;
+            minX = gridBounds.getMinX() + width * col;
+            minY = gridBounds.getMinY() + 0.75 * height * row;
+
+        } else {  // FLAT
+            double width = 2.0 * sideLen;
+            double height = Math.sqrt(3.0) * sideLen;
+            int col = getStartIndex(filter.getMinX(), gridBounds.getMinX(), 0.75 * width, width) & ~1;
+            int row = getStartIndex(filter.getMinY(), gridBounds.getMinY(), height, height) & ~1;
+            minX = gridBounds.getMinX() + 0.75 * width * col;
+            minY = gridBounds.getMinY() + height * row;
+        }
+
+        xIndex = 0;
+        yIndex = 0;
+        return Hexagons.create(minX, minY, sideLen, orientation,
+                gridBounds.getCoordinateReferenceSystem());
+    }
+
     @Override
     public PolygonElement getNextXElement(PolygonElement el) {
         Hexagon h = createNeighbor(el, nextX[xIndex]);
@@ -0,0 +1,304 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering.grid.hexagon;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.openaviationmap.rendering.grid.GridCell;
+import org.openaviationmap.rendering.grid.GridIndex;
+import org.openaviationmap.rendering.grid.Neighbor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * An index of the hexagons of a grid, finding the hexagon containing a point
+ * in constant time, for example to bin large numbers of points into
+ * hexagons without building the grid.
+ *
+ * The hexagons are laid out as by HexagonBuilder. Flat hexagons are stacked
+ * in columns, every odd column shifted down by half a hexagon. Angled
+ * hexagons are lined up in rows, every odd row shifted right by half a
+ * hexagon. The hexagon of cell (0, 0) has its bounds starting at the origin.
+ */
+public class HexagonGridIndex implements GridIndex {
+
+    /** The square root of 3. */
+    private static final double ROOT3 = Math.sqrt(3.0);
+
+    /** The x coordinate of the origin of the grid. */
+    private final double originX;
+
+    /** The y coordinate of the origin of the grid. */
+    private final double originY;
+
+    /** The side length of the hexagons. */
+    private final double sideLen;
+
+    /** The orientation of the hexagons. */
+    private final HexagonOrientation orientation;
+
+    /** The CRS of the grid, may be null. */
+    private final CoordinateReferenceSystem crs;
+
+    /** The width of a hexagon. */
+    private final double width;
+
+    /** The height of a hexagon. */
+    private final double height;
+
+    /**
+     * Constructor.
+     *
+     * @param originX the x coordinate of the origin of the grid
+     * @param originY the y coordinate of the origin of the grid
+     * @param sideLen the side length of the hexagons
+     * @param orientation the orientation of the hexagons
+     * @param crs the CRS of the grid, may be null
+     */
+    public HexagonGridIndex(double                      originX,
+                            double                      originY,
+                            double                      sideLen,
+                            HexagonOrientation          orientation,
+                            CoordinateReferenceSystem   crs) {
+        if (sideLen <= 0) {
+            throw new IllegalArgumentException(
+                                        "sideLen must be greater than 0");
+        }
+        if (orientation == null) {
+            throw new IllegalArgumentException(
+                                        "orientation should not be null");
+        }
+
+        this.originX     = originX;
+        this.originY     = originY;
+        this.sideLen     = sideLen;
+        this.orientation = orientation;
+        this.crs         = crs;
+
+        if (orientation == HexagonOrientation.FLAT) {
+            width  = 2.0 * sideLen;
+            height = ROOT3 * sideLen;
+        } else {
+            width  = ROOT3 * sideLen;
+            height = 2.0 * sideLen;
+        }
+    }
+
+    /**
+     * Constructor for the grid built over some bounds, by
+     * Hexagons.createGrid() for example.
+     *
+     * @param bounds the bounds of the grid
+     * @param sideLen the side length of the hexagons
+     * @param orientation the orientation of the hexagons
+     */
+    public HexagonGridIndex(ReferencedEnvelope  bounds,
+                            double              sideLen,
+                            HexagonOrientation  orientation) {
+        this(bounds.getMinX(), bounds.getMinY(), sideLen, orientation,
+             bounds.getCoordinateReferenceSystem());
+    }
+
+    /**
+     * @return the side length of the hexagons
+     */
+    public double getSideLength() {
+        return sideLen;
+    }
+
+    /**
+     * @return the orientation of the hexagons
+     */
+    public HexagonOrientation getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Return the x coordinate of the lower left corner of the bounds of the
+     * hexagon of a cell.
+     *
+     * @param col the column of the cell
+     * @param row the row of the cell
+     * @return the smallest x coordinate of the hexagon
+     */
+    private double getMinX(int col, int row) {
+        if (orientation == HexagonOrientation.FLAT) {
+            return originX + 0.75 * width * col;
+        } else {
+            return originX + width * col + ((row & 1) == 0 ? 0 : width / 2);
+        }
+    }
+
+    /**
+     * Return the y coordinate of the lower left corner of the bounds of the
+     * hexagon of a cell.
+     *
+     * @param col the column of the cell
+     * @param row the row of the cell
+     * @return the smallest y coordinate of the hexagon
+     */
+    private double getMinY(int col, int row) {
+        if (orientation == HexagonOrientation.FLAT) {
+            return originY + height * row - ((col & 1) == 0 ? 0 : height / 2);
+        } else {
+            return originY + 0.75 * height * row;
+        }
+    }
+
+    /**
+     * Return the squared distance of a point from the center of the hexagon
+     * of a cell.
+     *
+     * @param col the column of the cell
+     * @param row the row of the cell
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return the squared distance of the point from the center
+     */
+    private double distance2(int col, int row, double x, double y) {
+        double dx = getMinX(col, row) + width / 2 - x;
+        double dy = getMinY(col, row) + height / 2 - y;
+
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Return the cell of the hexagon containing a point, that is, the
+     * hexagon with the center closest to the point. Only two columns, or two
+     * rows of angled hexagons, can contain the point, and within each only
+     * the hexagon with the closest center along the column or row.
+     *
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return the cell of the hexagon containing the point
+     */
+    @Override
+    public GridCell getCell(double x, double y) {
+        int    bestCol  = 0;
+        int    bestRow  = 0;
+        double bestDist = Double.MAX_VALUE;
+
+        if (orientation == HexagonOrientation.FLAT) {
+            int col0 = (int) Math.floor((x - originX) / (0.75 * width));
+            for (int col = col0 - 1; col <= col0; ++col) {
+                double shift = (col & 1) == 0 ? 0 : height / 2;
+                int    row   = (int) Math.floor(
+                                    (y - originY + shift) / height);
+                double d     = distance2(col, row, x, y);
+                if (d < bestDist) {
+                    bestCol  = col;
+                    bestRow  = row;
+                    bestDist = d;
+                }
+            }
+        } else {
+            int row0 = (int) Math.floor((y - originY) / (0.75 * height));
+            for (int row = row0 - 1; row <= row0; ++row) {
+                double shift = (row & 1) == 0 ? 0 : width / 2;
+                int    col   = (int) Math.floor(
+                                    (x - originX - shift) / width);
+                double d     = distance2(col, row, x, y);
+                if (d < bestDist) {
+                    bestCol  = col;
+                    bestRow  = row;
+                    bestDist = d;
+                }
+            }
+        }
+
+        return new GridCell(bestCol, bestRow);
+    }
+
+    @Override
+    public Coordinate getCenter(GridCell cell) {
+        return new Coordinate(
+                getMinX(cell.getCol(), cell.getRow()) + width / 2,
+                getMinY(cell.getCol(), cell.getRow()) + height / 2);
+    }
+
+    @Override
+    public boolean isValidNeighbor(Neighbor neighbor) {
+        switch (neighbor) {
+        case LEFT:
+        case RIGHT:
+            return orientation == HexagonOrientation.ANGLED;
+
+        case LOWER:
+        case UPPER:
+            return orientation == HexagonOrientation.FLAT;
+
+        default:
+            return true;
+        }
+    }
+
+    @Override
+    public GridCell getNeighbor(GridCell cell, Neighbor neighbor) {
+        if (!isValidNeighbor(neighbor)) {
+            throw new IllegalArgumentException(neighbor
+                    + " is not a valid neighbour position for orientation "
+                    + orientation);
+        }
+
+        int col = cell.getCol();
+        int row = cell.getRow();
+
+        if (orientation == HexagonOrientation.FLAT) {
+            // odd columns are shifted down by half a hexagon
+            boolean odd = (col & 1) != 0;
+            switch (neighbor) {
+            case UPPER:
+                return new GridCell(col, row + 1);
+            case LOWER:
+                return new GridCell(col, row - 1);
+            case UPPER_LEFT:
+                return new GridCell(col - 1, odd ? row : row + 1);
+            case UPPER_RIGHT:
+                return new GridCell(col + 1, odd ? row : row + 1);
+            case LOWER_LEFT:
+                return new GridCell(col - 1, odd ? row - 1 : row);
+            default:
+                return new GridCell(col + 1, odd ? row - 1 : row);
+            }
+        } else {
+            // odd rows are shifted right by half a hexagon
+            boolean odd = (row & 1) != 0;
+            switch (neighbor) {
+            case LEFT:
+                return new GridCell(col - 1, row);
+            case RIGHT:
+                return new GridCell(col + 1, row);
+            case UPPER_LEFT:
+                return new GridCell(odd ? col : col - 1, row + 1);
+            case UPPER_RIGHT:
+                return new GridCell(odd ? col + 1 : col, row + 1);
+            case LOWER_LEFT:
+                return new GridCell(odd ? col : col - 1, row - 1);
+            default:
+                return new GridCell(odd ? col + 1 : col, row - 1);
+            }
+        }
+    }
+
+    @Override
+    public Hexagon createElement(GridCell cell) {
+        return Hexagons.create(getMinX(cell.getCol(), cell.getRow()),
+                               getMinY(cell.getCol(), cell.getRow()),
+                               sideLen, orientation, crs);
+    }
+}
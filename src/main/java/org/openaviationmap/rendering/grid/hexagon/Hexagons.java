@@ -17,14 +17,20 @@
 
 package org.openaviationmap.rendering.grid.hexagon;
 
+import java.util.Iterator;
+
 import org.geotools.data.DataUtilities;
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.openaviationmap.rendering.grid.GridFeatureBuilder;
+import org.openaviationmap.rendering.grid.GridFeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
 import org.geotools.referencing.CRS;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * A utilities class with static methods to create and work with hexagonal
  * grid elements.
@@ -160,7 +166,44 @@ public class Hexagons {
             double vertexSpacing,
             HexagonOrientation orientation,
             GridFeatureBuilder gridFeatureBuilder) {
-        
+
+        return DataUtilities.source(createGridCollection(bounds, sideLen,
+                vertexSpacing, orientation, gridFeatureBuilder));
+    }
+
+    /**
+     * Creates a new grid of tesselated hexagons within a bounding rectangle,
+     * as a feature collection generating the hexagons as it is iterated.
+     * Thus fine grids over large areas need no more memory than coarse ones.
+     *
+     * @param bounds the bounding rectangle
+     *
+     * @param sideLen hexagon side length
+     *
+     * @param vertexSpacing maximum distance between adjacent vertices in a grid
+     *        element; if {@code <= 0} or {@code >= min(width, height) / 2.0} it
+     *        is ignored and the polygons will not be densified
+     *
+     * @param orientation hexagon orientation
+     *
+     * @param gridFeatureBuilder an instance of {@code GridFeatureBuilder}
+     *
+     * @return a new grid, generating its elements when iterated
+     *
+     * @throws IllegalArgumentException
+     *         if bounds is null or empty; or
+     *         if sideLen is {@code <=} 0; or
+     *         if the {@code CoordinateReferenceSystems}
+     *         set for the bounds and the {@code GridFeatureBuilder} are both
+     *         non-null but different
+     */
+    public static SimpleFeatureCollection createGridCollection(
+            final ReferencedEnvelope bounds,
+            final double sideLen,
+            final double vertexSpacing,
+            final HexagonOrientation orientation,
+            final GridFeatureBuilder gridFeatureBuilder) {
+
         if (bounds == null || bounds.isEmpty() || bounds.isNull()) {
             throw new IllegalArgumentException("bounds should not be null or empty");
         }
@@ -180,10 +223,17 @@ public class Hexagons {
             throw new IllegalArgumentException("Different CRS set for bounds and the feature builder");
         }
 
-        final ListFeatureCollection fc = new ListFeatureCollection(gridFeatureBuilder.getType());
-        HexagonBuilder gridBuilder = new HexagonBuilder(bounds, sideLen, orientation);
-        gridBuilder.buildGrid(gridFeatureBuilder, vertexSpacing, fc);
-        return DataUtilities.source(fc);
+        return new GridFeatureCollection(gridFeatureBuilder.getType(), bounds,
+                new GridFeatureCollection.Generator() {
+                    @Override
+                    public Iterator<SimpleFeature> iterator(Envelope filter) {
+                        // the builder keeps its position within the grid
+                        HexagonBuilder gridBuilder =
+                                new HexagonBuilder(bounds, sideLen, orientation);
+                        return gridBuilder.iterator(gridFeatureBuilder,
+                                vertexSpacing, filter);
+                    }
+                });
     }
 
 }
@@ -22,6 +22,8 @@ import org.openaviationmap.rendering.grid.Neighbor;
 import org.openaviationmap.rendering.grid.PolygonBuilder;
 import org.openaviationmap.rendering.grid.PolygonElement;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * Used by {@code Oblongs} class to build grids.
  *
@@ -138,6 +140,17 @@ public class OblongBuilder extends PolygonBuilder {
                 elementWidth, elementHeight, gridBounds.getCoordinateReferenceSystem());
     }
 
+    @Override
+    public PolygonElement getFirstElement(Envelope filter) {
+        int col = getStartIndex(filter.getMinX(), gridBounds.getMinX(), elementWidth, elementWidth);
+        int row = getStartIndex(filter.getMinY(), gridBounds.getMinY(), elementHeight, elementHeight);
+
+        return Oblongs.create(
+                gridBounds.getMinX() + elementWidth * col,
+                gridBounds.getMinY() + elementHeight * row,
+                elementWidth, elementHeight, gridBounds.getCoordinateReferenceSystem());
+    }
+
     @Override
     public PolygonElement getNextXElement(PolygonElement el) {
         return createNeighbor(el, Neighbor.RIGHT);
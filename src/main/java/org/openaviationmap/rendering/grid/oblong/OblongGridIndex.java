@@ -0,0 +1,159 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering.grid.oblong;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.openaviationmap.rendering.grid.GridCell;
+import org.openaviationmap.rendering.grid.GridIndex;
+import org.openaviationmap.rendering.grid.Neighbor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * An index of the oblongs of a grid, finding the oblong containing a point
+ * in constant time, without building the grid. The oblongs are laid out as
+ * by OblongBuilder, the oblong of cell (0, 0) starting at the origin.
+ */
+public class OblongGridIndex implements GridIndex {
+
+    /** The x coordinate of the origin of the grid. */
+    private final double originX;
+
+    /** The y coordinate of the origin of the grid. */
+    private final double originY;
+
+    /** The width of the oblongs. */
+    private final double width;
+
+    /** The height of the oblongs. */
+    private final double height;
+
+    /** The CRS of the grid, may be null. */
+    private final CoordinateReferenceSystem crs;
+
+    /**
+     * Constructor.
+     *
+     * @param originX the x coordinate of the origin of the grid
+     * @param originY the y coordinate of the origin of the grid
+     * @param width the width of the oblongs
+     * @param height the height of the oblongs
+     * @param crs the CRS of the grid, may be null
+     */
+    public OblongGridIndex(double                       originX,
+                           double                       originY,
+                           double                       width,
+                           double                       height,
+                           CoordinateReferenceSystem    crs) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("width must be greater than 0");
+        }
+        if (height <= 0) {
+            throw new IllegalArgumentException(
+                                        "height must be greater than 0");
+        }
+
+        this.originX = originX;
+        this.originY = originY;
+        this.width   = width;
+        this.height  = height;
+        this.crs     = crs;
+    }
+
+    /**
+     * Constructor for the grid built over some bounds, by
+     * Oblongs.createGrid() for example.
+     *
+     * @param bounds the bounds of the grid
+     * @param width the width of the oblongs
+     * @param height the height of the oblongs
+     */
+    public OblongGridIndex(ReferencedEnvelope   bounds,
+                           double               width,
+                           double               height) {
+        this(bounds.getMinX(), bounds.getMinY(), width, height,
+             bounds.getCoordinateReferenceSystem());
+    }
+
+    @Override
+    public GridCell getCell(double x, double y) {
+        return new GridCell((int) Math.floor((x - originX) / width),
+                            (int) Math.floor((y - originY) / height));
+    }
+
+    @Override
+    public Coordinate getCenter(GridCell cell) {
+        return new Coordinate(originX + (cell.getCol() + 0.5) * width,
+                              originY + (cell.getRow() + 0.5) * height);
+    }
+
+    @Override
+    public boolean isValidNeighbor(Neighbor neighbor) {
+        return true;
+    }
+
+    @Override
+    public GridCell getNeighbor(GridCell cell, Neighbor neighbor) {
+        int dx;
+        int dy;
+
+        switch (neighbor) {
+        case LEFT:
+            dx = -1;
+            dy = 0;
+            break;
+        case RIGHT:
+            dx = 1;
+            dy = 0;
+            break;
+        case LOWER:
+            dx = 0;
+            dy = -1;
+            break;
+        case UPPER:
+            dx = 0;
+            dy = 1;
+            break;
+        case LOWER_LEFT:
+            dx = -1;
+            dy = -1;
+            break;
+        case LOWER_RIGHT:
+            dx = 1;
+            dy = -1;
+            break;
+        case UPPER_LEFT:
+            dx = -1;
+            dy = 1;
+            break;
+        default:
+            dx = 1;
+            dy = 1;
+        }
+
+        return new GridCell(cell.getCol() + dx, cell.getRow() + dy);
+    }
+
+    @Override
+    public Oblong createElement(GridCell cell) {
+        return Oblongs.create(originX + cell.getCol() * width,
+                              originY + cell.getRow() * height,
+                              width, height, crs);
+    }
+}
@@ -17,14 +17,20 @@
 
 package org.openaviationmap.rendering.grid.oblong;
 
+import java.util.Iterator;
+
 import org.geotools.data.DataUtilities;
-import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.openaviationmap.rendering.grid.GridFeatureBuilder;
+import org.openaviationmap.rendering.grid.GridFeatureCollection;
 import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * A utility class with static methods to create and work with oblong grid elements.
  *
@@ -123,6 +129,41 @@ public class Oblongs {
             double width, double height, 
             double vertexSpacing, GridFeatureBuilder gridFeatureBuilder) {
 
+        return DataUtilities.source(createGridCollection(bounds, width, height,
+                vertexSpacing, gridFeatureBuilder));
+    }
+
+    /**
+     * Creates a feature collection generating the elements of the grid as it
+     * is iterated, thus fine grids over large areas need no more memory than
+     * coarse ones. See {@link #createGrid(ReferencedEnvelope, double, double, double, GridFeatureBuilder)}.
+     *
+     * @param bounds the bounding rectangle
+     *
+     * @param width oblong width
+     *
+     * @param height oblong height
+     *
+     * @param vertexSpacing maximum distance between adjacent vertices in a grid
+     *        element; if {@code <= 0} or {@code >= min(width, height) / 2.0} it
+     *        is ignored and the polygons will not be densified
+     *
+     * @param gridFeatureBuilder an instance of {@code GridFeatureBuilder}
+     *
+     * @return the vector grid, generating its elements when iterated
+     *
+     * @throws IllegalArgumentException
+     *         if bounds is null or empty; or
+     *         if either width or height is {@code <=} 0; or
+     *         if the {@code CoordinateReferenceSystems}
+     *         set for the bounds and the {@code GridFeatureBuilder} are both
+     *         non-null but different
+     */
+    public static SimpleFeatureCollection createGridCollection(
+            final ReferencedEnvelope bounds,
+            final double width, final double height,
+            final double vertexSpacing, final GridFeatureBuilder gridFeatureBuilder) {
+
         if (bounds == null || bounds.isEmpty() || bounds.isNull()) {
             throw new IllegalArgumentException("bounds should not be null or empty");
         }
@@ -142,10 +183,15 @@ public class Oblongs {
             throw new IllegalArgumentException("Different CRS set for bounds and the feature builder");
         }
 
-        final ListFeatureCollection fc = new ListFeatureCollection(gridFeatureBuilder.getType());
-        OblongBuilder gridBuilder = new OblongBuilder(bounds, width, height);
-        gridBuilder.buildGrid(gridFeatureBuilder, vertexSpacing, fc);
-        return DataUtilities.source(fc);
+        return new GridFeatureCollection(gridFeatureBuilder.getType(), bounds,
+                new GridFeatureCollection.Generator() {
+                    @Override
+                    public Iterator<SimpleFeature> iterator(Envelope filter) {
+                        OblongBuilder gridBuilder = new OblongBuilder(bounds, width, height);
+                        return gridBuilder.iterator(gridFeatureBuilder,
+                                vertexSpacing, filter);
+                    }
+                });
     }
 
 }
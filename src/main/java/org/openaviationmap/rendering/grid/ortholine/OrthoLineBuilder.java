@@ -22,8 +22,11 @@ import org.openaviationmap.rendering.grid.GridFeatureBuilder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
@@ -32,6 +35,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.simple.SimpleFeature;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.GeometryFactory;
 
 /**
@@ -80,6 +84,28 @@ public class OrthoLineBuilder {
     public void buildGrid(Collection<OrthoLineDef> lineDefs,
             GridFeatureBuilder lineFeatureBuilder, double vertexSpacing, ListFeatureCollection fc) {
 
+        Iterator<SimpleFeature> it = iterator(lineDefs, lineFeatureBuilder, vertexSpacing, null);
+        while (it.hasNext()) {
+            fc.add(it.next());
+        }
+    }
+
+    /**
+     * Creates an iterator generating the line features according to the provided
+     * {@code OrthoLineDef} objects one by one, instead of all at once. The builder
+     * should not be used for another grid while iterating.
+     *
+     * @param lineDefs line definitions specifying the orientation, spacing and level of lines
+     * @param lineFeatureBuilder the feature build to create {@code SimpleFeatures} from
+     *        line elements
+     * @param vertexSpacing maximum distance between adjacent vertices along a line
+     * @param filter only the lines with bounds intersecting filter are generated,
+     *        all lines if null
+     * @return an iterator generating the line features
+     */
+    public Iterator<SimpleFeature> iterator(Collection<OrthoLineDef> lineDefs,
+            GridFeatureBuilder lineFeatureBuilder, double vertexSpacing, Envelope filter) {
+
         init(lineDefs, lineFeatureBuilder, vertexSpacing);
 
         List<OrthoLineDef> horizontal = new ArrayList<OrthoLineDef>();
@@ -97,24 +123,116 @@ public class OrthoLineBuilder {
             }
         }
 
-        doBuildLineFeatures(horizontal, LineOrientation.HORIZONTAL,
-                lineFeatureBuilder, densify, vertexSpacing, fc);
-        doBuildLineFeatures(vertical, LineOrientation.VERTICAL,
-                lineFeatureBuilder, densify, vertexSpacing, fc);
+        return new LineIterator(horizontal, vertical, lineFeatureBuilder,
+                vertexSpacing, filter);
     }
 
+    /**
+     * A line to generate the feature and the subscale of.
+     */
+    private static class PendingLine {
+        private final OrthoLine element;
+        private final OrthoLineDef lineDef;
+        private final double pos;
+
+        /** Whether the feature of the line itself was generated. */
+        private boolean lineDone = false;
+
+        /** The position of the next subscale line along the line. */
+        private double subscalePos;
+
+        PendingLine(OrthoLine element, OrthoLineDef lineDef, double pos, double subscalePos) {
+            this.element = element;
+            this.lineDef = lineDef;
+            this.pos = pos;
+            this.subscalePos = subscalePos;
+        }
+    }
 
-    private void doBuildLineFeatures(List<OrthoLineDef> lineDefs,
-            LineOrientation orientation,
-            GridFeatureBuilder lineFeatureBuilder,
-            boolean densify,
-            double vertexSpacing,
-            ListFeatureCollection fc) {
+    /**
+     * Generates the line features, scanning the positions of the horizontal
+     * lines, then of the vertical lines. At each position the line with the
+     * highest level is generated, followed by its subscale lines.
+     */
+    private class LineIterator implements Iterator<SimpleFeature> {
+
+        private final List<OrthoLineDef> vertical;
+        private final GridFeatureBuilder lineFeatureBuilder;
+        private final double vertexSpacing;
+        private final Envelope filter;
+
+        private final GeometryFactory geomFactory =
+                                    JTSFactoryFinder.getGeometryFactory(null);
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+        private final String geomPropName;
+
+        /* the scan state of the line definitions of the current orientation */
+        private List<OrthoLineDef> lineDefs;
+        private LineOrientation orientation;
+        private double maxOrdinate;
+        private double[] pos;
+        private boolean[] active;
+        private boolean[] atCurPos;
+        private boolean[] generate;
+        private int numActive;
+
+        /** The lines found at the current scan position, not yet generated. */
+        private final LinkedList<PendingLine> pending = new LinkedList<PendingLine>();
+
+        /** The next feature, or null if not generated yet. */
+        private SimpleFeature next;
+
+        LineIterator(List<OrthoLineDef> horizontal,
+                List<OrthoLineDef> vertical,
+                GridFeatureBuilder lineFeatureBuilder,
+                double vertexSpacing,
+                Envelope filter) {
+            this.vertical = vertical;
+            this.lineFeatureBuilder = lineFeatureBuilder;
+            this.vertexSpacing = vertexSpacing;
+            this.filter = filter;
+
+            geomPropName = lineFeatureBuilder.getType().getGeometryDescriptor().getLocalName();
+
+            startScan(horizontal, LineOrientation.HORIZONTAL);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = advance();
+            }
+            return next != null;
+        }
 
-        final int NDEFS = lineDefs.size();
-        if (NDEFS > 0) {
-            double minOrdinate, maxOrdinate;
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature feature = next;
+            next = null;
+            return feature;
+        }
 
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Starts scanning the positions of the lines of an orientation.
+         *
+         * @param defs the line definitions of the orientation
+         * @param lineOrientation the orientation
+         */
+        private void startScan(List<OrthoLineDef> defs, LineOrientation lineOrientation) {
+            final int NDEFS = defs.size();
+
+            lineDefs = defs;
+            orientation = lineOrientation;
+
+            double minOrdinate;
             if (orientation == LineOrientation.HORIZONTAL) {
                 minOrdinate = gridBounds.getMinY();
                 maxOrdinate = gridBounds.getMaxY();
@@ -123,194 +241,214 @@ public class OrthoLineBuilder {
                 maxOrdinate = gridBounds.getMaxX();
             }
 
-            double[] pos = new double[NDEFS];
-            boolean[] active = new boolean[NDEFS];
-            boolean[] atCurPos = new boolean[NDEFS];
-            boolean[] generate = new boolean[NDEFS];
-
-            Map<String, Object> attributes = new HashMap<String, Object>();
-            String geomPropName = lineFeatureBuilder.getType().getGeometryDescriptor().getLocalName();
+            pos = new double[NDEFS];
+            active = new boolean[NDEFS];
+            atCurPos = new boolean[NDEFS];
+            generate = new boolean[NDEFS];
 
             for (int i = 0; i < NDEFS; i++) {
                 pos[i] = minOrdinate;
                 active[i] = true;
             }
+            numActive = NDEFS;
+        }
 
-            int numActive = NDEFS;
-            while (numActive > 0) {
-                /*
-                 * Update scan position (curPos)
-                 */
-                double curPos = maxOrdinate;
-                for (int i = 0; i < NDEFS; i++) {
-                    if (active[i] && pos[i] < curPos - TOL) {
-                        curPos = pos[i];
+        /**
+         * Looks for the next line to create a feature for.
+         *
+         * @return the next feature, or null if there are no more
+         */
+        private SimpleFeature advance() {
+            while (true) {
+                while (!pending.isEmpty()) {
+                    PendingLine line = pending.getFirst();
+
+                    if (!line.lineDone) {
+                        line.lineDone = true;
+                        SimpleFeature feature = buildLine(line.element);
+                        if (feature != null) {
+                            return feature;
+                        }
+                    }
+
+                    SimpleFeature feature = buildSubscale(line);
+                    if (feature != null) {
+                        return feature;
                     }
-                }
 
-                /*
-                 * Check which line elements are at the current scan position
-                 */
-                for (int i = 0; i < NDEFS; i++) {
-                    atCurPos[i] = active[i] && Math.abs(pos[i] - curPos) < TOL;
+                    pending.removeFirst();
                 }
 
-                /*
-                 * Get line with highest precedence for the current position
-                 */
-                System.arraycopy(atCurPos, 0, generate, 0, NDEFS);
-                for (int i = 0; i < NDEFS - 1; i++) {
-                    if (generate[i] && atCurPos[i]) {
-                        for (int j = i + 1; j < NDEFS; j++) {
-                            if (generate[j] && atCurPos[j]) {
-                                if (lineDefs.get(i).getLevel() >= lineDefs.get(j).getLevel()) {
-                                    generate[j] = false;
-                                } else {
-                                    generate[i] = false;
-                                    break;
-                                }
-                            }
-                        }
-                    } else {
-                        generate[i] = false;
-                    }
+                if (numActive > 0) {
+                    scan();
+                } else if (orientation == LineOrientation.HORIZONTAL) {
+                    startScan(vertical, LineOrientation.VERTICAL);
+                } else {
+                    return null;
                 }
+            }
+        }
 
-                /*
-                 * Create the line feature with highest precedence
-                 */
-                for (int i = 0; i < NDEFS; i++) {
-                    if (generate[i]) {
-                        OrthoLine element = new OrthoLine(gridBounds, orientation,
-                                pos[i], lineDefs.get(i).getLevel());
+        /**
+         * Moves to the next scan position, and adds the lines with the
+         * highest precedence there to the pending lines.
+         */
+        private void scan() {
+            final int NDEFS = lineDefs.size();
+
+            /*
+             * Update scan position (curPos)
+             */
+            double curPos = maxOrdinate;
+            for (int i = 0; i < NDEFS; i++) {
+                if (active[i] && pos[i] < curPos - TOL) {
+                    curPos = pos[i];
+                }
+            }
 
-                        if (lineFeatureBuilder.getCreateFeature(element)) {
-                            lineFeatureBuilder.setAttributes(element, attributes);
+            /*
+             * Check which line elements are at the current scan position
+             */
+            for (int i = 0; i < NDEFS; i++) {
+                atCurPos[i] = active[i] && Math.abs(pos[i] - curPos) < TOL;
+            }
 
-                            if (densify) {
-                                featureBuilder.set(geomPropName, element.toDenseGeometry(vertexSpacing));
+            /*
+             * Get line with highest precedence for the current position
+             */
+            System.arraycopy(atCurPos, 0, generate, 0, NDEFS);
+            for (int i = 0; i < NDEFS - 1; i++) {
+                if (generate[i] && atCurPos[i]) {
+                    for (int j = i + 1; j < NDEFS; j++) {
+                        if (generate[j] && atCurPos[j]) {
+                            if (lineDefs.get(i).getLevel() >= lineDefs.get(j).getLevel()) {
+                                generate[j] = false;
                             } else {
-                                featureBuilder.set(geomPropName, element.toGeometry());
+                                generate[i] = false;
+                                break;
                             }
-
-                            for (String propName : attributes.keySet()) {
-                                featureBuilder.set(propName, attributes.get(propName));
-                            }
-
-                            String featureID = lineFeatureBuilder.getFeatureID(element);
-                            SimpleFeature feature = featureBuilder.buildFeature(featureID);
-                            fc.add(feature);
                         }
+                    }
+                } else {
+                    generate[i] = false;
+                }
+            }
 
-                        // create a subscale if needed
-                        if (lineDefs.get(i).getSubscaleSpacing() > 0
-                         && lineDefs.get(i).getSubscaleLength() > 0) {
+            /*
+             * Queue the line with highest precedence
+             */
+            for (int i = 0; i < NDEFS; i++) {
+                if (generate[i]) {
+                    OrthoLine element = new OrthoLine(gridBounds, orientation,
+                            pos[i], lineDefs.get(i).getLevel());
+                    double subscaleStart = orientation == LineOrientation.HORIZONTAL
+                            ? gridBounds.getMinX() : gridBounds.getMinY();
 
-                            buildSubscale(
-                                    (OrthoLineFeatureBuilder)lineFeatureBuilder,
-                                    element, lineDefs.get(i), pos[i], fc);
-                        }
-                    }
+                    pending.add(new PendingLine(element, lineDefs.get(i), pos[i], subscaleStart));
                 }
+            }
 
-                /*
-                 * Update line element positions
-                 */
-                for (int i = 0; i < NDEFS; i++) {
-                    if (atCurPos[i]) {
-                        pos[i] += lineDefs.get(i).getSpacing();
-                        if (pos[i] > maxOrdinate + TOL) {
-                            active[i] = false;
-                            numActive-- ;
-                        }
+            /*
+             * Update line element positions
+             */
+            for (int i = 0; i < NDEFS; i++) {
+                if (atCurPos[i]) {
+                    pos[i] += lineDefs.get(i).getSpacing();
+                    if (pos[i] > maxOrdinate + TOL) {
+                        active[i] = false;
+                        numActive-- ;
                     }
                 }
             }
         }
-    }
-
-    /**
-     * Build a subscale for an ortho line, by inserting small subscale lines
-     * of specified length and specified intervals, perpendicular to the ortho
-     * line itself.
-     *
-     * @param lineFeatureBuilder the line feature builder to use
-     * @param element the element which the subscales are based on
-     * @param lineDef the orth line definition which the subscale is based on
-     * @param pi the vertical or horizontal position of the ortho line
-     * @param fc the feature collection to enter the generated lines into
-     */
-    private void
-    buildSubscale(OrthoLineFeatureBuilder   lineFeatureBuilder,
-                  OrthoLine                 element,
-                  OrthoLineDef              lineDef,
-                  double                    pi,
-                  ListFeatureCollection     fc) {
-
-        final GeometryFactory geomFactory =
-                                    JTSFactoryFinder.getGeometryFactory(null);
-
-        Map<String, Object> attributes = new HashMap<String, Object>();
-        String geomPropName = lineFeatureBuilder.getType()
-                                        .getGeometryDescriptor().getLocalName();
-
-        double q0 = pi;
-        double q1 = q0 + lineDef.getSubscaleLength();
-
-        if (lineDef.getOrientation() == LineOrientation.HORIZONTAL) {
-
-            double upperBound = gridBounds.getMaxX();
 
-            for (double p = gridBounds.getMinX();
-                 p < upperBound;
-                 p += lineDef.getSubscaleSpacing()) {
-
-                Coordinate v0 = new Coordinate(p, q0);
-                Coordinate v1 = new Coordinate(p, q1);
-
-                lineFeatureBuilder.setAttributesSubscale(element, attributes);
-
-                featureBuilder.set(geomPropName,
-                        geomFactory.createLineString(new Coordinate[]{v0, v1}));
+        /**
+         * Creates the feature of a line.
+         *
+         * @param element the line
+         * @return the feature of the line, or null if not to be created
+         */
+        private SimpleFeature buildLine(OrthoLine element) {
+            if (!lineFeatureBuilder.getCreateFeature(element)
+                    || (filter != null && !filter.intersects(element.getBounds()))) {
+                return null;
+            }
 
-                for (String propName : attributes.keySet()) {
-                    featureBuilder.set(propName, attributes.get(propName));
-                }
+            attributes.clear();
+            lineFeatureBuilder.setAttributes(element, attributes);
 
-                String featureID = lineFeatureBuilder.getFeatureID(element);
-                SimpleFeature feature = featureBuilder.buildFeature(featureID);
-                fc.add(feature);
+            if (densify) {
+                featureBuilder.set(geomPropName, element.toDenseGeometry(vertexSpacing));
+            } else {
+                featureBuilder.set(geomPropName, element.toGeometry());
             }
-        }
 
-        if (lineDef.getOrientation() == LineOrientation.VERTICAL) {
+            for (Map.Entry<String, Object> e : attributes.entrySet()) {
+                featureBuilder.set(e.getKey(), e.getValue());
+            }
 
-            double upperBound = gridBounds.getMaxY();
+            String featureID = lineFeatureBuilder.getFeatureID(element);
+            return featureBuilder.buildFeature(featureID);
+        }
 
-            for (double p = gridBounds.getMinY();
-                 p < upperBound;
-                 p += lineDef.getSubscaleSpacing()) {
+        /**
+         * Creates the feature of the next subscale line of a line, by
+         * inserting small subscale lines of specified length and specified
+         * intervals, perpendicular to the ortho line itself.
+         *
+         * @param line the line to create the subscale of
+         * @return the feature of the next subscale line of line, or null if
+         *         there are no more
+         */
+        private SimpleFeature buildSubscale(PendingLine line) {
+            OrthoLineDef lineDef = line.lineDef;
+
+            // create a subscale if needed
+            if (lineDef.getSubscaleSpacing() <= 0 || lineDef.getSubscaleLength() <= 0) {
+                return null;
+            }
 
-                // adjust for the constant of the cone
-                q1 = q0 + lineDef.getSubscaleLength()
-                        * Math.cos(Math.toRadians(p));
+            double q0 = line.pos;
+            double upperBound = lineDef.getOrientation() == LineOrientation.HORIZONTAL
+                    ? gridBounds.getMaxX() : gridBounds.getMaxY();
+
+            while (line.subscalePos < upperBound) {
+                double p = line.subscalePos;
+                line.subscalePos += lineDef.getSubscaleSpacing();
+
+                Coordinate v0;
+                Coordinate v1;
+                if (lineDef.getOrientation() == LineOrientation.HORIZONTAL) {
+                    v0 = new Coordinate(p, q0);
+                    v1 = new Coordinate(p, q0 + lineDef.getSubscaleLength());
+                } else {
+                    // adjust for the constant of the cone
+                    double q1 = q0 + lineDef.getSubscaleLength()
+                            * Math.cos(Math.toRadians(p));
+                    v0 = new Coordinate(q0, p);
+                    v1 = new Coordinate(q1, p);
+                }
 
-                Coordinate v0 = new Coordinate(q0, p);
-                Coordinate v1 = new Coordinate(q1, p);
+                if (filter != null && !filter.intersects(new Envelope(v0, v1))) {
+                    continue;
+                }
 
-                lineFeatureBuilder.setAttributesSubscale(element, attributes);
+                attributes.clear();
+                ((OrthoLineFeatureBuilder) lineFeatureBuilder)
+                        .setAttributesSubscale(line.element, attributes);
 
                 featureBuilder.set(geomPropName,
                         geomFactory.createLineString(new Coordinate[]{v0, v1}));
 
-                for (String propName : attributes.keySet()) {
-                    featureBuilder.set(propName, attributes.get(propName));
+                for (Map.Entry<String, Object> e : attributes.entrySet()) {
+                    featureBuilder.set(e.getKey(), e.getValue());
                 }
 
-                String featureID = lineFeatureBuilder.getFeatureID(element);
-                SimpleFeature feature = featureBuilder.buildFeature(featureID);
-                fc.add(feature);
+                String featureID = lineFeatureBuilder.getFeatureID(line.element);
+                return featureBuilder.buildFeature(featureID);
             }
+
+            return null;
         }
     }
 
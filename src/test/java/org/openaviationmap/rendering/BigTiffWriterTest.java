@@ -0,0 +1,346 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for the BigTiffWriter class.
+ */
+public class BigTiffWriterTest {
+
+    /** A temporary folder to write images into. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create a test image with a different color for each pixel.
+     *
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the test image
+     */
+    private static BufferedImage createImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height,
+                                                BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < width; ++x) {
+            for (int y = 0; y < height; ++y) {
+                image.setRGB(x, y, (x * 7) << 16 | (y * 5) << 8 | (x ^ y));
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Read a BigTIFF file.
+     *
+     * @param file the file to read
+     * @return the contents of the file, after checking the header
+     * @throws IOException on I/O errors
+     */
+    private static ByteBuffer readFile(File file) throws IOException {
+        FileChannel ch  = new RandomAccessFile(file, "r").getChannel();
+        ByteBuffer  buf = ByteBuffer.allocate((int) ch.size())
+                                    .order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining() && ch.read(buf) > 0) {
+            // keep reading
+        }
+        ch.close();
+
+        assertEquals('I', buf.get(0));
+        assertEquals('I', buf.get(1));
+        assertEquals(43, buf.getShort(2));
+        assertEquals(8, buf.getShort(4));
+
+        return buf;
+    }
+
+    /**
+     * Read the entries of an image file directory of a BigTIFF file, with
+     * values of integer types.
+     *
+     * @param buf the contents of the file
+     * @param offset the offset of the directory
+     * @param entries the values of the entries are put into this, by tag
+     * @return the offset of the next directory, 0 if none
+     */
+    private static long readDirectory(ByteBuffer            buf,
+                                      long                  offset,
+                                      Map<Integer, long[]>  entries) {
+        int  pos   = (int) offset;
+        long count = buf.getLong(pos);
+        pos += 8;
+        for (int i = 0; i < count; ++i, pos += 20) {
+            int tag  = buf.getShort(pos) & 0xffff;
+            int type = buf.getShort(pos + 2);
+            int n    = (int) buf.getLong(pos + 4);
+            int size = type == 3 ? 2 : type == 4 ? 4 : 8;
+
+            // rationals are read as pairs of longs
+            if (type == 5) {
+                n   *= 2;
+                size = 4;
+            }
+
+            int valuePos = n * size <= 8 ? pos + 12
+                                         : (int) buf.getLong(pos + 12);
+
+            long[] values = new long[n];
+            for (int j = 0; j < n; ++j) {
+                int p = valuePos + j * size;
+                values[j] = size == 2 ? buf.getShort(p) & 0xffff
+                          : size == 4 ? buf.getInt(p) & 0xffffffffL
+                          : buf.getLong(p);
+            }
+            entries.put(tag, values);
+        }
+
+        return buf.getLong(pos);
+    }
+
+    /**
+     * Decode a tile of a BigTIFF file.
+     *
+     * @param buf the contents of the file
+     * @param offset the offset of the tile
+     * @param count the size of the tile
+     * @param tileSize the size of the tile, in pixels
+     * @return the pixels of the tile, row by row
+     * @throws DataFormatException on decompression errors
+     */
+    private static int[] decodeTile(ByteBuffer  buf,
+                                    long        offset,
+                                    long        count,
+                                    int         tileSize)
+                                                throws DataFormatException {
+        byte[] data = new byte[(int) count];
+        buf.position((int) offset);
+        buf.get(data);
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] raw = new byte[tileSize * tileSize * 3];
+        assertEquals(raw.length, inflater.inflate(raw));
+        assertTrue(inflater.finished());
+        inflater.end();
+
+        int   rowSize = tileSize * 3;
+        int[] pixels  = new int[tileSize * tileSize];
+        for (int j = 0; j < tileSize; ++j) {
+            for (int k = j * rowSize + 3; k < (j + 1) * rowSize; ++k) {
+                raw[k] += raw[k - 3];
+            }
+            for (int i = 0; i < tileSize; ++i) {
+                int k = j * rowSize + i * 3;
+                pixels[j * tileSize + i] = (raw[k] & 0xff) << 16
+                                         | (raw[k + 1] & 0xff) << 8
+                                         | (raw[k + 2] & 0xff);
+            }
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Test writing an image with tiles extending beyond its edges, in an
+     * arbitrary order, and reading it back.
+     *
+     * @throws IOException on I/O errors
+     * @throws DataFormatException on decompression errors
+     */
+    @Test
+    public void testWrite() throws IOException, DataFormatException {
+        File          file   = new File(folder.getRoot(), "t.tif");
+        BufferedImage image  = createImage(70, 40);
+        BigTiffWriter writer = new BigTiffWriter(file, 70, 40, 32);
+        writer.setResolution(300);
+
+        assertEquals(3, writer.getColumns());
+        assertEquals(2, writer.getRows());
+
+        for (int row = writer.getRows() - 1; row >= 0; --row) {
+            for (int col = 0; col < writer.getColumns(); ++col) {
+                writer.writeTile(col, row, image, col * 32, row * 32);
+            }
+        }
+        writer.close();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        ByteBuffer           buf     = readFile(file);
+        Map<Integer, long[]> entries = new HashMap<Integer, long[]>();
+        assertEquals(0, readDirectory(buf, buf.getLong(8), entries));
+        assertEquals(70, entries.get(256)[0]);
+        assertEquals(40, entries.get(257)[0]);
+        assertEquals(8, entries.get(259)[0]);
+        assertEquals(2, entries.get(317)[0]);
+        assertEquals(32, entries.get(322)[0]);
+        assertEquals(30000, entries.get(282)[0]);
+        assertEquals(100, entries.get(282)[1]);
+
+        long[] offsets = entries.get(324);
+        long[] counts  = entries.get(325);
+        assertEquals(6, offsets.length);
+
+        for (int t = 0; t < offsets.length; ++t) {
+            int[] pixels = decodeTile(buf, offsets[t], counts[t], 32);
+
+            int x0 = (t % 3) * 32;
+            int y0 = (t / 3) * 32;
+            for (int j = 0; j < 32 && y0 + j < 40; ++j) {
+                for (int i = 0; i < 32 && x0 + i < 70; ++i) {
+                    assertEquals(image.getRGB(x0 + i, y0 + j) & 0xffffff,
+                                 pixels[j * 32 + i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test writing a cloud optimized image: the overviews are built, and
+     * the directories come before the tiles, which come from the smallest
+     * overview up.
+     *
+     * @throws IOException on I/O errors
+     * @throws DataFormatException on decompression errors
+     */
+    @Test
+    public void testCloudOptimized() throws IOException, DataFormatException {
+        File          file   = new File(folder.getRoot(), "t.tif");
+        BufferedImage image  = createImage(100, 70);
+        BigTiffWriter writer = new BigTiffWriter(file, 100, 70, 32, true);
+        writer.setDoubleTag(33550, 2.5, 2.5, 0);
+
+        assertEquals(4, writer.getColumns());
+        assertEquals(3, writer.getRows());
+        assertEquals(2, writer.getOverviewCount());
+
+        for (int row = writer.getRows() - 1; row >= 0; --row) {
+            for (int col = writer.getColumns() - 1; col >= 0; --col) {
+                writer.writeTile(col, row, image, col * 32, row * 32);
+            }
+        }
+        writer.close();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertFalse(new File(file.getPath() + ".data.tmp").exists());
+
+        ByteBuffer buf = readFile(file);
+
+        List<Map<Integer, long[]>> levels =
+                                    new ArrayList<Map<Integer, long[]>>();
+        long directory = buf.getLong(8);
+        long maxDirectory = 0;
+        while (directory != 0) {
+            maxDirectory = directory;
+            Map<Integer, long[]> entries = new HashMap<Integer, long[]>();
+            directory = readDirectory(buf, directory, entries);
+            levels.add(entries);
+        }
+
+        assertEquals(3, levels.size());
+        assertEquals(100, levels.get(0).get(256)[0]);
+        assertEquals(50, levels.get(1).get(256)[0]);
+        assertEquals(35, levels.get(1).get(257)[0]);
+        assertEquals(25, levels.get(2).get(256)[0]);
+        assertEquals(18, levels.get(2).get(257)[0]);
+        assertFalse(levels.get(0).containsKey(254));
+        assertEquals(1, levels.get(1).get(254)[0]);
+        assertEquals(12, levels.get(0).get(324).length);
+        assertEquals(4, levels.get(1).get(324).length);
+        assertEquals(1, levels.get(2).get(324).length);
+
+        // the smallest overview first, then the larger ones
+        long previous = maxDirectory;
+        for (int i = levels.size() - 1; i >= 0; --i) {
+            for (long offset : levels.get(i).get(324)) {
+                assertTrue(offset > previous);
+                previous = offset;
+            }
+        }
+
+        // the top left pixel of the smallest overview is the average of
+        // the top left 4x4 pixels of the image
+        int[] pixels = decodeTile(buf, levels.get(2).get(324)[0],
+                                  levels.get(2).get(325)[0], 32);
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int sum = 0;
+            for (int x = 0; x < 4; ++x) {
+                for (int y = 0; y < 4; ++y) {
+                    sum += image.getRGB(x, y) >> shift & 0xff;
+                }
+            }
+            assertEquals(sum / 16.0, pixels[0] >> shift & 0xff, 1.0);
+        }
+    }
+
+    /**
+     * Test that an image with missing tiles is not completed, and that an
+     * earlier image is kept in such a case.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testMissingTile() throws IOException {
+        File file = new File(folder.getRoot(), "t.tif");
+        assertTrue(file.createNewFile());
+
+        BufferedImage image  = createImage(64, 32);
+        BigTiffWriter writer = new BigTiffWriter(file, 64, 32, 32);
+        writer.writeTile(1, 0, image, 32, 0);
+
+        try {
+            writer.writeTile(1, 0, image, 32, 0);
+            fail("a tile was written twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            writer.close();
+            fail("an incomplete image was closed");
+        } catch (IOException e) {
+            // expected
+        }
+        writer.abort();
+
+        assertTrue(file.exists());
+        assertEquals(0, file.length());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+}
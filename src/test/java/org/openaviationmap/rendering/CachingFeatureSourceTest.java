@@ -0,0 +1,147 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Test cases for the CachingFeatureSource class.
+ */
+public class CachingFeatureSourceTest {
+
+    /** The filter factory used to create queries. */
+    private static final FilterFactory2 FF =
+                                    CommonFactoryFinder.getFilterFactory2();
+
+    /**
+     * Create a feature source of points on a grid, at integer coordinates
+     * from 0 to 9.
+     *
+     * @return the feature source
+     * @throws Exception on errors
+     */
+    private static SimpleFeatureSource createSource() throws Exception {
+        SimpleFeatureType   type = DataUtilities.createType("points",
+                                                "geom:Point,name:String");
+        GeometryFactory     gf   = JTSFactoryFinder.getGeometryFactory();
+        List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        for (int x = 0; x < 10; ++x) {
+            for (int y = 0; y < 10; ++y) {
+                builder.add(gf.createPoint(new Coordinate(x, y)));
+                builder.add(x + "/" + y);
+                list.add(builder.buildFeature("p" + x + "_" + y));
+            }
+        }
+
+        return DataUtilities.source(new ListFeatureCollection(type, list));
+    }
+
+    /**
+     * Create a bounding box filter.
+     *
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     * @return the bounding box filter
+     */
+    private static Filter bbox(double minX, double minY,
+                               double maxX, double maxY) {
+        return FF.bbox("geom", minX, minY, maxX, maxY, null);
+    }
+
+    /**
+     * Test that queries are answered from regions fetched once, and that
+     * features spanning regions are returned once.
+     *
+     * @throws Exception on errors
+     */
+    @Test
+    public void testRegions() throws Exception {
+        CachingFeatureSource cache = new CachingFeatureSource(createSource(),
+                                    CachingFeatureSource.DEFAULT_CACHE_SIZE);
+
+        // the first query sets the regions to 8 units wide
+        assertEquals(9, cache.getFeatures(bbox(0, 0, 2, 2)).size());
+        assertEquals(1, cache.getLoadCount());
+
+        assertEquals(9, cache.getFeatures(bbox(3, 3, 5, 5)).size());
+        assertEquals(1, cache.getLoadCount());
+
+        // four regions, the points at 8 in two of them
+        assertEquals(9, cache.getFeatures(bbox(7, 7, 9, 9)).size());
+        assertEquals(4, cache.getLoadCount());
+
+        // attribute filters are evaluated in memory
+        Filter named = FF.and(bbox(0, 0, 9, 9),
+                              FF.equals(FF.property("name"),
+                                        FF.literal("4/5")));
+        assertEquals(1, cache.getFeatures(named).size());
+        assertEquals(4, cache.getLoadCount());
+        assertEquals(4, cache.getQueryCount());
+
+        // queries without bounds are not cached
+        assertEquals(100, cache.getFeatures(Filter.INCLUDE).size());
+        assertEquals(4, cache.getQueryCount());
+    }
+
+    /**
+     * Test that the least recently used regions are evicted when the
+     * memory budget is exceeded.
+     *
+     * @throws Exception on errors
+     */
+    @Test
+    public void testEviction() throws Exception {
+        CachingFeatureSource cache = new CachingFeatureSource(createSource(),
+                                                              1);
+
+        assertEquals(4, cache.getFeatures(bbox(0, 0, 1, 1)).size());
+        assertEquals(1, cache.getLoadCount());
+
+        // the region in use is kept, even if over the budget
+        assertEquals(4, cache.getFeatures(bbox(0, 0, 1, 1)).size());
+        assertEquals(1, cache.getLoadCount());
+
+        // using another region evicts the first one
+        assertEquals(4, cache.getFeatures(bbox(4, 4, 5, 5)).size());
+        assertEquals(2, cache.getLoadCount());
+        assertEquals(4, cache.getFeatures(bbox(0, 0, 1, 1)).size());
+        assertEquals(3, cache.getLoadCount());
+    }
+}
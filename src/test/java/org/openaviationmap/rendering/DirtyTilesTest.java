@@ -0,0 +1,125 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.openaviationmap.model.oam.Oam;
+import org.openaviationmap.model.oam.OsmNode;
+import org.openaviationmap.model.oam.Way;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Test cases for the DirtyTiles class.
+ */
+public class DirtyTilesTest {
+
+    /**
+     * Add a way to an OAM.
+     *
+     * @param oam the OAM to add the way to
+     * @param id the id of the way, also used as its identifying tag
+     * @param coords the longitude, latitude pairs of the nodes of the way
+     */
+    private static void addWay(Oam oam, int id, double... coords) {
+        Way way = new Way();
+        way.setId(id);
+        way.getTags().put("id", Integer.toString(id));
+
+        for (int i = 0; i < coords.length; i += 2) {
+            OsmNode node = new OsmNode();
+            node.setId(id * 100 + i);
+            node.setLongitude(coords[i]);
+            node.setLatitude(coords[i + 1]);
+
+            oam.getNodes().put(node.getId(), node);
+            way.getNodeList().add(node.getId());
+        }
+
+        oam.getWays().put(id, way);
+    }
+
+    /**
+     * Describe a list of metatiles.
+     *
+     * @param metatiles the metatiles
+     * @return the descriptions of the metatiles
+     */
+    private static List<String> describe(List<Metatile> metatiles) {
+        List<String> l = new ArrayList<String>();
+        for (Metatile m : metatiles) {
+            l.add(m.getX() + "," + m.getY() + "," + m.getWidth());
+        }
+
+        return l;
+    }
+
+    /**
+     * Test selecting the metatiles touched by a changed area, with and
+     * without a rendering buffer.
+     */
+    @Test
+    public void testBuffer() {
+        DirtyTiles dirty = new DirtyTiles();
+        dirty.add(new Envelope(0.1, 0.1, 0.1, 0.1));
+
+        Rectangle world = new Rectangle(0, 0, 15, 15);
+
+        // the point is on tile 8,7, near its lower left corner
+        assertEquals(Arrays.asList("8,4,4"),
+                     describe(dirty.getMetatiles(world, 4, 4, 0)));
+
+        assertEquals(4, dirty.getMetatiles(world, 4, 4, 100).size());
+
+        // outside of the tileset
+        assertTrue(dirty.getMetatiles(new Rectangle(0, 0, 3, 3), 4, 4, 100)
+                        .isEmpty());
+    }
+
+    /**
+     * Test collecting the areas of a way that moved, covering both its old
+     * and its new location, but not unchanged content.
+     */
+    @Test
+    public void testChanges() {
+        Oam baseOam  = new Oam();
+        Oam inputOam = new Oam();
+
+        addWay(baseOam, 1, 10, 10, 11, 11);
+        addWay(inputOam, 1, -100, -10, -99, -10);
+        addWay(baseOam, 2, 100, 50, 101, 51);
+        addWay(inputOam, 2, 100, 50, 101, 51);
+
+        DirtyTiles dirty = new DirtyTiles();
+        dirty.addChanges(baseOam, inputOam, "id");
+
+        List<Metatile> metatiles =
+                    dirty.getMetatiles(new Rectangle(0, 0, 7, 7), 3, 1, 0);
+
+        assertEquals(Arrays.asList("1,4,1", "4,3,1"),
+                     describe(metatiles));
+    }
+}
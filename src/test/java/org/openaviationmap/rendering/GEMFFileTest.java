@@ -0,0 +1,256 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for reading tiles from GEMF archives.
+ */
+public class GEMFFileTest {
+
+    /** A temporary folder to write archives into. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create some test tile contents.
+     *
+     * @param source the source of the tile
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the tile contents
+     */
+    private static byte[] tileData(String source, int zoom, int x, int y) {
+        return (source + "/" + zoom + "/" + x + "/" + y).getBytes();
+    }
+
+    /**
+     * Get the contents of a buffer.
+     *
+     * @param buffer the buffer, may be null
+     * @return the contents of the buffer, or null if buffer is null
+     */
+    private static byte[] toBytes(ByteBuffer buffer) {
+        if (buffer == null) {
+            return null;
+        }
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Write an archive with two sources, each tile of source "b" present in
+     * a staircase pattern so that it is stored in many ranges, spread over
+     * many parts.
+     *
+     * @return the path of the archive written
+     * @throws IOException on I/O errors
+     */
+    private String writeArchive() throws IOException {
+        String     path   = new File(folder.getRoot(), "t.gemf").getPath();
+        GEMFWriter writer = new GEMFWriter(path, 200);
+
+        for (int x = 0; x < 8; ++x) {
+            for (int y = 0; y < 8; ++y) {
+                writer.addTile("a", 3, x, y, tileData("a", 3, x, y));
+                if (y >= x) {
+                    writer.addTile("b", 3, x, y, tileData("b", 3, x, y));
+                }
+            }
+        }
+        writer.addTile("b", 5, 20, 9, tileData("b", 5, 20, 9));
+        writer.close();
+
+        return path;
+    }
+
+    /**
+     * Test looking up tiles in a given source, and in any source.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testLookup() throws IOException {
+        GEMFFile gemf = new GEMFFile(writeArchive());
+
+        for (int x = -1; x < 9; ++x) {
+            for (int y = -1; y < 9; ++y) {
+                boolean inA = x >= 0 && x < 8 && y >= 0 && y < 8;
+                boolean inB = inA && y >= x;
+
+                assertArrayEquals(inA ? tileData("a", 3, x, y) : null,
+                                  toBytes(gemf.getTile(0, x, y, 3)));
+                assertArrayEquals(inB ? tileData("b", 3, x, y) : null,
+                                  toBytes(gemf.getTile(1, x, y, 3)));
+                assertArrayEquals(inA ? tileData("a", 3, x, y) : null,
+                                  toBytes(gemf.getTile(x, y, 3)));
+            }
+        }
+
+        assertArrayEquals(tileData("b", 5, 20, 9),
+                          toBytes(gemf.getTile(20, 9, 5)));
+        assertNull(gemf.getTile(0, 20, 9, 5));
+        assertNull(gemf.getTile(1, 20, 9, 4));
+
+        InputStream in = gemf.getInputStream(20, 9, 5);
+        byte[] expected = tileData("b", 5, 20, 9);
+        assertEquals(expected.length, in.available());
+        for (byte b : expected) {
+            assertEquals(b & 0xFF, in.read());
+        }
+        assertEquals(-1, in.read());
+        in.close();
+
+        gemf.close();
+    }
+
+    /**
+     * Test reading tiles from many threads at once.
+     *
+     * @throws Exception on errors
+     */
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final GEMFFile gemf = new GEMFFile(writeArchive());
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 16; ++i) {
+                futures.add(pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        for (int n = 0; n < 100; ++n) {
+                            for (int x = 0; x < 8; ++x) {
+                                for (int y = x; y < 8; ++y) {
+                                    byte[] tile =
+                                        toBytes(gemf.getTile(1, x, y, 3));
+                                    assertArrayEquals(
+                                                tileData("b", 3, x, y), tile);
+                                }
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+
+            for (Future<Boolean> future : futures) {
+                try {
+                    assertTrue(future.get());
+                } catch (ExecutionException e) {
+                    throw (Exception) e.getCause();
+                }
+            }
+        } finally {
+            pool.shutdown();
+            gemf.close();
+        }
+    }
+
+    /**
+     * Test merging archives, with the tiles held by both archives taken
+     * from the first, or from the last one.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testMerge() throws IOException {
+        File first  = new File(writeArchive());
+        File second = folder.newFile("second.gemf");
+
+        GEMFWriter writer = new GEMFWriter(second.getPath(), 200);
+        writer.addTile("c", 4, 1, 1, tileData("c", 4, 1, 1));
+        writer.addTile("a", 3, 0, 0, "new".getBytes());
+        writer.addTile("a", 4, 8, 8, tileData("a", 4, 8, 8));
+        writer.linkTile("a", 4, 8, 9, 2);
+        writer.close();
+
+        for (GEMFFile.MergePrecedence precedence
+                                : GEMFFile.MergePrecedence.values()) {
+            String path = new File(folder.getRoot(),
+                                   precedence + ".gemf").getPath();
+            int count = GEMFFile.merge(path, Arrays.asList(first, second),
+                                       precedence);
+            assertEquals(104, count);
+
+            GEMFFile gemf = new GEMFFile(path);
+            try {
+                assertEquals(Arrays.asList("a", "b", "c"),
+                             new ArrayList<String>(
+                                        gemf.getSources().values()));
+
+                assertArrayEquals(
+                        precedence == GEMFFile.MergePrecedence.FIRST
+                            ? tileData("a", 3, 0, 0) : "new".getBytes(),
+                        toBytes(gemf.getTile(0, 0, 0, 3)));
+                assertArrayEquals(tileData("a", 3, 7, 7),
+                                  toBytes(gemf.getTile(0, 7, 7, 3)));
+                assertArrayEquals(tileData("b", 3, 2, 5),
+                                  toBytes(gemf.getTile(1, 2, 5, 3)));
+                assertArrayEquals(tileData("b", 5, 20, 9),
+                                  toBytes(gemf.getTile(1, 20, 9, 5)));
+                assertArrayEquals(tileData("c", 4, 1, 1),
+                                  toBytes(gemf.getTile(2, 1, 1, 4)));
+                assertArrayEquals(tileData("a", 4, 8, 8),
+                                  toBytes(gemf.getTile(0, 8, 9, 4)));
+                assertNull(gemf.getTile(1, 0, 0, 4));
+            } finally {
+                gemf.close();
+            }
+        }
+    }
+
+    /**
+     * Test that an archive is not merged into itself.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeIntoItself() throws IOException {
+        File archive = new File(writeArchive());
+
+        GEMFFile.merge(archive.getPath(), Arrays.asList(archive),
+                       GEMFFile.MergePrecedence.FIRST);
+    }
+}
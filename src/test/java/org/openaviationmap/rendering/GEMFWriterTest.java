@@ -0,0 +1,253 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for the GEMFWriter class, read back through GEMFFile.
+ */
+public class GEMFWriterTest {
+
+    /** A temporary folder to write archives into. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create some test tile contents, of varying length.
+     *
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the tile contents
+     */
+    private static byte[] tileData(int zoom, int x, int y) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= (x + y) % 5; ++i) {
+            sb.append(zoom).append('/').append(x).append('/').append(y);
+        }
+
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * Read a tile from a GEMF archive.
+     *
+     * @param gemf the archive
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the tile contents, or null if the tile is not in the archive
+     * @throws IOException on I/O errors
+     */
+    private static byte[]
+    readTile(GEMFFile gemf, int zoom, int x, int y) throws IOException {
+        InputStream in = gemf.getInputStream(x, y, zoom);
+        if (in == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        int    len;
+        while (in.available() > 0 && (len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Test writing an archive with several sources, spread over many parts,
+     * with tiles added out of order, replaced and shared.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testParts() throws IOException {
+        String     path   = new File(folder.getRoot(), "t.gemf").getPath();
+        GEMFWriter writer = new GEMFWriter(path, 100);
+
+        writer.addSource("empty");
+        int shared = writer.addTile("b", 3, 7, 7, "shared".getBytes());
+        for (int x = 5; x >= 0; --x) {
+            for (int y = 0; y < 6; ++y) {
+                if (x == 2 && y == 3) {
+                    continue;
+                }
+                writer.addTile("a", 3, x, y, tileData(3, x, y));
+            }
+        }
+        writer.addTile("a", 3, 1, 1, "replaced".getBytes());
+        writer.linkTile("a", 4, 12, 13, shared);
+        writer.close();
+
+        assertTrue(new File(path + "-1").exists());
+        assertTrue(new File(path + "-5").exists());
+        assertFalse(new File(path + ".tmp").exists());
+
+        GEMFFile gemf = new GEMFFile(path);
+        assertEquals(Arrays.asList("empty", "b", "a"),
+                     Arrays.asList(gemf.getSources().values().toArray()));
+
+        gemf.selectSource(2);
+        for (int x = 0; x < 6; ++x) {
+            for (int y = 0; y < 6; ++y) {
+                byte[] tile = readTile(gemf, 3, x, y);
+                if (x == 2 && y == 3) {
+                    assertNull(tile);
+                } else if (x == 1 && y == 1) {
+                    assertArrayEquals("replaced".getBytes(), tile);
+                } else {
+                    assertArrayEquals(tileData(3, x, y), tile);
+                }
+            }
+        }
+        assertArrayEquals("shared".getBytes(), readTile(gemf, 4, 12, 13));
+
+        gemf.selectSource(1);
+        assertArrayEquals("shared".getBytes(), readTile(gemf, 3, 7, 7));
+        assertNull(readTile(gemf, 3, 0, 0));
+        gemf.close();
+    }
+
+    /**
+     * Test that an aborted writer leaves an earlier archive intact.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testAbort() throws IOException {
+        String     path   = new File(folder.getRoot(), "t.gemf").getPath();
+        GEMFWriter writer = new GEMFWriter(path);
+        writer.addTile("a", 1, 0, 0, "first".getBytes());
+        writer.close();
+
+        writer = new GEMFWriter(path);
+        writer.addTile("a", 1, 0, 0, "second".getBytes());
+        writer.abort();
+
+        assertFalse(new File(path + ".tmp-1").exists());
+        GEMFFile gemf = new GEMFFile(path);
+        assertArrayEquals("first".getBytes(), readTile(gemf, 1, 0, 0));
+        gemf.close();
+    }
+
+    /**
+     * Test resuming an interrupted writer: the tiles flushed are kept, the
+     * tiles added after the last flush are dropped.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testResume() throws IOException {
+        String     path   = new File(folder.getRoot(), "t.gemf").getPath();
+        GEMFWriter writer = new GEMFWriter(path, 100, false);
+        writer.addSource("empty");
+        for (int x = 0; x < 4; ++x) {
+            for (int y = 0; y < 4; ++y) {
+                writer.addTile("a", 3, x, y, tileData(3, x, y));
+            }
+        }
+        writer.linkTile("a", 4, 0, 0, 0);
+        writer.flush();
+        writer.addTile("a", 3, 5, 5, "lost".getBytes());
+        writer.flush();
+
+        // an interrupted write of the journal and the data
+        RandomAccessFile journal = new RandomAccessFile(path
+                                                    + ".tmp.journal", "rw");
+        journal.setLength(journal.length() - 3);
+        journal.close();
+
+        // a writer that does not resume would start anew
+        writer = new GEMFWriter(path, 100, true);
+        assertEquals(17, writer.getTileCount());
+        writer.addTile("a", 3, 6, 6, "resumed".getBytes());
+        writer.close();
+
+        assertFalse(new File(path + ".tmp.journal").exists());
+        GEMFFile gemf = new GEMFFile(path);
+        assertEquals(Arrays.asList("empty", "a"),
+                     Arrays.asList(gemf.getSources().values().toArray()));
+        gemf.selectSource(1);
+        for (int x = 0; x < 4; ++x) {
+            for (int y = 0; y < 4; ++y) {
+                assertArrayEquals(tileData(3, x, y), readTile(gemf, 3, x, y));
+            }
+        }
+        assertArrayEquals(tileData(3, 0, 0), readTile(gemf, 4, 0, 0));
+        assertNull(readTile(gemf, 3, 5, 5));
+        assertArrayEquals("resumed".getBytes(), readTile(gemf, 3, 6, 6));
+        gemf.close();
+
+        writer = new GEMFWriter(path, 100, true);
+        assertEquals(0, writer.getTileCount());
+        writer.abort();
+    }
+
+    /**
+     * Test building an archive from a tile directory tree, with hard linked
+     * tiles sharing their data.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testFromDirectory() throws IOException {
+        File source = folder.newFolder("osm");
+        DirectoryTileSink sink = new DirectoryTileSink(source, "png");
+        Object shared = sink.put(2, 1, 1, "shared".getBytes());
+        sink.link(2, 1, 2, shared);
+        sink.link(2, 2, 1, shared);
+        sink.put(2, 2, 2, tileData(2, 2, 2));
+        FileOutputStream readme =
+                            new FileOutputStream(new File(source, "README"));
+        readme.write("x".getBytes());
+        readme.close();
+
+        String   path = new File(folder.getRoot(), "osm.gemf").getPath();
+        GEMFFile gemf = new GEMFFile(path, Arrays.asList(source));
+
+        assertArrayEquals("shared".getBytes(), readTile(gemf, 2, 1, 1));
+        assertArrayEquals("shared".getBytes(), readTile(gemf, 2, 2, 1));
+        assertArrayEquals(tileData(2, 2, 2), readTile(gemf, 2, 2, 2));
+        gemf.close();
+
+        // the header and index in the first part, the shared data only once
+        // in the second one, after the padding byte
+        assertEquals(1 + "shared".length() + tileData(2, 2, 2).length,
+                     new File(path + "-1").length());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * Test cases for the LatticeGrid class.
+ */
+public class LatticeGridTest {
+
+    /**
+     * Test that lines are clipped into pieces within the cells, covering
+     * the whole line.
+     */
+    @Test
+    public void testClip() {
+        GeometryFactory gf = new GeometryFactory();
+
+        assertEquals(360d, LatticeGrid.getCellSize(0), 0);
+        assertEquals(22.5d, LatticeGrid.getCellSize(4), 0);
+
+        // a line of latitude, densified, across three and a half cells
+        Coordinate[] coords = new Coordinate[11];
+        for (int i = 0; i < coords.length; ++i) {
+            coords[i] = new Coordinate(1 + i * 0.35, 47.5);
+        }
+        LineString line = gf.createLineString(coords);
+
+        List<LineString> pieces = LatticeGrid.clip(line, 1d);
+        assertEquals(4, pieces.size());
+
+        double length = 0;
+        for (LineString piece : pieces) {
+            length += piece.getLength();
+            assertTrue(piece.getEnvelopeInternal().getWidth() <= 1d);
+            long cell = (long) Math.floor(
+                            piece.getEnvelopeInternal().centre().x);
+            assertTrue(piece.getEnvelopeInternal().getMinX() >= cell);
+            assertTrue(piece.getEnvelopeInternal().getMaxX() <= cell + 1);
+        }
+        assertEquals(line.getLength(), length, 1e-9);
+
+        // a line within a single cell is kept as it is
+        pieces = LatticeGrid.clip(gf.createLineString(new Coordinate[] {
+                        new Coordinate(2.1, 3.1), new Coordinate(2.9, 3.1)}),
+                        1d);
+        assertEquals(1, pieces.size());
+
+        // a line along the edge of cells is kept only once
+        pieces = LatticeGrid.clip(gf.createLineString(new Coordinate[] {
+                        new Coordinate(0.5, 2), new Coordinate(1.5, 2),
+                        new Coordinate(1.5, 3.5)}),
+                        1d);
+        double edge = 0;
+        for (LineString piece : pieces) {
+            edge += piece.getLength();
+        }
+        assertEquals(2.5d, edge, 1e-9);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for the LeaseManager class.
+ */
+public class LeaseManagerTest {
+
+    /** A long lease time, not to expire during a test, in milliseconds. */
+    private static final long LEASE_TIME = 60000L;
+
+    /** A temporary folder to use as the shared directory. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that a unit leased by a process is not claimed by another one,
+     * and that units done are not claimed at all.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testClaim() throws IOException {
+        List<Integer> units = Arrays.asList(0, 1, 2);
+        LeaseManager  a = new LeaseManager(folder.getRoot(), "a", LEASE_TIME);
+        LeaseManager  b = new LeaseManager(folder.getRoot(), "b", LEASE_TIME);
+
+        assertEquals(0, a.tryAcquire(units));
+        assertEquals(1, b.tryAcquire(units));
+        assertEquals(2, a.tryAcquire(units));
+        assertEquals(-1, b.tryAcquire(units));
+
+        a.complete(0);
+        a.release(2);
+        assertEquals(2, b.tryAcquire(units));
+        assertEquals(1, b.getDoneCount(units));
+
+        b.complete(1);
+        b.complete(2);
+        assertEquals(-1, a.acquire(units));
+        assertEquals(3, a.getDoneCount(units));
+
+        a.close();
+        b.close();
+    }
+
+    /**
+     * Test that an expired lease is reclaimed, and that a process alive
+     * keeps its leases.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testExpiry() throws IOException {
+        List<Integer> units = Arrays.asList(0);
+        LeaseManager  a = new LeaseManager(folder.getRoot(), "a", LEASE_TIME);
+        LeaseManager  b = new LeaseManager(folder.getRoot(), "b", LEASE_TIME);
+
+        assertEquals(0, a.tryAcquire(units));
+        a.renew();
+        assertEquals(-1, b.tryAcquire(units));
+
+        // the owner stopped renewing a while ago
+        File lease = new File(new File(folder.getRoot(), "leases"), "0");
+        assertTrue(lease.setLastModified(System.currentTimeMillis()
+                                       - 2 * LEASE_TIME));
+        assertEquals(0, b.tryAcquire(units));
+
+        // the earlier owner learns that it lost the lease
+        a.renew();
+        a.close();
+        assertTrue(lease.exists());
+
+        b.complete(0);
+        b.close();
+    }
+
+    /**
+     * Test that a process that has seen a lease expired, but is delayed
+     * while another process reclaims it, leaves the new lease alone.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testInterleavedReclaim() throws IOException {
+        List<Integer> units = Arrays.asList(0);
+        LeaseManager  a = new LeaseManager(folder.getRoot(), "a", LEASE_TIME);
+        LeaseManager  b = new LeaseManager(folder.getRoot(), "b", LEASE_TIME);
+        LeaseManager  c = new LeaseManager(folder.getRoot(), "c", LEASE_TIME);
+
+        assertEquals(0, a.tryAcquire(units));
+        File lease = new File(new File(folder.getRoot(), "leases"), "0");
+        long expired = System.currentTimeMillis() - 2 * LEASE_TIME;
+        assertTrue(lease.setLastModified(expired));
+
+        // c sees the lease expired, then b reclaims it before c goes on
+        long seen = lease.lastModified();
+        assertEquals(0, b.tryAcquire(units));
+        assertFalse(c.reclaim(lease, seen));
+        assertTrue(lease.exists());
+        assertEquals(-1, c.tryAcquire(units));
+
+        // another process reclaiming the lease keeps c from removing it
+        assertTrue(lease.setLastModified(expired));
+        seen = lease.lastModified();
+        File lock = new File(lease.getPath() + "." + seen + ".reclaim");
+        assertTrue(lock.mkdir());
+        assertEquals(-1, c.tryAcquire(units));
+        assertTrue(lock.delete());
+        assertEquals(0, c.tryAcquire(units));
+
+        a.close();
+        b.close();
+        c.close();
+    }
+
+    /**
+     * Test that members are seen while active.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testMembers() throws IOException {
+        LeaseManager a = new LeaseManager(folder.getRoot(), "a", LEASE_TIME);
+        LeaseManager b = new LeaseManager(folder.getRoot(), "b", LEASE_TIME);
+
+        a.join();
+        assertEquals(Arrays.asList("a"), b.getActiveMembers());
+
+        a.close();
+        assertEquals(Collections.<String>emptyList(), b.getActiveMembers());
+        b.close();
+    }
+
+    /**
+     * Test that each unit is done exactly once by a number of processes
+     * claiming units concurrently.
+     *
+     * @throws Exception on errors
+     */
+    @Test
+    public void testConcurrentClaims() throws Exception {
+        final List<Integer> units = new ArrayList<Integer>();
+        for (int i = 0; i < 200; ++i) {
+            units.add(i);
+        }
+        final AtomicIntegerArray counts = new AtomicIntegerArray(200);
+
+        ExecutorService      pool    = Executors.newFixedThreadPool(4);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 4; ++i) {
+            final String owner = "worker" + i;
+            futures.add(pool.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    LeaseManager leases = new LeaseManager(folder.getRoot(),
+                                                           owner, LEASE_TIME);
+                    int unit;
+                    while ((unit = leases.acquire(units)) >= 0) {
+                        counts.incrementAndGet(unit);
+                        leases.complete(unit);
+                    }
+                    leases.close();
+
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+
+        for (int i = 0; i < 200; ++i) {
+            assertEquals(1, counts.get(i));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the MetatileSizer class.
+ */
+public class MetatileSizerTest {
+
+    /** The memory of a single tile image, in bytes. */
+    private static final long TILE_BYTES =
+                                RenderMap.TILE_SIZE * RenderMap.TILE_SIZE * 4;
+
+    /**
+     * Test that the metatile size is bounded by the heap budget, and that
+     * a fixed size overrides it.
+     */
+    @Test
+    public void testBudget() {
+        // 2 threads, 2 images each, 100 tiles each
+        MetatileSizer sizer = new MetatileSizer(4 * 100 * TILE_BYTES, 2, 0);
+        assertEquals(10, sizer.getMaxSize());
+        assertEquals(10, sizer.getSize(10, 1000000));
+
+        sizer = new MetatileSizer(Long.MAX_VALUE / 2, 1, 0);
+        assertEquals(MetatileSizer.MAX_SIZE, sizer.getMaxSize());
+        assertEquals(RenderMap.METATILE_SIZE, sizer.getSize(10, 1000000));
+
+        sizer = new MetatileSizer(TILE_BYTES, 8, 0);
+        assertEquals(MetatileSizer.MIN_SIZE, sizer.getSize(10, 1000000));
+
+        sizer = new MetatileSizer(TILE_BYTES, 8, 40);
+        assertEquals(40, sizer.getSize(10, 1000000));
+    }
+
+    /**
+     * Test that all threads get a metatile to work on at levels with few
+     * tiles.
+     */
+    @Test
+    public void testSpread() {
+        MetatileSizer sizer = new MetatileSizer(Long.MAX_VALUE / 2, 4, 0);
+
+        assertEquals(4, sizer.getSize(3, 64));
+        assertEquals(MetatileSizer.MIN_SIZE, sizer.getSize(0, 1));
+    }
+
+    /**
+     * Test that the size follows the render time observed at the same or
+     * at the closest lower zoom level.
+     */
+    @Test
+    public void testRenderTime() {
+        MetatileSizer sizer = new MetatileSizer(Long.MAX_VALUE / 2, 1, 0);
+        long          target = MetatileSizer.TARGET_RENDER_TIME * 1000000L;
+
+        assertEquals(0, sizer.getTileCost(5));
+
+        // 100 tiles rendered in a quarter of the target time: 20x20 tiles
+        // would take the target time
+        sizer.record(new Metatile(5, 0, 0, 10, 10), target / 4);
+        assertEquals(target / 400, sizer.getTileCost(5));
+        assertEquals(20, sizer.getSize(5, 1000000));
+        assertEquals(20, sizer.getSize(7, 1000000));
+        assertEquals(RenderMap.METATILE_SIZE, sizer.getSize(4, 1000000));
+
+        // dense tiles at a higher level make for smaller metatiles
+        sizer.record(new Metatile(8, 0, 0, 4, 4), target);
+        assertEquals(4, sizer.getSize(8, 1000000));
+        assertEquals(20, sizer.getSize(7, 1000000));
+
+        // but never larger than the budget allows
+        sizer = new MetatileSizer(2 * 36 * TILE_BYTES, 1, 0);
+        sizer.record(new Metatile(5, 0, 0, 10, 10), target / 4);
+        assertTrue(sizer.getSize(5, 1000000) <= 6);
+    }
+}
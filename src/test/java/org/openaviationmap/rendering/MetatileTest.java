@@ -0,0 +1,53 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the Metatile class.
+ */
+public class MetatileTest {
+
+    /**
+     * Test that aligned metatiles start at multiples of the metatile size,
+     * and cover the tiles exactly.
+     */
+    @Test
+    public void testSplitAligned() {
+        List<Metatile> metatiles = Metatile.splitAligned(
+                                        new Rectangle(3, 6, 7, 2), 5, 4);
+
+        assertEquals(6, metatiles.size());
+        assertEquals(new Metatile(5, 3, 6, 1, 2), metatiles.get(0));
+        assertEquals(new Metatile(5, 3, 8, 1, 1), metatiles.get(1));
+        assertEquals(new Metatile(5, 4, 6, 4, 2), metatiles.get(2));
+        assertEquals(new Metatile(5, 8, 8, 3, 1), metatiles.get(5));
+
+        int tiles = 0;
+        for (Metatile metatile : metatiles) {
+            tiles += metatile.getTileCount();
+        }
+        assertEquals(8 * 3, tiles);
+    }
+}
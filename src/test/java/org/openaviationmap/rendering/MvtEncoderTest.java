@@ -0,0 +1,357 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+
+/**
+ * Test cases for the MvtEncoder class.
+ */
+public class MvtEncoderTest {
+
+    /** The geometry factory. */
+    private final GeometryFactory gf = new GeometryFactory();
+
+    /**
+     * Decode a protocol buffer message.
+     *
+     * @param data the message
+     * @return the fields of the message by field number, varints and fixed
+     *         size values as Long, length delimited values as byte[]
+     */
+    private static Map<Integer, List<Object>> decode(byte[] data) {
+        Map<Integer, List<Object>> fields =
+                                    new TreeMap<Integer, List<Object>>();
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (buf.hasRemaining()) {
+            long   key = readVarint(buf);
+            Object value;
+            switch ((int) (key & 7)) {
+            case 0:
+                value = readVarint(buf);
+                break;
+            case 1:
+                value = buf.getLong();
+                break;
+            case 2:
+                byte[] bytes = new byte[(int) readVarint(buf)];
+                buf.get(bytes);
+                value = bytes;
+                break;
+            case 5:
+                value = (long) buf.getInt();
+                break;
+            default:
+                throw new IllegalArgumentException("bad wire type " + key);
+            }
+
+            int field = (int) (key >>> 3);
+            if (!fields.containsKey(field)) {
+                fields.put(field, new ArrayList<Object>());
+            }
+            fields.get(field).add(value);
+        }
+
+        return fields;
+    }
+
+    /**
+     * Read a variable length integer.
+     *
+     * @param buf the buffer to read from
+     * @return the integer read
+     */
+    private static long readVarint(ByteBuffer buf) {
+        long value = 0;
+        int  shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    /**
+     * Decode a packed repeated varint field.
+     *
+     * @param data the contents of the field
+     * @return the integers in the field
+     */
+    private static int[] decodePacked(byte[] data) {
+        ByteBuffer  buf    = ByteBuffer.wrap(data);
+        List<Long>  values = new ArrayList<Long>();
+        while (buf.hasRemaining()) {
+            values.add(readVarint(buf));
+        }
+
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = (int) (long) values.get(i);
+        }
+
+        return result;
+    }
+
+    /**
+     * Decode the geometry commands of a feature into the rings or lines
+     * they draw.
+     *
+     * @param commands the geometry commands
+     * @return the lines or rings drawn, as absolute x and y coordinates
+     *         interleaved
+     */
+    private static List<int[]> decodeGeometry(int[] commands) {
+        List<int[]>   parts = new ArrayList<int[]>();
+        List<Integer> part  = null;
+        int           x     = 0;
+        int           y     = 0;
+
+        for (int i = 0; i < commands.length;) {
+            int id    = commands[i] & 7;
+            int count = commands[i] >>> 3;
+            ++i;
+
+            if (id == 7) {
+                continue;
+            }
+            for (int j = 0; j < count; ++j) {
+                if (id == 1) {
+                    if (part != null) {
+                        parts.add(toArray(part));
+                    }
+                    part = new ArrayList<Integer>();
+                }
+                x += (commands[i] >>> 1) ^ -(commands[i] & 1);
+                y += (commands[i + 1] >>> 1) ^ -(commands[i + 1] & 1);
+                i += 2;
+                part.add(x);
+                part.add(y);
+            }
+        }
+        if (part != null) {
+            parts.add(toArray(part));
+        }
+
+        return parts;
+    }
+
+    /**
+     * Convert a list of integers into an array.
+     *
+     * @param list the list to convert
+     * @return the integers in list
+     */
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; ++i) {
+            array[i] = list.get(i);
+        }
+
+        return array;
+    }
+
+    /**
+     * Calculate the area of a ring by the surveyor's formula.
+     *
+     * @param ring the ring, x and y coordinates interleaved
+     * @return twice the signed area of the ring
+     */
+    private static long area(int[] ring) {
+        int  n    = ring.length / 2;
+        long area = 0;
+        for (int i = 0; i < n; ++i) {
+            int j = (i + 1) % n;
+            area += (long) ring[2 * i] * ring[2 * j + 1]
+                  - (long) ring[2 * j] * ring[2 * i + 1];
+        }
+
+        return area;
+    }
+
+    /**
+     * Create a rectangular ring.
+     *
+     * @param minX the minimum x coordinate
+     * @param minY the minimum y coordinate
+     * @param maxX the maximum x coordinate
+     * @param maxY the maximum y coordinate
+     * @return the ring, counter-clockwise in map coordinates
+     */
+    private LinearRing ring(double minX, double minY,
+                            double maxX, double maxY) {
+        return gf.createLinearRing(new Coordinate[] {
+                new Coordinate(minX, minY), new Coordinate(maxX, minY),
+                new Coordinate(maxX, maxY), new Coordinate(minX, maxY),
+                new Coordinate(minX, minY)});
+    }
+
+    /**
+     * Return the only feature of the only layer of a tile.
+     *
+     * @param tile the encoded tile
+     * @param name the expected name of the layer
+     * @return the fields of the feature
+     */
+    private static Map<Integer, List<Object>>
+    onlyFeature(byte[] tile, String name) {
+        Map<Integer, List<Object>> t = decode(tile);
+        assertEquals(1, t.get(3).size());
+
+        Map<Integer, List<Object>> layer = decode((byte[]) t.get(3).get(0));
+        assertEquals(2L, layer.get(15).get(0));
+        assertEquals(name, new String((byte[]) layer.get(1).get(0)));
+        assertEquals(1, layer.get(2).size());
+
+        return decode((byte[]) layer.get(2).get(0));
+    }
+
+    /**
+     * Test encoding a point with attributes, into a tile whose grid is
+     * the same as the map coordinates, but y pointing down.
+     */
+    @Test
+    public void testPoint() {
+        MvtEncoder tile = new MvtEncoder(new Envelope(0, 4096, 0, 4096),
+                                         4096, 64);
+
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put("name", "LHBP");
+        attributes.put("ele", 151);
+        attributes.put("ref", null);
+        attributes.put("type", "airport");
+
+        assertTrue(tile.addFeature("navaids",
+                        gf.createPoint(new Coordinate(100, 4000)),
+                        attributes));
+        assertFalse(tile.isEmpty());
+
+        byte[] data = tile.encode();
+        Map<Integer, List<Object>> t     = decode(data);
+        Map<Integer, List<Object>> layer = decode((byte[]) t.get(3).get(0));
+        assertEquals(4096L, layer.get(5).get(0));
+        assertEquals(3, layer.get(3).size());
+        assertEquals("ele", new String((byte[]) layer.get(3).get(1)));
+
+        // the string, the unsigned integer and the string
+        assertEquals(3, layer.get(4).size());
+        Map<Integer, List<Object>> value =
+                                    decode((byte[]) layer.get(4).get(1));
+        assertEquals(151L, value.get(5).get(0));
+
+        Map<Integer, List<Object>> feature = onlyFeature(data, "navaids");
+        assertEquals(1L, feature.get(3).get(0));
+        assertArrayEquals(new int[] {0, 0, 1, 1, 2, 2},
+                          decodePacked((byte[]) feature.get(2).get(0)));
+        assertArrayEquals(new int[] {9, 200, 192},
+                          decodePacked((byte[]) feature.get(4).get(0)));
+    }
+
+    /**
+     * Test that a polygon larger than the tile is clipped to the buffered
+     * tile bounds, and that the rings are oriented as required.
+     */
+    @Test
+    public void testPolygon() {
+        MvtEncoder tile = new MvtEncoder(new Envelope(0, 1024, 0, 1024),
+                                         4096, 64);
+
+        Geometry polygon = gf.createPolygon(ring(-1000, -1000, 2000, 2000),
+                new LinearRing[] {ring(256, 256, 512, 512)});
+        assertTrue(tile.addFeature("airspaces", polygon, null));
+
+        Map<Integer, List<Object>> feature =
+                                    onlyFeature(tile.encode(), "airspaces");
+        assertEquals(3L, feature.get(3).get(0));
+
+        List<int[]> rings = decodeGeometry(
+                            decodePacked((byte[]) feature.get(4).get(0)));
+        assertEquals(2, rings.size());
+
+        int[] exterior = rings.get(0);
+        assertEquals(8, exterior.length);
+        for (int c : exterior) {
+            assertTrue(c == -64 || c == 4160);
+        }
+        assertEquals(2L * 4224 * 4224, area(exterior));
+
+        // the hole is 1024 x 1024 in the tile grid
+        assertEquals(-2L * 1024 * 1024, area(rings.get(1)));
+    }
+
+    /**
+     * Test that features outside the tile, or collapsing when quantised,
+     * are dropped.
+     */
+    @Test
+    public void testDropped() {
+        MvtEncoder tile = new MvtEncoder(new Envelope(0, 4096, 0, 4096),
+                                         4096, 64);
+
+        assertFalse(tile.addFeature("runways", gf.createLineString(
+                new Coordinate[] {new Coordinate(5000, 0),
+                                  new Coordinate(6000, 100)}), null));
+        assertFalse(tile.addFeature("airspaces", gf.createPolygon(
+                ring(10.1, 10.1, 10.3, 10.3), null), null));
+        assertFalse(tile.addFeature("navaids",
+                gf.createPoint(new Coordinate(-100, 100)), null));
+
+        assertTrue(tile.isEmpty());
+        assertEquals(0, tile.encode().length);
+    }
+
+    /**
+     * Test that lines are simplified, and points are kept as they are.
+     */
+    @Test
+    public void testSimplify() {
+        Coordinate[] coords = new Coordinate[11];
+        for (int i = 0; i < coords.length; ++i) {
+            coords[i] = new Coordinate(i * 10, (i % 2) * 0.5);
+        }
+        Geometry line = gf.createLineString(coords);
+
+        assertEquals(2, MvtEncoder.simplify(line, 1).getNumPoints());
+        assertEquals(11, MvtEncoder.simplify(line, 0.1).getNumPoints());
+
+        Geometry point = gf.createPoint(new Coordinate(1, 2));
+        assertTrue(point == MvtEncoder.simplify(point, 100));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for the RenderManifest class.
+ */
+public class RenderManifestTest {
+
+    /** A temporary folder to write manifests into. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that metatiles recorded are found again after re-opening the
+     * manifest, and that a reset forgets them.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testResume() throws IOException {
+        File           file      = new File(folder.getRoot(), "t.manifest");
+        List<Metatile> metatiles = Metatile.split(new Rectangle(0, 0, 9, 4),
+                                                  5, 4);
+        assertEquals(6, metatiles.size());
+
+        RenderManifest manifest = new RenderManifest(file, false);
+        assertEquals(metatiles, manifest.remaining(metatiles));
+        manifest.add(metatiles.get(1));
+        manifest.add(metatiles.get(3));
+        manifest.add(metatiles.get(3));
+        manifest.close();
+
+        manifest = new RenderManifest(file, false);
+        assertEquals(2, manifest.getCount());
+        assertTrue(manifest.contains(new Metatile(5, 4, 4, 4, 1)));
+        assertFalse(manifest.contains(new Metatile(6, 4, 4, 4, 1)));
+        assertEquals(4, manifest.getMetatileSize(5));
+        assertEquals(0, manifest.getMetatileSize(6));
+
+        List<Metatile> remaining = manifest.remaining(metatiles);
+        assertEquals(4, remaining.size());
+        assertFalse(remaining.contains(metatiles.get(1)));
+        assertFalse(remaining.contains(metatiles.get(3)));
+        manifest.close();
+
+        manifest = new RenderManifest(file, true);
+        assertEquals(0, manifest.getCount());
+        assertEquals(metatiles, manifest.remaining(metatiles));
+        manifest.close();
+    }
+
+    /**
+     * Test that a record cut short by an interruption is dropped, and that
+     * records can be added after it.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testTornRecord() throws IOException {
+        File file = new File(folder.getRoot(), "t.manifest");
+
+        RenderManifest manifest = new RenderManifest(file, false);
+        manifest.add(new Metatile(3, 0, 0, 4, 4));
+        manifest.add(new Metatile(3, 4, 0, 4, 4));
+        manifest.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 7);
+        raf.close();
+
+        manifest = new RenderManifest(file, false);
+        assertEquals(1, manifest.getCount());
+        manifest.add(new Metatile(3, 0, 4, 4, 4));
+        manifest.close();
+
+        manifest = new RenderManifest(file, false);
+        assertEquals(Arrays.asList(new Metatile(3, 4, 0, 4, 4)),
+                     manifest.remaining(Arrays.asList(
+                                        new Metatile(3, 0, 0, 4, 4),
+                                        new Metatile(3, 4, 0, 4, 4),
+                                        new Metatile(3, 0, 4, 4, 4))));
+        manifest.close();
+    }
+
+    /**
+     * Test that a file that is not a manifest is not taken for one.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test(expected = IOException.class)
+    public void testNotManifest() throws IOException {
+        File file = folder.newFile("t.manifest");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeBytes("not a manifest at all");
+        raf.close();
+
+        new RenderManifest(file, false);
+    }
+}
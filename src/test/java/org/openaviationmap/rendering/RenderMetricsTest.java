@@ -0,0 +1,128 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the RenderMetrics class.
+ */
+public class RenderMetricsTest {
+
+    /**
+     * Test that every value falls into the bucket starting at or below it,
+     * and that the percentiles of a histogram are close.
+     */
+    @Test
+    public void testHistogram() {
+        for (long v = 0; v < 100000; ++v) {
+            int b = RenderMetrics.Histogram.bucket(v);
+            assertTrue(RenderMetrics.Histogram.lowerBound(b) <= v);
+            assertTrue(RenderMetrics.Histogram.lowerBound(b + 1) > v);
+        }
+        assertEquals(247, RenderMetrics.Histogram.bucket(Long.MAX_VALUE));
+
+        RenderMetrics.Histogram h = new RenderMetrics.Histogram();
+        assertEquals(0, h.getPercentile(50));
+
+        for (int i = 1; i <= 1000; ++i) {
+            h.record(i);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(500500, h.getSum());
+        assertEquals(1, h.getMin());
+        assertEquals(1000, h.getMax());
+        assertEquals(500.5, h.getMean(), 1e-9);
+
+        long p50 = h.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 600);
+        long p99 = h.getPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(1, h.getPercentile(0));
+        assertEquals(1000, h.getPercentile(100));
+    }
+
+    /**
+     * Test the totals over the layers, and the reports.
+     */
+    @Test
+    public void testTotals() {
+        RenderMetrics metrics = new RenderMetrics();
+        metrics.record("osm", RenderMetrics.BYTES, 100);
+        metrics.record("osm", RenderMetrics.BYTES, 200);
+        metrics.record("oam", RenderMetrics.BYTES, 50);
+        metrics.record("osm", RenderMetrics.ENCODE_TIME, 2000);
+        metrics.record("osm.planet_osm_line", RenderMetrics.FEATURES, 7);
+        metrics.increment("oam", RenderMetrics.SKIPPED);
+        metrics.increment("oam", RenderMetrics.SKIPPED);
+        metrics.increment("osm", RenderMetrics.LINKED);
+
+        assertEquals(350, metrics.getBytesWritten());
+        assertEquals(1, metrics.getTileCount());
+        assertEquals(2, metrics.getEncodeTime());
+        assertEquals(7, metrics.getFeaturesFetched());
+        assertEquals(2, metrics.getSkippedTileCount());
+        assertEquals(1, metrics.getLinkedTileCount());
+        assertEquals(2, metrics.getCount("oam", RenderMetrics.SKIPPED));
+        assertEquals(0, metrics.getCount("osm", RenderMetrics.SKIPPED));
+        assertEquals(4, metrics.getHistograms().length);
+
+        String json = metrics.toJson();
+        assertTrue(json.contains("\"oam.skipped\": 2"));
+        assertTrue(json.contains("\"osm.bytes\": {\"count\": 2, \"sum\": 300"));
+
+        String[] csv = metrics.toCsv().split("\n");
+        assertEquals(7, csv.length);
+        assertEquals("name,count,sum,min,max,mean,p50,p90,p99", csv[0]);
+        assertTrue(csv[1].startsWith("oam.bytes,1,50,50,50,50.000,"));
+        assertEquals("oam.skipped,2,,,,,,,", csv[5]);
+        assertEquals("osm.linked,1,,,,,,,", csv[6]);
+    }
+
+    /**
+     * Test that the metrics can be read over JMX while registered.
+     *
+     * @throws Exception on test errors
+     */
+    @Test
+    public void testJmx() throws Exception {
+        RenderMetrics metrics = new RenderMetrics();
+        metrics.record("osm", RenderMetrics.BYTES, 42);
+        metrics.register("/tmp/test \"map\"");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName  name   = new ObjectName(RenderMetrics.JMX_DOMAIN
+                            + ":type=RenderMetrics,name="
+                            + ObjectName.quote("/tmp/test \"map\""));
+        try {
+            assertEquals(42L, server.getAttribute(name, "BytesWritten"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Test cases for the TileCoverage class.
+ */
+public class TileCoverageTest {
+
+    /** A triangle over Hungary and its surroundings. */
+    private static final String TRIANGLE =
+                            "POLYGON ((16 45.5, 23 45.5, 16 48.75, 16 45.5))";
+
+    /** Temporary folder for the polygon files. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that the tiles found by the quadtree are the ones intersecting
+     * the area.
+     *
+     * @throws Exception on test errors
+     */
+    @Test
+    public void testIntersects() throws Exception {
+        Geometry     area     = new WKTReader().read(TRIANGLE);
+        TileCoverage coverage = new TileCoverage(area);
+        GeometryFactory gf    = new GeometryFactory();
+
+        for (int level = 0; level <= 9; ++level) {
+            // the tiles between 14..25 E and 44..50 N
+            int n     = 1 << level;
+            int minX  = (int) ((14d + 180) / 360 * n);
+            int maxX  = (int) ((25d + 180) / 360 * n);
+            int minY  = (int) ((1 - Math.log(Math.tan(Math.toRadians(50))
+                        + 1 / Math.cos(Math.toRadians(50))) / Math.PI) / 2 * n);
+            int maxY  = (int) ((1 - Math.log(Math.tan(Math.toRadians(44))
+                        + 1 / Math.cos(Math.toRadians(44))) / Math.PI) / 2 * n);
+            int count = 0;
+            for (int x = minX; x <= maxX; ++x) {
+                for (int y = minY; y <= maxY; ++y) {
+                    Geometry tile = gf.toGeometry(
+                                TileCoverage.getTileBounds(level, x, y));
+                    assertEquals(tile.intersects(area),
+                                 coverage.intersects(level, x, y));
+                    if (coverage.intersects(level, x, y)) {
+                        ++count;
+                    }
+                }
+            }
+            assertTrue(count > 0);
+        }
+
+        assertFalse(coverage.intersects(8, 0, 0));
+        assertTrue(coverage.intersects(0, 0, 0));
+    }
+
+    /**
+     * Test that metatiles without data are left out.
+     *
+     * @throws Exception on test errors
+     */
+    @Test
+    public void testFilter() throws Exception {
+        File file = folder.newFile("area.wkt");
+        FileWriter out = new FileWriter(file);
+        out.write(TRIANGLE);
+        out.close();
+
+        TileCoverage coverage = TileCoverage.read(file);
+
+        // the tiles around Hungary at level 8, 141..144 x 88..92
+        List<Metatile> metatiles = Metatile.split(
+                                    new Rectangle(139, 86, 7, 8), 8, 2);
+        List<Metatile> filtered  = coverage.filter(metatiles);
+
+        assertTrue(filtered.size() > 0);
+        assertTrue(filtered.size() < metatiles.size());
+        for (Metatile m : metatiles) {
+            assertEquals(filtered.contains(m), coverage.intersects(m));
+        }
+
+        // the corner away from the triangle has no data
+        assertFalse(coverage.intersects(new Metatile(8, 144, 86, 2, 2)));
+        assertTrue(coverage.intersects(new Metatile(8, 140, 90, 2, 2)));
+    }
+
+    /**
+     * Test the union of buffered areas.
+     */
+    @Test
+    public void testUnion() {
+        TileCoverage coverage = TileCoverage.union(Arrays.asList(
+                                    new Envelope(19, 19, 47.5, 47.5),
+                                    new Envelope(20, 21, 47, 48)), 0.5);
+
+        assertEquals(new Envelope(18.5, 21.5, 46.5, 48.5),
+                     coverage.getBounds());
+        assertEquals(1, coverage.getArea().getNumGeometries());
+
+        // level 10, 18.5..19.5 E is in tile x 564..567
+        assertTrue(coverage.intersects(10, 565, 360));
+        assertFalse(coverage.intersects(10, 600, 360));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for the TileDeduplicator class.
+ */
+public class TileDeduplicatorTest {
+
+    /** A temporary folder to save tiles into. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create a tile with a single pixel set.
+     *
+     * @param rgb the color of the pixel
+     * @return the tile
+     */
+    private static BufferedImage createTile(int rgb) {
+        BufferedImage tile = new BufferedImage(RenderMap.TILE_SIZE,
+                                               RenderMap.TILE_SIZE,
+                                               BufferedImage.TYPE_INT_ARGB);
+        tile.setRGB(3, 5, rgb);
+
+        return tile;
+    }
+
+    /**
+     * Create a deduplicator saving PNG tiles into the temporary folder.
+     *
+     * @param cacheSize the number of hashes of recent tiles to remember
+     * @return the deduplicator
+     */
+    private TileDeduplicator createDeduplicator(int cacheSize) {
+        return new TileDeduplicator(
+                new PngTileEncoder(PngTileEncoder.DEFAULT_LEVEL),
+                new DirectoryTileSink(folder.getRoot(), "png"),
+                cacheSize);
+    }
+
+    /**
+     * Return the file of a tile saved by a deduplicator.
+     *
+     * @param dedup the deduplicator
+     * @param x the x coordinate of the tile, at zoom level 1
+     * @param y the y coordinate of the tile, at zoom level 1
+     * @return the tile file
+     */
+    private static File file(TileDeduplicator dedup, int x, int y) {
+        return ((DirectoryTileSink) dedup.getSink()).getFile(1, x, y);
+    }
+
+    /**
+     * Read the contents of a file.
+     *
+     * @param file the file to read
+     * @return the contents of the file
+     * @throws IOException on I/O errors
+     */
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Tell if two files are hard links to the same data, by changing the
+     * first byte of one of them in place, and looking for the change in
+     * the other. The first byte is restored afterwards.
+     *
+     * @param a one of the files
+     * @param b the other file
+     * @return true if the files share their data
+     * @throws IOException on I/O errors
+     */
+    private static boolean isSameFile(File a, File b) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(a, "rw");
+        try {
+            int first = raf.read();
+            raf.seek(0);
+            raf.write(first ^ 0xff);
+
+            boolean same = read(b)[0] == (byte) (first ^ 0xff);
+
+            raf.seek(0);
+            raf.write(first);
+
+            return same;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Test that identical tiles share a file, while different ones do not.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testDuplicates() throws IOException {
+        TileDeduplicator dedup = createDeduplicator(
+                                        TileDeduplicator.DEFAULT_CACHE_SIZE);
+        RenderMetrics metrics = new RenderMetrics();
+        dedup.setMetrics(metrics, "osm");
+
+        dedup.save(createTile(0xff102030), 1, 0, 0);
+        dedup.save(createTile(0xff102030), 1, 0, 1);
+        dedup.save(createTile(0xff102031), 1, 1, 0);
+
+        File a = file(dedup, 0, 0);
+        File b = file(dedup, 0, 1);
+        File c = file(dedup, 1, 0);
+
+        assertTrue(isSameFile(a, b));
+        assertFalse(isSameFile(a, c));
+        assertFalse(Arrays.equals(read(a), read(c)));
+
+        assertEquals(2, metrics.getTileCount());
+        assertEquals(1, metrics.getCount("osm", RenderMetrics.LINKED));
+        assertEquals(0, metrics.getSkippedTileCount());
+    }
+
+    /**
+     * Test that single color tiles are shared, and that transparent tiles
+     * are the same whatever their color.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testSolid() throws IOException {
+        TileDeduplicator dedup = createDeduplicator(1);
+
+        dedup.save(createTile(0), 1, 0, 0);
+        // push the blank tile out of the recent tiles
+        dedup.save(createTile(0xff000001), 1, 1, 0);
+        dedup.save(createTile(0xff000002), 1, 1, 1);
+        dedup.save(createTile(0x00ff0000), 1, 0, 1);
+
+        assertTrue(isSameFile(file(dedup, 0, 0), file(dedup, 0, 1)));
+    }
+
+    /**
+     * Test that overwriting a shared tile does not change the tiles it is
+     * shared with.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testOverwrite() throws IOException {
+        TileDeduplicator dedup = createDeduplicator(
+                                        TileDeduplicator.DEFAULT_CACHE_SIZE);
+
+        dedup.save(createTile(0xff102030), 1, 0, 0);
+        dedup.save(createTile(0xff102030), 1, 0, 1);
+
+        File a = file(dedup, 0, 0);
+        File b = file(dedup, 0, 1);
+
+        byte[] before = read(a);
+        dedup.save(createTile(0xff405060), 1, 0, 1);
+
+        assertArrayEquals(before, read(a));
+        assertFalse(isSameFile(a, b));
+        assertEquals(0xff405060, ImageIO.read(b).getRGB(3, 5));
+    }
+}
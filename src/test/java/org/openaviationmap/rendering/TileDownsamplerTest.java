@@ -0,0 +1,183 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for the TileDownsampler class.
+ */
+public class TileDownsamplerTest {
+
+    /** A temporary folder to save tiles into. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create a tile of a single color.
+     *
+     * @param argb the color of the tile
+     * @return the tile
+     */
+    private static BufferedImage createTile(int argb) {
+        BufferedImage tile = new BufferedImage(RenderMap.TILE_SIZE,
+                                               RenderMap.TILE_SIZE,
+                                               BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < RenderMap.TILE_SIZE; ++y) {
+            for (int x = 0; x < RenderMap.TILE_SIZE; ++x) {
+                tile.setRGB(x, y, argb);
+            }
+        }
+
+        return tile;
+    }
+
+    /**
+     * Create a tile of a checkerboard of black and white pixels.
+     *
+     * @return the tile
+     */
+    private static BufferedImage createCheckerboard() {
+        BufferedImage tile = createTile(0xff000000);
+        for (int y = 0; y < RenderMap.TILE_SIZE; ++y) {
+            for (int x = (y + 1) % 2; x < RenderMap.TILE_SIZE; x += 2) {
+                tile.setRGB(x, y, 0xffffffff);
+            }
+        }
+
+        return tile;
+    }
+
+    /**
+     * Create a deduplicator saving PNG tiles into the temporary folder.
+     *
+     * @return the deduplicator
+     */
+    private TileDeduplicator createDeduplicator() {
+        return new TileDeduplicator(
+                new PngTileEncoder(PngTileEncoder.DEFAULT_LEVEL),
+                new DirectoryTileSink(folder.getRoot(), "png"),
+                TileDeduplicator.DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Read a tile saved by a deduplicator.
+     *
+     * @param tiles the deduplicator
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the tile
+     * @throws IOException on I/O errors
+     */
+    private static BufferedImage
+    read(TileDeduplicator tiles, int zoom, int x, int y) throws IOException {
+        File file = ((DirectoryTileSink) tiles.getSink()).getFile(zoom, x, y);
+        assertTrue(file.exists());
+
+        return ImageIO.read(file);
+    }
+
+    /**
+     * Test that the lower levels are built from the highest one, with the
+     * colors of the child tiles averaged.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testDownsample() throws IOException {
+        TileDeduplicator tiles       = createDeduplicator();
+        TileDownsampler  downsampler = new TileDownsampler(tiles,
+                                            new Rectangle(0, 0, 3, 3), 2, 0);
+
+        assertEquals(new Rectangle(0, 0, 1, 1), downsampler.getTileBounds(1));
+        assertEquals(new Rectangle(0, 0, 0, 0), downsampler.getTileBounds(0));
+
+        for (int x = 0; x < 4; ++x) {
+            for (int y = 0; y < 4; ++y) {
+                BufferedImage tile = createCheckerboard();
+                tiles.save(tile, 2, x, y);
+                downsampler.add(tile, 2, x, y);
+            }
+        }
+        downsampler.finish();
+
+        BufferedImage tile = read(tiles, 1, 1, 0);
+        assertEquals(0xff808080, tile.getRGB(0, 0));
+        assertEquals(0xff808080, tile.getRGB(255, 255));
+
+        tile = read(tiles, 0, 0, 0);
+        assertEquals(0xff808080, tile.getRGB(100, 200));
+    }
+
+    /**
+     * Test that child tiles outside the tileset leave their quarter of
+     * the parent tile transparent, and that transparent pixels do not
+     * change the color of the others.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testEdges() throws IOException {
+        TileDeduplicator tiles       = createDeduplicator();
+        TileDownsampler  downsampler = new TileDownsampler(tiles,
+                                            new Rectangle(1, 1, 1, 0), 2, 0);
+
+        BufferedImage tile = createTile(0xff204060);
+        tile.setRGB(0, 0, 0x00ffffff);
+        tiles.save(tile, 2, 1, 1);
+        downsampler.add(tile, 2, 1, 1);
+
+        // the level 1 tile 0/0 is done, level 0 waits for tile 1/0
+        assertEquals(1, downsampler.getPendingCount());
+        try {
+            downsampler.finish();
+            assertTrue(false);
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        BufferedImage parent = read(tiles, 1, 0, 0);
+        assertEquals(0, parent.getRGB(0, 0) >>> 24);
+        assertEquals(0xbf204060, parent.getRGB(128, 128));
+        assertEquals(0xff204060, parent.getRGB(129, 128));
+
+        tile = createTile(0xff204060);
+        tiles.save(tile, 2, 2, 1);
+        downsampler.add(tile, 2, 2, 1);
+        downsampler.finish();
+
+        parent = read(tiles, 0, 0, 0);
+        assertEquals(0, parent.getRGB(0, 0) >>> 24);
+        assertEquals(0xff204060, parent.getRGB(100, 70));
+        assertFalse(new File(folder.getRoot(), "0/1").exists());
+    }
+}
@@ -0,0 +1,204 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the tile encoders.
+ */
+public class TileEncoderTest {
+
+    /**
+     * Create a test tile, with a transparent background, a flat colored
+     * area and an antialiased semi-transparent line.
+     *
+     * @return the test tile
+     */
+    private static BufferedImage createTile() {
+        BufferedImage tile = new BufferedImage(RenderMap.TILE_SIZE,
+                                               RenderMap.TILE_SIZE,
+                                               BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = tile.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                           RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(new Color(0, 80, 160));
+        g.fillRect(20, 20, 100, 60);
+        g.setColor(new Color(200, 30, 30, 128));
+        g.drawLine(0, 0, 255, 200);
+        g.dispose();
+
+        return tile;
+    }
+
+    /**
+     * Decode an encoded tile.
+     *
+     * @param data the encoded tile
+     * @return the decoded tile
+     * @throws IOException on decoding errors
+     */
+    private static BufferedImage decode(byte[] data) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Test that full color PNG encoding is lossless, at all levels.
+     *
+     * @throws IOException on encoding errors
+     */
+    @Test
+    public void testPng() throws IOException {
+        BufferedImage tile = createTile();
+
+        for (int level = 0; level <= 9; ++level) {
+            TileEncoder   encoder = new PngTileEncoder(level);
+            BufferedImage decoded = decode(encoder.encode(tile));
+
+            assertEquals(tile.getWidth(), decoded.getWidth());
+            assertEquals(tile.getHeight(), decoded.getHeight());
+            for (int y = 0; y < tile.getHeight(); ++y) {
+                for (int x = 0; x < tile.getWidth(); ++x) {
+                    assertEquals(tile.getRGB(x, y), decoded.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that opaque tiles are encoded as RGB PNG files.
+     *
+     * @throws IOException on encoding errors
+     */
+    @Test
+    public void testPngOpaque() throws IOException {
+        BufferedImage tile = new BufferedImage(RenderMap.TILE_SIZE,
+                                               RenderMap.TILE_SIZE,
+                                               BufferedImage.TYPE_INT_RGB);
+        tile.setRGB(10, 10, 0x123456);
+
+        byte[] data = new PngTileEncoder(PngTileEncoder.DEFAULT_LEVEL)
+                                                            .encode(tile);
+
+        // the color type in the IHDR chunk
+        assertEquals(2, data[25]);
+
+        BufferedImage decoded = decode(data);
+        assertEquals(0xff123456, decoded.getRGB(10, 10));
+        assertEquals(0xff000000, decoded.getRGB(11, 10));
+    }
+
+    /**
+     * Test that palette PNG encoding is lossless for tiles with few colors,
+     * and close for tiles with many colors.
+     *
+     * @throws IOException on encoding errors
+     */
+    @Test
+    public void testPng8() throws IOException {
+        TileEncoder encoder = TileEncoders.forName("png8");
+
+        BufferedImage flat = new BufferedImage(RenderMap.TILE_SIZE,
+                                               RenderMap.TILE_SIZE,
+                                               BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = flat.createGraphics();
+        g.setColor(new Color(0, 80, 160, 100));
+        g.fillRect(20, 20, 100, 60);
+        g.dispose();
+
+        BufferedImage decoded = decode(encoder.encode(flat));
+        for (int y = 0; y < flat.getHeight(); ++y) {
+            for (int x = 0; x < flat.getWidth(); ++x) {
+                assertEquals(flat.getRGB(x, y), decoded.getRGB(x, y));
+            }
+        }
+
+        // a gradient with way more than 256 colors
+        BufferedImage gradient = new BufferedImage(RenderMap.TILE_SIZE,
+                                                RenderMap.TILE_SIZE,
+                                                BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < gradient.getHeight(); ++y) {
+            for (int x = 0; x < gradient.getWidth(); ++x) {
+                gradient.setRGB(x, y, 0xff000000 | (x << 16) | (y << 8));
+            }
+        }
+
+        decoded = decode(encoder.encode(gradient));
+        for (int y = 0; y < gradient.getHeight(); ++y) {
+            for (int x = 0; x < gradient.getWidth(); ++x) {
+                int c = decoded.getRGB(x, y);
+                assertEquals(0xff, c >>> 24);
+                assertTrue(Math.abs(((c >> 16) & 0xff) - x) <= 32);
+                assertTrue(Math.abs(((c >> 8) & 0xff) - y) <= 32);
+            }
+        }
+    }
+
+    /**
+     * Test JPEG encoding.
+     *
+     * @throws IOException on encoding errors
+     */
+    @Test
+    public void testJpeg() throws IOException {
+        TileEncoder encoder = TileEncoders.forName("jpeg:0.9");
+        assertEquals("jpg", encoder.getExtension());
+
+        BufferedImage decoded = decode(encoder.encode(createTile()));
+        assertEquals(RenderMap.TILE_SIZE, decoded.getWidth());
+
+        // transparent areas end up white, the flat area keeps its color
+        int c = decoded.getRGB(200, 10);
+        assertTrue(((c >> 16) & 0xff) > 240 && (c & 0xff) > 240);
+        c = decoded.getRGB(70, 50);
+        assertTrue(Math.abs((c & 0xff) - 160) < 10);
+    }
+
+    /**
+     * Test parsing tile format descriptions.
+     */
+    @Test
+    public void testForName() {
+        assertEquals(9,
+            ((PngTileEncoder) TileEncoders.forName("PNG:9")).getLevel());
+        assertEquals("png", TileEncoders.forName("png8:1").getExtension());
+
+        String[] bad = {"gif", "png:10", "png:x", "jpeg:1.5"};
+        for (String format : bad) {
+            boolean caught = false;
+            try {
+                TileEncoders.forName(format);
+            } catch (IllegalArgumentException e) {
+                caught = true;
+            }
+            assertTrue("format " + format + " not rejected", caught);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for the TileServer class.
+ */
+public class TileServerTest {
+
+    /** A temporary folder to write archives into. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** The archive served. */
+    private GEMFFile archive;
+
+    /** The server under test. */
+    private TileServer server;
+
+    /**
+     * Write an archive with two sources, and start serving it.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Before
+    public void setUp() throws IOException {
+        String     path   = new File(folder.getRoot(), "t.gemf").getPath();
+        GEMFWriter writer = new GEMFWriter(path);
+        writer.addTile("osm", 2, 1, 3, "osm tile".getBytes());
+        writer.addTile("oam", 2, 1, 3, "oam tile".getBytes());
+        writer.close();
+
+        archive = new GEMFFile(path);
+        server  = new TileServer(new InetSocketAddress("127.0.0.1", 0),
+                                 Arrays.asList(archive), 2, 1024, 60);
+        server.start();
+    }
+
+    /**
+     * Stop the server, and close the archive.
+     *
+     * @throws IOException on I/O errors
+     */
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        archive.close();
+    }
+
+    /**
+     * Open a connection to the server.
+     *
+     * @param path the path to request
+     * @return the connection
+     * @throws IOException on I/O errors
+     */
+    private HttpURLConnection open(String path) throws IOException {
+        URL url = new URL("http", "127.0.0.1",
+                          server.getAddress().getPort(), path);
+
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    /**
+     * Read the body of a response.
+     *
+     * @param conn the connection to read from
+     * @return the body of the response
+     * @throws IOException on I/O errors
+     */
+    private static byte[] readBody(HttpURLConnection conn) throws IOException {
+        InputStream           in  = conn.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[]                buf = new byte[256];
+        int                   len;
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Test serving tiles, from the archive and from the cache.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testServeTile() throws IOException {
+        HttpURLConnection conn = open("/oam/2/1/3.png");
+        assertEquals(200, conn.getResponseCode());
+        assertArrayEquals("oam tile".getBytes(), readBody(conn));
+        assertEquals("public, max-age=60",
+                     conn.getHeaderField("Cache-Control"));
+        String etag = conn.getHeaderField("ETag");
+        assertNotNull(etag);
+
+        conn = open("/osm/2/1/3.png");
+        assertEquals(200, conn.getResponseCode());
+        assertArrayEquals("osm tile".getBytes(), readBody(conn));
+        assertTrue(!etag.equals(conn.getHeaderField("ETag")));
+
+        conn = open("/oam/2/1/3.png");
+        assertEquals(200, conn.getResponseCode());
+        assertArrayEquals("oam tile".getBytes(), readBody(conn));
+        assertEquals(etag, conn.getHeaderField("ETag"));
+
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2, server.getCacheMissCount());
+        assertEquals(1, server.getCacheHitCount());
+        assertEquals(2 * "oam tile".length() + "osm tile".length(),
+                     server.getBytesSent());
+        assertEquals(2, server.getCache().getCount());
+    }
+
+    /**
+     * Test answering conditional requests with 304 Not Modified.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testNotModified() throws IOException {
+        HttpURLConnection conn = open("/osm/2/1/3.png");
+        assertEquals(200, conn.getResponseCode());
+        String etag = conn.getHeaderField("ETag");
+        readBody(conn);
+
+        conn = open("/osm/2/1/3.png");
+        conn.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, conn.getResponseCode());
+        assertEquals(etag, conn.getHeaderField("ETag"));
+
+        conn = open("/osm/2/1/3.png");
+        conn.setRequestProperty("If-None-Match", "\"other\"");
+        assertEquals(200, conn.getResponseCode());
+        readBody(conn);
+
+        assertEquals(1, server.getNotModifiedCount());
+    }
+
+    /**
+     * Test requests for tiles not in the archive, and malformed requests.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testNotFound() throws IOException {
+        assertEquals(404, open("/osm/2/3/1.png").getResponseCode());
+        assertEquals(404, open("/none/2/1/3.png").getResponseCode());
+        assertEquals(404, open("/osm/2/1/x.png").getResponseCode());
+        assertEquals(404, open("/osm/2/1/3").getResponseCode());
+        assertEquals(404, open("/osm/2/1").getResponseCode());
+
+        assertEquals(5, server.getNotFoundCount());
+        assertEquals(0, server.getErrorCount());
+    }
+
+    /**
+     * Test the eviction of least recently used tiles from the cache.
+     */
+    @Test
+    public void testCacheEviction() {
+        TileCache cache = new TileCache(10);
+        cache.put("a", new TileCache.Tile(new byte[4]));
+        cache.put("b", new TileCache.Tile(new byte[4]));
+        assertNotNull(cache.get("a"));
+        cache.put("c", new TileCache.Tile(new byte[4]));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(8, cache.getSize());
+
+        cache.put("d", new TileCache.Tile(new byte[11]));
+        assertNull(cache.get("d"));
+        assertEquals(2, cache.getCount());
+    }
+}
@@ -0,0 +1,313 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for the tile sinks.
+ */
+public class TileSinkTest {
+
+    /** A temporary folder to create tile sinks in. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create some test tile contents.
+     *
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the tile contents
+     */
+    private static byte[] tileData(int zoom, int x, int y) {
+        return (zoom + "/" + x + "/" + y).getBytes();
+    }
+
+    /**
+     * Read a tile from a GEMF archive.
+     *
+     * @param gemf the archive
+     * @param zoom the zoom level of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @return the tile contents, or null if the tile is not in the archive
+     * @throws IOException on I/O errors
+     */
+    private static byte[]
+    readTile(GEMFFile gemf, int zoom, int x, int y) throws IOException {
+        InputStream in = gemf.getInputStream(x, y, zoom);
+        if (in == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        int    len;
+        while (in.available() > 0 && (len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Test writing a GEMF archive with an irregular set of tiles.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testGEMF() throws IOException {
+        File     file = new File(folder.getRoot(), "test.gemf");
+        TileSink sink = new GEMFTileSink(file, "test");
+
+        Object shared = sink.put(5, 0, 0, "shared".getBytes());
+        for (int x = 3; x < 7; ++x) {
+            for (int y = 10; y < 14; ++y) {
+                if (x == 5 && y == 11) {
+                    continue;
+                }
+                if (y == 13) {
+                    sink.link(5, x, y, shared);
+                } else {
+                    sink.put(5, x, y, tileData(5, x, y));
+                }
+            }
+        }
+        sink.put(6, 20, 30, tileData(6, 20, 30));
+
+        sink.close();
+
+        GEMFFile gemf = new GEMFFile(file);
+        assertEquals("test", gemf.getSources().get(0));
+        assertEquals(2, gemf.getZoomLevels().size());
+
+        for (int x = 3; x < 7; ++x) {
+            for (int y = 10; y < 13; ++y) {
+                if (x == 5 && y == 11) {
+                    assertNull(readTile(gemf, 5, x, y));
+                } else {
+                    assertArrayEquals(tileData(5, x, y),
+                                      readTile(gemf, 5, x, y));
+                }
+            }
+            assertArrayEquals("shared".getBytes(), readTile(gemf, 5, x, 13));
+        }
+        assertArrayEquals(tileData(6, 20, 30), readTile(gemf, 6, 20, 30));
+        assertNull(readTile(gemf, 6, 20, 31));
+
+        gemf.close();
+    }
+
+    /**
+     * Test patching some tiles of a GEMF archive, keeping the rest.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testGEMFPatch() throws IOException {
+        File     file = new File(folder.getRoot(), "test.gemf");
+        TileSink sink = new GEMFTileSink(file, "test");
+
+        Object shared = sink.put(5, 1, 1, "shared".getBytes());
+        sink.link(5, 1, 2, shared);
+        sink.link(5, 2, 2, shared);
+        sink.put(5, 2, 1, tileData(5, 2, 1));
+        sink.close();
+
+        sink = new GEMFTileSink(file, "test", true);
+        sink.put(5, 1, 2, "patched".getBytes());
+        sink.put(5, 3, 3, tileData(5, 3, 3));
+        sink.close();
+
+        GEMFFile gemf = new GEMFFile(file);
+        assertArrayEquals("shared".getBytes(), readTile(gemf, 5, 1, 1));
+        assertArrayEquals("patched".getBytes(), readTile(gemf, 5, 1, 2));
+        assertArrayEquals("shared".getBytes(), readTile(gemf, 5, 2, 2));
+        assertArrayEquals(tileData(5, 2, 1), readTile(gemf, 5, 2, 1));
+        assertArrayEquals(tileData(5, 3, 3), readTile(gemf, 5, 3, 3));
+        gemf.close();
+
+        // the shared data is still stored only once
+        assertEquals(1 + "patched".length() + tileData(5, 3, 3).length
+                   + "shared".length() + tileData(5, 2, 1).length,
+                     new File(file.getPath() + "-1").length());
+    }
+
+    /**
+     * Test merging the archives of several workers into a tile sink, one
+     * of them left behind by an interrupted worker.
+     *
+     * @throws IOException on I/O errors
+     */
+    @Test
+    public void testMerge() throws IOException {
+        File     file1 = new File(folder.newFolder("w1"), "osm.gemf");
+        TileSink sink  = new GEMFTileSink(file1, "osm", true);
+        Object   shared = sink.put(5, 1, 1, "shared".getBytes());
+        sink.link(5, 1, 2, shared);
+        sink.close();
+
+        File file2 = new File(folder.newFolder("w2"), "osm.gemf");
+        sink = new GEMFTileSink(file2, "osm", true);
+        sink.put(5, 2, 1, tileData(5, 2, 1));
+        sink.flush();
+        sink.put(5, 2, 2, tileData(5, 2, 2));
+
+        assertFalse(GEMFWriter.finish(file1.getPath()));
+        assertTrue(GEMFWriter.finish(file2.getPath()));
+
+        File merged = new File(folder.getRoot(), "osm.gemf");
+        sink = new GEMFTileSink(merged, "osm");
+        for (File file : new File[] {file1, file2}) {
+            GEMFFile gemf = new GEMFFile(file);
+            TileSinks.copy(gemf, sink);
+            gemf.close();
+        }
+        sink.close();
+
+        GEMFFile gemf = new GEMFFile(merged);
+        assertArrayEquals("shared".getBytes(), readTile(gemf, 5, 1, 1));
+        assertArrayEquals("shared".getBytes(), readTile(gemf, 5, 1, 2));
+        assertArrayEquals(tileData(5, 2, 1), readTile(gemf, 5, 2, 1));
+        assertNull(readTile(gemf, 5, 2, 2));
+        gemf.close();
+
+        assertEquals(1 + "shared".length() + tileData(5, 2, 1).length,
+                     new File(merged.getPath() + "-1").length());
+    }
+
+    /**
+     * Test writing an MBTiles database, and continuing it.
+     *
+     * @throws Exception on errors
+     */
+    @Test
+    public void testMBTiles() throws Exception {
+        File     file = new File(folder.getRoot(), "test.mbtiles");
+        TileSink sink = new MBTilesTileSink(file, "test", "png", false);
+
+        Object shared = sink.put(2, 1, 0, "shared".getBytes());
+        sink.link(2, 1, 1, shared);
+        sink.put(2, 2, 3, tileData(2, 2, 3));
+        sink.close();
+
+        sink = new MBTilesTileSink(file, "test", "png", false);
+        // replace a tile, leaving its former contents unreferenced
+        sink.put(2, 2, 3, "replaced".getBytes());
+        sink.put(3, 0, 0, tileData(3, 0, 0));
+        sink.close();
+
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:"
+                                                          + file.getPath());
+        try {
+            // tile rows are flipped in MBTiles
+            assertEquals("shared", new String(
+                    queryTile(connection, 2, 1, 3)));
+            assertEquals("shared", new String(
+                    queryTile(connection, 2, 1, 2)));
+            assertEquals("replaced", new String(
+                    queryTile(connection, 2, 2, 0)));
+            assertEquals("3/0/0", new String(
+                    queryTile(connection, 3, 0, 7)));
+
+            Statement st = connection.createStatement();
+            ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM images");
+            assertEquals(3, rs.getInt(1));
+            rs.close();
+
+            rs = st.executeQuery("SELECT COUNT(*) FROM map");
+            assertEquals(4, rs.getInt(1));
+            rs.close();
+
+            rs = st.executeQuery("SELECT value FROM metadata"
+                               + " WHERE name = 'minzoom'");
+            assertEquals("2", rs.getString(1));
+            rs.close();
+            st.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Query a tile from an MBTiles database.
+     *
+     * @param connection the database connection
+     * @param zoom the zoom level of the tile
+     * @param column the column of the tile
+     * @param row the row of the tile
+     * @return the tile contents
+     * @throws SQLException on database errors
+     */
+    private static byte[]
+    queryTile(Connection connection, int zoom, int column, int row)
+                                                        throws SQLException {
+        Statement st = connection.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT tile_data FROM tiles"
+                    + " WHERE zoom_level = " + zoom
+                    + " AND tile_column = " + column
+                    + " AND tile_row = " + row);
+            assertTrue(rs.next());
+            return rs.getBytes(1);
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * Test parsing tile sink descriptions.
+     */
+    @Test
+    public void testValidate() {
+        TileSinks.validate("dir");
+        TileSinks.validate("dir, gemf,MBTiles");
+
+        String[] bad = {"", "zip", "dir,,x"};
+        for (String sinks : bad) {
+            boolean caught = false;
+            try {
+                TileSinks.validate(sinks);
+            } catch (IllegalArgumentException e) {
+                caught = true;
+            }
+            assertTrue("sinks " + sinks + " not rejected", caught);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+    Open Aviation Map
+    Copyright (C) 2012-2013 Ákos Maróy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as
+    published by the Free Software Foundation, either version 3 of the
+    License, or (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openaviationmap.rendering.grid;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.openaviationmap.rendering.grid.hexagon.HexagonGridIndex;
+import org.openaviationmap.rendering.grid.hexagon.HexagonOrientation;
+import org.openaviationmap.rendering.grid.oblong.OblongGridIndex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Test cases for the GridIndex implementations.
+ */
+public class GridIndexTest {
+
+    /** The side length of the hexagons tested. */
+    private static final double SIDE_LEN = 2.5;
+
+    /**
+     * Find the cell with the center closest to a point, by brute force.
+     *
+     * @param index the index to search
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return the cell with the closest center
+     */
+    private static GridCell closest(GridIndex index, double x, double y) {
+        GridCell best     = null;
+        double   bestDist = Double.MAX_VALUE;
+
+        for (int col = -10; col <= 10; ++col) {
+            for (int row = -10; row <= 10; ++row) {
+                GridCell   cell = new GridCell(col, row);
+                Coordinate c    = index.getCenter(cell);
+                double     d    = c.distance(new Coordinate(x, y));
+                if (d < bestDist) {
+                    best     = cell;
+                    bestDist = d;
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Test an index of hexagons of an orientation.
+     *
+     * @param orientation the orientation of the hexagons
+     */
+    private void testHexagons(HexagonOrientation orientation) {
+        HexagonGridIndex index =
+                new HexagonGridIndex(3, -4, SIDE_LEN, orientation, null);
+
+        // the hexagons created are the same as the indexed ones
+        for (int col = -3; col <= 3; ++col) {
+            for (int row = -3; row <= 3; ++row) {
+                GridCell   cell   = new GridCell(col, row);
+                Coordinate center = index.getCenter(cell);
+
+                assertEquals(center,
+                             index.createElement(cell).getCenter());
+                assertEquals(cell, index.getCell(center.x, center.y));
+
+                // all neighbors are adjacent
+                for (Neighbor n : Neighbor.values()) {
+                    if (index.isValidNeighbor(n)) {
+                        Coordinate c = index.getCenter(
+                                                index.getNeighbor(cell, n));
+                        assertEquals(Math.sqrt(3) * SIDE_LEN,
+                                     center.distance(c), 1e-9);
+                    }
+                }
+            }
+        }
+
+        // points are in the hexagon with the closest center
+        for (double x = -20; x < 20; x += 0.37) {
+            for (double y = -20; y < 20; y += 0.41) {
+                assertEquals(closest(index, x, y), index.getCell(x, y));
+            }
+        }
+    }
+
+    /**
+     * Test the index of flat hexagons.
+     */
+    @Test
+    public void testFlatHexagons() {
+        testHexagons(HexagonOrientation.FLAT);
+    }
+
+    /**
+     * Test the index of angled hexagons.
+     */
+    @Test
+    public void testAngledHexagons() {
+        testHexagons(HexagonOrientation.ANGLED);
+    }
+
+    /**
+     * Test the index of oblongs.
+     */
+    @Test
+    public void testOblongs() {
+        OblongGridIndex index = new OblongGridIndex(1, 2, 3, 2, null);
+
+        assertEquals(new GridCell(0, 0), index.getCell(1, 2));
+        assertEquals(new GridCell(-1, -1), index.getCell(0.9, 1.9));
+        assertEquals(new GridCell(2, 3), index.getCell(9.5, 9.5));
+        assertEquals(new Coordinate(8.5, 9), index.getCenter(
+                                                    new GridCell(2, 3)));
+        assertEquals(new GridCell(1, 4),
+                     index.getNeighbor(new GridCell(2, 3),
+                                       Neighbor.UPPER_LEFT));
+        assertEquals(new GridCell(3, 2),
+                     index.getNeighbor(new GridCell(2, 3),
+                                       Neighbor.LOWER_RIGHT));
+    }
+}